@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.benchmark;
+
+import name.martingeisse.mahdl.plugin.processor.definition.ModuleDefinition;
+import name.martingeisse.mahdl.plugin.processor.definition.ModulePort;
+import name.martingeisse.mahdl.plugin.processor.definition.Register;
+import name.martingeisse.mahdl.plugin.processor.definition.Signal;
+import name.martingeisse.mahdl.plugin.processor.expression.ConstantValue;
+import name.martingeisse.mahdl.plugin.processor.expression.ProcessedExpression;
+import name.martingeisse.mahdl.plugin.processor.expression.TypeErrorException;
+import name.martingeisse.mahdl.plugin.processor.statement.ProcessedStatement;
+import org.jetbrains.annotations.NotNull;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import static name.martingeisse.mahdl.benchmark.ProcessedTrees.*;
+import static name.martingeisse.mahdl.plugin.processor.expression.ProcessedBinaryOperator.*;
+import static name.martingeisse.mahdl.plugin.processor.expression.ProcessedUnaryOperator.NOT;
+
+/**
+ * Representative designs for the simulation benchmarks. Each has a clock input "clk", and designs that have an
+ * "enable" input only make progress while it is 1. All other stimulus is generated inside the designs, so the
+ * benchmarks don't need to change inputs while they run.
+ */
+public final class Designs {
+
+	// prevent instantiation
+	private Designs() {
+	}
+
+	@NotNull
+	public static ModuleDefinition get(@NotNull String name) throws TypeErrorException {
+		switch (name) {
+
+			case "counter":
+				return counter();
+
+			case "fifo":
+				return fifo();
+
+			case "cpu":
+				return cpu();
+
+			case "wide":
+				return wide();
+
+			default:
+				throw new IllegalArgumentException("unknown design: " + name);
+
+		}
+	}
+
+	/**
+	 * A 32-bit counter with an enable input and a combinational output derived from it.
+	 */
+	@NotNull
+	public static ModuleDefinition counter() throws TypeErrorException {
+		ProcessedTrees trees = new ProcessedTrees("benchmark.counter");
+		ModulePort clk = trees.input("clk", bit());
+		ModulePort enable = trees.input("enable", bit());
+		ModulePort out = trees.output("out", vector(32));
+		Register count = trees.register("count", vector(32));
+		trees.doBlock(clk, when(ref(enable), assign(ref(count), op(ref(count), PLUS, constant(32, 1)))));
+		trees.doBlock(null, assign(ref(out), op(ref(count), XOR, constant(32, 0x5555_5555L))));
+		return trees.build();
+	}
+
+	/**
+	 * A 16-entry FIFO of 32-bit words. An LFSR decides in each cycle whether to push the next value of a counter
+	 * and whether to pop, so the FIFO fills and drains irregularly.
+	 */
+	@NotNull
+	public static ModuleDefinition fifo() throws TypeErrorException {
+		ProcessedTrees trees = new ProcessedTrees("benchmark.fifo");
+		ModulePort clk = trees.input("clk", bit());
+		ModulePort out = trees.output("out", vector(32));
+		ModulePort full = trees.output("full", bit());
+		ModulePort empty = trees.output("empty", bit());
+		Register memory = trees.register("memory", matrix(16, 32));
+		Register readPointer = trees.register("readPointer", vector(4));
+		Register writePointer = trees.register("writePointer", vector(4));
+		Register count = trees.register("count", vector(5));
+		Register lfsr = trees.register("lfsr", vector(16));
+		Register data = trees.register("data", vector(32));
+		Signal push = trees.signal("push", bit());
+		Signal pop = trees.signal("pop", bit());
+
+		// 16-bit Galois LFSR with taps 16, 14, 13, 11; it leaves the all-zero start state by applying the taps
+		ProcessedExpression shifted = op(constant(1, 0), VECTOR_CONCAT, range(ref(lfsr), 15, 1));
+		ProcessedExpression tap = op(bitAt(ref(lfsr), 0), OR, op(ref(lfsr), EQUAL, constant(16, 0)));
+		ProcessedExpression nextLfsr = op(shifted, XOR, conditional(tap, constant(16, 0xb400), constant(16, 0)));
+		trees.doBlock(clk,
+			assign(ref(lfsr), nextLfsr),
+			when(ref(push),
+				block(
+					assign(row(ref(memory), ref(writePointer)), ref(data)),
+					assign(ref(writePointer), op(ref(writePointer), PLUS, constant(4, 1))),
+					assign(ref(data), op(ref(data), PLUS, constant(32, 1)))
+				)
+			),
+			when(ref(pop), assign(ref(readPointer), op(ref(readPointer), PLUS, constant(4, 1)))),
+			assign(ref(count), op(op(ref(count), PLUS, conditional(ref(push), constant(5, 1), constant(5, 0))),
+				MINUS, conditional(ref(pop), constant(5, 1), constant(5, 0))))
+		);
+		trees.doBlock(null,
+			assign(ref(full), op(ref(count), EQUAL, constant(5, 16))),
+			assign(ref(empty), op(ref(count), EQUAL, constant(5, 0))),
+			assign(ref(push), op(bitAt(ref(lfsr), 3), AND, op(NOT, ref(full)))),
+			assign(ref(pop), op(bitAt(ref(lfsr), 7), AND, op(NOT, ref(empty)))),
+			assign(ref(out), row(ref(memory), ref(readPointer)))
+		);
+		return trees.build();
+	}
+
+	/**
+	 * A small accumulator machine with eight 16-bit registers that runs a fixed program from a ROM, decoding
+	 * instructions with a switch statement. The program repeatedly sums up the numbers from 16 down to 1.
+	 */
+	@NotNull
+	public static ModuleDefinition cpu() throws TypeErrorException {
+		ProcessedTrees trees = new ProcessedTrees("benchmark.cpu");
+		ModulePort clk = trees.input("clk", bit());
+		ModulePort out = trees.output("out", vector(16));
+		Register pc = trees.register("pc", vector(4));
+		Register accumulator = trees.register("accumulator", vector(16));
+		Register registers = trees.register("registers", matrix(8, 16));
+		Signal instruction = trees.signal("instruction", vector(16));
+		Signal opcode = trees.signal("opcode", vector(4));
+		Signal registerIndex = trees.signal("registerIndex", vector(3));
+		Signal immediate = trees.signal("immediate", vector(8));
+		Signal operand = trees.signal("operand", vector(16));
+
+		// opcodes: 0 = load immediate, 1 = add, 2 = subtract, 3 = store, 4 = xor, 5 = and, 6 = branch if not zero, 8 = load
+		long[] program = {
+			0x0001, 0x3100, 0x0010, 0x3200, 0x8000, 0x1100, 0x4300, 0x3000,
+			0x8200, 0x2100, 0x3200, 0x6004, 0x5000, 0x0001, 0x6002, 0x0000,
+		};
+		List<ConstantValue.Vector> addresses = new ArrayList<>();
+		List<ProcessedExpression> words = new ArrayList<>();
+		for (int i = 0; i < program.length; i++) {
+			addresses.add(constantValue(4, i));
+			words.add(constant(16, program[i]));
+		}
+		trees.doBlock(null,
+			assign(ref(instruction), switchExpression(ref(pc), addresses, words, constant(16, 0))),
+			assign(ref(opcode), range(ref(instruction), 15, 12)),
+			assign(ref(registerIndex), range(ref(instruction), 10, 8)),
+			assign(ref(immediate), range(ref(instruction), 7, 0)),
+			assign(ref(operand), row(ref(registers), ref(registerIndex))),
+			assign(ref(out), ref(accumulator))
+		);
+
+		ProcessedExpression nextPc = op(ref(pc), PLUS, constant(4, 1));
+		List<ConstantValue.Vector> opcodes = new ArrayList<>();
+		List<ProcessedStatement> branches = new ArrayList<>();
+		opcodes.add(constantValue(4, 0));
+		branches.add(assign(ref(accumulator), op(constant(8, 0), VECTOR_CONCAT, ref(immediate))));
+		opcodes.add(constantValue(4, 1));
+		branches.add(assign(ref(accumulator), op(ref(accumulator), PLUS, ref(operand))));
+		opcodes.add(constantValue(4, 2));
+		branches.add(assign(ref(accumulator), op(ref(accumulator), MINUS, ref(operand))));
+		opcodes.add(constantValue(4, 3));
+		branches.add(assign(row(ref(registers), ref(registerIndex)), ref(accumulator)));
+		opcodes.add(constantValue(4, 4));
+		branches.add(assign(ref(accumulator), op(ref(accumulator), XOR, ref(operand))));
+		opcodes.add(constantValue(4, 5));
+		branches.add(assign(ref(accumulator), op(ref(accumulator), AND, ref(operand))));
+		opcodes.add(constantValue(4, 6));
+		branches.add(when(op(ref(accumulator), NOT_EQUAL, constant(16, 0)), assign(ref(pc), range(ref(immediate), 3, 0))));
+		opcodes.add(constantValue(4, 8));
+		branches.add(assign(ref(accumulator), ref(operand)));
+		trees.doBlock(clk,
+			assign(ref(pc), nextPc),
+			switchStatement(ref(opcode), opcodes, branches, null)
+		);
+		return trees.build();
+	}
+
+	/**
+	 * A 256-bit datapath that adds, rotates and compares two registers word by word.
+	 */
+	@NotNull
+	public static ModuleDefinition wide() throws TypeErrorException {
+		ProcessedTrees trees = new ProcessedTrees("benchmark.wide");
+		ModulePort clk = trees.input("clk", bit());
+		ModulePort out = trees.output("out", vector(256));
+		ModulePort equal = trees.output("equal", bit());
+		Register a = trees.register("a", vector(256));
+		Register b = trees.register("b", vector(256));
+		Signal rotated = trees.signal("rotated", vector(256));
+		BigInteger increment = new BigInteger("9e3779b97f4a7c15f39cc0605cedc8341082276bf3a27251f86c6a11d0c18e95", 16);
+		trees.doBlock(clk,
+			assign(ref(a), op(ref(a), PLUS, ref(b))),
+			assign(ref(b), op(op(ref(b), XOR, ref(rotated)), PLUS, constant(256, increment)))
+		);
+		trees.doBlock(null,
+			assign(ref(rotated), op(range(ref(a), 250, 0), VECTOR_CONCAT, range(ref(a), 255, 251))),
+			assign(ref(out), op(ref(a), AND, ref(b))),
+			assign(ref(equal), op(ref(a), EQUAL, ref(b)))
+		);
+		return trees.build();
+	}
+
+}
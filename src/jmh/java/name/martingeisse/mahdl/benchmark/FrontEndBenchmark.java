@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.benchmark;
+
+import com.google.common.collect.ImmutableList;
+import com.intellij.psi.PsiElement;
+import name.martingeisse.mahdl.plugin.functions.LoadMahdlMatrixFileFunction;
+import name.martingeisse.mahdl.plugin.input.psi.Module;
+import name.martingeisse.mahdl.plugin.processor.ModuleProcessor;
+import name.martingeisse.mahdl.plugin.processor.definition.Constant;
+import name.martingeisse.mahdl.plugin.processor.definition.ModuleDefinition;
+import name.martingeisse.mahdl.plugin.processor.definition.Named;
+import name.martingeisse.mahdl.plugin.processor.definition.SignalLike;
+import name.martingeisse.mahdl.plugin.processor.expression.ConstantValue;
+import name.martingeisse.mahdl.plugin.processor.expression.ExpressionProcessorImpl;
+import name.martingeisse.mahdl.plugin.processor.expression.ProcessedExpression;
+import name.martingeisse.mahdl.plugin.processor.expression.UnknownExpression;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the front-end on synthetic modules (see {@link FrontEndSources}) that scale along one dimension each:
+ * the number of signals for {@link ModuleProcessor#process()}, the nesting depth and number of switch cases for
+ * {@link ExpressionProcessorImpl}, the number of constants for constant folding, and the number of rows for
+ * {@link LoadMahdlMatrixFileFunction}. The modules are parsed once per trial by a {@link HeadlessProject}, so
+ * parsing is not part of the measurement.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrontEndBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class SignalsState extends ProjectState {
+
+		@Param({"10", "100", "1000", "10000"})
+		public int signals;
+
+		private Module module;
+
+		@Setup
+		public void setup() throws IOException {
+			open();
+			module = project.loadModule("benchmark.signals", FrontEndSources.signals("benchmark.signals", signals));
+			new ModuleProcessor(module, HeadlessProject.STRICT_ERROR_HANDLER).process();
+		}
+
+	}
+
+	@State(Scope.Benchmark)
+	public static class NestingState extends ProjectState {
+
+		@Param({"4", "16", "64"})
+		public int depth;
+
+		private ModuleDefinition moduleDefinition;
+		private SignalLike signal;
+
+		@Setup
+		public void setup() throws IOException {
+			open();
+			moduleDefinition = project.processModule("benchmark.nesting", FrontEndSources.nesting("benchmark.nesting", depth));
+			signal = (SignalLike) moduleDefinition.getDefinitions().get("nested");
+		}
+
+	}
+
+	@State(Scope.Benchmark)
+	public static class SwitchState extends ProjectState {
+
+		@Param({"4", "64", "1024"})
+		public int cases;
+
+		private ModuleDefinition moduleDefinition;
+		private SignalLike signal;
+
+		@Setup
+		public void setup() throws IOException {
+			open();
+			moduleDefinition = project.processModule("benchmark.switches", FrontEndSources.switchCases("benchmark.switches", cases));
+			signal = (SignalLike) moduleDefinition.getDefinitions().get("switched");
+		}
+
+	}
+
+	@State(Scope.Benchmark)
+	public static class ConstantsState extends ProjectState {
+
+		@Param({"10", "100", "1000"})
+		public int constants;
+
+		private List<Constant> constantDefinitions;
+
+		@Setup
+		public void setup() throws IOException {
+			open();
+			ModuleDefinition moduleDefinition = project.processModule("benchmark.constants", FrontEndSources.constants("benchmark.constants", constants));
+			constantDefinitions = new ArrayList<>();
+			for (Named definition : moduleDefinition.getDefinitions().values()) {
+				if (definition instanceof Constant) {
+					constantDefinitions.add((Constant) definition);
+				}
+			}
+		}
+
+	}
+
+	@State(Scope.Benchmark)
+	public static class MatrixState extends ProjectState {
+
+		@Param({"256", "4096", "65536"})
+		public int rows;
+
+		private final LoadMahdlMatrixFileFunction function = new LoadMahdlMatrixFileFunction();
+		private PsiElement anchor;
+		private List<ConstantValue> arguments;
+
+		@Setup
+		public void setup() throws IOException {
+			open();
+			project.writeFile("benchmark/rom.txt", FrontEndSources.matrixFile(rows));
+			anchor = project.loadModule("benchmark.rom", FrontEndSources.constants("benchmark.rom", 1));
+			arguments = ImmutableList.of(
+				new ConstantValue.Text("rom.txt"),
+				new ConstantValue.Integer(BigInteger.valueOf(rows)),
+				new ConstantValue.Integer(BigInteger.valueOf(32))
+			);
+			if (!(applyLoadMatrix(this) instanceof ConstantValue.Matrix)) {
+				throw new IllegalStateException("could not load matrix file");
+			}
+		}
+
+	}
+
+	/**
+	 * Owns the headless project of a state object.
+	 */
+	public static abstract class ProjectState {
+
+		HeadlessProject project;
+
+		void open() throws IOException {
+			project = new HeadlessProject();
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			project.close();
+		}
+
+	}
+
+	@Benchmark
+	public ModuleDefinition processModule(SignalsState state) {
+		return new ModuleProcessor(state.module, HeadlessProject.STRICT_ERROR_HANDLER).process();
+	}
+
+	@Benchmark
+	public ProcessedExpression processNestedExpression(NestingState state) {
+		return processInitializer(state.moduleDefinition, state.signal);
+	}
+
+	@Benchmark
+	public ProcessedExpression processSwitchExpression(SwitchState state) {
+		return processInitializer(state.moduleDefinition, state.signal);
+	}
+
+	@Benchmark
+	public void foldConstants(ConstantsState state, Blackhole blackhole) {
+		ProcessedExpression.FormallyConstantEvaluationContext context = new ProcessedExpression.FormallyConstantEvaluationContext(HeadlessProject.STRICT_ERROR_HANDLER);
+		for (Constant constant : state.constantDefinitions) {
+			blackhole.consume(constant.getProcessedInitializer().evaluateFormallyConstant(context));
+		}
+	}
+
+	@Benchmark
+	public ConstantValue loadMatrix(MatrixState state) {
+		return applyLoadMatrix(state);
+	}
+
+	@NotNull
+	private static ProcessedExpression processInitializer(@NotNull ModuleDefinition moduleDefinition, @NotNull SignalLike signal) {
+		ExpressionProcessorImpl expressionProcessor = new ExpressionProcessorImpl(HeadlessProject.STRICT_ERROR_HANDLER, moduleDefinition.getDefinitions()::get);
+		ProcessedExpression result = expressionProcessor.process(signal.getInitializer(), signal.getProcessedDataType());
+		if (result instanceof UnknownExpression) {
+			throw new IllegalStateException("could not process initializer of " + signal.getName());
+		}
+		return result;
+	}
+
+	@NotNull
+	private static ConstantValue applyLoadMatrix(@NotNull MatrixState state) {
+		ProcessedExpression.FormallyConstantEvaluationContext context = new ProcessedExpression.FormallyConstantEvaluationContext(HeadlessProject.STRICT_ERROR_HANDLER);
+		return state.function.applyToConstantValues(state.anchor, state.arguments, context);
+	}
+
+}
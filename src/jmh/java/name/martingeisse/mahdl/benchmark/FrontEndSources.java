@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.benchmark;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Random;
+
+/**
+ * Generates the source code of synthetic modules for the front-end benchmarks, each of which scales along one
+ * dimension. The generated code is deterministic and free of errors.
+ */
+public final class FrontEndSources {
+
+	// prevent instantiation
+	private FrontEndSources() {
+	}
+
+	/**
+	 * A module with (signals) signals and as many registers and constants, each signal feeding the next one, and a
+	 * clocked do-block that updates the registers with if-statements.
+	 */
+	@NotNull
+	public static String signals(@NotNull String moduleName, int signals) {
+		StringBuilder builder = new StringBuilder();
+		builder.append("module ").append(moduleName).append(";\n\n");
+		builder.append("interface {\n\tin bit clk;\n\tin vector[8] x;\n\tout vector[8] y;\n}\n\n");
+		for (int i = 0; i < signals; i++) {
+			builder.append("constant vector[8] K").append(i).append(" = 8d").append((i * 37) & 255).append(";\n");
+			builder.append("register vector[8] r").append(i).append(";\n");
+			builder.append("signal vector[8] s").append(i).append(" = (").append(i == 0 ? "x" : "s" + (i - 1))
+				.append(" ^ r").append(i).append(") + K").append(i).append(";\n");
+		}
+		builder.append("\ndo (clk) {\n");
+		for (int i = 0; i < signals; i++) {
+			builder.append("\tif (x[").append(i & 7).append("]) {\n");
+			builder.append("\t\tr").append(i).append(" = s").append(i).append(";\n");
+			builder.append("\t} else {\n");
+			builder.append("\t\tr").append(i).append(" = r").append(i).append(" + 8d1;\n");
+			builder.append("\t}\n");
+		}
+		builder.append("}\n\n");
+		builder.append("do (*) {\n\ty = s").append(signals - 1).append(";\n}\n");
+		return builder.toString();
+	}
+
+	/**
+	 * A module with a signal named "nested" whose initializer nests binary operations and conditionals (depth) levels
+	 * deep.
+	 */
+	@NotNull
+	public static String nesting(@NotNull String moduleName, int depth) {
+		String[] operators = {"+", "^", "&", "|", "-"};
+		String expression = "a";
+		for (int i = 1; i <= depth; i++) {
+			if (i % 4 == 0) {
+				expression = "(c ? " + expression + " : b)";
+			} else {
+				expression = "(" + expression + ' ' + operators[i % operators.length] + " 32d" + i + ")";
+			}
+		}
+		return "module " + moduleName + ";\n\n" +
+			"interface {\n\tin vector[32] a, b;\n\tin bit c;\n\tout vector[32] y;\n}\n\n" +
+			"signal vector[32] nested = " + expression + ";\n\n" +
+			"do (*) {\n\ty = nested;\n}\n";
+	}
+
+	/**
+	 * A module with a signal named "switched" whose initializer is a switch expression with (cases) cases, plus a
+	 * default case unless the cases cover all selector values.
+	 */
+	@NotNull
+	public static String switchCases(@NotNull String moduleName, int cases) {
+		int selectorSize = Math.max(1, 32 - Integer.numberOfLeadingZeros(cases - 1));
+		Random random = new Random(cases);
+		StringBuilder builder = new StringBuilder();
+		builder.append("module ").append(moduleName).append(";\n\n");
+		builder.append("interface {\n\tin vector[").append(selectorSize).append("] selector;\n\tout vector[32] y;\n}\n\n");
+		builder.append("signal vector[32] switched = switch (selector) {\n");
+		for (int i = 0; i < cases; i++) {
+			builder.append("\tcase ").append(selectorSize).append('d').append(i).append(": 32h")
+				.append(Integer.toHexString(random.nextInt())).append('\n');
+		}
+		if (cases < (1 << selectorSize)) {
+			builder.append("\tdefault: 32d0\n");
+		}
+		builder.append("};\n\n");
+		builder.append("do (*) {\n\ty = switched;\n}\n");
+		return builder.toString();
+	}
+
+	/**
+	 * A module with a chain of (constants) integer constants and as many vector constants, each computed from its
+	 * predecessor, so processing the module folds all of them.
+	 */
+	@NotNull
+	public static String constants(@NotNull String moduleName, int constants) {
+		StringBuilder builder = new StringBuilder();
+		builder.append("module ").append(moduleName).append(";\n\n");
+		builder.append("interface {\n\tout vector[32] y;\n}\n\n");
+		builder.append("constant integer C0 = 1;\n");
+		builder.append("constant vector[32] V0 = 32d1;\n");
+		for (int i = 1; i < constants; i++) {
+			builder.append("constant integer C").append(i).append(" = (C").append(i - 1).append(" * 31 + ").append(i).append(") % 65521;\n");
+			builder.append("constant vector[32] V").append(i).append(" = (V").append(i - 1).append(" ^ 32d").append(i)
+				.append(") + (C").append(i).append(" > 30000 ? 32d7 : 32d3);\n");
+		}
+		builder.append("\ndo (*) {\n\ty = V").append(constants - 1).append(";\n}\n");
+		return builder.toString();
+	}
+
+	/**
+	 * The contents of a matrix file for loadMatrix() with (rows) random rows of 32 bits.
+	 */
+	@NotNull
+	public static String matrixFile(int rows) {
+		Random random = new Random(rows);
+		StringBuilder builder = new StringBuilder();
+		builder.append("rows: ").append(rows).append('\n');
+		builder.append("columns: 32\n");
+		builder.append('\n');
+		for (int i = 0; i < rows; i++) {
+			builder.append(String.format("%08x", random.nextInt())).append('\n');
+		}
+		return builder.toString();
+	}
+
+}
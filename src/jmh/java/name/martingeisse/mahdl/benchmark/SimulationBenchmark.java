@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.benchmark;
+
+import name.martingeisse.mahdl.simulator.ClockDomain;
+import name.martingeisse.mahdl.simulator.core.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures simulation speed in cycles per second for the {@link Designs}, both one update at a time and in runs of
+ * many cycles inside the generated program. Run with -prof gc (the default of the "jmh" Gradle task) to see the
+ * allocation rate, which should be zero once the program is built.
+ * <p>
+ * The mode selects the buffering mode and whether activity tracking is enabled: "copy" and "flip" select the
+ * corresponding {@link BufferingMode}, "tracking" selects {@link BufferingMode#COPY} with activity tracking.
+ * <p>
+ * The other benchmarks measure the time for a fixed amount of work:
+ * <ul>
+ * <li>runUntil and lockstep: 1 ms of simulated time of three counter domains, using their clocks of 100 MHz, 25 MHz
+ * and 32 kHz, or stepping all of them at 100 MHz</li>
+ * <li>checkpoint and restore: a 128 MB state</li>
+ * <li>replayStimulus: a 2 GB stimulus file of 64-word rows, which should be in the page cache after warmup</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimulationBenchmark {
+
+	private static final int RUN_LENGTH = 1000;
+
+	// clock periods in picoseconds
+	private static final long FAST_PERIOD = 10_000;
+	private static final long MEDIUM_PERIOD = 40_000;
+	private static final long SLOW_PERIOD = 31_250_000;
+	private static final long MULTI_RATE_SPAN = 1_000_000_000;
+
+	private static final int CHECKPOINT_WORDS = 128 << 17;
+
+	private static final int STIMULUS_ROW_SIZE = 64;
+	private static final int STIMULUS_ROWS = 1 << 22;
+
+	@State(Scope.Thread)
+	public static class DomainState {
+
+		@Param({"counter", "fifo", "cpu", "wide"})
+		public String design;
+
+		@Param({"copy", "flip", "tracking"})
+		public String mode;
+
+		private InternalDomain domain;
+
+		@Setup
+		public void setup() throws Exception {
+			ProgramBuilder builder = new ProgramBuilder(Designs.get(design), 0);
+			switch (mode) {
+
+				case "copy":
+					break;
+
+				case "flip":
+					builder.setBufferingMode(BufferingMode.FLIP);
+					break;
+
+				case "tracking":
+					builder.setActivityTracking(true);
+					break;
+
+				default:
+					throw new IllegalArgumentException("unknown mode: " + mode);
+
+			}
+			InternalSimulation simulation = new InternalSimulation();
+			InternalInput input = simulation.createInput(builder.getInputWordCount());
+			domain = simulation.createDomain(builder.getWordCount(), builder.build());
+			ValueField enable = builder.getInputValueFields().get("enable");
+			if (enable != null) {
+				input.setValue(enable, 1);
+			}
+		}
+
+	}
+
+	/**
+	 * The same counter in three domains, once with different clocks and once with the default clock.
+	 */
+	@State(Scope.Thread)
+	public static class MultiRateState {
+
+		private InternalSimulation multiRateSimulation;
+		private InternalSimulation lockstepSimulation;
+
+		@Setup
+		public void setup() throws Exception {
+			multiRateSimulation = createCounters(new ClockDomain(FAST_PERIOD, 0), new ClockDomain(MEDIUM_PERIOD, 0),
+				new ClockDomain(SLOW_PERIOD, 0));
+			lockstepSimulation = createCounters(ClockDomain.DEFAULT, ClockDomain.DEFAULT, ClockDomain.DEFAULT);
+		}
+
+	}
+
+	/**
+	 * A counter in a domain with room for a state of 128 MB, and a checkpoint file of it.
+	 */
+	@State(Scope.Thread)
+	public static class CheckpointState {
+
+		private InternalSimulation simulation;
+		private Path path;
+
+		@Setup
+		public void setup() throws Exception {
+			simulation = new InternalSimulation();
+			ProgramBuilder builder = new ProgramBuilder(Designs.get("counter"), 0);
+			InternalInput input = simulation.createInput(builder.getInputWordCount());
+			input.setValue(builder.getInputValueFields().get("enable"), 1);
+			simulation.createDomain(CHECKPOINT_WORDS, builder.build());
+			path = Files.createTempFile("checkpoint", ".bin");
+			simulation.checkpoint(path);
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			Files.delete(path);
+		}
+
+	}
+
+	/**
+	 * A stimulus file of 2 GB for an input of 64 words.
+	 */
+	@State(Scope.Thread)
+	public static class StimulusState {
+
+		private Path path;
+		private StimulusFile file;
+
+		@Setup
+		public void setup() throws IOException {
+			path = Files.createTempFile("stimulus", ".bin");
+			ByteBuffer buffer = ByteBuffer.allocate(STIMULUS_ROW_SIZE << 3 << 10).order(ByteOrder.LITTLE_ENDIAN);
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+				for (long row = 0; row < STIMULUS_ROWS; ) {
+					buffer.clear();
+					while (buffer.hasRemaining()) {
+						buffer.putLong(row * 0x9e3779b97f4a7c15L + buffer.position());
+						if (buffer.position() % (STIMULUS_ROW_SIZE << 3) == 0) {
+							row++;
+						}
+					}
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						channel.write(buffer);
+					}
+				}
+			}
+			InternalSimulation simulation = new InternalSimulation();
+			file = new StimulusFile(path, simulation.createInput(STIMULUS_ROW_SIZE));
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			file.close();
+			Files.delete(path);
+		}
+
+	}
+
+	private static InternalSimulation createCounters(ClockDomain... clocks) throws Exception {
+		ProgramBuilder builder = new ProgramBuilder(Designs.get("counter"), 0);
+		InternalSimulation simulation = new InternalSimulation();
+		InternalInput input = simulation.createInput(builder.getInputWordCount());
+		input.setValue(builder.getInputValueFields().get("enable"), 1);
+		for (ClockDomain clock : clocks) {
+			simulation.createDomain(builder.getWordCount(), builder.build(), clock);
+		}
+		return simulation;
+	}
+
+	@Benchmark
+	public InternalDomain update(DomainState state) {
+		state.domain.update();
+		return state.domain;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RUN_LENGTH)
+	public InternalDomain runCycles(DomainState state) {
+		state.domain.runCycles(RUN_LENGTH);
+		return state.domain;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public InternalSimulation runUntil(MultiRateState state) {
+		InternalSimulation simulation = state.multiRateSimulation;
+		simulation.runUntil(simulation.getTime() + MULTI_RATE_SPAN);
+		return simulation;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public InternalSimulation lockstep(MultiRateState state) {
+		state.lockstepSimulation.run(MULTI_RATE_SPAN / FAST_PERIOD);
+		return state.lockstepSimulation;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void checkpoint(CheckpointState state) throws IOException {
+		state.simulation.checkpoint(state.path);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void restore(CheckpointState state) throws IOException {
+		state.simulation.restore(state.path);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public long replayStimulus(StimulusState state) throws IOException {
+		StimulusFile file = state.file;
+		file.seek(0);
+		while (file.hasNext()) {
+			file.applyNext();
+		}
+		return file.getNextRow();
+	}
+
+}
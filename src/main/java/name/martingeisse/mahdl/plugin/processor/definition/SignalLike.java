@@ -68,4 +68,11 @@ public abstract class SignalLike extends Named {
 		return processedInitializer;
 	}
 
+	/**
+	 * Sets the processed initializer directly, for definitions that are built without an initializer PSI element.
+	 */
+	public void setProcessedInitializer(@Nullable ProcessedExpression processedInitializer) {
+		this.processedInitializer = processedInitializer;
+	}
+
 }
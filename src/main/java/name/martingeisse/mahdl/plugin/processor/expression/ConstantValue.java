@@ -284,7 +284,7 @@ public abstract class ConstantValue {
 			if (to < 0 || from < to || from >= size) {
 				return Unknown.INSTANCE;
 			}
-			return new Vector(from - to + 1, bits.get(to, from), false);
+			return new Vector(from - to + 1, bits.get(to, from + 1), false);
 		}
 
 	}
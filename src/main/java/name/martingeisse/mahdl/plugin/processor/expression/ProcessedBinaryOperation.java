@@ -105,6 +105,10 @@ public final class ProcessedBinaryOperation extends ProcessedExpression {
 		BigInteger resultInteger;
 		try {
 			integerResultValue = operator.evaluateIntegerVectorOperator(leftInteger, rightInteger);
+			if (integerResultValue instanceof ConstantValue.Bit) {
+				// comparison operators
+				return integerResultValue;
+			}
 			resultInteger = integerResultValue.convertToInteger();
 			if (resultInteger == null) {
 				return context.evaluationInconsistency(this, "got result value of wrong type for binary operator: " + integerResultValue.getDataTypeFamily());
@@ -31,13 +31,14 @@ public abstract class HeadBodyReader {
 			String value = line.substring(colonIndex + 1).trim();
 			onHeadProperty(key, value);
 		}
+		onStartBody();
 		int bodyStartLineIndex = lineNumberReader.getLineNumber();
 		while (true) {
 			String line = lineNumberReader.readLine();
 			if (line == null) {
 				break;
 			}
-			onBodyLine(lineNumberReader.getLineNumber(), lineNumberReader.getLineNumber() - bodyStartLineIndex, line);
+			onBodyLine(lineNumberReader.getLineNumber(), lineNumberReader.getLineNumber() - bodyStartLineIndex - 1, line);
 		}
 	}
 
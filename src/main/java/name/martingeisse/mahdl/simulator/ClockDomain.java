@@ -5,7 +5,52 @@
 package name.martingeisse.mahdl.simulator;
 
 /**
- *
+ * The clock that drives a domain, described by its period and phase in simulated time units. The unit is up to the
+ * user, but must be fine enough to express all clocks of a simulation, e.g. picoseconds for a design that mixes
+ * 100 MHz (period 10000), 25 MHz (period 40000) and 32 kHz (period 31250000) clocks.
+ * <p>
+ * The clock has an edge at each time after 0 that is (phase) plus a multiple of (period). Simulations start at
+ * time 0, so a phase of 0 means that the first edge is at (period).
  */
 public final class ClockDomain {
+
+	/**
+	 * A clock with an edge at each time unit, used for domains created without a clock.
+	 */
+	public static final ClockDomain DEFAULT = new ClockDomain(1, 0);
+
+	private final long period;
+	private final long phase;
+
+	public ClockDomain(long period, long phase) {
+		if (period <= 0) {
+			throw new IllegalArgumentException("invalid period: " + period);
+		}
+		if (phase < 0 || phase >= period) {
+			throw new IllegalArgumentException("invalid phase for period " + period + ": " + phase);
+		}
+		this.period = period;
+		this.phase = phase;
+	}
+
+	public long getPeriod() {
+		return period;
+	}
+
+	public long getPhase() {
+		return phase;
+	}
+
+	/**
+	 * Returns the time of the first edge after the specified time.
+	 */
+	public long getNextEdge(long time) {
+		return phase + (Math.floorDiv(time - phase, period) + 1) * period;
+	}
+
+	@Override
+	public String toString() {
+		return "ClockDomain[period=" + period + ", phase=" + phase + "]";
+	}
+
 }
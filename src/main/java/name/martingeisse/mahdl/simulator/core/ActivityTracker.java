@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import name.martingeisse.mahdl.plugin.processor.definition.SignalLike;
+import name.martingeisse.mahdl.plugin.processor.expression.ProcessedExpression;
+import name.martingeisse.mahdl.plugin.processor.statement.ProcessedStatement;
+import org.jetbrains.annotations.NotNull;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.GeneratorAdapter;
+
+import java.util.*;
+
+/**
+ * Knows which blocks read which signal-likes, and generates the code that maintains the dirty bitmap of a domain.
+ * <p>
+ * A "block" is a do-block or a signal initializer. Each block has an index, and the dirty bitmap stores one bit per
+ * block in a long[], using bit (index % 64) of word (index / 64). A block is dirty if any of the values it reads may
+ * have changed since it was last executed. Writes that change a value set the dirty bits of all blocks that read it.
+ * Changes to input values are handled by the {@link InternalInput} using {@link #getInputReaders(ValueLayout)}.
+ * <p>
+ * The bitmap may have additional words after those of the blocks that hold the dirty bits "taken" from some blocks,
+ * see {@link #reserveTakenDirtyBits(int)}. These count as blocks that no signal-like is read by, so they are
+ * included in the block count.
+ */
+final class ActivityTracker {
+
+	private final Map<SignalLike, BitSet> readers = new HashMap<>();
+	private int blockCount = 0;
+	private int takenCount = 0;
+	private int takenWordIndex = -1;
+
+	/**
+	 * Adds a block that consists of the specified statement and returns its index.
+	 */
+	public int addBlock(@NotNull ProcessedStatement body) {
+		Set<SignalLike> readSignals = new HashSet<>();
+		StatementAnalysis.collectReadSignals(body, readSignals);
+		return addBlock(readSignals);
+	}
+
+	/**
+	 * Adds a block that computes the specified expression (a signal initializer) and returns its index.
+	 */
+	public int addBlock(@NotNull ProcessedExpression expression) {
+		Set<SignalLike> readSignals = new HashSet<>();
+		StatementAnalysis.collectReadSignals(expression, readSignals);
+		return addBlock(readSignals);
+	}
+
+	private int addBlock(@NotNull Set<SignalLike> readSignals) {
+		int blockIndex = blockCount;
+		blockCount++;
+		for (SignalLike signalLike : readSignals) {
+			readers.computeIfAbsent(signalLike, k -> new BitSet()).set(blockIndex);
+		}
+		return blockIndex;
+	}
+
+	public int getBlockCount() {
+		return blockCount;
+	}
+
+	public static int getWordCount(int blockCount) {
+		return (blockCount + 63) >>> 6;
+	}
+
+	public boolean hasReaders(@NotNull SignalLike signalLike) {
+		return readers.containsKey(signalLike);
+	}
+
+	/**
+	 * Returns the dirty bits to set for each input field index (see {@link ValueField#getIndex()}) when the value of
+	 * that field changes.
+	 */
+	@NotNull
+	public long[][] getInputReaders(@NotNull ValueLayout layout) {
+		long[][] result = new long[layout.getInputFields().size()][];
+		for (Map.Entry<SignalLike, BitSet> entry : readers.entrySet()) {
+			if (ValueLayout.isInput(entry.getKey())) {
+				result[layout.getField(entry.getKey()).getIndex()] = toWords(entry.getValue());
+			}
+		}
+		for (int i = 0; i < result.length; i++) {
+			if (result[i] == null) {
+				result[i] = new long[getWordCount(blockCount)];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Combines input readers returned by {@link #getInputReaders(ValueLayout)} per input word: the result contains
+	 * for each word of the input the dirty bits of all fields that occupy that word, for changes that are only known
+	 * by word, such as whole rows of a {@link StimulusFile}.
+	 */
+	@NotNull
+	public static long[][] getInputWordReaders(@NotNull ValueLayout layout, @NotNull long[][] inputReaders) {
+		long[][] result = new long[layout.getInputWordCount()][];
+		for (ValueField field : layout.getInputFields().values()) {
+			long[] fieldReaders = inputReaders[field.getIndex()];
+			for (int i = 0; i < field.getWordCount(); i++) {
+				int wordIndex = field.getWordIndex() + i;
+				if (result[wordIndex] == null) {
+					result[wordIndex] = fieldReaders.clone();
+				} else {
+					for (int j = 0; j < fieldReaders.length; j++) {
+						result[wordIndex][j] |= fieldReaders[j];
+					}
+				}
+			}
+		}
+		for (int i = 0; i < result.length; i++) {
+			if (result[i] == null) {
+				result[i] = new long[0];
+			}
+		}
+		return result;
+	}
+
+	private long[] toWords(@NotNull BitSet bits) {
+		return Arrays.copyOf(bits.toLongArray(), getWordCount(blockCount));
+	}
+
+	/**
+	 * Generates code that sets the dirty bits of all blocks that read the specified signal-like.
+	 */
+	public void compileMarkReaders(@NotNull GeneratorAdapter generator, @NotNull SignalLike signalLike, int dirtyBlocksLocal) {
+		BitSet bits = readers.get(signalLike);
+		if (bits == null) {
+			return;
+		}
+		long[] words = bits.toLongArray();
+		for (int i = 0; i < words.length; i++) {
+			if (words[i] != 0) {
+				compileModifyWord(generator, dirtyBlocksLocal, i, words[i], GeneratorAdapter.OR);
+			}
+		}
+	}
+
+	/**
+	 * Generates code that sets the dirty bits of the specified blocks.
+	 */
+	public void compileMarkDirty(@NotNull GeneratorAdapter generator, int dirtyBlocksLocal, @NotNull int[] blockIndices) {
+		BitSet bits = new BitSet();
+		for (int blockIndex : blockIndices) {
+			bits.set(blockIndex);
+		}
+		long[] words = bits.toLongArray();
+		for (int i = 0; i < words.length; i++) {
+			if (words[i] != 0) {
+				compileModifyWord(generator, dirtyBlocksLocal, i, words[i], GeneratorAdapter.OR);
+			}
+		}
+	}
+
+	/**
+	 * Reserves words at the end of the dirty bitmap for the dirty bits of blocks 0 to (count - 1), which get moved
+	 * there by {@link #compileTakeDirtyBits(GeneratorAdapter, int)}. This is needed for blocks that must see the dirty
+	 * bits from before any block got executed. The bits are kept in the bitmap instead of locals so they are visible
+	 * to all methods of the program (see {@link MethodSplitter}). Must be called after all blocks have been added.
+	 */
+	public void reserveTakenDirtyBits(int count) {
+		takenCount = count;
+		takenWordIndex = getWordCount(blockCount);
+		blockCount = (takenWordIndex + getWordCount(count)) << 6;
+	}
+
+	/**
+	 * Generates code that moves the dirty bits reserved by {@link #reserveTakenDirtyBits(int)} to their reserved words.
+	 */
+	public void compileTakeDirtyBits(@NotNull GeneratorAdapter generator, int dirtyBlocksLocal) {
+		for (int i = 0; i < getWordCount(takenCount); i++) {
+			long mask = (i < (takenCount >>> 6)) ? -1L : ((1L << (takenCount & 63)) - 1);
+			generator.loadLocal(dirtyBlocksLocal);
+			generator.push(takenWordIndex + i);
+			generator.loadLocal(dirtyBlocksLocal);
+			generator.push(i);
+			generator.arrayLoad(Type.LONG_TYPE);
+			generator.push(mask);
+			generator.math(GeneratorAdapter.AND, Type.LONG_TYPE);
+			generator.arrayStore(Type.LONG_TYPE);
+			compileModifyWord(generator, dirtyBlocksLocal, i, ~mask, GeneratorAdapter.AND);
+		}
+	}
+
+	/**
+	 * Generates code that jumps to the specified label if the bit for the specified block is not set in the bits taken
+	 * by {@link #compileTakeDirtyBits(GeneratorAdapter, int)}.
+	 */
+	public void compileJumpIfTakenClean(@NotNull GeneratorAdapter generator, int dirtyBlocksLocal, int blockIndex, @NotNull Label label) {
+		generator.loadLocal(dirtyBlocksLocal);
+		generator.push(takenWordIndex + (blockIndex >>> 6));
+		generator.arrayLoad(Type.LONG_TYPE);
+		compileJumpIfClean(generator, blockIndex, label);
+	}
+
+	/**
+	 * Generates code that jumps to the specified label if the block is not dirty, and clears its dirty bit otherwise.
+	 */
+	public void compileJumpIfCleanOrClear(@NotNull GeneratorAdapter generator, int dirtyBlocksLocal, int blockIndex, @NotNull Label label) {
+		generator.loadLocal(dirtyBlocksLocal);
+		generator.push(blockIndex >>> 6);
+		generator.arrayLoad(Type.LONG_TYPE);
+		compileJumpIfClean(generator, blockIndex, label);
+		compileModifyWord(generator, dirtyBlocksLocal, blockIndex >>> 6, ~(1L << (blockIndex & 63)), GeneratorAdapter.AND);
+	}
+
+	// expects the word that contains the block's bit on the stack
+	private static void compileJumpIfClean(@NotNull GeneratorAdapter generator, int blockIndex, @NotNull Label label) {
+		generator.push(1L << (blockIndex & 63));
+		generator.math(GeneratorAdapter.AND, Type.LONG_TYPE);
+		generator.push(0L);
+		generator.ifCmp(Type.LONG_TYPE, GeneratorAdapter.EQ, label);
+	}
+
+	// dirtyBlocks[wordIndex] = dirtyBlocks[wordIndex] (operation) operand
+	private static void compileModifyWord(@NotNull GeneratorAdapter generator, int dirtyBlocksLocal, int wordIndex, long operand, int operation) {
+		generator.loadLocal(dirtyBlocksLocal);
+		generator.push(wordIndex);
+		generator.dup2();
+		generator.arrayLoad(Type.LONG_TYPE);
+		generator.push(operand);
+		generator.math(operation, Type.LONG_TYPE);
+		generator.arrayStore(Type.LONG_TYPE);
+	}
+
+}
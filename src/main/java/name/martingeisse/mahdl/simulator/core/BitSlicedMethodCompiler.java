@@ -0,0 +1,804 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import com.intellij.psi.PsiElement;
+import name.martingeisse.mahdl.plugin.processor.definition.Constant;
+import name.martingeisse.mahdl.plugin.processor.definition.SignalLike;
+import name.martingeisse.mahdl.plugin.processor.expression.*;
+import name.martingeisse.mahdl.plugin.processor.statement.*;
+import name.martingeisse.mahdl.plugin.processor.type.ProcessedDataType;
+import org.jetbrains.annotations.NotNull;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.GeneratorAdapter;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compiles processed statements and expressions into the body of a single method of a bit-sliced {@link Program},
+ * which simulates 64 independent lanes at once. Each bit of a value is a long whose bit i is the value of that bit in
+ * lane i, so the code works on bit slices instead of values: AND, OR, XOR and NOT become the same operations on the
+ * slices, a conditional becomes a multiplexer, and arithmetic becomes gate-level logic such as ripple-carry adders.
+ * <p>
+ * Since the lanes may take different paths through if- and switch-statements, statements don't branch. Instead,
+ * each statement gets compiled with an "enable" slice that contains the lanes that execute it, and assignments only
+ * replace the value in the enabled lanes. A branch is skipped at runtime if no lane executes it. Selections with a
+ * non-constant index compare the index to each possible index value, since each lane may select another element.
+ * <p>
+ * An expression is compiled to one "bit" per bit of its value, least significant first, and integers take 64 bits.
+ * Each bit is either a long local or one of the constants {@link #ZERO} and {@link #ONES}. Operations on constant
+ * bits are folded at compile time, so constants and zero-extension cost nothing at runtime.
+ * <p>
+ * Like in {@link MethodCompiler}, signal-likes are read from the "source" value array and written to the
+ * "destination" value array. Values are stored as described for bit-sliced {@link ValueField}s.
+ */
+final class BitSlicedMethodCompiler {
+
+	// the bit that is zero in all lanes
+	static final int ZERO = -1;
+
+	// the bit that is one in all lanes
+	static final int ONES = -2;
+
+	private final GeneratorAdapter generator;
+	private final ValueLayout layout;
+	private final int sourceValuesLocal;
+	private final int destinationValuesLocal;
+	private final int inputValuesLocal;
+
+	BitSlicedMethodCompiler(@NotNull GeneratorAdapter generator,
+							@NotNull ValueLayout layout,
+							int sourceValuesLocal,
+							int destinationValuesLocal,
+							int inputValuesLocal) {
+		this.generator = generator;
+		this.layout = layout;
+		this.sourceValuesLocal = sourceValuesLocal;
+		this.destinationValuesLocal = destinationValuesLocal;
+		this.inputValuesLocal = inputValuesLocal;
+	}
+
+	//
+	// statements
+	//
+
+	public void compileStatement(@NotNull ProcessedStatement statement) {
+		compileStatement(statement, ONES);
+	}
+
+	/**
+	 * Compiles a statement for the lanes in the specified enable bit, which may be a long local or a constant bit.
+	 */
+	void compileStatement(@NotNull ProcessedStatement statement, int enable) {
+		compileStatement(statement, enable, (statements, subStatementEnable) -> {
+			for (ProcessedStatement subStatement : statements) {
+				compileStatement(subStatement, subStatementEnable);
+			}
+		});
+	}
+
+	/**
+	 * Like {@link #compileStatement(ProcessedStatement, int)}, but leaves the sub-statements to the specified
+	 * callback, which allows a {@link MethodSplitter} to move them to other methods. The callback is not called for
+	 * sub-statements that are enabled in no lane at compile time.
+	 */
+	void compileStatement(@NotNull ProcessedStatement statement, int enable, @NotNull SubStatementCompiler subStatementCompiler) {
+		if (enable == ZERO) {
+			return;
+		}
+		if (statement instanceof ProcessedBlock) {
+
+			subStatementCompiler.compile(((ProcessedBlock) statement).getStatements(), enable);
+
+		} else if (statement instanceof ProcessedAssignment) {
+
+			ProcessedAssignment assignment = (ProcessedAssignment) statement;
+			compileAssignment(assignment.getLeftHandSide(), compileBits(assignment.getRightHandSide()), enable);
+
+		} else if (statement instanceof ProcessedIf) {
+
+			ProcessedIf ifStatement = (ProcessedIf) statement;
+			int condition = compileBits(ifStatement.getCondition())[0];
+			compileBranch(ifStatement.getThenBranch(), and(enable, condition), subStatementCompiler);
+			compileBranch(ifStatement.getElseBranch(), and(enable, not(condition)), subStatementCompiler);
+
+		} else if (statement instanceof ProcessedSwitchStatement) {
+
+			ProcessedSwitchStatement switchStatement = (ProcessedSwitchStatement) statement;
+			int[] selectorBits = compileBits(switchStatement.getSelector());
+			int handled = ZERO;
+			for (ProcessedSwitchStatement.Case aCase : switchStatement.getCases()) {
+				int match = and(compileMatch(selectorBits, aCase.getSelectorValues()), not(handled));
+				handled = or(handled, match);
+				compileBranch(aCase.getBranch(), and(enable, match), subStatementCompiler);
+			}
+			if (switchStatement.getDefaultBranch() != null) {
+				compileBranch(switchStatement.getDefaultBranch(), and(enable, not(handled)), subStatementCompiler);
+			}
+
+		} else if (!(statement instanceof Nop)) {
+			throw new ProgramBuilderException(statement.getErrorSource(), "cannot compile statement: " + statement);
+		}
+	}
+
+	/**
+	 * Compiles a statement that is skipped at runtime if it is not enabled in any lane.
+	 */
+	private void compileBranch(@NotNull ProcessedStatement statement, int enable, @NotNull SubStatementCompiler subStatementCompiler) {
+		if (enable == ZERO || statement instanceof Nop) {
+			return;
+		}
+		if (enable == ONES) {
+			subStatementCompiler.compile(Collections.singletonList(statement), enable);
+			return;
+		}
+		Label skipLabel = generator.newLabel();
+		generator.loadLocal(enable);
+		generator.push(0L);
+		generator.ifCmp(Type.LONG_TYPE, GeneratorAdapter.EQ, skipLabel);
+		subStatementCompiler.compile(Collections.singletonList(statement), enable);
+		generator.mark(skipLabel);
+	}
+
+	/**
+	 * Compiles the sub-statements of a statement for the lanes in the enable bit.
+	 */
+	interface SubStatementCompiler {
+		void compile(@NotNull List<ProcessedStatement> statements, int enable);
+	}
+
+	public void compileAssignment(@NotNull ProcessedExpression destination, @NotNull ProcessedExpression value) {
+		compileAssignment(destination, compileBits(value), ONES);
+	}
+
+	private void compileAssignment(@NotNull ProcessedExpression destination, @NotNull int[] valueBits, int enable) {
+		if (destination instanceof SignalLikeReference) {
+
+			if (destination.getDataType() instanceof ProcessedDataType.Matrix) {
+				throw new ProgramBuilderException(destination.getErrorSource(), "cannot assign to a matrix as a whole");
+			}
+			compileStoreBits(layout.getField(MethodCompiler.getDefinition(destination)).getWordIndex(), valueBits, enable);
+
+		} else if (destination instanceof ProcessedIndexSelection.BitFromVector) {
+
+			ProcessedIndexSelection selection = (ProcessedIndexSelection) destination;
+			ValueField field = layout.getField(MethodCompiler.getDefinition(selection.getContainer()));
+			int[] enables = compileIndexEnables(selection, field.getWidth(), enable);
+			for (int i = 0; i < enables.length; i++) {
+				compileStoreBit(field.getWordIndex() + i, valueBits[0], enables[i]);
+			}
+
+		} else if (destination instanceof ProcessedIndexSelection.VectorFromMatrix) {
+
+			ProcessedIndexSelection selection = (ProcessedIndexSelection) destination;
+			ValueField field = layout.getField(MethodCompiler.getDefinition(selection.getContainer()));
+			int[] enables = compileIndexEnables(selection, field.getRowCount(), enable);
+			for (int i = 0; i < enables.length; i++) {
+				compileStoreBits(field.getRow(i).getWordIndex(), valueBits, enables[i]);
+			}
+
+		} else if (destination instanceof ProcessedRangeSelection) {
+
+			ProcessedRangeSelection selection = (ProcessedRangeSelection) destination;
+			ValueField field = layout.getField(MethodCompiler.getDefinition(selection.getContainer()));
+			compileStoreBits(field.getWordIndex() + selection.getToIndex(), valueBits, enable);
+
+		} else if (destination instanceof ProcessedBinaryOperation &&
+			((ProcessedBinaryOperation) destination).getOperator() == ProcessedBinaryOperator.VECTOR_CONCAT) {
+
+			ProcessedBinaryOperation concatenation = (ProcessedBinaryOperation) destination;
+			int rightWidth = MethodCompiler.getWidth(concatenation.getRightOperand());
+			compileAssignment(concatenation.getLeftOperand(), extract(valueBits, rightWidth, valueBits.length - rightWidth), enable);
+			compileAssignment(concatenation.getRightOperand(), extract(valueBits, 0, rightWidth), enable);
+
+		} else {
+			throw new ProgramBuilderException(destination.getErrorSource(), "cannot compile assignment to this expression");
+		}
+	}
+
+	/**
+	 * Returns the enable bit for each element of the container of a selection, which is the specified enable bit for
+	 * the selected element and ZERO for the others if the index is constant.
+	 */
+	@NotNull
+	private int[] compileIndexEnables(@NotNull ProcessedIndexSelection selection, int containerSize, int enable) {
+		int[] selected = compileIndexMatches(selection, containerSize);
+		for (int i = 0; i < selected.length; i++) {
+			selected[i] = and(enable, selected[i]);
+		}
+		return selected;
+	}
+
+	private void compileStoreBits(int wordIndex, @NotNull int[] valueBits, int enable) {
+		for (int i = 0; i < valueBits.length; i++) {
+			compileStoreBit(wordIndex + i, valueBits[i], enable);
+		}
+	}
+
+	// replaces the enabled lanes of a word in the destination values
+	private void compileStoreBit(int wordIndex, int bit, int enable) {
+		if (enable == ZERO) {
+			return;
+		}
+		if (enable != ONES) {
+			generator.loadLocal(destinationValuesLocal);
+			generator.push(wordIndex);
+			generator.arrayLoad(Type.LONG_TYPE);
+			bit = mux(enable, bit, storeNewBit());
+		}
+		generator.loadLocal(destinationValuesLocal);
+		generator.push(wordIndex);
+		load(bit);
+		generator.arrayStore(Type.LONG_TYPE);
+	}
+
+	//
+	// expressions
+	//
+
+	/**
+	 * Compiles an expression to its bits, least significant bit first. The returned locals must not be modified since
+	 * they may be shared.
+	 */
+	@NotNull
+	private int[] compileBits(@NotNull ProcessedExpression expression) {
+		int width = MethodCompiler.getWidth(expression);
+		if (expression instanceof ProcessedConstantValue) {
+
+			return getConstantBits(((ProcessedConstantValue) expression).getValue(), width, expression.getErrorSource());
+
+		} else if (expression instanceof SignalLikeReference) {
+
+			SignalLike definition = ((SignalLikeReference) expression).getDefinition();
+			if (definition instanceof Constant) {
+				return getConstantBits(((Constant) definition).getValue(), width, expression.getErrorSource());
+			} else if (expression.getDataType() instanceof ProcessedDataType.Matrix) {
+				throw new ProgramBuilderException(expression.getErrorSource(), "cannot use a matrix as a value");
+			}
+			return compileLoadBits(getValuesLocal(definition), layout.getField(definition).getWordIndex(), width);
+
+		} else if (expression instanceof ProcessedUnaryOperation) {
+
+			ProcessedUnaryOperation operation = (ProcessedUnaryOperation) expression;
+			int[] operandBits = compileBits(operation.getOperand());
+			switch (operation.getOperator()) {
+
+				case NOT: {
+					int[] bits = new int[width];
+					for (int i = 0; i < width; i++) {
+						bits[i] = not(operandBits[i]);
+					}
+					return bits;
+				}
+
+				case PLUS:
+					return operandBits;
+
+				case MINUS:
+					return add(constant(width, false), operandBits, true);
+
+				default:
+					throw new ProgramBuilderException(operation.getErrorSource(), "unknown unary operator: " + operation.getOperator());
+
+			}
+
+		} else if (expression instanceof ProcessedBinaryOperation) {
+
+			return compileBinaryOperation((ProcessedBinaryOperation) expression);
+
+		} else if (expression instanceof ProcessedConditional) {
+
+			ProcessedConditional conditional = (ProcessedConditional) expression;
+			int condition = compileBits(conditional.getCondition())[0];
+			return mux(condition, compileBits(conditional.getThenBranch()), compileBits(conditional.getElseBranch()));
+
+		} else if (expression instanceof ProcessedSwitchExpression) {
+
+			// later cases are overridden by earlier ones, so the first matching case wins
+			ProcessedSwitchExpression switchExpression = (ProcessedSwitchExpression) expression;
+			int[] selectorBits = compileBits(switchExpression.getSelector());
+			int[] bits = switchExpression.getDefaultBranch() == null ? constant(width, false) : compileBits(switchExpression.getDefaultBranch());
+			List<ProcessedSwitchExpression.Case> cases = switchExpression.getCases();
+			for (int i = cases.size() - 1; i >= 0; i--) {
+				int match = compileMatch(selectorBits, cases.get(i).getSelectorValues());
+				bits = mux(match, compileBits(cases.get(i).getResultValue()), bits);
+			}
+			return bits;
+
+		} else if (expression instanceof ProcessedIndexSelection.BitFromVector) {
+
+			ProcessedIndexSelection selection = (ProcessedIndexSelection) expression;
+			int[] containerBits = compileBits(selection.getContainer());
+			int[] matches = compileIndexMatches(selection, containerBits.length);
+			int bit = ZERO;
+			for (int i = 0; i < matches.length; i++) {
+				bit = or(bit, and(matches[i], containerBits[i]));
+			}
+			return new int[] {bit};
+
+		} else if (expression instanceof ProcessedIndexSelection.VectorFromMatrix) {
+
+			ProcessedIndexSelection selection = (ProcessedIndexSelection) expression;
+			ConstantValue.Matrix constantMatrix = MethodCompiler.getConstantMatrix(selection.getContainer());
+			int rowCount = ((ProcessedDataType.Matrix) selection.getContainer().getDataType()).getFirstSize();
+			int[] matches = compileIndexMatches(selection, rowCount);
+			int[] bits = constant(width, false);
+			for (int row = 0; row < rowCount; row++) {
+				if (matches[row] == ZERO) {
+					continue;
+				}
+				int[] rowBits;
+				if (constantMatrix != null) {
+					rowBits = new int[width];
+					for (int i = 0; i < width; i++) {
+						rowBits[i] = constantMatrix.getBits().get(row * width + i) ? ONES : ZERO;
+					}
+				} else {
+					SignalLike definition = ((SignalLikeReference) selection.getContainer()).getDefinition();
+					rowBits = compileLoadBits(getValuesLocal(definition), layout.getField(definition).getRow(row).getWordIndex(), width);
+				}
+				for (int i = 0; i < width; i++) {
+					bits[i] = or(bits[i], and(matches[row], rowBits[i]));
+				}
+			}
+			return bits;
+
+		} else if (expression instanceof ProcessedRangeSelection) {
+
+			ProcessedRangeSelection selection = (ProcessedRangeSelection) expression;
+			ProcessedExpression container = selection.getContainer();
+			if (container instanceof SignalLikeReference && !(((SignalLikeReference) container).getDefinition() instanceof Constant)) {
+				// load only the selected bits
+				SignalLike definition = ((SignalLikeReference) container).getDefinition();
+				return compileLoadBits(getValuesLocal(definition), layout.getField(definition).getWordIndex() + selection.getToIndex(), width);
+			}
+			return extract(compileBits(container), selection.getToIndex(), width);
+
+		} else if (expression instanceof TypeConversion.BitToVector) {
+
+			return compileBits(((TypeConversion) expression).getOperand());
+
+		} else if (expression instanceof TypeConversion.VectorToInteger) {
+
+			return extract(compileBits(((TypeConversion) expression).getOperand()), 0, 64);
+
+		} else if (expression instanceof TypeConversion.IntegerToVector) {
+
+			// sign-extend the integer
+			int[] operandBits = compileBits(((TypeConversion) expression).getOperand());
+			int[] bits = new int[width];
+			for (int i = 0; i < width; i++) {
+				bits[i] = operandBits[Math.min(i, operandBits.length - 1)];
+			}
+			return bits;
+
+		} else {
+			throw new ProgramBuilderException(expression.getErrorSource(), "cannot compile expression: " + expression);
+		}
+	}
+
+	@NotNull
+	private int[] compileBinaryOperation(@NotNull ProcessedBinaryOperation operation) {
+		ProcessedExpression leftOperand = operation.getLeftOperand();
+		ProcessedExpression rightOperand = operation.getRightOperand();
+		int width = MethodCompiler.getWidth(operation);
+		switch (operation.getOperator()) {
+
+			case AND:
+			case OR:
+			case XOR: {
+				int[] leftBits = compileBits(leftOperand);
+				int[] rightBits = compileBits(rightOperand);
+				int[] bits = new int[width];
+				for (int i = 0; i < width; i++) {
+					int leftBit = leftBits[i];
+					int rightBit = rightBits[i];
+					switch (operation.getOperator()) {
+						case AND:
+							bits[i] = and(leftBit, rightBit);
+							break;
+						case OR:
+							bits[i] = or(leftBit, rightBit);
+							break;
+						default:
+							bits[i] = xor(leftBit, rightBit);
+							break;
+					}
+				}
+				return bits;
+			}
+
+			case VECTOR_CONCAT: {
+				int[] leftBits = compileBits(leftOperand);
+				int[] rightBits = compileBits(rightOperand);
+				int[] bits = new int[width];
+				System.arraycopy(rightBits, 0, bits, 0, rightBits.length);
+				System.arraycopy(leftBits, 0, bits, rightBits.length, leftBits.length);
+				return bits;
+			}
+
+			case PLUS:
+				return add(extract(compileBits(leftOperand), 0, width), extract(compileBits(rightOperand), 0, width), false);
+
+			case MINUS:
+				return add(extract(compileBits(leftOperand), 0, width), extract(compileBits(rightOperand), 0, width), true);
+
+			case TIMES:
+				return multiply(extract(compileBits(leftOperand), 0, width), extract(compileBits(rightOperand), 0, width));
+
+			case DIVIDED_BY:
+				return divide(extract(compileBits(leftOperand), 0, width), extract(compileBits(rightOperand), 0, width), false);
+
+			case REMAINDER:
+				return divide(extract(compileBits(leftOperand), 0, width), extract(compileBits(rightOperand), 0, width), true);
+
+			case SHIFT_LEFT:
+				return compileShift(compileBits(leftOperand), rightOperand, true);
+
+			case SHIFT_RIGHT:
+				return compileShift(compileBits(leftOperand), rightOperand, false);
+
+			case EQUAL:
+				return new int[] {compileEquals(leftOperand, rightOperand)};
+
+			case NOT_EQUAL:
+				return new int[] {not(compileEquals(leftOperand, rightOperand))};
+
+			case LESS_THAN:
+				return new int[] {compileLessThan(leftOperand, rightOperand)};
+
+			case LESS_THAN_OR_EQUAL:
+				return new int[] {not(compileLessThan(rightOperand, leftOperand))};
+
+			case GREATER_THAN:
+				return new int[] {compileLessThan(rightOperand, leftOperand)};
+
+			case GREATER_THAN_OR_EQUAL:
+				return new int[] {not(compileLessThan(leftOperand, rightOperand))};
+
+			default:
+				throw new ProgramBuilderException(operation.getErrorSource(), "cannot compile binary operator: " + operation.getOperator());
+
+		}
+	}
+
+	/**
+	 * Shifts by a constant amount by selecting other bits, or by a non-constant amount through a barrel shifter with
+	 * one stage per bit of the amount. Amounts that are negative or at least the width produce zero.
+	 */
+	@NotNull
+	private int[] compileShift(@NotNull int[] bits, @NotNull ProcessedExpression amount, boolean left) {
+		int width = bits.length;
+		ConstantValue constantAmount = MethodCompiler.getConstantValue(amount);
+		if (constantAmount != null) {
+			long amountValue = MethodCompiler.toShiftAmount(constantAmount, amount.getErrorSource());
+			return shift(bits, (amountValue < 0 || amountValue >= width) ? width : (int) amountValue, left);
+		}
+		int[] amountBits = compileBits(amount);
+		int tooLarge = ZERO;
+		for (int i = 0; i < amountBits.length; i++) {
+			if (i >= 31 || (1 << i) >= width) {
+				tooLarge = or(tooLarge, amountBits[i]);
+			} else {
+				bits = mux(amountBits[i], shift(bits, 1 << i, left), bits);
+			}
+		}
+		int[] result = new int[width];
+		for (int i = 0; i < width; i++) {
+			result[i] = and(bits[i], not(tooLarge));
+		}
+		return result;
+	}
+
+	private int compileEquals(@NotNull ProcessedExpression leftOperand, @NotNull ProcessedExpression rightOperand) {
+		int[] leftBits = compileBits(leftOperand);
+		int[] rightBits = compileBits(rightOperand);
+		int result = ONES;
+		for (int i = 0; i < leftBits.length; i++) {
+			result = and(result, not(xor(leftBits[i], rightBits[i])));
+		}
+		return result;
+	}
+
+	/**
+	 * Compares vectors as unsigned and integers as signed values, using the carry of (left - right).
+	 */
+	private int compileLessThan(@NotNull ProcessedExpression leftOperand, @NotNull ProcessedExpression rightOperand) {
+		int[] leftBits = compileBits(leftOperand);
+		int[] rightBits = compileBits(rightOperand);
+		if (leftOperand.getDataType() instanceof ProcessedDataType.Integer) {
+			leftBits = leftBits.clone();
+			rightBits = rightBits.clone();
+			leftBits[63] = not(leftBits[63]);
+			rightBits[63] = not(rightBits[63]);
+		}
+		int[] difference = addWithCarry(leftBits, rightBits, true);
+		return not(difference[difference.length - 1]);
+	}
+
+	/**
+	 * Returns a bit that is set in the lanes where the selector is equal to any of the specified values.
+	 */
+	private int compileMatch(@NotNull int[] selectorBits, @NotNull List<ConstantValue.Vector> values) {
+		int match = ZERO;
+		for (ConstantValue.Vector value : values) {
+			match = or(match, compileEqualsConstant(selectorBits, value.getBits()));
+		}
+		return match;
+	}
+
+	/**
+	 * Returns, for each possible index value, a bit that is set in the lanes where the index has that value.
+	 * Constant indices are range-checked here.
+	 */
+	@NotNull
+	private int[] compileIndexMatches(@NotNull ProcessedIndexSelection selection, int containerSize) {
+		ProcessedExpression index = selection.getIndex();
+		int[] matches = new int[containerSize];
+		if (index instanceof ProcessedConstantValue) {
+			int indexValue = MethodCompiler.toIndex(((ProcessedConstantValue) index).getValue(), index.getErrorSource());
+			if (indexValue < 0 || indexValue >= containerSize) {
+				throw new ProgramBuilderException(index.getErrorSource(), "index out of bounds: " + indexValue);
+			}
+			for (int i = 0; i < containerSize; i++) {
+				matches[i] = (i == indexValue ? ONES : ZERO);
+			}
+		} else {
+			int[] indexBits = compileBits(index);
+			for (int i = 0; i < containerSize; i++) {
+				matches[i] = compileEqualsConstant(indexBits, BitSet.valueOf(new long[] {i}));
+			}
+		}
+		return matches;
+	}
+
+	private int compileEqualsConstant(@NotNull int[] bits, @NotNull BitSet value) {
+		if (value.length() > bits.length) {
+			return ZERO;
+		}
+		int result = ONES;
+		for (int i = 0; i < bits.length; i++) {
+			result = and(result, value.get(i) ? bits[i] : not(bits[i]));
+		}
+		return result;
+	}
+
+	@NotNull
+	private int[] compileLoadBits(int valuesLocal, int wordIndex, int width) {
+		int[] bits = new int[width];
+		for (int i = 0; i < width; i++) {
+			generator.loadLocal(valuesLocal);
+			generator.push(wordIndex + i);
+			generator.arrayLoad(Type.LONG_TYPE);
+			bits[i] = storeNewBit();
+		}
+		return bits;
+	}
+
+	//
+	// arithmetic
+	//
+
+	@NotNull
+	private int[] add(@NotNull int[] leftBits, @NotNull int[] rightBits, boolean subtract) {
+		int[] bitsWithCarry = addWithCarry(leftBits, rightBits, subtract);
+		return extract(bitsWithCarry, 0, leftBits.length);
+	}
+
+	/**
+	 * Ripple-carry addition of two values of the same width, returning the sum followed by the carry out. Subtraction
+	 * adds the inverted right operand with a carry in, so the carry out is clear if left < right (unsigned).
+	 */
+	@NotNull
+	private int[] addWithCarry(@NotNull int[] leftBits, @NotNull int[] rightBits, boolean subtract) {
+		int width = leftBits.length;
+		int[] bits = new int[width + 1];
+		int carry = subtract ? ONES : ZERO;
+		for (int i = 0; i < width; i++) {
+			int leftBit = leftBits[i];
+			int rightBit = subtract ? not(rightBits[i]) : rightBits[i];
+			int propagate = xor(leftBit, rightBit);
+			bits[i] = xor(propagate, carry);
+			carry = or(and(leftBit, rightBit), and(propagate, carry));
+		}
+		bits[width] = carry;
+		return bits;
+	}
+
+	// shift-and-add, keeping only the lower (width) bits of the product
+	@NotNull
+	private int[] multiply(@NotNull int[] leftBits, @NotNull int[] rightBits) {
+		int width = leftBits.length;
+		int[] product = constant(width, false);
+		for (int i = 0; i < width; i++) {
+			if (rightBits[i] == ZERO) {
+				continue;
+			}
+			int[] partialProduct = new int[width];
+			for (int j = 0; j < width; j++) {
+				partialProduct[j] = (j < i ? ZERO : and(leftBits[j - i], rightBits[i]));
+			}
+			product = add(product, partialProduct, false);
+		}
+		return product;
+	}
+
+	/**
+	 * Restoring division of unsigned values. Like the helpers in {@link Program}, a zero divisor produces zero.
+	 */
+	@NotNull
+	private int[] divide(@NotNull int[] leftBits, @NotNull int[] rightBits, boolean remainder) {
+		int width = leftBits.length;
+		int[] quotient = new int[width];
+		int[] partialRemainder = constant(width, false);
+		int[] divisor = extract(rightBits, 0, width + 1);
+		for (int i = width - 1; i >= 0; i--) {
+			int[] shifted = new int[width + 1];
+			shifted[0] = leftBits[i];
+			System.arraycopy(partialRemainder, 0, shifted, 1, width);
+			int[] difference = addWithCarry(shifted, divisor, true);
+			quotient[i] = difference[width + 1];
+			partialRemainder = mux(quotient[i], extract(difference, 0, width), extract(shifted, 0, width));
+		}
+		int nonZero = ZERO;
+		for (int bit : rightBits) {
+			nonZero = or(nonZero, bit);
+		}
+		int[] result = remainder ? partialRemainder : quotient;
+		for (int i = 0; i < width; i++) {
+			result[i] = and(result[i], nonZero);
+		}
+		return result;
+	}
+
+	//
+	// bit operations (with constant folding)
+	//
+
+	void load(int bit) {
+		if (bit == ZERO) {
+			generator.push(0L);
+		} else if (bit == ONES) {
+			generator.push(-1L);
+		} else {
+			generator.loadLocal(bit);
+		}
+	}
+
+	// stores the long on top of the stack in a new local
+	private int storeNewBit() {
+		int local = generator.newLocal(Type.LONG_TYPE);
+		generator.storeLocal(local);
+		return local;
+	}
+
+	private int compileMath(int leftBit, int rightBit, int operation) {
+		load(leftBit);
+		load(rightBit);
+		generator.math(operation, Type.LONG_TYPE);
+		return storeNewBit();
+	}
+
+	private int not(int bit) {
+		if (bit < 0) {
+			return bit == ZERO ? ONES : ZERO;
+		}
+		return compileMath(bit, ONES, GeneratorAdapter.XOR);
+	}
+
+	private int and(int leftBit, int rightBit) {
+		if (leftBit == ZERO || rightBit == ZERO) {
+			return ZERO;
+		} else if (leftBit == ONES || leftBit == rightBit) {
+			return rightBit;
+		} else if (rightBit == ONES) {
+			return leftBit;
+		}
+		return compileMath(leftBit, rightBit, GeneratorAdapter.AND);
+	}
+
+	private int or(int leftBit, int rightBit) {
+		if (leftBit == ONES || rightBit == ONES) {
+			return ONES;
+		} else if (leftBit == ZERO || leftBit == rightBit) {
+			return rightBit;
+		} else if (rightBit == ZERO) {
+			return leftBit;
+		}
+		return compileMath(leftBit, rightBit, GeneratorAdapter.OR);
+	}
+
+	private int xor(int leftBit, int rightBit) {
+		if (leftBit == rightBit) {
+			return ZERO;
+		} else if (leftBit == ZERO) {
+			return rightBit;
+		} else if (rightBit == ZERO) {
+			return leftBit;
+		} else if (leftBit == ONES) {
+			return not(rightBit);
+		} else if (rightBit == ONES) {
+			return not(leftBit);
+		}
+		return compileMath(leftBit, rightBit, GeneratorAdapter.XOR);
+	}
+
+	// (select ? ifSet : ifClear) for each lane
+	private int mux(int select, int ifSet, int ifClear) {
+		if (select == ONES || ifSet == ifClear) {
+			return ifSet;
+		} else if (select == ZERO) {
+			return ifClear;
+		} else if (ifClear == ZERO) {
+			return and(select, ifSet);
+		} else if (ifSet == ONES) {
+			return or(select, ifClear);
+		}
+		// ifClear ^ ((ifSet ^ ifClear) & select)
+		return xor(ifClear, and(xor(ifSet, ifClear), select));
+	}
+
+	@NotNull
+	private int[] mux(int select, @NotNull int[] ifSet, @NotNull int[] ifClear) {
+		int[] bits = new int[ifSet.length];
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = mux(select, ifSet[i], ifClear[i]);
+		}
+		return bits;
+	}
+
+	//
+	// helpers
+	//
+
+	private int getValuesLocal(@NotNull SignalLike definition) {
+		return ValueLayout.isInput(definition) ? inputValuesLocal : sourceValuesLocal;
+	}
+
+	@NotNull
+	private static int[] constant(int width, boolean set) {
+		int[] bits = new int[width];
+		Arrays.fill(bits, set ? ONES : ZERO);
+		return bits;
+	}
+
+	// returns (width) bits starting at the offset, which may be negative, using ZERO for bits outside the array
+	@NotNull
+	private static int[] extract(@NotNull int[] bits, int offset, int width) {
+		int[] result = new int[width];
+		for (int i = 0; i < width; i++) {
+			int sourceIndex = offset + i;
+			result[i] = (sourceIndex >= 0 && sourceIndex < bits.length ? bits[sourceIndex] : ZERO);
+		}
+		return result;
+	}
+
+	@NotNull
+	private static int[] shift(@NotNull int[] bits, int amount, boolean left) {
+		return left ? extract(bits, -amount, bits.length) : extract(bits, amount, bits.length);
+	}
+
+	@NotNull
+	private static int[] getConstantBits(@NotNull ConstantValue value, int width, @NotNull PsiElement errorSource) {
+		int[] bits = new int[width];
+		if (value instanceof ConstantValue.Vector) {
+			BitSet bitSet = ((ConstantValue.Vector) value).getBits();
+			for (int i = 0; i < width; i++) {
+				bits[i] = bitSet.get(i) ? ONES : ZERO;
+			}
+		} else {
+			long longValue = MethodCompiler.toLong(value, errorSource);
+			for (int i = 0; i < width; i++) {
+				bits[i] = ((longValue >>> i) & 1) != 0 ? ONES : ZERO;
+			}
+		}
+		return bits;
+	}
+
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+/**
+ * Determines how an {@link InternalDomain} turns the new values computed by its program into its current values.
+ */
+public enum BufferingMode {
+
+	/**
+	 * The new values get copied to the current values after each update. The program can rely on the new values
+	 * array containing the current values when it starts.
+	 */
+	COPY,
+
+	/**
+	 * The two value arrays swap roles after each update, so no copying is needed. The new values array contains
+	 * the values from two updates ago when the program starts, so the program must carry over each value it does not
+	 * compute itself. Matrix row writes are applied to both arrays so whole matrices never need to be carried over.
+	 */
+	FLIP
+
+}
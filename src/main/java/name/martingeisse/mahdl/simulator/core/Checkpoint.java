@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import name.martingeisse.mahdl.simulator.ClockDomain;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the state of an {@link InternalSimulation} to a file and reads it back, see
+ * {@link InternalSimulation#checkpoint(Path)}.
+ * <p>
+ * The file consists of a header and the value arrays of all inputs, then all domains. The header contains a
+ * fingerprint of the simulation's structure: the sizes of the inputs, and the size, clock, input index and value
+ * layout (see {@link ValueLayout#getDescription()}) of each domain. A checkpoint can only be restored into a
+ * simulation with the same structure, but its programs may have been built with other settings, such as another
+ * buffering mode or method size limit, since those don't change the meaning of the values. The arrays are copied from and
+ * to the file through memory mappings, in little-endian order, which the JVM can do with plain memory copies instead
+ * of streaming the data through intermediate buffers.
+ * <p>
+ * Dirty bitmaps are not saved. Restoring marks all blocks dirty, which is always correct.
+ */
+final class Checkpoint {
+
+	private static final int MAGIC = 0x4d614843;
+	private static final int VERSION = 2;
+	private static final int FINGERPRINT_SIZE = 32;
+	private static final int TIME_OFFSET = 8 + FINGERPRINT_SIZE;
+
+	// larger arrays are mapped in parts, since a single mapping cannot exceed 2 GB
+	private static final int MAX_MAPPING_SIZE = 1 << 30;
+
+	private Checkpoint() {
+	}
+
+	static void write(@NotNull InternalSimulation simulation, @NotNull Path path) throws IOException {
+		List<long[]> arrays = getArrays(simulation);
+		ByteBuffer header = createHeader(simulation);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+			StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+			long position = header.limit();
+			for (long[] array : arrays) {
+				for (int offset = 0; offset < array.length; offset += MAX_MAPPING_SIZE >>> 3) {
+					int length = Math.min(array.length - offset, MAX_MAPPING_SIZE >>> 3);
+					map(channel, FileChannel.MapMode.READ_WRITE, position, length).put(array, offset, length);
+					position += (long) length << 3;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the values into the arrays of the simulation and returns the simulated time. The caller must update
+	 * everything that depends on the values. If the file doesn't match the simulation, no values get changed.
+	 */
+	static long read(@NotNull InternalSimulation simulation, @NotNull Path path) throws IOException {
+		List<long[]> arrays = getArrays(simulation);
+		ByteBuffer expectedHeader = createHeader(simulation);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(expectedHeader.limit()).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining()) {
+				if (channel.read(header) < 0) {
+					break;
+				}
+			}
+			header.flip();
+			if (header.limit() < 8 || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+				throw new IOException("not a checkpoint file: " + path);
+			}
+			// compare everything except the time
+			if (header.limit() != expectedHeader.limit() ||
+				!header.duplicate().limit(TIME_OFFSET).equals(expectedHeader.duplicate().limit(TIME_OFFSET))) {
+				throw new IOException("checkpoint was written by a simulation of a different design: " + path);
+			}
+			long position = header.limit();
+			if (channel.size() != position + getDataSize(arrays)) {
+				throw new IOException("checkpoint file has the wrong size: " + path);
+			}
+			for (long[] array : arrays) {
+				for (int offset = 0; offset < array.length; offset += MAX_MAPPING_SIZE >>> 3) {
+					int length = Math.min(array.length - offset, MAX_MAPPING_SIZE >>> 3);
+					map(channel, FileChannel.MapMode.READ_ONLY, position, length).get(array, offset, length);
+					position += (long) length << 3;
+				}
+			}
+			return header.getLong(TIME_OFFSET);
+		}
+	}
+
+	@NotNull
+	private static LongBuffer map(@NotNull FileChannel channel, @NotNull FileChannel.MapMode mode, long position, int length) throws IOException {
+		MappedByteBuffer buffer = channel.map(mode, position, (long) length << 3);
+		return buffer.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+	}
+
+	// the values of all inputs, then all domains
+	@NotNull
+	private static List<long[]> getArrays(@NotNull InternalSimulation simulation) {
+		List<long[]> arrays = new ArrayList<>();
+		for (InternalInput input : simulation.inputs) {
+			arrays.add(input.values);
+		}
+		for (InternalDomain domain : simulation.domains) {
+			arrays.add(domain.currentValues);
+		}
+		return arrays;
+	}
+
+	private static long getDataSize(@NotNull List<long[]> arrays) {
+		long size = 0;
+		for (long[] array : arrays) {
+			size += (long) array.length << 3;
+		}
+		return size;
+	}
+
+	/**
+	 * The header is the magic number, version, fingerprint and simulated time. Its length is a multiple of 8 bytes.
+	 */
+	@NotNull
+	private static ByteBuffer createHeader(@NotNull InternalSimulation simulation) {
+		byte[] fingerprint = computeFingerprint(simulation);
+		ByteBuffer header = ByteBuffer.allocate(TIME_OFFSET + 8).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.put(fingerprint);
+		header.putLong(simulation.getTime());
+		header.flip();
+		return header;
+	}
+
+	@NotNull
+	private static byte[] computeFingerprint(@NotNull InternalSimulation simulation) {
+		StringBuilder builder = new StringBuilder();
+		for (InternalInput input : simulation.inputs) {
+			builder.append("input ").append(input.values.length).append('\n');
+		}
+		for (InternalDomain domain : simulation.domains) {
+			ClockDomain clock = domain.getClock();
+			builder.append("domain ").append(domain.currentValues.length).append(' ').append(clock.getPeriod()).append(' ')
+				.append(clock.getPhase()).append(' ').append(domain.program.getInputIndex()).append('\n');
+			builder.append(domain.program.getLayoutDescription()).append('\n');
+		}
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(builder.toString().getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-256 not available", e);
+		}
+	}
+
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import com.google.common.collect.ImmutableList;
+import com.intellij.psi.PsiElement;
+import name.martingeisse.mahdl.plugin.processor.definition.SignalLike;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A set of continuous do-blocks and signal initializers that depend on each other, as found by the
+ * {@link ProgramBuilder}. Such a loop has no evaluation order, so the program evaluates it repeatedly until its values
+ * settle. This works for latch-like feedback but not for loops that oscillate.
+ */
+public final class CombinationalLoop {
+
+	private final ImmutableList<SignalLike> signals;
+	private final ImmutableList<PsiElement> errorSources;
+
+	CombinationalLoop(@NotNull ImmutableList<SignalLike> signals, @NotNull ImmutableList<PsiElement> errorSources) {
+		this.signals = signals;
+		this.errorSources = errorSources;
+	}
+
+	/**
+	 * Returns the signals that are both assigned and read by the blocks of the loop, in the order of their definition.
+	 */
+	@NotNull
+	public ImmutableList<SignalLike> getSignals() {
+		return signals;
+	}
+
+	/**
+	 * Returns the bodies of the do-blocks and the names of the initialized signals that form the loop.
+	 */
+	@NotNull
+	public ImmutableList<PsiElement> getErrorSources() {
+		return errorSources;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("signals");
+		for (SignalLike signal : signals) {
+			builder.append(' ').append(signal.getName());
+		}
+		return builder.toString();
+	}
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import org.jetbrains.annotations.NotNull;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.GeneratorAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the constant arrays (e.g. ROM contents and register initializers) used by a generated program.
+ * These arrays are not built by generated code, which would quickly exceed the size limits of a class file. Instead,
+ * each array is stored in a public static field that gets filled in via reflection right after loading the class.
+ */
+final class ConstantArrays {
+
+	private static final Type LONG_ARRAY_TYPE = Type.getType(long[].class);
+
+	private final Type ownerType;
+	private final List<long[]> arrays = new ArrayList<>();
+
+	ConstantArrays(@NotNull Type ownerType) {
+		this.ownerType = ownerType;
+	}
+
+	/**
+	 * Compiles code that pushes the specified array onto the operand stack. The array must not be modified afterwards.
+	 */
+	public void compileLoad(@NotNull GeneratorAdapter generator, @NotNull long[] array) {
+		int index = arrays.indexOf(array);
+		if (index < 0) {
+			index = arrays.size();
+			arrays.add(array);
+		}
+		generator.getStatic(ownerType, getFieldName(index), LONG_ARRAY_TYPE);
+	}
+
+	public void generateFields(@NotNull ClassVisitor classVisitor) {
+		for (int i = 0; i < arrays.size(); i++) {
+			classVisitor.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, getFieldName(i), LONG_ARRAY_TYPE.getDescriptor(), null, null).visitEnd();
+		}
+	}
+
+	/**
+	 * Returns the arrays in the order of their fields.
+	 */
+	@NotNull
+	public List<long[]> getArrays() {
+		return arrays;
+	}
+
+	public void initializeFields(@NotNull Class<?> theClass) {
+		initializeFields(theClass, arrays);
+	}
+
+	/**
+	 * Fills in the fields of a loaded class using arrays obtained from {@link #getArrays()}, possibly in an earlier
+	 * run (see {@link ProgramCache}).
+	 */
+	public static void initializeFields(@NotNull Class<?> theClass, @NotNull List<long[]> arrays) {
+		try {
+			for (int i = 0; i < arrays.size(); i++) {
+				theClass.getField(getFieldName(i)).set(null, arrays.get(i));
+			}
+		} catch (NoSuchFieldException | IllegalAccessException e) {
+			throw new RuntimeException("could not initialize constant arrays of generated program", e);
+		}
+	}
+
+	private static String getFieldName(int index) {
+		return "constants" + index;
+	}
+
+}
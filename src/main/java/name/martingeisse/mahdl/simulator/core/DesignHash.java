@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import name.martingeisse.mahdl.plugin.processor.definition.*;
+import name.martingeisse.mahdl.plugin.processor.expression.*;
+import name.martingeisse.mahdl.plugin.processor.statement.*;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Computes the key under which a {@link ProgramCache} stores the program for a module. The key is a SHA-256 hash
+ * of a canonical text form of the processed module tree, the builder options, and the bytecode of the classes that
+ * generate programs (including their nested and anonymous classes), so that a change to any of them results in a
+ * different key.
+ * <p>
+ * The canonical form contains everything the generated code depends on (names, data types, constant values,
+ * operators and the structure of statements and expressions) but not the PSI elements used for error reporting.
+ */
+final class DesignHash {
+
+	// the classes whose code determines the generated bytecode. The compilers take constant values apart using the
+	// methods of ConstantValue, so that is included too.
+	private static final Class<?>[] GENERATOR_CLASSES = {
+		ProgramBuilder.class, MethodCompiler.class, BitSlicedMethodCompiler.class, ValueLayout.class, ValueField.class,
+		ActivityTracker.class, StatementAnalysis.class, ConstantArrays.class, MethodSplitter.class, LevelizedOrder.class,
+		CombinationalLoop.class, Program.class, ConstantValue.class,
+	};
+
+	private static byte[] generatorHash;
+
+	private final StringBuilder builder = new StringBuilder();
+
+	private DesignHash() {
+	}
+
+	/**
+	 * Returns the key as a hex string. The options must describe all builder settings that affect the generated code.
+	 */
+	@NotNull
+	static String compute(@NotNull ModuleDefinition moduleDefinition, @NotNull String options) {
+		DesignHash hash = new DesignHash();
+		hash.builder.append(options).append('\n');
+		hash.appendModule(moduleDefinition);
+		MessageDigest digest = createDigest();
+		digest.update(getGeneratorHash());
+		digest.update(hash.builder.toString().getBytes(StandardCharsets.UTF_8));
+		StringBuilder result = new StringBuilder();
+		for (byte b : digest.digest()) {
+			result.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Hashes the class files of the generator classes and the classes nested in them. If a class file cannot be read,
+	 * an exception is thrown, since a key that doesn't cover the code could select entries that were generated by
+	 * another version of the simulator.
+	 */
+	private static synchronized byte[] getGeneratorHash() {
+		if (generatorHash == null) {
+			MessageDigest digest = createDigest();
+			for (String resourceName : getGeneratorClassFiles()) {
+				digest.update(resourceName.getBytes(StandardCharsets.UTF_8));
+				try (InputStream in = DesignHash.class.getResourceAsStream(resourceName)) {
+					byte[] buffer = new byte[4096];
+					int count;
+					while ((count = in.read(buffer)) > 0) {
+						digest.update(buffer, 0, count);
+					}
+				} catch (IOException e) {
+					throw new IllegalStateException("cannot read class file " + resourceName, e);
+				}
+			}
+			generatorHash = digest.digest();
+		}
+		return generatorHash;
+	}
+
+	/**
+	 * Returns the resource names of the class files of the generator classes, their member classes and their
+	 * anonymous classes, in a fixed order.
+	 */
+	@NotNull
+	static List<String> getGeneratorClassFiles() {
+		List<String> resourceNames = new ArrayList<>();
+		for (Class<?> generatorClass : GENERATOR_CLASSES) {
+			addClassFiles(generatorClass, resourceNames);
+		}
+		return resourceNames;
+	}
+
+	private static void addClassFiles(@NotNull Class<?> theClass, @NotNull List<String> resourceNames) {
+		String baseName = '/' + theClass.getName().replace('.', '/');
+		if (theClass.getResource(baseName + ".class") == null) {
+			throw new IllegalStateException("class file not found: " + baseName + ".class");
+		}
+		resourceNames.add(baseName + ".class");
+
+		// anonymous classes are numbered from 1 and not returned by getDeclaredClasses()
+		for (int i = 1; theClass.getResource(baseName + '$' + i + ".class") != null; i++) {
+			resourceNames.add(baseName + '$' + i + ".class");
+		}
+		Class<?>[] memberClasses = theClass.getDeclaredClasses();
+		Arrays.sort(memberClasses, Comparator.comparing(Class::getName));
+		for (Class<?> memberClass : memberClasses) {
+			addClassFiles(memberClass, resourceNames);
+		}
+	}
+
+	@NotNull
+	private static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-256 not available", e);
+		}
+	}
+
+	private void appendModule(@NotNull ModuleDefinition moduleDefinition) {
+		builder.append("module ").append(moduleDefinition.getName()).append('\n');
+		for (Named definition : moduleDefinition.getDefinitions().values()) {
+			builder.append(definition.getClass().getSimpleName()).append(' ').append(definition.getName());
+			if (definition instanceof SignalLike) {
+				SignalLike signalLike = (SignalLike) definition;
+				builder.append(' ').append(signalLike.getProcessedDataType());
+				if (definition instanceof ModulePort) {
+					builder.append(' ').append(((ModulePort) definition).getDirection());
+				} else if (definition instanceof Constant) {
+					builder.append(" = ");
+					appendConstant(((Constant) definition).getValue());
+				} else if (definition instanceof Register) {
+					builder.append(" = ");
+					appendConstant(((Register) definition).getInitializerValue());
+				} else if (definition instanceof Signal) {
+					builder.append(" = ");
+					appendExpression(signalLike.getProcessedInitializer());
+				}
+			}
+			builder.append('\n');
+		}
+		for (ProcessedDoBlock doBlock : moduleDefinition.getDoBlocks()) {
+			builder.append("do ");
+			if (doBlock == null) {
+				builder.append("null\n");
+				continue;
+			}
+			appendExpression(doBlock.getClock());
+			builder.append(' ');
+			appendStatement(doBlock.getBody());
+			builder.append('\n');
+		}
+	}
+
+	private void appendStatement(ProcessedStatement statement) {
+		if (statement == null) {
+			builder.append("null");
+			return;
+		}
+		builder.append('(').append(statement.getClass().getSimpleName());
+		if (statement instanceof ProcessedBlock) {
+			for (ProcessedStatement subStatement : ((ProcessedBlock) statement).getStatements()) {
+				builder.append(' ');
+				appendStatement(subStatement);
+			}
+		} else if (statement instanceof ProcessedAssignment) {
+			ProcessedAssignment assignment = (ProcessedAssignment) statement;
+			builder.append(' ');
+			appendExpression(assignment.getLeftHandSide());
+			builder.append(' ');
+			appendExpression(assignment.getRightHandSide());
+		} else if (statement instanceof ProcessedIf) {
+			ProcessedIf ifStatement = (ProcessedIf) statement;
+			builder.append(' ');
+			appendExpression(ifStatement.getCondition());
+			builder.append(' ');
+			appendStatement(ifStatement.getThenBranch());
+			builder.append(' ');
+			appendStatement(ifStatement.getElseBranch());
+		} else if (statement instanceof ProcessedSwitchStatement) {
+			ProcessedSwitchStatement switchStatement = (ProcessedSwitchStatement) statement;
+			builder.append(' ');
+			appendExpression(switchStatement.getSelector());
+			for (ProcessedSwitchStatement.Case aCase : switchStatement.getCases()) {
+				builder.append(" (case");
+				for (ConstantValue.Vector selectorValue : aCase.getSelectorValues()) {
+					builder.append(' ');
+					appendConstant(selectorValue);
+				}
+				builder.append(' ');
+				appendStatement(aCase.getBranch());
+				builder.append(')');
+			}
+			builder.append(' ');
+			appendStatement(switchStatement.getDefaultBranch());
+		}
+		builder.append(')');
+	}
+
+	private void appendExpression(ProcessedExpression expression) {
+		if (expression == null) {
+			builder.append("null");
+			return;
+		}
+		builder.append('(').append(expression.getClass().getSimpleName()).append(':');
+		builder.append(expression.getDataType());
+		if (expression instanceof ProcessedConstantValue) {
+			builder.append(' ');
+			appendConstant(((ProcessedConstantValue) expression).getValue());
+		} else if (expression instanceof SignalLikeReference) {
+			builder.append(' ').append(((SignalLikeReference) expression).getDefinition().getName());
+		} else if (expression instanceof ProcessedUnaryOperation) {
+			ProcessedUnaryOperation operation = (ProcessedUnaryOperation) expression;
+			builder.append(' ').append(operation.getOperator()).append(' ');
+			appendExpression(operation.getOperand());
+		} else if (expression instanceof ProcessedBinaryOperation) {
+			ProcessedBinaryOperation operation = (ProcessedBinaryOperation) expression;
+			builder.append(' ').append(operation.getOperator()).append(' ');
+			appendExpression(operation.getLeftOperand());
+			builder.append(' ');
+			appendExpression(operation.getRightOperand());
+		} else if (expression instanceof ProcessedConditional) {
+			ProcessedConditional conditional = (ProcessedConditional) expression;
+			builder.append(' ');
+			appendExpression(conditional.getCondition());
+			builder.append(' ');
+			appendExpression(conditional.getThenBranch());
+			builder.append(' ');
+			appendExpression(conditional.getElseBranch());
+		} else if (expression instanceof ProcessedSwitchExpression) {
+			ProcessedSwitchExpression switchExpression = (ProcessedSwitchExpression) expression;
+			builder.append(' ');
+			appendExpression(switchExpression.getSelector());
+			for (ProcessedSwitchExpression.Case aCase : switchExpression.getCases()) {
+				builder.append(" (case");
+				for (ConstantValue.Vector selectorValue : aCase.getSelectorValues()) {
+					builder.append(' ');
+					appendConstant(selectorValue);
+				}
+				builder.append(' ');
+				appendExpression(aCase.getResultValue());
+				builder.append(')');
+			}
+			builder.append(' ');
+			appendExpression(switchExpression.getDefaultBranch());
+		} else if (expression instanceof ProcessedIndexSelection) {
+			ProcessedIndexSelection selection = (ProcessedIndexSelection) expression;
+			builder.append(' ');
+			appendExpression(selection.getContainer());
+			builder.append(' ');
+			appendExpression(selection.getIndex());
+		} else if (expression instanceof ProcessedRangeSelection) {
+			ProcessedRangeSelection selection = (ProcessedRangeSelection) expression;
+			builder.append(' ').append(selection.getFromIndex()).append(' ').append(selection.getToIndex()).append(' ');
+			appendExpression(selection.getContainer());
+		} else if (expression instanceof TypeConversion) {
+			builder.append(' ');
+			appendExpression(((TypeConversion) expression).getOperand());
+		} else if (expression instanceof ProcessedFunctionCall) {
+			ProcessedFunctionCall call = (ProcessedFunctionCall) expression;
+			builder.append(' ').append(call.getFunction().getName());
+			for (ProcessedExpression argument : call.getArguments()) {
+				builder.append(' ');
+				appendExpression(argument);
+			}
+		}
+		builder.append(')');
+	}
+
+	private void appendConstant(ConstantValue value) {
+		if (value == null) {
+			builder.append("null");
+		} else if (value instanceof ConstantValue.Bit) {
+			builder.append(((ConstantValue.Bit) value).isSet() ? "1" : "0");
+		} else if (value instanceof ConstantValue.Vector) {
+			ConstantValue.Vector vector = (ConstantValue.Vector) value;
+			builder.append(vector.getSize()).append("v").append(vector.getBits());
+		} else if (value instanceof ConstantValue.Matrix) {
+			ConstantValue.Matrix matrix = (ConstantValue.Matrix) value;
+			builder.append(matrix.getFirstSize()).append('x').append(matrix.getSecondSize()).append(matrix.getBits());
+		} else if (value instanceof ConstantValue.Integer) {
+			builder.append(((ConstantValue.Integer) value).getValue());
+		} else {
+			builder.append(value.getClass().getSimpleName()).append(' ').append(value.convertToString());
+		}
+	}
+
+}
@@ -9,6 +9,11 @@ package name.martingeisse.mahdl.simulator.core;
  */
 final class DynamicClassLoader extends ClassLoader {
 
+	// generated classes must see the simulator core classes, even if the simulator was itself loaded by a plugin loader
+	DynamicClassLoader() {
+		super(DynamicClassLoader.class.getClassLoader());
+	}
+
 	public Class<?> defineClass(String name, byte[] definition) {
 		return super.defineClass(name, definition, 0, definition.length);
 	}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Creates any number of independent simulations of a single compiled program, so the program only gets built (and
+ * its class generated and defined) once. Since programs are stateless, all simulations share the same program.
+ * <p>
+ * Each simulation gets one domain that runs the program, and the input that the program reads from, i.e. the input
+ * with the program's input index (with empty inputs before it, if that index is not 0). The values that the program
+ * initializes a domain to are computed once, when the pool is created, and copied into each new simulation, so
+ * creating a simulation only costs allocating its arrays.
+ * <p>
+ * Simulations that are not needed anymore can be passed to {@link #release(InternalSimulation)}. They then get reset
+ * to their initial state and returned by {@link #create()} again, which avoids even the allocation. Releasing a
+ * simulation removes its probes and detaches its {@link TimeTravel}, if any, so the next user of the simulation
+ * starts without them.
+ * <p>
+ * This class is thread-safe, but each simulation must only be used by one thread at a time.
+ */
+public final class InstancePool {
+
+	private final Program program;
+	private final int inputWordCount;
+	private final long[] initialValues;
+	private final ConcurrentLinkedQueue<InternalSimulation> releasedSimulations = new ConcurrentLinkedQueue<>();
+
+	public InstancePool(@NotNull ProgramBuilder builder) {
+		this(builder.build(), builder.getWordCount(), builder.getInputWordCount());
+	}
+
+	public InstancePool(@NotNull Program program, int wordCount, int inputWordCount) {
+		this.program = program;
+		this.inputWordCount = inputWordCount;
+		this.initialValues = createEmptySimulation().createDomain(wordCount, program).currentValues.clone();
+	}
+
+	@NotNull
+	public Program getProgram() {
+		return program;
+	}
+
+	/**
+	 * Returns a simulation in its initial state, with all input values being zero.
+	 */
+	@NotNull
+	public InternalSimulation create() {
+		InternalSimulation simulation = releasedSimulations.poll();
+		if (simulation == null) {
+			simulation = createEmptySimulation();
+			simulation.createDomain(program, initialValues);
+		} else {
+			simulation.setParallelism(1);
+			simulation.resetTime();
+			Arrays.fill(simulation.getInput(program.getInputIndex()).values, 0);
+			simulation.getDomain(0).reset(initialValues);
+		}
+		return simulation;
+	}
+
+	/**
+	 * Returns a simulation to the pool, removing its probes and detaching its {@link TimeTravel}. The caller must not
+	 * use the simulation, its probes or its time travel afterwards.
+	 */
+	public void release(@NotNull InternalSimulation simulation) {
+		if (simulation.domains.size() != 1 || simulation.getDomain(0).program != program) {
+			throw new IllegalArgumentException("simulation was not created by this pool");
+		}
+		simulation.getDomain(0).removeAllProbes();
+		for (InternalInput input : simulation.inputs) {
+			if (input.timeTravel != null) {
+				input.timeTravel.detach();
+			}
+		}
+		releasedSimulations.add(simulation);
+	}
+
+	@NotNull
+	private InternalSimulation createEmptySimulation() {
+		InternalSimulation simulation = new InternalSimulation();
+		for (int i = 0; i < program.getInputIndex(); i++) {
+			simulation.createInput(0);
+		}
+		simulation.createInput(inputWordCount);
+		return simulation;
+	}
+
+}
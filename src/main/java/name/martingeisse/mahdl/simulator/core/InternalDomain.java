@@ -4,30 +4,205 @@
  */
 package name.martingeisse.mahdl.simulator.core;
 
+import name.martingeisse.mahdl.simulator.ClockDomain;
+
+import java.util.Arrays;
+
 /**
- * A set of signals that are updated atomically, i.e. using the same clock signal.
+ * A set of signals that are updated atomically, i.e. using the same clock signal. The {@link ClockDomain} determines
+ * when {@link InternalSimulation#runUntil(long)} updates the domain.
  */
 public final class InternalDomain {
 
 	final InternalSimulation simulation;
-	final int[] currentValues;
-	final int[] nextValues;
 	final Program program;
+	final boolean flipBuffers;
+	long[] currentValues;
+	long[] nextValues;
+	final long[] dirtyBlocks;
+	final ClockDomain clock;
+	long nextEdge;
+	private Probe[] probes = new Probe[0];
+
+	InternalDomain(InternalSimulation simulation, int wordCount, Program program, ClockDomain clock) {
+		this(simulation, program, new long[wordCount], clock);
+		program.initialize(simulation, currentValues, dirtyBlocks);
+		System.arraycopy(currentValues, 0, nextValues, 0, wordCount);
+	}
 
-	InternalDomain(InternalSimulation simulation, int valueCount, Program program) {
+	/**
+	 * Creates a domain that starts with a copy of the specified values instead of running the program's
+	 * initialization. The values must be consistent with the current input values, e.g. taken from another domain
+	 * right after initialization.
+	 */
+	InternalDomain(InternalSimulation simulation, Program program, long[] initialValues, ClockDomain clock) {
 		this.simulation = simulation;
-		this.currentValues = new int[valueCount];
-		this.nextValues = new int[valueCount];
+		this.currentValues = initialValues.clone();
+		this.nextValues = initialValues.clone();
 		this.program = program;
+		this.flipBuffers = (program.getBufferingMode() == BufferingMode.FLIP);
+		this.dirtyBlocks = new long[ActivityTracker.getWordCount(program.getBlockCount())];
+		Arrays.fill(dirtyBlocks, -1L);
+		this.clock = clock;
+		this.nextEdge = clock.getNextEdge(simulation.getTime());
+		if (program.isTrackingInputs()) {
+			simulation.inputs.get(program.getInputIndex()).trackingDomains.add(this);
+		}
+	}
+
+	public ClockDomain getClock() {
+		return clock;
+	}
+
+	/**
+	 * Returns the current value of a field of at most 64 bits, such as a bit, a narrow vector or a row of a matrix
+	 * (see {@link ValueField#getRow(int)}).
+	 */
+	public long getValue(ValueField field) {
+		if (field.isWide() || field.isMatrix() || field.isBitSliced()) {
+			throw new IllegalArgumentException("cannot get the value of a wide, matrix or bit-sliced field as a long: " + field);
+		}
+		return field.get(currentValues);
 	}
 
-	public int getValue(int index) {
-		return currentValues[index];
+	/**
+	 * Returns a whole word of the current values. This is mainly useful for vectors wider than 64 bits, which occupy
+	 * consecutive words starting at {@link ValueField#getWordIndex()}.
+	 */
+	public long getWord(int wordIndex) {
+		return currentValues[wordIndex];
 	}
 
+	/**
+	 * Returns the current value of a bit-sliced field of at most 64 bits in a single lane.
+	 */
+	public long getLaneValue(ValueField field, int lane) {
+		InternalInput.checkBitSliced(field, lane);
+		if (field.isWide()) {
+			throw new IllegalArgumentException("cannot get the value of a wide field as a long: " + field);
+		}
+		return field.getLane(currentValues, lane);
+	}
+
+	/**
+	 * Returns a single bit of a bit-sliced field in all 64 lanes. Bit i of the result is the value for lane i.
+	 */
+	public long getLanes(ValueField field, int bitIndex) {
+		InternalInput.checkBitSliced(field, 0);
+		if (bitIndex < 0 || bitIndex >= field.getWidth()) {
+			throw new IndexOutOfBoundsException("bit " + bitIndex + " in a field with " + field.getWidth() + " bits");
+		}
+		return currentValues[field.getWordIndex() + bitIndex];
+	}
+
+	/**
+	 * Simulates a clock edge for this domain alone. This is the same as {@link #evaluate()} followed by
+	 * {@link #commit()}.
+	 */
 	public void update() {
-		program.execute(simulation, currentValues, nextValues);
-		System.arraycopy(nextValues, 0, currentValues, 0, currentValues.length);
+		evaluate();
+		commit();
+	}
+
+	/**
+	 * Simulates the specified number of clock edges for this domain alone. This is faster than calling
+	 * {@link #update()} in a loop since the loop runs inside the generated program.
+	 */
+	public void runCycles(long cycles) {
+		// with probes, stop the loop each time a sample is due
+		while (cycles > 0) {
+			long chunk = cycles;
+			for (Probe probe : probes) {
+				chunk = Math.min(chunk, probe.getUpdatesUntilSample());
+			}
+			long[] result = program.runCycles(simulation, currentValues, nextValues, dirtyBlocks, chunk);
+			if (result != currentValues) {
+				nextValues = currentValues;
+				currentValues = result;
+			}
+			for (Probe probe : probes) {
+				probe.afterUpdates(chunk, currentValues);
+			}
+			cycles -= chunk;
+		}
+	}
+
+	/**
+	 * Creates a probe that samples the specified fields after every (interval) updates into a ring with room for
+	 * (capacity) samples, see {@link Probe}. Probes must be created and removed by the thread that runs the
+	 * simulation, or while it is not running.
+	 */
+	public Probe createProbe(int interval, int capacity, ValueField... fields) {
+		Probe probe = new Probe(interval, capacity, fields);
+		probes = Arrays.copyOf(probes, probes.length + 1);
+		probes[probes.length - 1] = probe;
+		return probe;
+	}
+
+	public void removeProbe(Probe probe) {
+		for (int i = 0; i < probes.length; i++) {
+			if (probes[i] == probe) {
+				Probe[] newProbes = new Probe[probes.length - 1];
+				System.arraycopy(probes, 0, newProbes, 0, i);
+				System.arraycopy(probes, i + 1, newProbes, i, newProbes.length - i);
+				probes = newProbes;
+				return;
+			}
+		}
+	}
+
+	void removeAllProbes() {
+		probes = new Probe[0];
+	}
+
+	/**
+	 * Computes the next values without making them visible. Other domains can read the current values at the same
+	 * time, since they only change in one case: In {@link BufferingMode#FLIP}, the rows of matrices written by this
+	 * update get copied to the current values at the end, because those become the next values of the following
+	 * update (see {@link MethodCompiler}). Those rows then show their new values before {@link #commit()}, while all
+	 * other fields keep their current values.
+	 */
+	void evaluate() {
+		program.execute(simulation, currentValues, nextValues, dirtyBlocks);
+	}
+
+	/**
+	 * Makes the values computed by {@link #evaluate()} the current values.
+	 */
+	void commit() {
+		if (flipBuffers) {
+			long[] temp = currentValues;
+			currentValues = nextValues;
+			nextValues = temp;
+		} else {
+			System.arraycopy(nextValues, 0, currentValues, 0, currentValues.length);
+		}
+		for (Probe probe : probes) {
+			probe.afterUpdates(1, currentValues);
+		}
+	}
+
+	/**
+	 * Replaces all values by a copy of the specified values, like the constructor that takes initial values.
+	 */
+	void reset(long[] initialValues) {
+		System.arraycopy(initialValues, 0, currentValues, 0, currentValues.length);
+		System.arraycopy(initialValues, 0, nextValues, 0, nextValues.length);
+		Arrays.fill(dirtyBlocks, -1L);
+	}
+
+	void markInputReaders(int inputFieldIndex) {
+		long[] readers = program.getInputReaders(inputFieldIndex);
+		for (int i = 0; i < readers.length; i++) {
+			dirtyBlocks[i] |= readers[i];
+		}
+	}
+
+	void markInputWordReaders(int inputWordIndex) {
+		long[] readers = program.getInputWordReaders(inputWordIndex);
+		for (int i = 0; i < readers.length; i++) {
+			dirtyBlocks[i] |= readers[i];
+		}
 	}
 
 }
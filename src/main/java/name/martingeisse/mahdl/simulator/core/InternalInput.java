@@ -4,19 +4,180 @@
  */
 package name.martingeisse.mahdl.simulator.core;
 
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  *
  */
 public final class InternalInput {
 
-	final int[] values;
+	final long[] values;
+
+	// domains whose programs use activity tracking and read from this input
+	final List<InternalDomain> trackingDomains = new ArrayList<>();
+
+	// records all changes for time-travel debugging, or null
+	TimeTravel timeTravel;
+
+	InternalInput(int wordCount) {
+		this.values = new long[wordCount];
+	}
+
+	/**
+	 * Sets the value of a field of at most 64 bits, such as a bit, a narrow vector or a row of a matrix (see
+	 * {@link ValueField#getRow(int)}). Excess bits of the value are ignored.
+	 */
+	public void setValue(ValueField field, long value) {
+		if (field.isWide() || field.isMatrix() || field.isBitSliced()) {
+			throw new IllegalArgumentException("cannot set the value of a wide, matrix or bit-sliced field as a long: " + field);
+		}
+		long oldWord = values[field.getWordIndex()];
+		field.set(values, value);
+		if (values[field.getWordIndex()] != oldWord) {
+			markReaders(field);
+			record(field, field.getWordIndex());
+		}
+	}
+
+	/**
+	 * Sets a single word of a vector wider than 64 bits, least significant word first. Excess bits of the last word
+	 * are ignored.
+	 */
+	public void setWord(ValueField field, int wordOffset, long value) {
+		if (!field.isWide() || field.isMatrix() || field.isBitSliced()) {
+			throw new IllegalArgumentException("not a wide vector field: " + field);
+		}
+		if (wordOffset < 0 || wordOffset >= field.getWordCount()) {
+			throw new IndexOutOfBoundsException("word " + wordOffset + " in a field with " + field.getWordCount() + " words");
+		}
+		if (wordOffset == field.getWordCount() - 1 && (field.getWidth() & 63) != 0) {
+			value &= (1L << (field.getWidth() & 63)) - 1;
+		}
+		int wordIndex = field.getWordIndex() + wordOffset;
+		if (values[wordIndex] != value) {
+			values[wordIndex] = value;
+			markReaders(field);
+			record(field, wordIndex);
+		}
+	}
+
+	/**
+	 * Sets the value of a bit-sliced field of at most 64 bits in a single lane. Excess bits of the value are ignored.
+	 */
+	public void setLaneValue(ValueField field, int lane, long value) {
+		checkBitSliced(field, lane);
+		if (field.isWide()) {
+			throw new IllegalArgumentException("cannot set the value of a wide field as a long: " + field);
+		}
+		boolean changed = false;
+		for (int i = 0; i < field.getWidth(); i++) {
+			int wordIndex = field.getWordIndex() + i;
+			long oldWord = values[wordIndex];
+			long newWord = (oldWord & ~(1L << lane)) | (((value >>> i) & 1) << lane);
+			if (newWord != oldWord) {
+				values[wordIndex] = newWord;
+				record(field, wordIndex);
+				changed = true;
+			}
+		}
+		if (changed) {
+			markReaders(field);
+		}
+	}
+
+	/**
+	 * Sets a single bit of a bit-sliced field in all 64 lanes at once. Bit i of the lanes argument is the value for
+	 * lane i.
+	 */
+	public void setLanes(ValueField field, int bitIndex, long lanes) {
+		checkBitSliced(field, 0);
+		if (bitIndex < 0 || bitIndex >= field.getWidth()) {
+			throw new IndexOutOfBoundsException("bit " + bitIndex + " in a field with " + field.getWidth() + " bits");
+		}
+		int wordIndex = field.getWordIndex() + bitIndex;
+		if (values[wordIndex] != lanes) {
+			values[wordIndex] = lanes;
+			markReaders(field);
+			record(field, wordIndex);
+		}
+	}
+
+	static void checkBitSliced(ValueField field, int lane) {
+		if (!field.isBitSliced() || field.isMatrix()) {
+			throw new IllegalArgumentException("not a bit-sliced field (or matrix row): " + field);
+		}
+		if (lane < 0 || lane >= 64) {
+			throw new IndexOutOfBoundsException("lane " + lane);
+		}
+	}
+
+	/**
+	 * Replaces all values by the next words from the specified buffer, such as a row of a {@link StimulusFile}. Only
+	 * the readers of fields in words that actually change get marked dirty.
+	 */
+	void setWords(LongBuffer source) {
+		if (timeTravel == null && trackingDomains.isEmpty()) {
+			source.get(values);
+		} else {
+			for (int i = 0; i < values.length; i++) {
+				replaceWord(i, source.get());
+			}
+		}
+	}
+
+	/**
+	 * Replaces all values by the words from the specified array, starting at the specified offset, like
+	 * {@link #setWords(LongBuffer)}.
+	 */
+	void setWords(long[] source, int offset) {
+		if (timeTravel == null && trackingDomains.isEmpty()) {
+			System.arraycopy(source, offset, values, 0, values.length);
+		} else {
+			for (int i = 0; i < values.length; i++) {
+				replaceWord(i, source[offset + i]);
+			}
+		}
+	}
+
+	private void replaceWord(int wordIndex, long value) {
+		if (values[wordIndex] != value) {
+			values[wordIndex] = value;
+			markWordReaders(wordIndex);
+			record(null, wordIndex);
+		}
+	}
+
+	/**
+	 * Sets a word to a value recorded by {@link TimeTravel}, without recording it again. The field is null if the
+	 * word was set by one of the setWords methods.
+	 */
+	void replayWord(ValueField field, int wordIndex, long value) {
+		values[wordIndex] = value;
+		if (field == null) {
+			markWordReaders(wordIndex);
+		} else {
+			markReaders(field);
+		}
+	}
+
+	private void record(ValueField field, int wordIndex) {
+		if (timeTravel != null) {
+			timeTravel.record(this, field, wordIndex, values[wordIndex]);
+		}
+	}
 
-	InternalInput(int valueCount) {
-		this.values = new int[valueCount];
+	private void markReaders(ValueField field) {
+		for (InternalDomain domain : trackingDomains) {
+			domain.markInputReaders(field.getIndex());
+		}
 	}
 
-	public void setValue(int index, int value) {
-		this.values[index] = value;
+	private void markWordReaders(int wordIndex) {
+		for (InternalDomain domain : trackingDomains) {
+			domain.markInputWordReaders(wordIndex);
+		}
 	}
 
 }
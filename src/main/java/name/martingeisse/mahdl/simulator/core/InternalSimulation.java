@@ -4,27 +4,419 @@
  */
 package name.martingeisse.mahdl.simulator.core;
 
+import name.martingeisse.mahdl.simulator.ClockDomain;
+
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RecursiveAction;
 
 /**
- *
+ * Stepping the simulation simulates a clock edge for all domains in two phases: First, all domains evaluate their
+ * next values while the current values stay visible. Then all domains commit their next values. Since no domain sees
+ * the result of another domain's clock edge before the commit phase, the result doesn't depend on the order in which
+ * domains are evaluated, and domains can be evaluated concurrently.
+ * <p>
+ * With a parallelism greater than 1, the domains are split into that many groups (at most one per domain), and each
+ * group is simulated by its own task on a fork-join pool. The tasks meet at a barrier after each phase. This only
+ * pays off if each domain does enough work per clock edge to amortize the barriers. The groups, their tasks and the
+ * barrier are created on the first run and reused until a domain gets added or the parallelism changes, so stepping
+ * one clock edge at a time does not allocate anything.
+ * <p>
+ * Stepping ignores the clocks of the domains. To simulate domains with different clocks, use {@link #runUntil(long)}
+ * instead, which advances the simulated time from edge to edge and only updates the domains whose clock has an edge
+ * at that time, in the same two phases. It keeps the domains in a priority queue ordered by their next edge. If a
+ * single domain has several edges before the next edge of any other domain, it simulates them using
+ * {@link InternalDomain#runCycles(long)}. If several domains have an edge at the same time and the parallelism is
+ * greater than 1, they get evaluated by up to that many tasks on the fork-join pool, and committed in the calling
+ * thread.
+ * <p>
+ * Inputs must not be changed while {@link #step()}, {@link #run(long)} or {@link #runUntil(long)} is in progress.
+ * <p>
+ * A simulation can be forked into any number of independent copies (see {@link #fork(int)}), e.g. to explore
+ * different stimuli from a common warm state. Since copies share nothing but the (immutable) programs, each can be
+ * run by its own thread.
  */
 public final class InternalSimulation {
 
 	final List<InternalInput> inputs = new ArrayList<>();
 	final List<InternalDomain> domains = new ArrayList<>();
+	private int parallelism = 1;
+	private ForkJoinPool pool;
+	private GroupTask[] groupTasks;
+	private Phaser phaser;
+	private long groupCycles;
+	private EdgeTask[] edgeTasks;
+	private long time = 0;
+	private final PriorityQueue<InternalDomain> edgeQueue = new PriorityQueue<>(Comparator.comparingLong((InternalDomain domain) -> domain.nextEdge));
+	private final List<InternalDomain> tickingDomains = new ArrayList<>();
 
-	public InternalInput createInput(int valueCount) {
-		InternalInput input = new InternalInput(valueCount);
+	public InternalInput createInput(int wordCount) {
+		InternalInput input = new InternalInput(wordCount);
 		inputs.add(input);
 		return input;
 	}
 
-	public InternalDomain createDomain(int valueCount, Program program) {
-		InternalDomain domain = new InternalDomain(this, valueCount, program);
+	public InternalDomain createDomain(int wordCount, Program program) {
+		return createDomain(wordCount, program, ClockDomain.DEFAULT);
+	}
+
+	public InternalDomain createDomain(int wordCount, Program program, ClockDomain clock) {
+		InternalDomain domain = new InternalDomain(this, wordCount, program, clock);
+		domains.add(domain);
+		invalidateGroups();
+		return domain;
+	}
+
+	InternalDomain createDomain(Program program, long[] initialValues) {
+		InternalDomain domain = new InternalDomain(this, program, initialValues, ClockDomain.DEFAULT);
 		domains.add(domain);
+		invalidateGroups();
 		return domain;
 	}
 
+	public InternalInput getInput(int index) {
+		return inputs.get(index);
+	}
+
+	public InternalDomain getDomain(int index) {
+		return domains.get(index);
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Sets the number of threads used to simulate the domains. 1 (the default) simulates all domains in the calling
+	 * thread.
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("invalid parallelism: " + parallelism);
+		}
+		if (parallelism != this.parallelism) {
+			if (pool != null) {
+				pool.shutdown();
+				pool = null;
+			}
+			this.parallelism = parallelism;
+			invalidateGroups();
+		}
+	}
+
+	private void invalidateGroups() {
+		groupTasks = null;
+		phaser = null;
+		edgeTasks = null;
+	}
+
+	/**
+	 * Returns the simulated time, i.e. the time up to which {@link #runUntil(long)} has simulated all clock edges.
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * Simulates all clock edges of all domains up to and including the specified time, then sets the simulated time
+	 * to it.
+	 */
+	public void runUntil(long endTime) {
+		if (endTime < time) {
+			throw new IllegalArgumentException("cannot run backwards from time " + time + " to " + endTime);
+		}
+
+		// a failed run may have left domains in the queue
+		PriorityQueue<InternalDomain> queue = edgeQueue;
+		queue.clear();
+		tickingDomains.clear();
+		queue.addAll(domains);
+		while (!queue.isEmpty() && queue.peek().nextEdge <= endTime) {
+			long edgeTime = queue.peek().nextEdge;
+			while (!queue.isEmpty() && queue.peek().nextEdge == edgeTime) {
+				tickingDomains.add(queue.poll());
+			}
+			if (tickingDomains.size() == 1) {
+				InternalDomain domain = tickingDomains.get(0);
+				long period = domain.clock.getPeriod();
+				long lastEdgeTime = (queue.isEmpty() ? endTime : Math.min(endTime, queue.peek().nextEdge - 1));
+				long cycles = (lastEdgeTime - edgeTime) / period + 1;
+				time = edgeTime + (cycles - 1) * period;
+				domain.runCycles(cycles);
+				domain.nextEdge = time + period;
+			} else {
+				time = edgeTime;
+				evaluateTickingDomains();
+				for (InternalDomain domain : tickingDomains) {
+					domain.commit();
+					domain.nextEdge += domain.clock.getPeriod();
+				}
+			}
+			queue.addAll(tickingDomains);
+			tickingDomains.clear();
+		}
+		time = endTime;
+	}
+
+	/**
+	 * Evaluates the domains that have an edge at the current time, using the fork-join pool if the parallelism is
+	 * greater than 1. Like the groups for {@link #run(long)}, the tasks are created once and reused for each edge.
+	 */
+	private void evaluateTickingDomains() {
+		int taskCount = Math.min(parallelism, tickingDomains.size());
+		if (taskCount < 2) {
+			for (InternalDomain domain : tickingDomains) {
+				domain.evaluate();
+			}
+			return;
+		}
+		if (pool == null) {
+			pool = new ForkJoinPool(parallelism);
+		}
+		if (edgeTasks == null) {
+			edgeTasks = new EdgeTask[parallelism];
+			for (int i = 0; i < edgeTasks.length; i++) {
+				edgeTasks[i] = new EdgeTask();
+			}
+		}
+		for (int i = 0; i < taskCount; i++) {
+			EdgeTask task = edgeTasks[i];
+			task.from = i * tickingDomains.size() / taskCount;
+			task.to = (i + 1) * tickingDomains.size() / taskCount;
+			task.reinitialize();
+			pool.execute(task);
+		}
+		RuntimeException exception = null;
+		for (int i = 0; i < taskCount; i++) {
+			try {
+				edgeTasks[i].join();
+			} catch (RuntimeException e) {
+				if (exception == null) {
+					exception = e;
+				}
+			}
+		}
+		if (exception != null) {
+			throw exception;
+		}
+	}
+
+	/**
+	 * Sets the simulated time back to 0 without changing any values.
+	 */
+	void resetTime() {
+		time = 0;
+		for (InternalDomain domain : domains) {
+			domain.nextEdge = domain.clock.getNextEdge(0);
+		}
+	}
+
+	/**
+	 * Writes the values of all inputs and domains, and the simulated time, to a file (see {@link Checkpoint}). Large
+	 * states are written through memory mappings, so this costs little more than the memory copies.
+	 */
+	public void checkpoint(Path path) throws IOException {
+		Checkpoint.write(this, path);
+	}
+
+	/**
+	 * Replaces the values of all inputs and domains, and the simulated time, by those from a file written by
+	 * {@link #checkpoint(Path)}. This simulation must have the same inputs and domains, with programs that use the same
+	 * value layouts, as the one that wrote the file, otherwise an IOException is thrown and nothing changes.
+	 */
+	public void restore(Path path) throws IOException {
+		restoreTime(Checkpoint.read(this, path));
+	}
+
+	/**
+	 * Sets the simulated time after the values of all inputs and domains have been replaced, marking all blocks dirty.
+	 */
+	void restoreTime(long time) {
+		this.time = time;
+		for (InternalDomain domain : domains) {
+			domain.reset(domain.currentValues);
+			domain.nextEdge = domain.clock.getNextEdge(time);
+		}
+	}
+
+	/**
+	 * Creates the specified number of copies of this simulation, each with its own inputs and domains in the current
+	 * state of this simulation. The copies reuse the programs of this simulation, so creating them only costs copying
+	 * the values, and they start with all blocks marked dirty and a parallelism of 1.
+	 * <p>
+	 * The values get copied in full, not copy-on-write, since generated code accesses them as plain arrays.
+	 */
+	public List<InternalSimulation> fork(int count) {
+		List<InternalSimulation> forks = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			InternalSimulation fork = new InternalSimulation();
+			fork.time = time;
+			for (InternalInput input : inputs) {
+				InternalInput inputCopy = fork.createInput(input.values.length);
+				System.arraycopy(input.values, 0, inputCopy.values, 0, input.values.length);
+			}
+			for (InternalDomain domain : domains) {
+				fork.domains.add(new InternalDomain(fork, domain.program, domain.currentValues, domain.clock));
+			}
+			forks.add(fork);
+		}
+		return forks;
+	}
+
+	/**
+	 * Simulates a single clock edge for all domains. Like {@link #run(long)}, this does not change the simulated time.
+	 */
+	public void step() {
+		run(1);
+	}
+
+	/**
+	 * Simulates the specified number of clock edges for all domains, regardless of their clocks. This does not change
+	 * the simulated time or the time of the next edge of each domain, so a following call to {@link #runUntil(long)}
+	 * still simulates all clock edges after the current simulated time, in addition to the edges simulated here.
+	 */
+	public void run(long cycles) {
+		if (cycles <= 0) {
+			return;
+		}
+		if (domains.size() == 1) {
+			domains.get(0).runCycles(cycles);
+			return;
+		}
+		if (groupTasks == null) {
+			List<List<InternalDomain>> groups = createGroups();
+			groupTasks = new GroupTask[groups.size()];
+			for (int i = 0; i < groupTasks.length; i++) {
+				groupTasks[i] = new GroupTask(groups.get(i));
+			}
+		}
+		if (groupTasks.length < 2) {
+			runGroup(domains, cycles, null);
+			return;
+		}
+		if (pool == null) {
+			pool = new ForkJoinPool(parallelism);
+		}
+
+		// a failed group terminates the barrier, so the next run needs a new one
+		if (phaser == null || phaser.isTerminated()) {
+			phaser = new Phaser(groupTasks.length);
+		}
+		groupCycles = cycles;
+		for (GroupTask task : groupTasks) {
+			task.reinitialize();
+			pool.execute(task);
+		}
+		RuntimeException exception = null;
+		for (GroupTask task : groupTasks) {
+			try {
+				task.join();
+			} catch (RuntimeException e) {
+				if (exception == null) {
+					exception = e;
+				}
+			}
+		}
+		if (exception != null) {
+			throw exception;
+		}
+	}
+
+	/**
+	 * Splits the domains into groups of roughly equal cost, using the number of value words of each domain as an
+	 * estimate: Each domain, largest first, goes into the group with the smallest total so far.
+	 */
+	private List<List<InternalDomain>> createGroups() {
+		int groupCount = Math.min(parallelism, domains.size());
+		List<List<InternalDomain>> groups = new ArrayList<>();
+		long[] groupCosts = new long[groupCount];
+		for (int i = 0; i < groupCount; i++) {
+			groups.add(new ArrayList<>());
+		}
+		List<InternalDomain> sortedDomains = new ArrayList<>(domains);
+		sortedDomains.sort(Comparator.comparingInt((InternalDomain domain) -> domain.currentValues.length).reversed());
+		for (InternalDomain domain : sortedDomains) {
+			int cheapestGroup = 0;
+			for (int i = 1; i < groupCount; i++) {
+				if (groupCosts[i] < groupCosts[cheapestGroup]) {
+					cheapestGroup = i;
+				}
+			}
+			groups.get(cheapestGroup).add(domain);
+			groupCosts[cheapestGroup] += domain.currentValues.length + 1;
+		}
+		return groups;
+	}
+
+	/**
+	 * Simulates the domains of a single group, waiting for the other groups after each phase if the phaser is not
+	 * null. If this group fails, the phaser gets terminated so the other groups stop too instead of waiting forever.
+	 */
+	private static void runGroup(List<InternalDomain> group, long cycles, Phaser phaser) {
+		try {
+			for (long cycle = 0; cycle < cycles; cycle++) {
+				for (InternalDomain domain : group) {
+					domain.evaluate();
+				}
+				if (phaser != null && phaser.arriveAndAwaitAdvance() < 0) {
+					return;
+				}
+				for (InternalDomain domain : group) {
+					domain.commit();
+				}
+				if (phaser != null && phaser.arriveAndAwaitAdvance() < 0) {
+					return;
+				}
+			}
+		} catch (RuntimeException | Error e) {
+			if (phaser != null) {
+				phaser.forceTermination();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Simulates a single group for {@link #groupCycles} cycles. The task gets reinitialized and executed again for
+	 * each run.
+	 */
+	private final class GroupTask extends RecursiveAction {
+
+		private final List<InternalDomain> group;
+
+		GroupTask(List<InternalDomain> group) {
+			this.group = group;
+		}
+
+		@Override
+		protected void compute() {
+			runGroup(group, groupCycles, phaser);
+		}
+
+	}
+
+	/**
+	 * Evaluates the domains from (from), inclusive, to (to), exclusive, in {@link #tickingDomains}. The task gets
+	 * reinitialized and executed again for each edge.
+	 */
+	private final class EdgeTask extends RecursiveAction {
+
+		private int from;
+		private int to;
+
+		@Override
+		protected void compute() {
+			for (int i = from; i < to; i++) {
+				tickingDomains.get(i).evaluate();
+			}
+		}
+
+	}
+
 }
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import name.martingeisse.mahdl.plugin.processor.definition.Signal;
+import name.martingeisse.mahdl.plugin.processor.definition.SignalLike;
+import name.martingeisse.mahdl.plugin.processor.statement.ProcessedStatement;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Determines the order in which the continuous blocks of a module (signal initializers and continuous do-blocks) get
+ * evaluated, so that each block comes after all blocks that assign the signals it reads. Evaluating each block once
+ * per update in this order then produces the same values as evaluating them repeatedly until nothing changes.
+ * <p>
+ * Blocks are sorted by level: a block that doesn't read signals assigned by other blocks has level 0, and any other
+ * block has a level one higher than the highest level of the blocks it depends on. Blocks of the same level keep
+ * their order of addition.
+ * <p>
+ * Blocks that depend on each other form a combinational loop, which has no such order. The blocks of a loop share a
+ * level, computed from the blocks outside the loop that any of them depends on, and are evaluated together,
+ * repeatedly, until they settle (see {@link #getSchedule()}). Everything else stays straight-line code. A single
+ * block forms a loop by itself if it reads a signal before assigning it, such as "b = a; a = x;", since one
+ * evaluation would leave b with the old value of a.
+ * <p>
+ * Blocks are identified by the index they were added with, starting at 0.
+ */
+final class LevelizedOrder {
+
+	private final List<Set<SignalLike>> readSignals = new ArrayList<>();
+	private final List<Set<SignalLike>> assignedSignals = new ArrayList<>();
+	private final BitSet selfDependentBlocks = new BitSet();
+
+	/**
+	 * Adds a continuous do-block and returns its index.
+	 */
+	public int addBlock(@NotNull ProcessedStatement body) {
+		Set<SignalLike> read = new HashSet<>();
+		Set<SignalLike> assigned = new HashSet<>();
+		StatementAnalysis.collectReadSignals(body, read);
+		StatementAnalysis.collectAssignedSignals(body, assigned);
+		Set<SignalLike> exposedRead = new HashSet<>();
+		StatementAnalysis.collectExposedReadSignals(body, Collections.emptySet(), exposedRead);
+		return addBlock(read, assigned, !Collections.disjoint(exposedRead, assigned));
+	}
+
+	/**
+	 * Adds the initializer of a signal and returns its index.
+	 */
+	public int addBlock(@NotNull Signal signal) {
+		Set<SignalLike> read = new HashSet<>();
+		StatementAnalysis.collectReadSignals(signal.getProcessedInitializer(), read);
+		return addBlock(read, Collections.singleton(signal), read.contains(signal));
+	}
+
+	private int addBlock(@NotNull Set<SignalLike> read, @NotNull Set<SignalLike> assigned, boolean selfDependent) {
+		readSignals.add(read);
+		assignedSignals.add(assigned);
+		selfDependentBlocks.set(readSignals.size() - 1, selfDependent);
+		return readSignals.size() - 1;
+	}
+
+	public int getBlockCount() {
+		return readSignals.size();
+	}
+
+	/**
+	 * Returns, for each block, the indices of the blocks it depends on, i.e. the blocks that assign signals it reads,
+	 * in ascending order. A block that reads a signal it assigns itself only depends on itself if the read can come
+	 * before the assignment (see {@link StatementAnalysis#collectExposedReadSignals}), since the statements of a block
+	 * are executed in sequence.
+	 */
+	@NotNull
+	public int[][] getDependencies() {
+		Map<SignalLike, List<Integer>> assigningBlocks = new HashMap<>();
+		for (int i = 0; i < assignedSignals.size(); i++) {
+			for (SignalLike signal : assignedSignals.get(i)) {
+				assigningBlocks.computeIfAbsent(signal, s -> new ArrayList<>()).add(i);
+			}
+		}
+		int[][] result = new int[readSignals.size()][];
+		for (int i = 0; i < readSignals.size(); i++) {
+			BitSet dependencies = new BitSet();
+			for (SignalLike signal : readSignals.get(i)) {
+				for (int assigningBlock : assigningBlocks.getOrDefault(signal, Collections.emptyList())) {
+					dependencies.set(assigningBlock);
+				}
+			}
+			if (!selfDependentBlocks.get(i)) {
+				dependencies.clear(i);
+			}
+			result[i] = dependencies.stream().toArray();
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the signals that get assigned by the specified block.
+	 */
+	@NotNull
+	public Set<SignalLike> getAssignedSignals(int block) {
+		return Collections.unmodifiableSet(assignedSignals.get(block));
+	}
+
+	/**
+	 * Returns the combinational loops, each as the indices of its blocks in ascending order. A loop is a set of blocks
+	 * that all depend on each other, directly or indirectly (a strongly connected component of the dependency graph),
+	 * and that is made of two or more blocks or of a single block that depends on itself. Loops are returned in
+	 * evaluation order.
+	 */
+	@NotNull
+	public List<int[]> getLoops() {
+		List<int[]> loops = new ArrayList<>();
+		for (int[] group : getSchedule()) {
+			if (isLoop(group)) {
+				loops.add(group);
+			}
+		}
+		return loops;
+	}
+
+	/**
+	 * Checks whether a group returned by {@link #getSchedule()} is a loop.
+	 */
+	public boolean isLoop(@NotNull int[] group) {
+		return group.length > 1 || selfDependentBlocks.get(group[0]);
+	}
+
+	/**
+	 * Returns the signals involved in a loop returned by {@link #getLoops()}, i.e. those that are assigned and read
+	 * by its blocks.
+	 */
+	@NotNull
+	public Set<SignalLike> getLoopSignals(@NotNull int[] loop) {
+		Set<SignalLike> assigned = new HashSet<>();
+		Set<SignalLike> read = new HashSet<>();
+		for (int block : loop) {
+			assigned.addAll(assignedSignals.get(block));
+			read.addAll(readSignals.get(block));
+		}
+		assigned.retainAll(read);
+		return assigned;
+	}
+
+	/**
+	 * Returns the level of each block (see class comment).
+	 */
+	@NotNull
+	public int[] getLevels() {
+		int[][] dependencies = getDependencies();
+		int[] components = getComponents(dependencies);
+		int[] componentLevels = getComponentLevels(components, dependencies);
+		int[] levels = new int[components.length];
+		for (int i = 0; i < components.length; i++) {
+			levels[i] = componentLevels[components[i]];
+		}
+		return levels;
+	}
+
+	/**
+	 * Returns the blocks in the order in which they must be evaluated, as groups that are either a single block or
+	 * a loop (see {@link #isLoop(int[])}). The blocks of a loop are in ascending order and must be evaluated repeatedly until the values they assign
+	 * don't change anymore.
+	 */
+	@NotNull
+	public List<int[]> getSchedule() {
+		int[][] dependencies = getDependencies();
+		int[] components = getComponents(dependencies);
+		int[] componentLevels = getComponentLevels(components, dependencies);
+		List<List<Integer>> componentBlocks = new ArrayList<>();
+		for (int i = 0; i < componentLevels.length; i++) {
+			componentBlocks.add(new ArrayList<>());
+		}
+		for (int i = 0; i < components.length; i++) {
+			componentBlocks.get(components[i]).add(i);
+		}
+		List<int[]> schedule = new ArrayList<>();
+		for (List<Integer> blocks : componentBlocks) {
+			schedule.add(blocks.stream().mapToInt(Integer::intValue).toArray());
+		}
+		// stable, so groups of the same level keep the order of addition of their first block
+		schedule.sort(Comparator.<int[]>comparingInt(group -> componentLevels[components[group[0]]]).thenComparingInt(group -> group[0]));
+		return schedule;
+	}
+
+	/**
+	 * Finds the strongly connected components of the dependency graph using Tarjan's algorithm, without recursion so
+	 * that long chains of blocks cannot overflow the stack. Returns the component index of each block. Since the edges
+	 * point from blocks to the blocks they depend on, the components are numbered such that a component only depends
+	 * on components with lower numbers.
+	 */
+	@NotNull
+	private static int[] getComponents(@NotNull int[][] dependencies) {
+		int blockCount = dependencies.length;
+		int[] visitIndices = new int[blockCount];
+		int[] lowLinks = new int[blockCount];
+		int[] nextEdges = new int[blockCount];
+		int[] components = new int[blockCount];
+		boolean[] onStack = new boolean[blockCount];
+		Arrays.fill(visitIndices, -1);
+		ArrayDeque<Integer> stack = new ArrayDeque<>();
+		ArrayDeque<Integer> path = new ArrayDeque<>();
+		int visitCount = 0;
+		int componentCount = 0;
+		for (int root = 0; root < blockCount; root++) {
+			if (visitIndices[root] >= 0) {
+				continue;
+			}
+			visitIndices[root] = lowLinks[root] = visitCount++;
+			stack.push(root);
+			onStack[root] = true;
+			path.push(root);
+			while (!path.isEmpty()) {
+				int block = path.peek();
+				if (nextEdges[block] < dependencies[block].length) {
+					int dependency = dependencies[block][nextEdges[block]];
+					nextEdges[block]++;
+					if (visitIndices[dependency] < 0) {
+						visitIndices[dependency] = lowLinks[dependency] = visitCount++;
+						stack.push(dependency);
+						onStack[dependency] = true;
+						path.push(dependency);
+					} else if (onStack[dependency]) {
+						lowLinks[block] = Math.min(lowLinks[block], visitIndices[dependency]);
+					}
+				} else {
+					path.pop();
+					if (!path.isEmpty()) {
+						int parent = path.peek();
+						lowLinks[parent] = Math.min(lowLinks[parent], lowLinks[block]);
+					}
+					if (lowLinks[block] == visitIndices[block]) {
+						int member;
+						do {
+							member = stack.pop();
+							onStack[member] = false;
+							components[member] = componentCount;
+						} while (member != block);
+						componentCount++;
+					}
+				}
+			}
+		}
+		return components;
+	}
+
+	@NotNull
+	private static int[] getComponentLevels(@NotNull int[] components, @NotNull int[][] dependencies) {
+		int componentCount = 0;
+		for (int component : components) {
+			componentCount = Math.max(componentCount, component + 1);
+		}
+		List<List<Integer>> componentBlocks = new ArrayList<>();
+		for (int i = 0; i < componentCount; i++) {
+			componentBlocks.add(new ArrayList<>());
+		}
+		for (int i = 0; i < components.length; i++) {
+			componentBlocks.get(components[i]).add(i);
+		}
+		int[] levels = new int[componentCount];
+		for (int component = 0; component < componentCount; component++) {
+			for (int block : componentBlocks.get(component)) {
+				for (int dependency : dependencies[block]) {
+					if (components[dependency] != component) {
+						levels[component] = Math.max(levels[component], levels[components[dependency]] + 1);
+					}
+				}
+			}
+		}
+		return levels;
+	}
+
+}
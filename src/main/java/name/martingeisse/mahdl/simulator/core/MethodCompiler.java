@@ -0,0 +1,1774 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import com.intellij.psi.PsiElement;
+import name.martingeisse.mahdl.plugin.processor.definition.Constant;
+import name.martingeisse.mahdl.plugin.processor.definition.SignalLike;
+import name.martingeisse.mahdl.plugin.processor.expression.*;
+import name.martingeisse.mahdl.plugin.processor.statement.*;
+import name.martingeisse.mahdl.plugin.processor.type.ProcessedDataType;
+import org.jetbrains.annotations.NotNull;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.GeneratorAdapter;
+import org.objectweb.asm.commons.Method;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Compiles processed statements and expressions into the body of a single method of a generated {@link Program}.
+ * <p>
+ * Expressions of up to 64 bits are compiled such that they leave their value on the operand stack as a long. Bits
+ * are represented as 0 or 1, vectors as their unsigned value with all bits beyond the vector size being zero, and
+ * integers as a signed long. Vectors wider than 64 bits are compiled to a sequence of long locals, one per word and
+ * least significant word first, with the same convention for the excess bits of the last word (see
+ * {@link #compileWords(ProcessedExpression)}). Operations on such vectors are compiled to word operations: carry
+ * chains for addition and subtraction, column-wise multiplication of word pairs, and shifts and concatenation by
+ * extracting bits across word boundaries. Only division calls a helper method.
+ * <p>
+ * Signal-likes are stored in packed long[] value arrays as described by {@link ValueField}. Each access extracts or
+ * replaces the field within its word using shifts and masks.
+ * <p>
+ * Signal-likes are read from the "source" value array and written to the "destination" value array. For clocked
+ * do-blocks these are the old and new values, respectively, so that all registers get updated at the same time. For
+ * continuous do-blocks, both are the same array, so that the effect of an assignment is visible to later statements.
+ * <p>
+ * In {@link BufferingMode#FLIP}, matrix row writes must also be mirrored to the old values, because the old values
+ * become the new values of the next update. See {@link #prepareMirroredRowWrites(List, int, int, int)}.
+ * <p>
+ * With activity tracking, each store compares the stored value to the value in a "reference" array that contains
+ * the values from before the update, and marks all blocks that read the signal-like as dirty if it differs. See
+ * {@link #enableActivityTracking(ActivityTracker, int, int)}.
+ */
+final class MethodCompiler {
+
+	private static final Type PROGRAM_TYPE = Type.getType(Program.class);
+	private static final Type LONG_OBJECT_TYPE = Type.getType(Long.class);
+	private static final Method SHIFT_LEFT_METHOD = Method.getMethod("long shiftLeft(long, long)");
+	private static final Method SHIFT_RIGHT_METHOD = Method.getMethod("long shiftRight(long, long)");
+	private static final Method DIVIDE_METHOD = Method.getMethod("long divide(long, long)");
+	private static final Method REMAINDER_METHOD = Method.getMethod("long remainder(long, long)");
+	private static final Method WIDE_DIVIDE_METHOD = Method.getMethod("long[] divide(long[], long[])");
+	private static final Method WIDE_REMAINDER_METHOD = Method.getMethod("long[] remainder(long[], long[])");
+	private static final Method MULTIPLY_HIGH_METHOD = Method.getMethod("long multiplyHighUnsigned(long, long)");
+	private static final Method COMPARE_UNSIGNED_METHOD = Method.getMethod("int compareUnsigned(long, long)");
+
+	private final GeneratorAdapter generator;
+	private final ValueLayout layout;
+	private final ConstantArrays constantArrays;
+	private final int sourceValuesLocal;
+	private final int destinationValuesLocal;
+	private final int inputValuesLocal;
+
+	// maps matrix row destinations to the locals that remember the row location and value written, if any
+	private final Map<ProcessedExpression, MirroredRowWrite> mirroredRowWrites = new IdentityHashMap<>();
+	private int mirrorValuesLocal = -1;
+
+	private ActivityTracker activityTracker;
+	private int referenceValuesLocal = -1;
+	private int dirtyBlocksLocal = -1;
+
+	MethodCompiler(@NotNull GeneratorAdapter generator,
+				   @NotNull ValueLayout layout,
+				   @NotNull ConstantArrays constantArrays,
+				   int sourceValuesLocal,
+				   int destinationValuesLocal,
+				   int inputValuesLocal) {
+		this.generator = generator;
+		this.layout = layout;
+		this.constantArrays = constantArrays;
+		this.sourceValuesLocal = sourceValuesLocal;
+		this.destinationValuesLocal = destinationValuesLocal;
+		this.inputValuesLocal = inputValuesLocal;
+	}
+
+	//
+	// mirrored matrix row writes
+	//
+
+	/**
+	 * Prepares for mirroring all matrix row writes in the specified statements to another value array. This method
+	 * must be called before compiling those statements. The mirrored writes don't take effect until
+	 * {@link #compileMirroredRowWrite(ProcessedExpression)} gets called for each of the
+	 * {@link #getMirroredRowDestinations()}, so the statements still see the unmodified mirror array.
+	 * <p>
+	 * Each row write records the position of the row in its own scratch word of the dirty bitmap, starting at the
+	 * specified word index, which works because there are no loops, so each assignment gets executed at most once.
+	 * Unlike locals, the scratch words are visible to the helper methods created by the {@link MethodSplitter}, whose
+	 * compilers use {@link #shareMirroredRowWrites(MethodCompiler, int, int)} to access them. Mirroring then copies
+	 * the recorded rows from the destination to the mirror array, so they always get their final value even if
+	 * several writes hit the same row.
+	 */
+	public void prepareMirroredRowWrites(@NotNull List<ProcessedStatement> statements, int mirrorValuesLocal, int dirtyBlocksLocal, int firstScratchWordIndex) {
+		this.mirrorValuesLocal = mirrorValuesLocal;
+		this.dirtyBlocksLocal = dirtyBlocksLocal;
+		List<ProcessedExpression> destinations = new ArrayList<>();
+		for (ProcessedStatement statement : statements) {
+			StatementAnalysis.collectMatrixRowDestinations(statement, destinations);
+		}
+		int scratchWordIndex = firstScratchWordIndex;
+		for (ProcessedExpression destination : destinations) {
+			MirroredRowWrite write = new MirroredRowWrite(getWidth(destination), scratchWordIndex);
+			scratchWordIndex++;
+			generator.loadLocal(dirtyBlocksLocal);
+			generator.push(write.scratchWordIndex);
+			generator.push(-1L);
+			generator.arrayStore(Type.LONG_TYPE);
+			mirroredRowWrites.put(destination, write);
+		}
+	}
+
+	/**
+	 * Makes this compiler use the scratch words prepared by the other compiler, so it can record row writes and
+	 * mirror them like that compiler.
+	 */
+	public void shareMirroredRowWrites(@NotNull MethodCompiler other, int mirrorValuesLocal, int dirtyBlocksLocal) {
+		mirroredRowWrites.putAll(other.mirroredRowWrites);
+		this.mirrorValuesLocal = mirrorValuesLocal;
+		this.dirtyBlocksLocal = dirtyBlocksLocal;
+	}
+
+	@NotNull
+	public List<ProcessedExpression> getMirroredRowDestinations() {
+		return new ArrayList<>(mirroredRowWrites.keySet());
+	}
+
+	public void compileMirroredRowWrite(@NotNull ProcessedExpression destination) {
+		MirroredRowWrite write = mirroredRowWrites.get(destination);
+
+		// position = (wordIndex << 6) + shift, or -1 if the row was not written
+		Label skipLabel = generator.newLabel();
+		int positionLocal = generator.newLocal(Type.LONG_TYPE);
+		int wordIndexLocal = generator.newLocal(Type.INT_TYPE);
+		generator.loadLocal(dirtyBlocksLocal);
+		generator.push(write.scratchWordIndex);
+		generator.arrayLoad(Type.LONG_TYPE);
+		generator.storeLocal(positionLocal);
+		generator.loadLocal(positionLocal);
+		generator.push(0L);
+		generator.ifCmp(Type.LONG_TYPE, GeneratorAdapter.LT, skipLabel);
+		generator.loadLocal(positionLocal);
+		generator.push(6);
+		generator.math(GeneratorAdapter.USHR, Type.LONG_TYPE);
+		generator.cast(Type.LONG_TYPE, Type.INT_TYPE);
+		generator.storeLocal(wordIndexLocal);
+		if (write.width > 64) {
+			for (int i = 0; i < getWordCount(write.width); i++) {
+				compileCopyField(new Location(getWordWidth(write.width, i), i, 0, wordIndexLocal, -1, true));
+			}
+		} else {
+			int shiftLocal = generator.newLocal(Type.INT_TYPE);
+			generator.loadLocal(positionLocal);
+			generator.cast(Type.LONG_TYPE, Type.INT_TYPE);
+			generator.push(63);
+			generator.math(GeneratorAdapter.AND, Type.INT_TYPE);
+			generator.storeLocal(shiftLocal);
+			compileCopyField(new Location(write.width, 0, 0, wordIndexLocal, shiftLocal, false));
+		}
+		generator.mark(skipLabel);
+	}
+
+	// copies a field from the destination to the mirror array
+	private void compileCopyField(@NotNull Location location) {
+		int valueLocal = generator.newLocal(Type.LONG_TYPE);
+		compileLoadField(destinationValuesLocal, location);
+		generator.storeLocal(valueLocal);
+		compileStoreField(mirrorValuesLocal, location, valueLocal);
+	}
+
+	// records the position of a matrix row write, see prepareMirroredRowWrites()
+	private void compileRecordRowWrite(@NotNull MirroredRowWrite write, @NotNull Location location) {
+		generator.loadLocal(dirtyBlocksLocal);
+		generator.push(write.scratchWordIndex);
+		compileWordIndex(location);
+		generator.push(6);
+		generator.math(GeneratorAdapter.SHL, Type.INT_TYPE);
+		compileShift(location);
+		generator.math(GeneratorAdapter.ADD, Type.INT_TYPE);
+		generator.cast(Type.INT_TYPE, Type.LONG_TYPE);
+		generator.arrayStore(Type.LONG_TYPE);
+	}
+
+	private static final class MirroredRowWrite {
+
+		final int width;
+		final int scratchWordIndex;
+
+		MirroredRowWrite(int width, int scratchWordIndex) {
+			this.width = width;
+			this.scratchWordIndex = scratchWordIndex;
+		}
+
+	}
+
+	//
+	// activity tracking
+	//
+
+	/**
+	 * Makes all stores compiled after this call mark the readers of the stored value as dirty when the stored value
+	 * differs from the one in the reference array.
+	 */
+	public void enableActivityTracking(@NotNull ActivityTracker activityTracker, int referenceValuesLocal, int dirtyBlocksLocal) {
+		this.activityTracker = activityTracker;
+		this.referenceValuesLocal = referenceValuesLocal;
+		this.dirtyBlocksLocal = dirtyBlocksLocal;
+	}
+
+	// stores the value from the local into the destination field, and marks its readers as dirty if it changed
+	private void compileStore(@NotNull SignalLike signalLike, @NotNull Location location, int valueLocal) {
+		if (activityTracker != null && activityTracker.hasReaders(signalLike)) {
+			Label unchangedLabel = generator.newLabel();
+			generator.loadLocal(valueLocal);
+			compileLoadField(referenceValuesLocal, location);
+			generator.ifCmp(Type.LONG_TYPE, GeneratorAdapter.EQ, unchangedLabel);
+			activityTracker.compileMarkReaders(generator, signalLike, dirtyBlocksLocal);
+			generator.mark(unchangedLabel);
+		}
+		compileStoreField(destinationValuesLocal, location, valueLocal);
+	}
+
+	//
+	// field access
+	//
+
+	/**
+	 * The location of up to 64 bits within a single word of a value array. The word index is either constant, or
+	 * relative to an int local. The shift is either constant or stored in an int local. Both locals are used for
+	 * matrix rows selected at runtime.
+	 * <p>
+	 * An exclusive location covers all bits of its word that are used at all, so it can be written without preserving
+	 * the other bits.
+	 */
+	private static final class Location {
+
+		final int width;
+		final int wordIndex;
+		final int shift;
+		final int wordIndexLocal;
+		final int shiftLocal;
+		final boolean exclusive;
+
+		Location(int width, int wordIndex, int shift, int wordIndexLocal, int shiftLocal, boolean exclusive) {
+			this.width = width;
+			this.wordIndex = wordIndex;
+			this.shift = shift;
+			this.wordIndexLocal = wordIndexLocal;
+			this.shiftLocal = shiftLocal;
+			this.exclusive = exclusive;
+		}
+
+		Location(@NotNull ValueField field) {
+			this(field.getWidth(), field.getWordIndex(), field.getShift(), -1, -1, field.isExclusive());
+		}
+
+		boolean isShifted() {
+			return shiftLocal != -1 || shift != 0;
+		}
+
+		long getMask() {
+			return MethodCompiler.getMask(width);
+		}
+
+	}
+
+	/**
+	 * Compiles code that computes the location of the row selected by the specified selection, in the value array
+	 * of the matrix signal-like that is the container of the selection. The rows must not be wider than 64 bits.
+	 */
+	@NotNull
+	private Location compileRowLocation(@NotNull ProcessedIndexSelection selection) {
+		ValueField field = layout.getField(((SignalLikeReference) selection.getContainer()).getDefinition());
+		ProcessedExpression index = selection.getIndex();
+		if (index instanceof ProcessedConstantValue) {
+			int indexValue = toIndex(((ProcessedConstantValue) index).getValue(), index.getErrorSource());
+			if (indexValue < 0 || indexValue >= field.getRowCount()) {
+				throw new ProgramBuilderException(index.getErrorSource(), "index out of bounds: " + indexValue);
+			}
+			return new Location(field.getRow(indexValue));
+		}
+		int rowLocal = generator.newLocal(Type.INT_TYPE);
+		int wordIndexLocal = generator.newLocal(Type.INT_TYPE);
+		int shiftLocal = generator.newLocal(Type.INT_TYPE);
+		compileRowIndex(selection);
+		generator.storeLocal(rowLocal);
+
+		// wordIndex = firstWordIndex + (row >>> rowsPerWordLog2)
+		generator.push(field.getWordIndex());
+		generator.loadLocal(rowLocal);
+		generator.push(field.getRowsPerWordLog2());
+		generator.math(GeneratorAdapter.USHR, Type.INT_TYPE);
+		generator.math(GeneratorAdapter.ADD, Type.INT_TYPE);
+		generator.storeLocal(wordIndexLocal);
+
+		// shift = (row & (rowsPerWord - 1)) << rowSlotWidthLog2
+		generator.loadLocal(rowLocal);
+		generator.push((1 << field.getRowsPerWordLog2()) - 1);
+		generator.math(GeneratorAdapter.AND, Type.INT_TYPE);
+		generator.push(field.getRowSlotWidthLog2());
+		generator.math(GeneratorAdapter.SHL, Type.INT_TYPE);
+		generator.storeLocal(shiftLocal);
+
+		return new Location(field.getWidth(), 0, 0, wordIndexLocal, shiftLocal, false);
+	}
+
+	/**
+	 * Compiles code that computes the index of the first word of the row selected by the specified selection, for
+	 * a matrix whose rows are wider than 64 bits, and returns the int local that contains it.
+	 */
+	private int compileWideRowWordIndex(@NotNull ProcessedIndexSelection selection) {
+		ValueField field = layout.getField(((SignalLikeReference) selection.getContainer()).getDefinition());
+		int wordIndexLocal = generator.newLocal(Type.INT_TYPE);
+		generator.push(field.getWordIndex());
+		compileRowIndex(selection);
+		generator.push(field.getWordsPerRow());
+		generator.math(GeneratorAdapter.MUL, Type.INT_TYPE);
+		generator.math(GeneratorAdapter.ADD, Type.INT_TYPE);
+		generator.storeLocal(wordIndexLocal);
+		return wordIndexLocal;
+	}
+
+	private void compileWordIndex(@NotNull Location location) {
+		if (location.wordIndexLocal == -1) {
+			generator.push(location.wordIndex);
+		} else {
+			generator.loadLocal(location.wordIndexLocal);
+			if (location.wordIndex != 0) {
+				generator.push(location.wordIndex);
+				generator.math(GeneratorAdapter.ADD, Type.INT_TYPE);
+			}
+		}
+	}
+
+	private void compileShift(@NotNull Location location) {
+		if (location.shiftLocal == -1) {
+			generator.push(location.shift);
+		} else {
+			generator.loadLocal(location.shiftLocal);
+		}
+	}
+
+	// pushes the value of the field as a long
+	private void compileLoadField(int valuesLocal, @NotNull Location location) {
+		generator.loadLocal(valuesLocal);
+		compileWordIndex(location);
+		generator.arrayLoad(Type.LONG_TYPE);
+		if (location.isShifted()) {
+			compileShift(location);
+			generator.math(GeneratorAdapter.USHR, Type.LONG_TYPE);
+		}
+		if (!location.exclusive) {
+			compileMask(location.width);
+		}
+	}
+
+	// values[wordIndex] = (values[wordIndex] & ~(mask << shift)) | (value << shift)
+	private void compileStoreField(int valuesLocal, @NotNull Location location, int valueLocal) {
+		generator.loadLocal(valuesLocal);
+		compileWordIndex(location);
+		if (location.exclusive) {
+			// the field starts at bit 0 and the other bits of the word are always zero
+			generator.loadLocal(valueLocal);
+			generator.arrayStore(Type.LONG_TYPE);
+			return;
+		}
+		generator.dup2();
+		generator.arrayLoad(Type.LONG_TYPE);
+		if (location.shiftLocal == -1) {
+			generator.push(~(location.getMask() << location.shift));
+		} else {
+			generator.push(location.getMask());
+			compileShift(location);
+			generator.math(GeneratorAdapter.SHL, Type.LONG_TYPE);
+			generator.push(-1L);
+			generator.math(GeneratorAdapter.XOR, Type.LONG_TYPE);
+		}
+		generator.math(GeneratorAdapter.AND, Type.LONG_TYPE);
+		generator.loadLocal(valueLocal);
+		if (location.isShifted()) {
+			compileShift(location);
+			generator.math(GeneratorAdapter.SHL, Type.LONG_TYPE);
+		}
+		generator.math(GeneratorAdapter.OR, Type.LONG_TYPE);
+		generator.arrayStore(Type.LONG_TYPE);
+	}
+
+	/**
+	 * Stores (width) bits from the value words into the destination array, starting at bit (shift) of word
+	 * (wordIndex), relative to the word index local if that is not -1. The bits may span several words; each word
+	 * is stored (and compared for activity tracking) separately. If exclusive is true, the bits cover everything that
+	 * is used of the words they touch.
+	 */
+	private void compileStoreBits(@NotNull SignalLike signalLike, int wordIndexLocal, int wordIndex, int shift, int width,
+								  boolean exclusive, @NotNull int[] valueWords) {
+		int valueBitIndex = 0;
+		while (valueBitIndex < width) {
+			int destinationBitIndex = shift + valueBitIndex;
+			int pieceShift = destinationBitIndex & 63;
+			int pieceWidth = Math.min(width - valueBitIndex, 64 - pieceShift);
+			int valueLocal;
+			if ((valueBitIndex & 63) == 0 && pieceWidth == getWordWidth(width, valueBitIndex >>> 6)) {
+				valueLocal = valueWords[valueBitIndex >>> 6];
+			} else {
+				valueLocal = generator.newLocal(Type.LONG_TYPE);
+				compileExtractBits(valueWords, valueBitIndex, pieceWidth);
+				generator.storeLocal(valueLocal);
+			}
+			boolean pieceExclusive = exclusive || pieceWidth == 64;
+			Location location = new Location(pieceWidth, wordIndex + (destinationBitIndex >>> 6), pieceShift, wordIndexLocal, -1, pieceExclusive);
+			compileStore(signalLike, location, valueLocal);
+			valueBitIndex += pieceWidth;
+		}
+	}
+
+	//
+	// statements
+	//
+
+	public void compileStatement(@NotNull ProcessedStatement statement) {
+		compileStatement(statement, statements -> {
+			for (ProcessedStatement subStatement : statements) {
+				compileStatement(subStatement);
+			}
+		});
+	}
+
+	/**
+	 * Compiles a statement, but leaves its sub-statements (the statements of a block, and the branches of an if- or
+	 * switch-statement) to the specified callback, which allows a {@link MethodSplitter} to move them to other methods.
+	 */
+	void compileStatement(@NotNull ProcessedStatement statement, @NotNull Consumer<List<ProcessedStatement>> subStatementCompiler) {
+		if (statement instanceof ProcessedBlock) {
+
+			subStatementCompiler.accept(((ProcessedBlock) statement).getStatements());
+
+		} else if (statement instanceof ProcessedAssignment) {
+
+			ProcessedAssignment assignment = (ProcessedAssignment) statement;
+			compileAssignment(assignment.getLeftHandSide(), assignment.getRightHandSide());
+
+		} else if (statement instanceof ProcessedIf) {
+
+			ProcessedIf ifStatement = (ProcessedIf) statement;
+			Label elseLabel = generator.newLabel();
+			Label endLabel = generator.newLabel();
+			compileJumpIfZero(ifStatement.getCondition(), elseLabel);
+			subStatementCompiler.accept(Collections.singletonList(ifStatement.getThenBranch()));
+			generator.goTo(endLabel);
+			generator.mark(elseLabel);
+			subStatementCompiler.accept(Collections.singletonList(ifStatement.getElseBranch()));
+			generator.mark(endLabel);
+
+		} else if (statement instanceof ProcessedSwitchStatement) {
+
+			ProcessedSwitchStatement switchStatement = (ProcessedSwitchStatement) statement;
+			Label endLabel = generator.newLabel();
+			Label defaultLabel = generator.newLabel();
+			Label[] branchLabels = new Label[switchStatement.getCases().size()];
+			List<List<ConstantValue.Vector>> selectorValues = new ArrayList<>();
+			for (int i = 0; i < branchLabels.length; i++) {
+				branchLabels[i] = generator.newLabel();
+				selectorValues.add(switchStatement.getCases().get(i).getSelectorValues());
+			}
+			compileSwitchJump(switchStatement.getSelector(), selectorValues, branchLabels, defaultLabel);
+			for (int i = 0; i < branchLabels.length; i++) {
+				generator.mark(branchLabels[i]);
+				subStatementCompiler.accept(Collections.singletonList(switchStatement.getCases().get(i).getBranch()));
+				generator.goTo(endLabel);
+			}
+			generator.mark(defaultLabel);
+			if (switchStatement.getDefaultBranch() != null) {
+				subStatementCompiler.accept(Collections.singletonList(switchStatement.getDefaultBranch()));
+			}
+			generator.mark(endLabel);
+
+		} else if (!(statement instanceof Nop)) {
+			throw new ProgramBuilderException(statement.getErrorSource(), "cannot compile statement: " + statement);
+		}
+	}
+
+	public void compileAssignment(@NotNull ProcessedExpression destination, @NotNull ProcessedExpression value) {
+		compileAssignmentFromWords(destination, compileWords(value));
+	}
+
+	private void compileAssignmentFromWords(@NotNull ProcessedExpression destination, @NotNull int[] valueWords) {
+		if (destination instanceof SignalLikeReference) {
+
+			if (destination.getDataType() instanceof ProcessedDataType.Matrix) {
+				throw new ProgramBuilderException(destination.getErrorSource(), "cannot assign to a matrix as a whole");
+			}
+			ValueField field = getField(destination);
+			compileStoreBits(getDefinition(destination), -1, field.getWordIndex(), field.getShift(), field.getWidth(), field.isExclusive(), valueWords);
+
+		} else if (destination instanceof ProcessedIndexSelection.BitFromVector) {
+
+			ProcessedIndexSelection selection = (ProcessedIndexSelection) destination;
+			SignalLike definition = getDefinition(selection.getContainer());
+			ValueField field = layout.getField(definition);
+			ProcessedExpression index = selection.getIndex();
+			if (index instanceof ProcessedConstantValue) {
+				int indexValue = toIndex(((ProcessedConstantValue) index).getValue(), index.getErrorSource());
+				if (indexValue < 0 || indexValue >= field.getWidth()) {
+					throw new ProgramBuilderException(index.getErrorSource(), "index out of bounds: " + indexValue);
+				}
+				compileStoreBits(definition, -1, field.getWordIndex(), field.getShift() + indexValue, 1, false, valueWords);
+			} else {
+				// absoluteBitIndex = (wordIndex << 6) + shift + index, stored as a single bit at a computed location
+				int absoluteBitIndexLocal = generator.newLocal(Type.INT_TYPE);
+				int wordIndexLocal = generator.newLocal(Type.INT_TYPE);
+				int shiftLocal = generator.newLocal(Type.INT_TYPE);
+				generator.push((field.getWordIndex() << 6) + field.getShift());
+				compileBitIndex(selection);
+				generator.math(GeneratorAdapter.ADD, Type.INT_TYPE);
+				generator.storeLocal(absoluteBitIndexLocal);
+				generator.loadLocal(absoluteBitIndexLocal);
+				generator.push(6);
+				generator.math(GeneratorAdapter.USHR, Type.INT_TYPE);
+				generator.storeLocal(wordIndexLocal);
+				generator.loadLocal(absoluteBitIndexLocal);
+				generator.push(63);
+				generator.math(GeneratorAdapter.AND, Type.INT_TYPE);
+				generator.storeLocal(shiftLocal);
+				compileStore(definition, new Location(1, 0, 0, wordIndexLocal, shiftLocal, false), valueWords[0]);
+			}
+
+		} else if (destination instanceof ProcessedIndexSelection.VectorFromMatrix) {
+
+			ProcessedIndexSelection selection = (ProcessedIndexSelection) destination;
+			SignalLike definition = getDefinition(selection.getContainer());
+			MirroredRowWrite mirroredRowWrite = mirroredRowWrites.get(destination);
+			int width = getWidth(destination);
+			if (width > 64) {
+				int wordIndexLocal = compileWideRowWordIndex(selection);
+				if (mirroredRowWrite != null) {
+					compileRecordRowWrite(mirroredRowWrite, new Location(width, 0, 0, wordIndexLocal, -1, true));
+				}
+				compileStoreBits(definition, wordIndexLocal, 0, 0, width, true, valueWords);
+			} else {
+				Location location = compileRowLocation(selection);
+				if (mirroredRowWrite != null) {
+					compileRecordRowWrite(mirroredRowWrite, location);
+				}
+				compileStore(definition, location, valueWords[0]);
+			}
+
+		} else if (destination instanceof ProcessedRangeSelection) {
+
+			ProcessedRangeSelection selection = (ProcessedRangeSelection) destination;
+			SignalLike definition = getDefinition(selection.getContainer());
+			ValueField field = layout.getField(definition);
+			compileStoreBits(definition, -1, field.getWordIndex(), field.getShift() + selection.getToIndex(), getWidth(selection), false, valueWords);
+
+		} else if (destination instanceof ProcessedBinaryOperation &&
+			((ProcessedBinaryOperation) destination).getOperator() == ProcessedBinaryOperator.VECTOR_CONCAT) {
+
+			// split the value into the parts for the left and right operand, then assign them separately
+			ProcessedBinaryOperation concatenation = (ProcessedBinaryOperation) destination;
+			int leftWidth = getWidth(concatenation.getLeftOperand());
+			int rightWidth = getWidth(concatenation.getRightOperand());
+			int[] leftValueWords = compileExtractWords(valueWords, rightWidth, leftWidth);
+			int[] rightValueWords = compileExtractWords(valueWords, 0, rightWidth);
+			compileAssignmentFromWords(concatenation.getLeftOperand(), leftValueWords);
+			compileAssignmentFromWords(concatenation.getRightOperand(), rightValueWords);
+
+		} else {
+			throw new ProgramBuilderException(destination.getErrorSource(), "cannot compile assignment to this expression");
+		}
+	}
+
+	/**
+	 * Jumps to the label of the first case that contains the value of the selector, or to the default label.
+	 * Selectors of up to 32 bits use a lookupswitch, wider ones compare the selector to each value in turn.
+	 */
+	private void compileSwitchJump(@NotNull ProcessedExpression selector, @NotNull List<List<ConstantValue.Vector>> selectorValues,
+								   @NotNull Label[] branchLabels, @NotNull Label defaultLabel) {
+		if (getWidth(selector) <= 32) {
+			TreeMap<Integer, Label> caseLabels = new TreeMap<>();
+			for (int i = 0; i < branchLabels.length; i++) {
+				for (ConstantValue.Vector selectorValue : selectorValues.get(i)) {
+					caseLabels.put((int) toLong(selectorValue, selector.getErrorSource()), branchLabels[i]);
+				}
+			}
+			compileExpression(selector);
+			generator.cast(Type.LONG_TYPE, Type.INT_TYPE);
+			compileLookupSwitch(caseLabels, defaultLabel);
+		} else {
+			int[] selectorWords = compileWords(selector);
+			for (int i = 0; i < branchLabels.length; i++) {
+				for (ConstantValue.Vector selectorValue : selectorValues.get(i)) {
+					long[] valueWords = toWords(selectorValue, selectorWords.length);
+					Label nextLabel = generator.newLabel();
+					for (int j = 0; j < selectorWords.length; j++) {
+						generator.loadLocal(selectorWords[j]);
+						generator.push(valueWords[j]);
+						generator.ifCmp(Type.LONG_TYPE, GeneratorAdapter.NE, nextLabel);
+					}
+					generator.goTo(branchLabels[i]);
+					generator.mark(nextLabel);
+				}
+			}
+			generator.goTo(defaultLabel);
+		}
+	}
+
+	//
+	// expressions of up to 64 bits
+	//
+
+	/**
+	 * Compiles an expression of up to 64 bits, leaving its value on the operand stack as a long.
+	 */
+	public void compileExpression(@NotNull ProcessedExpression expression) {
+		if (isWide(expression)) {
+			throw new IllegalArgumentException("expression is wider than 64 bits: " + expression);
+		}
+		if (expression instanceof ProcessedConstantValue) {
+
+			generator.push(toLong(((ProcessedConstantValue) expression).getValue(), expression.getErrorSource()));
+
+		} else if (expression instanceof SignalLikeReference) {
+
+			SignalLike definition = ((SignalLikeReference) expression).getDefinition();
+			if (definition instanceof Constant) {
+				generator.push(toLong(((Constant) definition).getValue(), expression.getErrorSource()));
+			} else if (expression.getDataType() instanceof ProcessedDataType.Matrix) {
+				throw new ProgramBuilderException(expression.getErrorSource(), "cannot use a matrix as a value");
+			} else {
+				compileLoadField(getValuesLocal(definition), new Location(layout.getField(definition)));
+			}
+
+		} else if (expression instanceof ProcessedUnaryOperation) {
+
+			compileUnaryOperation((ProcessedUnaryOperation) expression);
+
+		} else if (expression instanceof ProcessedBinaryOperation) {
+
+			compileBinaryOperation((ProcessedBinaryOperation) expression);
+
+		} else if (expression instanceof ProcessedConditional) {
+
+			ProcessedConditional conditional = (ProcessedConditional) expression;
+			Label elseLabel = generator.newLabel();
+			Label endLabel = generator.newLabel();
+			compileJumpIfZero(conditional.getCondition(), elseLabel);
+			compileExpression(conditional.getThenBranch());
+			generator.goTo(endLabel);
+			generator.mark(elseLabel);
+			compileExpression(conditional.getElseBranch());
+			generator.mark(endLabel);
+
+		} else if (expression instanceof ProcessedSwitchExpression) {
+
+			ProcessedSwitchExpression switchExpression = (ProcessedSwitchExpression) expression;
+			Label endLabel = generator.newLabel();
+			Label defaultLabel = generator.newLabel();
+			Label[] branchLabels = new Label[switchExpression.getCases().size()];
+			List<List<ConstantValue.Vector>> selectorValues = new ArrayList<>();
+			for (int i = 0; i < branchLabels.length; i++) {
+				branchLabels[i] = generator.newLabel();
+				selectorValues.add(switchExpression.getCases().get(i).getSelectorValues());
+			}
+			compileSwitchJump(switchExpression.getSelector(), selectorValues, branchLabels, defaultLabel);
+			for (int i = 0; i < branchLabels.length; i++) {
+				generator.mark(branchLabels[i]);
+				compileExpression(switchExpression.getCases().get(i).getResultValue());
+				generator.goTo(endLabel);
+			}
+			generator.mark(defaultLabel);
+			if (switchExpression.getDefaultBranch() == null) {
+				generator.push(0L);
+			} else {
+				compileExpression(switchExpression.getDefaultBranch());
+			}
+			generator.mark(endLabel);
+
+		} else if (expression instanceof ProcessedIndexSelection.BitFromVector) {
+
+			compileBitSelection((ProcessedIndexSelection) expression);
+
+		} else if (expression instanceof ProcessedIndexSelection.VectorFromMatrix) {
+
+			ProcessedIndexSelection selection = (ProcessedIndexSelection) expression;
+			ConstantValue.Matrix constantMatrix = getConstantMatrix(selection.getContainer());
+			if (constantMatrix != null) {
+				constantArrays.compileLoad(generator, toLongArray(constantMatrix));
+				compileRowIndex(selection);
+				generator.arrayLoad(Type.LONG_TYPE);
+			} else {
+				SignalLike definition = ((SignalLikeReference) selection.getContainer()).getDefinition();
+				Location location = compileRowLocation(selection);
+				compileLoadField(getValuesLocal(definition), location);
+			}
+
+		} else if (expression instanceof ProcessedRangeSelection) {
+
+			ProcessedRangeSelection selection = (ProcessedRangeSelection) expression;
+			if (isWide(selection.getContainer())) {
+				compileExtractBits(compileWords(selection.getContainer()), selection.getToIndex(), getWidth(selection));
+			} else {
+				compileExpression(selection.getContainer());
+				if (selection.getToIndex() != 0) {
+					generator.push(selection.getToIndex());
+					generator.math(GeneratorAdapter.USHR, Type.LONG_TYPE);
+				}
+				compileMask(getWidth(selection));
+			}
+
+		} else if (expression instanceof TypeConversion.BitToVector) {
+
+			// same representation
+			compileExpression(((TypeConversion) expression).getOperand());
+
+		} else if (expression instanceof TypeConversion.VectorToInteger) {
+
+			ProcessedExpression operand = ((TypeConversion) expression).getOperand();
+			if (isWide(operand)) {
+				throw new ProgramBuilderException(expression.getErrorSource(), "cannot convert a vector wider than 64 bits to an integer");
+			}
+			compileExpression(operand);
+
+		} else if (expression instanceof TypeConversion.IntegerToVector) {
+
+			compileExpression(((TypeConversion) expression).getOperand());
+			compileMask(getWidth(expression));
+
+		} else {
+			throw new ProgramBuilderException(expression.getErrorSource(), "cannot compile expression: " + expression);
+		}
+	}
+
+	private void compileJumpIfZero(@NotNull ProcessedExpression condition, @NotNull Label label) {
+		compileExpression(condition);
+		generator.push(0L);
+		generator.ifCmp(Type.LONG_TYPE, GeneratorAdapter.EQ, label);
+	}
+
+	private void compileBitSelection(@NotNull ProcessedIndexSelection selection) {
+		ProcessedExpression container = selection.getContainer();
+		if (!isWide(container)) {
+			compileExpression(container);
+			compileBitIndex(selection);
+		} else if (container instanceof SignalLikeReference && !(((SignalLikeReference) container).getDefinition() instanceof Constant)) {
+			// load only the word that contains the bit
+			SignalLike definition = ((SignalLikeReference) container).getDefinition();
+			ValueField field = layout.getField(definition);
+			int absoluteBitIndexLocal = generator.newLocal(Type.INT_TYPE);
+			generator.push(field.getWordIndex() << 6);
+			compileBitIndex(selection);
+			generator.math(GeneratorAdapter.ADD, Type.INT_TYPE);
+			generator.storeLocal(absoluteBitIndexLocal);
+			generator.loadLocal(getValuesLocal(definition));
+			generator.loadLocal(absoluteBitIndexLocal);
+			generator.push(6);
+			generator.math(GeneratorAdapter.USHR, Type.INT_TYPE);
+			generator.arrayLoad(Type.LONG_TYPE);
+			generator.loadLocal(absoluteBitIndexLocal);
+		} else {
+			int[] words = compileWords(container);
+			int bitIndexLocal = generator.newLocal(Type.INT_TYPE);
+			compileBitIndex(selection);
+			generator.storeLocal(bitIndexLocal);
+			compileSelectWord(words, bitIndexLocal);
+			generator.loadLocal(bitIndexLocal);
+		}
+		// Java only uses the lowest 6 bits of the shift amount
+		generator.math(GeneratorAdapter.USHR, Type.LONG_TYPE);
+		generator.push(1L);
+		generator.math(GeneratorAdapter.AND, Type.LONG_TYPE);
+	}
+
+	// pushes the word that contains the bit whose index is stored in the int local
+	private void compileSelectWord(@NotNull int[] words, int bitIndexLocal) {
+		Label endLabel = generator.newLabel();
+		Label defaultLabel = generator.newLabel();
+		Label[] wordLabels = new Label[words.length];
+		for (int i = 0; i < words.length; i++) {
+			wordLabels[i] = generator.newLabel();
+		}
+		generator.loadLocal(bitIndexLocal);
+		generator.push(6);
+		generator.math(GeneratorAdapter.USHR, Type.INT_TYPE);
+		generator.visitTableSwitchInsn(0, words.length - 1, defaultLabel, wordLabels);
+		for (int i = 0; i < words.length; i++) {
+			generator.mark(wordLabels[i]);
+			generator.loadLocal(words[i]);
+			generator.goTo(endLabel);
+		}
+		generator.mark(defaultLabel);
+		generator.push(0L);
+		generator.mark(endLabel);
+	}
+
+	private void compileUnaryOperation(@NotNull ProcessedUnaryOperation operation) {
+		compileExpression(operation.getOperand());
+		switch (operation.getOperator()) {
+
+			case NOT:
+				generator.push(getMask(getWidth(operation)));
+				generator.math(GeneratorAdapter.XOR, Type.LONG_TYPE);
+				break;
+
+			case PLUS:
+				break;
+
+			case MINUS:
+				generator.math(GeneratorAdapter.NEG, Type.LONG_TYPE);
+				compileResultMask(operation);
+				break;
+
+			default:
+				throw new ProgramBuilderException(operation.getErrorSource(), "unknown unary operator: " + operation.getOperator());
+
+		}
+	}
+
+	private void compileBinaryOperation(@NotNull ProcessedBinaryOperation operation) {
+		ProcessedExpression leftOperand = operation.getLeftOperand();
+		ProcessedExpression rightOperand = operation.getRightOperand();
+		switch (operation.getOperator()) {
+
+			case AND:
+				compileMath(leftOperand, rightOperand, GeneratorAdapter.AND);
+				break;
+
+			case OR:
+				compileMath(leftOperand, rightOperand, GeneratorAdapter.OR);
+				break;
+
+			case XOR:
+				compileMath(leftOperand, rightOperand, GeneratorAdapter.XOR);
+				break;
+
+			case VECTOR_CONCAT:
+				compileExpression(leftOperand);
+				generator.push(getWidth(rightOperand));
+				generator.math(GeneratorAdapter.SHL, Type.LONG_TYPE);
+				compileExpression(rightOperand);
+				generator.math(GeneratorAdapter.OR, Type.LONG_TYPE);
+				break;
+
+			case PLUS:
+				compileMath(leftOperand, rightOperand, GeneratorAdapter.ADD);
+				compileResultMask(operation);
+				break;
+
+			case MINUS:
+				compileMath(leftOperand, rightOperand, GeneratorAdapter.SUB);
+				compileResultMask(operation);
+				break;
+
+			case TIMES:
+				compileMath(leftOperand, rightOperand, GeneratorAdapter.MUL);
+				compileResultMask(operation);
+				break;
+
+			case DIVIDED_BY:
+				compileProgramHelperCall(leftOperand, rightOperand, DIVIDE_METHOD);
+				break;
+
+			case REMAINDER:
+				compileProgramHelperCall(leftOperand, rightOperand, REMAINDER_METHOD);
+				break;
+
+			case SHIFT_LEFT:
+				compileExpression(leftOperand);
+				compileShiftAmount(rightOperand);
+				generator.invokeStatic(PROGRAM_TYPE, SHIFT_LEFT_METHOD);
+				compileResultMask(operation);
+				break;
+
+			case SHIFT_RIGHT:
+				compileExpression(leftOperand);
+				compileShiftAmount(rightOperand);
+				generator.invokeStatic(PROGRAM_TYPE, SHIFT_RIGHT_METHOD);
+				break;
+
+			case EQUAL:
+				compileComparison(leftOperand, rightOperand, GeneratorAdapter.EQ);
+				break;
+
+			case NOT_EQUAL:
+				compileComparison(leftOperand, rightOperand, GeneratorAdapter.NE);
+				break;
+
+			case LESS_THAN:
+				compileComparison(leftOperand, rightOperand, GeneratorAdapter.LT);
+				break;
+
+			case LESS_THAN_OR_EQUAL:
+				compileComparison(leftOperand, rightOperand, GeneratorAdapter.LE);
+				break;
+
+			case GREATER_THAN:
+				compileComparison(leftOperand, rightOperand, GeneratorAdapter.GT);
+				break;
+
+			case GREATER_THAN_OR_EQUAL:
+				compileComparison(leftOperand, rightOperand, GeneratorAdapter.GE);
+				break;
+
+			default:
+				throw new ProgramBuilderException(operation.getErrorSource(), "cannot compile binary operator: " + operation.getOperator());
+
+		}
+	}
+
+	private void compileMath(@NotNull ProcessedExpression leftOperand, @NotNull ProcessedExpression rightOperand, int operation) {
+		compileExpression(leftOperand);
+		compileExpression(rightOperand);
+		generator.math(operation, Type.LONG_TYPE);
+	}
+
+	private void compileProgramHelperCall(@NotNull ProcessedExpression leftOperand, @NotNull ProcessedExpression rightOperand, @NotNull Method method) {
+		compileExpression(leftOperand);
+		compileExpression(rightOperand);
+		generator.invokeStatic(PROGRAM_TYPE, method);
+	}
+
+	/**
+	 * Pushes a shift amount as a long. A shift amount wider than 64 bits that doesn't fit into a long is replaced
+	 * by -1, which the shift helpers treat like any other amount that is too large.
+	 */
+	private void compileShiftAmount(@NotNull ProcessedExpression amount) {
+		if (!isWide(amount)) {
+			compileExpression(amount);
+			return;
+		}
+		int[] words = compileWords(amount);
+		Label tooLargeLabel = generator.newLabel();
+		Label endLabel = generator.newLabel();
+		generator.loadLocal(words[1]);
+		for (int i = 2; i < words.length; i++) {
+			generator.loadLocal(words[i]);
+			generator.math(GeneratorAdapter.OR, Type.LONG_TYPE);
+		}
+		generator.push(0L);
+		generator.ifCmp(Type.LONG_TYPE, GeneratorAdapter.NE, tooLargeLabel);
+		generator.loadLocal(words[0]);
+		generator.goTo(endLabel);
+		generator.mark(tooLargeLabel);
+		generator.push(-1L);
+		generator.mark(endLabel);
+	}
+
+	/**
+	 * Compiles a comparison that leaves 1 or 0 on the stack. Operands are unsigned, so a plain long comparison only
+	 * works if the top bit is never set.
+	 */
+	private void compileComparison(@NotNull ProcessedExpression leftOperand, @NotNull ProcessedExpression rightOperand, int mode) {
+		Label trueLabel = generator.newLabel();
+		Label endLabel = generator.newLabel();
+		if (isWide(leftOperand)) {
+			compileCompareWords(compileWords(leftOperand), compileWords(rightOperand));
+			generator.push(0);
+			generator.ifICmp(mode, trueLabel);
+		} else {
+			compileExpression(leftOperand);
+			compileExpression(rightOperand);
+			if (leftOperand.getDataType() instanceof ProcessedDataType.Vector && getWidth(leftOperand) == 64) {
+				generator.invokeStatic(LONG_OBJECT_TYPE, COMPARE_UNSIGNED_METHOD);
+				generator.push(0);
+				generator.ifICmp(mode, trueLabel);
+			} else {
+				generator.ifCmp(Type.LONG_TYPE, mode, trueLabel);
+			}
+		}
+		generator.push(0L);
+		generator.goTo(endLabel);
+		generator.mark(trueLabel);
+		generator.push(1L);
+		generator.mark(endLabel);
+	}
+
+	private void compileLookupSwitch(@NotNull TreeMap<Integer, Label> caseLabels, @NotNull Label defaultLabel) {
+		int[] keys = new int[caseLabels.size()];
+		Label[] labels = new Label[caseLabels.size()];
+		int i = 0;
+		for (Map.Entry<Integer, Label> entry : caseLabels.entrySet()) {
+			keys[i] = entry.getKey();
+			labels[i] = entry.getValue();
+			i++;
+		}
+		generator.visitLookupSwitchInsn(defaultLabel, keys, labels);
+	}
+
+	private void compileMask(int size) {
+		if (size < 64) {
+			generator.push(getMask(size));
+			generator.math(GeneratorAdapter.AND, Type.LONG_TYPE);
+		}
+	}
+
+	// integers are not masked
+	private void compileResultMask(@NotNull ProcessedExpression expression) {
+		if (expression.getDataType() instanceof ProcessedDataType.Vector) {
+			compileMask(getWidth(expression));
+		}
+	}
+
+	private void compileBitIndex(@NotNull ProcessedIndexSelection selection) {
+		compileSelectionIndex(selection, getWidth(selection.getContainer()));
+	}
+
+	private void compileRowIndex(@NotNull ProcessedIndexSelection selection) {
+		compileSelectionIndex(selection, ((ProcessedDataType.Matrix) selection.getContainer().getDataType()).getFirstSize());
+	}
+
+	/**
+	 * Pushes the index as an int. Constant indices are range-checked here. Non-constant indices are vectors, and the
+	 * type checker has made sure that the container is large enough for any value of the index vector.
+	 */
+	private void compileSelectionIndex(@NotNull ProcessedIndexSelection selection, int containerSize) {
+		ProcessedExpression index = selection.getIndex();
+		if (index instanceof ProcessedConstantValue) {
+			int indexValue = toIndex(((ProcessedConstantValue) index).getValue(), index.getErrorSource());
+			if (indexValue < 0 || indexValue >= containerSize) {
+				throw new ProgramBuilderException(index.getErrorSource(), "index out of bounds: " + indexValue);
+			}
+			generator.push(indexValue);
+		} else {
+			compileExpression(index);
+			generator.cast(Type.LONG_TYPE, Type.INT_TYPE);
+		}
+	}
+
+	//
+	// expressions wider than 64 bits
+	//
+
+	/**
+	 * Compiles an expression of any width to long locals, one per word, and returns the locals. Expressions of up to
+	 * 64 bits produce a single local. The returned locals must not be modified since they may be shared.
+	 */
+	@NotNull
+	private int[] compileWords(@NotNull ProcessedExpression expression) {
+		if (isWide(expression)) {
+			return compileWideExpression(expression);
+		}
+		int local = generator.newLocal(Type.LONG_TYPE);
+		compileExpression(expression);
+		generator.storeLocal(local);
+		return new int[] {local};
+	}
+
+	@NotNull
+	private int[] compileWideExpression(@NotNull ProcessedExpression expression) {
+		int width = getWidth(expression);
+		int wordCount = getWordCount(width);
+		if (expression instanceof ProcessedConstantValue) {
+
+			return compileConstantWords(toWords(((ProcessedConstantValue) expression).getValue(), wordCount));
+
+		} else if (expression instanceof SignalLikeReference) {
+
+			SignalLike definition = ((SignalLikeReference) expression).getDefinition();
+			if (definition instanceof Constant) {
+				return compileConstantWords(toWords(((Constant) definition).getValue(), wordCount));
+			}
+			ValueField field = layout.getField(definition);
+			int[] words = newLongLocals(wordCount);
+			for (int i = 0; i < wordCount; i++) {
+				compileLoadField(getValuesLocal(definition), new Location(getWordWidth(width, i), field.getWordIndex() + i, 0, -1, -1, true));
+				generator.storeLocal(words[i]);
+			}
+			return words;
+
+		} else if (expression instanceof ProcessedUnaryOperation) {
+
+			ProcessedUnaryOperation operation = (ProcessedUnaryOperation) expression;
+			int[] operandWords = compileWords(operation.getOperand());
+			switch (operation.getOperator()) {
+
+				case NOT: {
+					int[] words = newLongLocals(wordCount);
+					for (int i = 0; i < wordCount; i++) {
+						generator.loadLocal(operandWords[i]);
+						generator.push(getMask(getWordWidth(width, i)));
+						generator.math(GeneratorAdapter.XOR, Type.LONG_TYPE);
+						generator.storeLocal(words[i]);
+					}
+					return words;
+				}
+
+				case PLUS:
+					return operandWords;
+
+				case MINUS:
+					return compileAddWords(new int[0], operandWords, width, true);
+
+				default:
+					throw new ProgramBuilderException(operation.getErrorSource(), "unknown unary operator: " + operation.getOperator());
+
+			}
+
+		} else if (expression instanceof ProcessedBinaryOperation) {
+
+			return compileWideBinaryOperation((ProcessedBinaryOperation) expression);
+
+		} else if (expression instanceof ProcessedConditional) {
+
+			ProcessedConditional conditional = (ProcessedConditional) expression;
+			int[] words = newLongLocals(wordCount);
+			Label elseLabel = generator.newLabel();
+			Label endLabel = generator.newLabel();
+			compileJumpIfZero(conditional.getCondition(), elseLabel);
+			compileCopyWords(compileWords(conditional.getThenBranch()), words);
+			generator.goTo(endLabel);
+			generator.mark(elseLabel);
+			compileCopyWords(compileWords(conditional.getElseBranch()), words);
+			generator.mark(endLabel);
+			return words;
+
+		} else if (expression instanceof ProcessedSwitchExpression) {
+
+			ProcessedSwitchExpression switchExpression = (ProcessedSwitchExpression) expression;
+			int[] words = newLongLocals(wordCount);
+			Label endLabel = generator.newLabel();
+			Label defaultLabel = generator.newLabel();
+			Label[] branchLabels = new Label[switchExpression.getCases().size()];
+			List<List<ConstantValue.Vector>> selectorValues = new ArrayList<>();
+			for (int i = 0; i < branchLabels.length; i++) {
+				branchLabels[i] = generator.newLabel();
+				selectorValues.add(switchExpression.getCases().get(i).getSelectorValues());
+			}
+			compileSwitchJump(switchExpression.getSelector(), selectorValues, branchLabels, defaultLabel);
+			for (int i = 0; i < branchLabels.length; i++) {
+				generator.mark(branchLabels[i]);
+				compileCopyWords(compileWords(switchExpression.getCases().get(i).getResultValue()), words);
+				generator.goTo(endLabel);
+			}
+			generator.mark(defaultLabel);
+			if (switchExpression.getDefaultBranch() == null) {
+				compileCopyWords(new int[0], words);
+			} else {
+				compileCopyWords(compileWords(switchExpression.getDefaultBranch()), words);
+			}
+			generator.mark(endLabel);
+			return words;
+
+		} else if (expression instanceof ProcessedIndexSelection.VectorFromMatrix) {
+
+			ProcessedIndexSelection selection = (ProcessedIndexSelection) expression;
+			ConstantValue.Matrix constantMatrix = getConstantMatrix(selection.getContainer());
+			int[] words = newLongLocals(wordCount);
+			if (constantMatrix != null) {
+				int firstWordIndexLocal = generator.newLocal(Type.INT_TYPE);
+				compileRowIndex(selection);
+				generator.push(wordCount);
+				generator.math(GeneratorAdapter.MUL, Type.INT_TYPE);
+				generator.storeLocal(firstWordIndexLocal);
+				long[] constantWords = toLongArray(constantMatrix);
+				for (int i = 0; i < wordCount; i++) {
+					constantArrays.compileLoad(generator, constantWords);
+					generator.loadLocal(firstWordIndexLocal);
+					generator.push(i);
+					generator.math(GeneratorAdapter.ADD, Type.INT_TYPE);
+					generator.arrayLoad(Type.LONG_TYPE);
+					generator.storeLocal(words[i]);
+				}
+			} else {
+				SignalLike definition = ((SignalLikeReference) selection.getContainer()).getDefinition();
+				int wordIndexLocal = compileWideRowWordIndex(selection);
+				for (int i = 0; i < wordCount; i++) {
+					compileLoadField(getValuesLocal(definition), new Location(getWordWidth(width, i), i, 0, wordIndexLocal, -1, true));
+					generator.storeLocal(words[i]);
+				}
+			}
+			return words;
+
+		} else if (expression instanceof ProcessedRangeSelection) {
+
+			ProcessedRangeSelection selection = (ProcessedRangeSelection) expression;
+			return compileExtractWords(compileWords(selection.getContainer()), selection.getToIndex(), width);
+
+		} else if (expression instanceof TypeConversion.IntegerToVector) {
+
+			// sign-extend the integer
+			int[] operandWords = compileWords(((TypeConversion) expression).getOperand());
+			int[] words = newLongLocals(wordCount);
+			for (int i = 0; i < wordCount; i++) {
+				generator.loadLocal(operandWords[0]);
+				if (i > 0) {
+					generator.push(63);
+					generator.math(GeneratorAdapter.SHR, Type.LONG_TYPE);
+				}
+				compileMask(getWordWidth(width, i));
+				generator.storeLocal(words[i]);
+			}
+			return words;
+
+		} else {
+			throw new ProgramBuilderException(expression.getErrorSource(), "cannot compile expression: " + expression);
+		}
+	}
+
+	@NotNull
+	private int[] compileWideBinaryOperation(@NotNull ProcessedBinaryOperation operation) {
+		ProcessedExpression leftOperand = operation.getLeftOperand();
+		ProcessedExpression rightOperand = operation.getRightOperand();
+		int width = getWidth(operation);
+		switch (operation.getOperator()) {
+
+			case AND:
+				return compileWordwiseMath(compileWords(leftOperand), compileWords(rightOperand), GeneratorAdapter.AND);
+
+			case OR:
+				return compileWordwiseMath(compileWords(leftOperand), compileWords(rightOperand), GeneratorAdapter.OR);
+
+			case XOR:
+				return compileWordwiseMath(compileWords(leftOperand), compileWords(rightOperand), GeneratorAdapter.XOR);
+
+			case VECTOR_CONCAT: {
+				int[] leftWords = compileWords(leftOperand);
+				int[] rightWords = compileWords(rightOperand);
+				int rightWidth = getWidth(rightOperand);
+				int[] words = newLongLocals(getWordCount(width));
+				for (int i = 0; i < words.length; i++) {
+					int firstBitIndex = i << 6;
+					int wordWidth = getWordWidth(width, i);
+					if (firstBitIndex < rightWidth) {
+						compileExtractBits(rightWords, firstBitIndex, Math.min(wordWidth, rightWidth - firstBitIndex));
+						if (firstBitIndex + wordWidth > rightWidth) {
+							compileExtractBits(leftWords, firstBitIndex - rightWidth, wordWidth);
+							generator.math(GeneratorAdapter.OR, Type.LONG_TYPE);
+						}
+					} else {
+						compileExtractBits(leftWords, firstBitIndex - rightWidth, wordWidth);
+					}
+					generator.storeLocal(words[i]);
+				}
+				return words;
+			}
+
+			case PLUS:
+				return compileAddWords(compileWords(leftOperand), compileWords(rightOperand), width, false);
+
+			case MINUS:
+				return compileAddWords(compileWords(leftOperand), compileWords(rightOperand), width, true);
+
+			case TIMES:
+				return compileMultiplyWords(compileWords(leftOperand), compileWords(rightOperand), width);
+
+			case DIVIDED_BY:
+				return compileWideHelperCall(compileWords(leftOperand), compileWords(rightOperand), WIDE_DIVIDE_METHOD);
+
+			case REMAINDER:
+				return compileWideHelperCall(compileWords(leftOperand), compileWords(rightOperand), WIDE_REMAINDER_METHOD);
+
+			case SHIFT_LEFT:
+				return compileShiftWords(compileWords(leftOperand), rightOperand, width, true);
+
+			case SHIFT_RIGHT:
+				return compileShiftWords(compileWords(leftOperand), rightOperand, width, false);
+
+			default:
+				throw new ProgramBuilderException(operation.getErrorSource(), "cannot compile binary operator: " + operation.getOperator());
+
+		}
+	}
+
+	@NotNull
+	private int[] compileConstantWords(@NotNull long[] constantWords) {
+		int[] words = newLongLocals(constantWords.length);
+		for (int i = 0; i < words.length; i++) {
+			generator.push(constantWords[i]);
+			generator.storeLocal(words[i]);
+		}
+		return words;
+	}
+
+	// copies the words, filling up with zeroes if there are less source words than destination words
+	private void compileCopyWords(@NotNull int[] sourceWords, @NotNull int[] destinationWords) {
+		for (int i = 0; i < destinationWords.length; i++) {
+			compileLoadWord(sourceWords, i);
+			generator.storeLocal(destinationWords[i]);
+		}
+	}
+
+	// words beyond the end are zero
+	private void compileLoadWord(@NotNull int[] words, int index) {
+		if (index < words.length) {
+			generator.loadLocal(words[index]);
+		} else {
+			generator.push(0L);
+		}
+	}
+
+	/**
+	 * Pushes (width) bits of the specified words, starting at bit (offset), as a long. Bits before the first word
+	 * (for a negative offset) and beyond the last word are zero.
+	 */
+	private void compileExtractBits(@NotNull int[] words, int offset, int width) {
+		if (offset < 0) {
+			if (offset + width <= 0) {
+				generator.push(0L);
+			} else {
+				compileExtractBits(words, 0, width + offset);
+				generator.push(-offset);
+				generator.math(GeneratorAdapter.SHL, Type.LONG_TYPE);
+			}
+			return;
+		}
+		int wordIndex = offset >>> 6;
+		int shift = offset & 63;
+		if (wordIndex >= words.length) {
+			generator.push(0L);
+			return;
+		}
+		generator.loadLocal(words[wordIndex]);
+		if (shift != 0) {
+			generator.push(shift);
+			generator.math(GeneratorAdapter.USHR, Type.LONG_TYPE);
+			if (shift + width > 64 && wordIndex + 1 < words.length) {
+				generator.loadLocal(words[wordIndex + 1]);
+				generator.push(64 - shift);
+				generator.math(GeneratorAdapter.SHL, Type.LONG_TYPE);
+				generator.math(GeneratorAdapter.OR, Type.LONG_TYPE);
+			}
+		}
+		compileMask(width);
+	}
+
+	// like compileExtractBits(), but for any width, storing the result in new locals
+	@NotNull
+	private int[] compileExtractWords(@NotNull int[] words, int offset, int width) {
+		int[] result = newLongLocals(getWordCount(width));
+		for (int i = 0; i < result.length; i++) {
+			compileExtractBits(words, offset + (i << 6), getWordWidth(width, i));
+			generator.storeLocal(result[i]);
+		}
+		return result;
+	}
+
+	@NotNull
+	private int[] compileWordwiseMath(@NotNull int[] leftWords, @NotNull int[] rightWords, int operation) {
+		int[] words = newLongLocals(leftWords.length);
+		for (int i = 0; i < words.length; i++) {
+			generator.loadLocal(leftWords[i]);
+			generator.loadLocal(rightWords[i]);
+			generator.math(operation, Type.LONG_TYPE);
+			generator.storeLocal(words[i]);
+		}
+		return words;
+	}
+
+	/**
+	 * Adds or subtracts word by word, propagating the carry (or borrow) from the top bit of each word. The carry out
+	 * of a full adder is (a & b) | ((a | b) & ~sum), the borrow out of a full subtractor is
+	 * (~a & b) | (~(a ^ b) & difference). The left words may be shorter than the right words and are zero-extended.
+	 */
+	@NotNull
+	private int[] compileAddWords(@NotNull int[] leftWords, @NotNull int[] rightWords, int width, boolean subtract) {
+		int[] words = newLongLocals(getWordCount(width));
+		int carryLocal = generator.newLocal(Type.LONG_TYPE);
+		int operation = subtract ? GeneratorAdapter.SUB : GeneratorAdapter.ADD;
+		for (int i = 0; i < words.length; i++) {
+			compileLoadWord(leftWords, i);
+			compileLoadWord(rightWords, i);
+			generator.math(operation, Type.LONG_TYPE);
+			if (i > 0) {
+				generator.loadLocal(carryLocal);
+				generator.math(operation, Type.LONG_TYPE);
+			}
+			generator.storeLocal(words[i]);
+			if (i < words.length - 1) {
+				compileLoadWord(leftWords, i);
+				if (subtract) {
+					generator.push(-1L);
+					generator.math(GeneratorAdapter.XOR, Type.LONG_TYPE);
+					compileLoadWord(rightWords, i);
+					generator.math(GeneratorAdapter.AND, Type.LONG_TYPE);
+					compileLoadWord(leftWords, i);
+					compileLoadWord(rightWords, i);
+					generator.math(GeneratorAdapter.XOR, Type.LONG_TYPE);
+					generator.push(-1L);
+					generator.math(GeneratorAdapter.XOR, Type.LONG_TYPE);
+					generator.loadLocal(words[i]);
+				} else {
+					compileLoadWord(rightWords, i);
+					generator.math(GeneratorAdapter.AND, Type.LONG_TYPE);
+					compileLoadWord(leftWords, i);
+					compileLoadWord(rightWords, i);
+					generator.math(GeneratorAdapter.OR, Type.LONG_TYPE);
+					generator.loadLocal(words[i]);
+					generator.push(-1L);
+					generator.math(GeneratorAdapter.XOR, Type.LONG_TYPE);
+				}
+				generator.math(GeneratorAdapter.AND, Type.LONG_TYPE);
+				generator.math(GeneratorAdapter.OR, Type.LONG_TYPE);
+				generator.push(63);
+				generator.math(GeneratorAdapter.USHR, Type.LONG_TYPE);
+				generator.storeLocal(carryLocal);
+			}
+		}
+		compileMaskLastWord(words, width);
+		return words;
+	}
+
+	/**
+	 * Multiplies column by column, keeping only the low words of the product. Each pair of words contributes the low
+	 * half of its product to the current column and the high half to the next one. The running sum of the current
+	 * column and the carries into the next two columns are kept in three long locals.
+	 */
+	@NotNull
+	private int[] compileMultiplyWords(@NotNull int[] leftWords, @NotNull int[] rightWords, int width) {
+		int[] words = newLongLocals(getWordCount(width));
+		int column0Local = generator.newLocal(Type.LONG_TYPE);
+		int column1Local = generator.newLocal(Type.LONG_TYPE);
+		int column2Local = generator.newLocal(Type.LONG_TYPE);
+		int termLocal = generator.newLocal(Type.LONG_TYPE);
+		for (int local : new int[] {column0Local, column1Local, column2Local}) {
+			generator.push(0L);
+			generator.storeLocal(local);
+		}
+		for (int column = 0; column < words.length; column++) {
+			for (int i = 0; i <= column; i++) {
+
+				// column0 += low(left[i] * right[j])
+				int j = column - i;
+				generator.loadLocal(leftWords[i]);
+				generator.loadLocal(rightWords[j]);
+				generator.math(GeneratorAdapter.MUL, Type.LONG_TYPE);
+				generator.storeLocal(termLocal);
+				generator.loadLocal(column0Local);
+				generator.loadLocal(termLocal);
+				generator.math(GeneratorAdapter.ADD, Type.LONG_TYPE);
+				generator.storeLocal(column0Local);
+				if (column == words.length - 1) {
+					continue;
+				}
+
+				// column1 += high(left[i] * right[j]) + carry; the high half is at most 2^64 - 2, so this sum cannot overflow
+				generator.loadLocal(leftWords[i]);
+				generator.loadLocal(rightWords[j]);
+				generator.invokeStatic(PROGRAM_TYPE, MULTIPLY_HIGH_METHOD);
+				compileUnsignedLessThan(column0Local, termLocal);
+				generator.math(GeneratorAdapter.ADD, Type.LONG_TYPE);
+				generator.storeLocal(termLocal);
+				generator.loadLocal(column1Local);
+				generator.loadLocal(termLocal);
+				generator.math(GeneratorAdapter.ADD, Type.LONG_TYPE);
+				generator.storeLocal(column1Local);
+				if (column == words.length - 2) {
+					continue;
+				}
+
+				// column2 += carry
+				generator.loadLocal(column2Local);
+				compileUnsignedLessThan(column1Local, termLocal);
+				generator.math(GeneratorAdapter.ADD, Type.LONG_TYPE);
+				generator.storeLocal(column2Local);
+
+			}
+			generator.loadLocal(column0Local);
+			generator.storeLocal(words[column]);
+			generator.loadLocal(column1Local);
+			generator.storeLocal(column0Local);
+			generator.loadLocal(column2Local);
+			generator.storeLocal(column1Local);
+			generator.push(0L);
+			generator.storeLocal(column2Local);
+		}
+		compileMaskLastWord(words, width);
+		return words;
+	}
+
+	// pushes 1L if the first local is less than the second when treated as unsigned, 0L otherwise -- this is the borrow out of (x - y)
+	private void compileUnsignedLessThan(int xLocal, int yLocal) {
+		generator.loadLocal(xLocal);
+		generator.push(-1L);
+		generator.math(GeneratorAdapter.XOR, Type.LONG_TYPE);
+		generator.loadLocal(yLocal);
+		generator.math(GeneratorAdapter.AND, Type.LONG_TYPE);
+		generator.loadLocal(xLocal);
+		generator.loadLocal(yLocal);
+		generator.math(GeneratorAdapter.XOR, Type.LONG_TYPE);
+		generator.push(-1L);
+		generator.math(GeneratorAdapter.XOR, Type.LONG_TYPE);
+		generator.loadLocal(xLocal);
+		generator.loadLocal(yLocal);
+		generator.math(GeneratorAdapter.SUB, Type.LONG_TYPE);
+		generator.math(GeneratorAdapter.AND, Type.LONG_TYPE);
+		generator.math(GeneratorAdapter.OR, Type.LONG_TYPE);
+		generator.push(63);
+		generator.math(GeneratorAdapter.USHR, Type.LONG_TYPE);
+	}
+
+	// pushes the result of an unsigned comparison of the words as an int that is less than, equal to or greater than 0
+	private void compileCompareWords(@NotNull int[] leftWords, @NotNull int[] rightWords) {
+		Label endLabel = generator.newLabel();
+		for (int i = leftWords.length - 1; i > 0; i--) {
+			generator.loadLocal(leftWords[i]);
+			generator.loadLocal(rightWords[i]);
+			generator.invokeStatic(LONG_OBJECT_TYPE, COMPARE_UNSIGNED_METHOD);
+			generator.dup();
+			generator.ifZCmp(GeneratorAdapter.NE, endLabel);
+			generator.pop();
+		}
+		generator.loadLocal(leftWords[0]);
+		generator.loadLocal(rightWords[0]);
+		generator.invokeStatic(LONG_OBJECT_TYPE, COMPARE_UNSIGNED_METHOD);
+		generator.mark(endLabel);
+	}
+
+	/**
+	 * Shifts by a constant amount by extracting the bits for each result word. Shifts by a non-constant amount are
+	 * built from the same steps as a barrel shifter, shifting by 2^i if bit i of the amount is set.
+	 */
+	@NotNull
+	private int[] compileShiftWords(@NotNull int[] words, @NotNull ProcessedExpression amount, int width, boolean left) {
+		ConstantValue constantAmount = getConstantValue(amount);
+		if (constantAmount != null) {
+			long amountValue = toShiftAmount(constantAmount, amount.getErrorSource());
+			if (amountValue < 0 || amountValue >= width) {
+				return compileConstantWords(new long[words.length]);
+			}
+			return compileShiftWordsByConstant(words, (int) amountValue, width, left);
+		}
+
+		int amountLocal = generator.newLocal(Type.LONG_TYPE);
+		compileShiftAmount(amount);
+		generator.storeLocal(amountLocal);
+		int[] result = newLongLocals(words.length);
+		compileCopyWords(words, result);
+		Label zeroLabel = generator.newLabel();
+		Label endLabel = generator.newLabel();
+		generator.loadLocal(amountLocal);
+		generator.push(0L);
+		generator.ifCmp(Type.LONG_TYPE, GeneratorAdapter.LT, zeroLabel);
+		generator.loadLocal(amountLocal);
+		generator.push((long) width);
+		generator.ifCmp(Type.LONG_TYPE, GeneratorAdapter.GE, zeroLabel);
+		for (int stepAmount = 1; stepAmount < width; stepAmount <<= 1) {
+			Label skipLabel = generator.newLabel();
+			generator.loadLocal(amountLocal);
+			generator.push((long) stepAmount);
+			generator.math(GeneratorAdapter.AND, Type.LONG_TYPE);
+			generator.push(0L);
+			generator.ifCmp(Type.LONG_TYPE, GeneratorAdapter.EQ, skipLabel);
+			compileCopyWords(compileShiftWordsByConstant(result, stepAmount, width, left), result);
+			generator.mark(skipLabel);
+		}
+		generator.goTo(endLabel);
+		generator.mark(zeroLabel);
+		compileCopyWords(new int[0], result);
+		generator.mark(endLabel);
+		return result;
+	}
+
+	/**
+	 * Converts a constant shift amount like {@link #compileShiftAmount(ProcessedExpression)} does at runtime: an
+	 * amount wider than 64 bits is its low word if all higher words are zero, or -1 otherwise.
+	 */
+	static long toShiftAmount(@NotNull ConstantValue amount, @NotNull PsiElement errorSource) {
+		if (amount instanceof ConstantValue.Vector && ((ConstantValue.Vector) amount).getSize() > 64) {
+			long[] words = ((ConstantValue.Vector) amount).getBits().toLongArray();
+			if (words.length > 1) {
+				return -1;
+			}
+			return words.length == 0 ? 0 : words[0];
+		}
+		return toLong(amount, errorSource);
+	}
+
+	@NotNull
+	private int[] compileShiftWordsByConstant(@NotNull int[] words, int amount, int width, boolean left) {
+		int[] result = newLongLocals(words.length);
+		for (int i = 0; i < result.length; i++) {
+			compileExtractBits(words, (i << 6) + (left ? -amount : amount), getWordWidth(width, i));
+			generator.storeLocal(result[i]);
+		}
+		return result;
+	}
+
+	// passes the words as arrays to a helper method that returns an array of the same size
+	@NotNull
+	private int[] compileWideHelperCall(@NotNull int[] leftWords, @NotNull int[] rightWords, @NotNull Method method) {
+		compileNewArray(leftWords);
+		compileNewArray(rightWords);
+		generator.invokeStatic(PROGRAM_TYPE, method);
+		int[] words = newLongLocals(leftWords.length);
+		for (int i = 0; i < words.length; i++) {
+			generator.dup();
+			generator.push(i);
+			generator.arrayLoad(Type.LONG_TYPE);
+			generator.storeLocal(words[i]);
+		}
+		generator.pop();
+		return words;
+	}
+
+	private void compileNewArray(@NotNull int[] words) {
+		generator.push(words.length);
+		generator.newArray(Type.LONG_TYPE);
+		for (int i = 0; i < words.length; i++) {
+			generator.dup();
+			generator.push(i);
+			generator.loadLocal(words[i]);
+			generator.arrayStore(Type.LONG_TYPE);
+		}
+	}
+
+	private void compileMaskLastWord(@NotNull int[] words, int width) {
+		if ((width & 63) != 0) {
+			int last = words.length - 1;
+			generator.loadLocal(words[last]);
+			compileMask(getWordWidth(width, last));
+			generator.storeLocal(words[last]);
+		}
+	}
+
+	@NotNull
+	private int[] newLongLocals(int count) {
+		int[] locals = new int[count];
+		for (int i = 0; i < count; i++) {
+			locals[i] = generator.newLocal(Type.LONG_TYPE);
+		}
+		return locals;
+	}
+
+	//
+	// helpers
+	//
+
+	private int getValuesLocal(@NotNull SignalLike definition) {
+		return ValueLayout.isInput(definition) ? inputValuesLocal : sourceValuesLocal;
+	}
+
+	@NotNull
+	private ValueField getField(@NotNull ProcessedExpression destination) {
+		return layout.getField(getDefinition(destination));
+	}
+
+	@NotNull
+	static SignalLike getDefinition(@NotNull ProcessedExpression destination) {
+		if (destination instanceof SignalLikeReference) {
+			SignalLike definition = ((SignalLikeReference) destination).getDefinition();
+			if (!(definition instanceof Constant) && !ValueLayout.isInput(definition)) {
+				return definition;
+			}
+		}
+		throw new ProgramBuilderException(destination.getErrorSource(), "cannot compile assignment to this expression");
+	}
+
+	/**
+	 * Returns the number of bits of a bit, vector or integer expression. Integers are represented as longs.
+	 */
+	static int getWidth(@NotNull ProcessedExpression expression) {
+		ProcessedDataType dataType = expression.getDataType();
+		if (dataType instanceof ProcessedDataType.Bit) {
+			return 1;
+		} else if (dataType instanceof ProcessedDataType.Vector) {
+			return ((ProcessedDataType.Vector) dataType).getSize();
+		} else if (dataType instanceof ProcessedDataType.Integer) {
+			return 64;
+		} else {
+			throw new ProgramBuilderException(expression.getErrorSource(), "data type not supported by the simulator: " + dataType);
+		}
+	}
+
+	private static boolean isWide(@NotNull ProcessedExpression expression) {
+		ProcessedDataType dataType = expression.getDataType();
+		return (dataType instanceof ProcessedDataType.Vector) && ((ProcessedDataType.Vector) dataType).getSize() > 64;
+	}
+
+	private static int getWordCount(int width) {
+		return (width + 63) >>> 6;
+	}
+
+	// the number of bits used in the specified word of a value of the specified width
+	private static int getWordWidth(int width, int wordIndex) {
+		return Math.min(64, width - (wordIndex << 6));
+	}
+
+	static long getMask(int size) {
+		return size >= 64 ? -1L : ((1L << size) - 1);
+	}
+
+	// returns null for matrix signals and registers
+	static ConstantValue.Matrix getConstantMatrix(@NotNull ProcessedExpression expression) {
+		ConstantValue value;
+		if (expression instanceof ProcessedConstantValue) {
+			value = ((ProcessedConstantValue) expression).getValue();
+		} else if (expression instanceof SignalLikeReference) {
+			SignalLike definition = ((SignalLikeReference) expression).getDefinition();
+			if (!(definition instanceof Constant)) {
+				return null;
+			}
+			value = ((Constant) definition).getValue();
+		} else {
+			throw new ProgramBuilderException(expression.getErrorSource(), "cannot compile this matrix expression");
+		}
+		if (!(value instanceof ConstantValue.Matrix)) {
+			throw new ProgramBuilderException(expression.getErrorSource(), "matrix constant has no valid value");
+		}
+		return (ConstantValue.Matrix) value;
+	}
+
+	// returns null if the expression is not a constant value or a reference to a constant
+	static ConstantValue getConstantValue(@NotNull ProcessedExpression expression) {
+		if (expression instanceof ProcessedConstantValue) {
+			return ((ProcessedConstantValue) expression).getValue();
+		} else if (expression instanceof SignalLikeReference && ((SignalLikeReference) expression).getDefinition() instanceof Constant) {
+			return ((Constant) ((SignalLikeReference) expression).getDefinition()).getValue();
+		} else {
+			return null;
+		}
+	}
+
+	static long toLong(@NotNull ConstantValue value, @NotNull PsiElement errorSource) {
+		if (value instanceof ConstantValue.Bit) {
+			return ((ConstantValue.Bit) value).isSet() ? 1 : 0;
+		} else if (value instanceof ConstantValue.Vector) {
+			ConstantValue.Vector vector = (ConstantValue.Vector) value;
+			if (vector.getSize() > 64) {
+				throw new ProgramBuilderException(errorSource, "vector constant wider than 64 bits used as a single word");
+			}
+			long[] words = vector.getBits().toLongArray();
+			return words.length == 0 ? 0 : words[0];
+		} else if (value instanceof ConstantValue.Integer) {
+			try {
+				return ((ConstantValue.Integer) value).getValue().longValueExact();
+			} catch (ArithmeticException e) {
+				throw new ProgramBuilderException(errorSource, "integer value too large for the simulator: " + value.convertToString());
+			}
+		} else {
+			throw new ProgramBuilderException(errorSource, "cannot compile constant: " + value.convertToString());
+		}
+	}
+
+	static int toIndex(@NotNull ConstantValue value, @NotNull PsiElement errorSource) {
+		long index = toLong(value, errorSource);
+		return (index < 0 || index > Integer.MAX_VALUE) ? -1 : (int) index;
+	}
+
+	@NotNull
+	private static long[] toWords(@NotNull ConstantValue value, int wordCount) {
+		if (!(value instanceof ConstantValue.Vector)) {
+			throw new IllegalArgumentException("not a vector constant: " + value.convertToString());
+		}
+		return Arrays.copyOf(((ConstantValue.Vector) value).getBits().toLongArray(), wordCount);
+	}
+
+	/**
+	 * Returns the rows of a constant matrix, using as many words per row as needed.
+	 */
+	@NotNull
+	static long[] toLongArray(@NotNull ConstantValue.Matrix matrix) {
+		BitSet bits = matrix.getBits();
+		int columns = matrix.getSecondSize();
+		int wordsPerRow = getWordCount(columns);
+		long[] words = new long[matrix.getFirstSize() * wordsPerRow];
+		for (int bitIndex = bits.nextSetBit(0); bitIndex >= 0; bitIndex = bits.nextSetBit(bitIndex + 1)) {
+			int row = bitIndex / columns;
+			int column = bitIndex % columns;
+			words[row * wordsPerRow + (column >>> 6)] |= 1L << (column & 63);
+		}
+		return words;
+	}
+
+}
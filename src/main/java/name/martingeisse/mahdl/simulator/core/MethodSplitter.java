@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import name.martingeisse.mahdl.plugin.processor.expression.ProcessedExpression;
+import name.martingeisse.mahdl.plugin.processor.statement.ProcessedStatement;
+import org.jetbrains.annotations.NotNull;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.CodeSizeEvaluator;
+import org.objectweb.asm.commons.GeneratorAdapter;
+import org.objectweb.asm.commons.Method;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Moves parts of a generated method to private static helper methods, so that no method gets larger than a size
+ * limit. The JVM rejects methods with more than 64 KB of bytecode, and HotSpot never JIT-compiles methods larger than
+ * 8000 bytes (-XX:HugeMethodLimit), so without splitting, a large design would either fail to load or run in the
+ * interpreter.
+ * <p>
+ * The code to split is a sequence of {@link Block}s, e.g. the do-blocks that make up the execute() method. If the
+ * whole sequence fits within the limit, it is compiled as is, so small designs are not affected. Otherwise,
+ * consecutive blocks are packed into helper methods of up to the limit each. A block that exceeds the limit on its own
+ * is "expanded": it gets a helper method of its own, which contains its own code and the control flow of the bodies
+ * in it, and the sub-statements of those bodies are split recursively in the same way. Since the blocks of a sequence
+ * keep their order, each still sees the values assigned by the blocks before it.
+ * <p>
+ * Sizes are measured by compiling the code into a throwaway method, so code that gets split is generated twice or
+ * more. A single assignment cannot be split, so an assignment that is too large on its own still ends up in a
+ * method that is too large, but only together with the code it needs, so many of them don't add up to a method that
+ * the JVM rejects.
+ * <p>
+ * Helper methods take the value arrays, input values and dirty bitmap as arguments, as well as the enable bit for
+ * bit-sliced code (see {@link BitSlicedMethodCompiler}). Anything else a method keeps in locals is not visible to
+ * them, so state that must be shared with them is kept in scratch words of the dirty bitmap instead.
+ */
+final class MethodSplitter {
+
+	/**
+	 * The default size limit, which is HotSpot's default HugeMethodLimit.
+	 */
+	static final int DEFAULT_SIZE_LIMIT = 8000;
+
+	private static final String HELPER_DESCRIPTOR = Type.getMethodDescriptor(Type.VOID_TYPE,
+		Type.getType(long[].class), Type.getType(long[].class), Type.getType(long[].class), Type.getType(long[].class),
+		Type.getType(long[].class), Type.LONG_TYPE);
+
+	private final ClassVisitor classVisitor;
+	private final Type classType;
+	private final ValueLayout layout;
+	private final ConstantArrays constantArrays;
+	private final ActivityTracker activityTracker;
+	private final int sizeLimit;
+	private int helperCount = 0;
+
+	MethodSplitter(@NotNull ClassVisitor classVisitor, @NotNull Type classType, @NotNull ValueLayout layout, @NotNull ConstantArrays constantArrays,
+				   ActivityTracker activityTracker, int sizeLimit) {
+		this.classVisitor = classVisitor;
+		this.classType = classType;
+		this.layout = layout;
+		this.constantArrays = constantArrays;
+		this.activityTracker = activityTracker;
+		this.sizeLimit = sizeLimit;
+	}
+
+	/**
+	 * Compiles the specified blocks into the method of the frame, splitting them if needed.
+	 */
+	public void compileBlocks(@NotNull Frame frame, @NotNull List<Block> blocks) {
+		int totalSize = 0;
+		for (Block block : blocks) {
+			totalSize += measure(frame, block);
+		}
+		if (totalSize <= sizeLimit) {
+			for (Block block : blocks) {
+				block.compiler.compile(frame, Frame::compileStatement);
+			}
+		} else {
+			compileSplit(frame, blocks);
+		}
+	}
+
+	private void compileSplit(@NotNull Frame frame, @NotNull List<Block> blocks) {
+		List<Block> group = new ArrayList<>();
+		int groupSize = 0;
+		for (Block block : blocks) {
+			int size = measure(frame, block);
+			if (size > sizeLimit) {
+				compileHelper(frame, group, Frame::compileStatement);
+				group.clear();
+				groupSize = 0;
+				compileHelper(frame, Collections.singletonList(block), this::compileExpanded);
+			} else {
+				if (groupSize + size > sizeLimit) {
+					compileHelper(frame, group, Frame::compileStatement);
+					group.clear();
+					groupSize = 0;
+				}
+				group.add(block);
+				groupSize += size;
+			}
+		}
+		compileHelper(frame, group, Frame::compileStatement);
+	}
+
+	private void compileExpanded(@NotNull Frame frame, @NotNull ProcessedStatement statement) {
+		if (frame.bitSlicedCompiler != null) {
+			frame.bitSlicedCompiler.compileStatement(statement, frame.enable,
+				(statements, enable) -> compileSplit(frame.withEnable(enable), toBlocks(statements)));
+		} else {
+			frame.compiler.compileStatement(statement, statements -> compileSplit(frame, toBlocks(statements)));
+		}
+	}
+
+	@NotNull
+	private static List<Block> toBlocks(@NotNull List<ProcessedStatement> statements) {
+		List<Block> blocks = new ArrayList<>();
+		for (ProcessedStatement statement : statements) {
+			blocks.add(new Block((frame, bodyCompiler) -> bodyCompiler.compile(frame, statement)));
+		}
+		return blocks;
+	}
+
+	// generates a helper method that contains the blocks, and a call to it
+	private void compileHelper(@NotNull Frame frame, @NotNull List<Block> blocks, @NotNull BodyCompiler bodyCompiler) {
+		if (blocks.isEmpty()) {
+			return;
+		}
+		Method method = new Method("part" + helperCount, HELPER_DESCRIPTOR);
+		helperCount++;
+		GeneratorAdapter helperGenerator = new GeneratorAdapter(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, method, null, null, classVisitor);
+		helperGenerator.visitCode();
+		Frame helperFrame = createHelperFrame(helperGenerator, constantArrays, frame);
+		for (Block block : blocks) {
+			block.compiler.compile(helperFrame, bodyCompiler);
+		}
+		helperGenerator.returnValue();
+		helperGenerator.endMethod();
+
+		GeneratorAdapter generator = frame.generator;
+		generator.loadLocal(frame.sourceValuesLocal);
+		generator.loadLocal(frame.destinationValuesLocal);
+		generator.loadLocal(frame.referenceValuesLocal);
+		generator.loadLocal(frame.inputValuesLocal);
+		generator.loadLocal(frame.dirtyBlocksLocal);
+		if (frame.bitSlicedCompiler == null) {
+			generator.push(0L);
+		} else {
+			frame.bitSlicedCompiler.load(frame.enable);
+		}
+		generator.invokeStatic(classType, method);
+	}
+
+	/**
+	 * Returns the maximum bytecode size of the block when compiled into a helper method for the specified frame. The
+	 * block may follow others in that method, whose locals would push the indices of its own locals above 255, which
+	 * makes each access to them take a wide instruction. Bit-sliced code uses a local per gate, so that happens
+	 * quickly. The block is therefore measured as if its locals came after 256 others.
+	 */
+	private int measure(@NotNull Frame frame, @NotNull Block block) {
+		CodeSizeEvaluator evaluator = new CodeSizeEvaluator(null);
+		GeneratorAdapter generator = new GeneratorAdapter(evaluator, Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, "measure", HELPER_DESCRIPTOR);
+		generator.visitCode();
+		Frame measureFrame = createHelperFrame(generator, new ConstantArrays(classType), frame);
+		while (generator.newLocal(Type.INT_TYPE) < 255) {
+			// only reserves the index
+		}
+		block.compiler.compile(measureFrame, Frame::compileStatement);
+		return evaluator.getMaxSize();
+	}
+
+	/**
+	 * The enable bit of a helper method is a constant if it is a constant for the caller, so that the code can be
+	 * simplified in the same way, or the argument otherwise.
+	 */
+	@NotNull
+	private Frame createHelperFrame(@NotNull GeneratorAdapter generator, @NotNull ConstantArrays constantArrays, @NotNull Frame callerFrame) {
+		int[] locals = new int[5];
+		for (int i = 0; i < locals.length; i++) {
+			locals[i] = generator.newLocal(Type.getType(long[].class));
+			generator.loadArg(i);
+			generator.storeLocal(locals[i]);
+		}
+		int enable = callerFrame.enable;
+		if (enable >= 0) {
+			enable = generator.newLocal(Type.LONG_TYPE);
+			generator.loadArg(5);
+			generator.storeLocal(enable);
+		}
+		MethodCompiler compiler = new MethodCompiler(generator, layout, constantArrays, locals[0], locals[1], locals[3]);
+		if (activityTracker != null) {
+			compiler.enableActivityTracking(activityTracker, locals[2], locals[4]);
+		}
+		compiler.shareMirroredRowWrites(callerFrame.compiler, locals[2], locals[4]);
+		BitSlicedMethodCompiler bitSlicedCompiler = null;
+		if (layout.isBitSliced()) {
+			bitSlicedCompiler = new BitSlicedMethodCompiler(generator, layout, locals[0], locals[1], locals[3]);
+		}
+		return new Frame(generator, compiler, bitSlicedCompiler, locals[0], locals[1], locals[2], locals[3], locals[4], enable);
+	}
+
+	/**
+	 * The method that code is compiled into, with the locals and compilers that the code can use. The reference values
+	 * are those that activity tracking compares stored values to, and that FLIP mode copies skipped values from and
+	 * mirrors matrix row writes to.
+	 */
+	static final class Frame {
+
+		final GeneratorAdapter generator;
+		final MethodCompiler compiler;
+		final BitSlicedMethodCompiler bitSlicedCompiler;
+		final int sourceValuesLocal;
+		final int destinationValuesLocal;
+		final int referenceValuesLocal;
+		final int inputValuesLocal;
+		final int dirtyBlocksLocal;
+		final int enable;
+
+		/**
+		 * The bit-sliced compiler must be null unless the program is bit-sliced, in which case the enable bit is the
+		 * one that the blocks get compiled with (see {@link BitSlicedMethodCompiler}).
+		 */
+		Frame(@NotNull GeneratorAdapter generator, @NotNull MethodCompiler compiler, BitSlicedMethodCompiler bitSlicedCompiler,
+			  int sourceValuesLocal, int destinationValuesLocal, int referenceValuesLocal, int inputValuesLocal, int dirtyBlocksLocal, int enable) {
+			this.generator = generator;
+			this.compiler = compiler;
+			this.bitSlicedCompiler = bitSlicedCompiler;
+			this.sourceValuesLocal = sourceValuesLocal;
+			this.destinationValuesLocal = destinationValuesLocal;
+			this.referenceValuesLocal = referenceValuesLocal;
+			this.inputValuesLocal = inputValuesLocal;
+			this.dirtyBlocksLocal = dirtyBlocksLocal;
+			this.enable = enable;
+		}
+
+		@NotNull
+		Frame withEnable(int enable) {
+			return new Frame(generator, compiler, bitSlicedCompiler, sourceValuesLocal, destinationValuesLocal, referenceValuesLocal,
+				inputValuesLocal, dirtyBlocksLocal, enable);
+		}
+
+		public void compileStatement(@NotNull ProcessedStatement statement) {
+			if (bitSlicedCompiler != null) {
+				bitSlicedCompiler.compileStatement(statement, enable);
+			} else {
+				compiler.compileStatement(statement);
+			}
+		}
+
+		public void compileAssignment(@NotNull ProcessedExpression destination, @NotNull ProcessedExpression value) {
+			if (bitSlicedCompiler != null) {
+				bitSlicedCompiler.compileAssignment(destination, value);
+			} else {
+				compiler.compileAssignment(destination, value);
+			}
+		}
+
+	}
+
+	/**
+	 * A unit of code that is either moved to a helper method as a whole or not at all, such as a do-block together
+	 * with the code that skips it if it is idle. A block must compile the bodies in it (usually one, or none for
+	 * signal initializers) using the body compiler passed to it, which allows the bodies to be split.
+	 */
+	static final class Block {
+
+		final BlockCompiler compiler;
+
+		Block(@NotNull BlockCompiler compiler) {
+			this.compiler = compiler;
+		}
+
+	}
+
+	interface BlockCompiler {
+		void compile(@NotNull Frame frame, @NotNull BodyCompiler bodyCompiler);
+	}
+
+	interface BodyCompiler {
+		void compile(@NotNull Frame frame, @NotNull ProcessedStatement body);
+	}
+
+}
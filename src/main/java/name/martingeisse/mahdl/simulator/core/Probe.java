@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Samples the values of some fields of a domain after every (interval) updates, for observers that run in another
+ * thread than the simulation, such as dashboards. Create probes with {@link InternalDomain#createProbe(int, int,
+ * ValueField...)}.
+ * <p>
+ * Samples go into a single-producer, single-consumer ring buffer: The simulation thread writes them, and a single
+ * observer thread takes them out in batches with {@link #drain(long[])}. Neither side ever locks or waits. If the
+ * observer doesn't keep up and the ring is full, new samples get dropped and counted instead of stalling the
+ * simulation.
+ * <p>
+ * Each sample consists of the number of updates of the domain since the probe was created (which tells the
+ * observer about gaps), followed by the value of each field in the order they were passed to the probe, so it takes
+ * {@link #getSampleSize()} longs.
+ */
+public final class Probe {
+
+	private final ValueField[] fields;
+	private final int interval;
+	private final int sampleSize;
+	private final long[] ring;
+	private final int capacity;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong droppedSampleCount = new AtomicLong();
+
+	// only accessed by the simulation thread
+	private long updateCount = 0;
+	private long updatesUntilSample;
+	private long cachedTail = 0;
+
+	Probe(int interval, int capacity, ValueField... fields) {
+		if (interval < 1) {
+			throw new IllegalArgumentException("invalid interval: " + interval);
+		}
+		if (capacity < 1) {
+			throw new IllegalArgumentException("invalid capacity: " + capacity);
+		}
+		for (ValueField field : fields) {
+			if (field.isWide() || field.isMatrix() || field.isBitSliced()) {
+				throw new IllegalArgumentException("cannot probe a wide, matrix or bit-sliced field: " + field);
+			}
+		}
+		this.fields = fields.clone();
+		this.interval = interval;
+		this.sampleSize = fields.length + 1;
+		this.ring = new long[Math.multiplyExact(capacity, sampleSize)];
+		this.capacity = capacity;
+		this.updatesUntilSample = interval;
+	}
+
+	public int getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Returns the number of longs taken by each sample.
+	 */
+	public int getSampleSize() {
+		return sampleSize;
+	}
+
+	/**
+	 * Returns the number of samples that were dropped because the ring was full.
+	 */
+	public long getDroppedSampleCount() {
+		return droppedSampleCount.get();
+	}
+
+	/**
+	 * Moves as many complete samples as fit from the ring to the specified array, oldest first, and returns their
+	 * number. Must only be called by one thread at a time.
+	 */
+	public int drain(long[] destination) {
+		long tail = this.tail.get();
+		long available = head.get() - tail;
+		int count = (int) Math.min(available, destination.length / sampleSize);
+		for (int i = 0; i < count; i++) {
+			int slot = (int) ((tail + i) % capacity);
+			System.arraycopy(ring, slot * sampleSize, destination, i * sampleSize, sampleSize);
+		}
+		this.tail.lazySet(tail + count);
+		return count;
+	}
+
+	/**
+	 * Returns the number of updates until the next sample is due.
+	 */
+	long getUpdatesUntilSample() {
+		return updatesUntilSample;
+	}
+
+	/**
+	 * Called by the simulation thread after the specified number of updates, which must not exceed the number
+	 * returned by {@link #getUpdatesUntilSample()}.
+	 */
+	void afterUpdates(long updates, long[] values) {
+		updateCount += updates;
+		updatesUntilSample -= updates;
+		if (updatesUntilSample > 0) {
+			return;
+		}
+		updatesUntilSample = interval;
+		long head = this.head.get();
+		if (head - cachedTail >= capacity) {
+			cachedTail = tail.get();
+			if (head - cachedTail >= capacity) {
+				droppedSampleCount.lazySet(droppedSampleCount.get() + 1);
+				return;
+			}
+		}
+		int offset = (int) (head % capacity) * sampleSize;
+		ring[offset] = updateCount;
+		for (int i = 0; i < fields.length; i++) {
+			ring[offset + 1 + i] = fields[i].get(values);
+		}
+		this.head.lazySet(head + 1);
+	}
+
+}
@@ -5,10 +5,222 @@
 package name.martingeisse.mahdl.simulator.core;
 
 /**
- *
+ * The compiled form of a module's do-blocks. Subclasses are generated at runtime by the {@link ProgramBuilder}.
+ * <p>
+ * Signal-likes are packed into the long[] value arrays of an {@link InternalDomain} as described by the
+ * {@link ValueField}s of the program's layout. Module input ports are not stored in the domain but in an
+ * {@link InternalInput}.
+ * <p>
+ * If the program was built with activity tracking, it skips do-blocks whose inputs did not change, using a dirty
+ * bitmap with one bit per block that is stored by the domain and passed to {@link #initialize} and {@link #execute}.
+ * Changes to input values are handled by the {@link InternalInput} using {@link #getInputReaders(int)}. Without
+ * activity tracking, the dirty bitmap has no dirty bits. In both cases, it may have additional words at its end that
+ * the program uses as scratch space, which are included in the block count.
+ * <p>
+ * Programs are immutable and keep all simulation state in the arrays passed to them, so a single program can be
+ * shared by any number of domains, also in different simulations and threads (see {@link InstancePool}).
+ * <p>
+ * The static helper methods in this class are used by generated code. They must be protected or public since the
+ * generated classes live in a different class loader, and therefore in a different runtime package.
  */
 public abstract class Program {
 
-	public abstract void execute(InternalSimulation simulation, int[] oldValues, int[] newValues);
+	private final BufferingMode bufferingMode;
+	private final int blockCount;
+	private final int inputIndex;
+	private final long[][] inputReaders;
+	private long[][] inputWordReaders;
+	private String layoutDescription;
+
+	protected Program(BufferingMode bufferingMode, int blockCount, int inputIndex, long[][] inputReaders) {
+		this.bufferingMode = bufferingMode;
+		this.blockCount = blockCount;
+		this.inputIndex = inputIndex;
+		this.inputReaders = inputReaders;
+	}
+
+	/**
+	 * Returns the buffering mode that this program was built for.
+	 */
+	public final BufferingMode getBufferingMode() {
+		return bufferingMode;
+	}
+
+	/**
+	 * Returns the number of bits in the dirty bitmap, including its scratch words.
+	 */
+	public final int getBlockCount() {
+		return blockCount;
+	}
+
+	/**
+	 * Returns the description of the layout of the values that this program works on (see
+	 * {@link ValueLayout#getDescription()}).
+	 */
+	public final String getLayoutDescription() {
+		return layoutDescription;
+	}
+
+	final void setLayoutDescription(String layoutDescription) {
+		this.layoutDescription = layoutDescription;
+	}
+
+	/**
+	 * Returns the index of the {@link InternalInput} that this program reads its input values from.
+	 */
+	public final int getInputIndex() {
+		return inputIndex;
+	}
+
+	/**
+	 * Returns the dirty bits to set when the input field with the specified index changes, or null if this program
+	 * doesn't use activity tracking.
+	 */
+	final long[] getInputReaders(int inputFieldIndex) {
+		return inputReaders == null ? null : inputReaders[inputFieldIndex];
+	}
+
+	/**
+	 * Returns the dirty bits to set when the input word with the specified index changes, i.e. those of all input
+	 * fields in that word. Only valid if this program uses activity tracking.
+	 */
+	final long[] getInputWordReaders(int inputWordIndex) {
+		return inputWordReaders[inputWordIndex];
+	}
+
+	final void setInputWordReaders(long[][] inputWordReaders) {
+		this.inputWordReaders = inputWordReaders;
+	}
+
+	/**
+	 * Returns the number of input fields that {@link #getInputReaders(int)} knows about.
+	 */
+	final int getInputFieldCount() {
+		return inputReaders == null ? 0 : inputReaders.length;
+	}
+
+	/**
+	 * Checks whether changes to input values must be reported to domains that run this program.
+	 */
+	final boolean isTrackingInputs() {
+		return inputReaders != null && inputReaders.length > 0;
+	}
+
+	/**
+	 * Initializes the specified value array: Registers get their initial values, then all continuous logic is
+	 * evaluated once so signals are consistent with those registers. The dirty bitmap must have all bits set.
+	 */
+	public abstract void initialize(InternalSimulation simulation, long[] values, long[] dirtyBlocks);
+
+	/**
+	 * Simulates a single clock edge. Clocked do-blocks read from the old values and write registers to the new values.
+	 * Then the continuous do-blocks are evaluated on the new values. What the new values array must contain when
+	 * this method gets called depends on the {@link BufferingMode}.
+	 */
+	public abstract void execute(InternalSimulation simulation, long[] oldValues, long[] newValues, long[] dirtyBlocks);
+
+	/**
+	 * Simulates the specified number of clock edges, each like {@link #execute} followed by the update of the current
+	 * values that the {@link BufferingMode} calls for. The loop is generated into the program so the JIT can compile
+	 * it together with the call to {@link #execute}.
+	 * <p>
+	 * Returns the array that contains the current values afterwards. In {@link BufferingMode#FLIP}, this is the
+	 * original newValues array if the number of cycles is odd, and the other array contains the previous values.
+	 */
+	public abstract long[] runCycles(InternalSimulation simulation, long[] currentValues, long[] newValues, long[] dirtyBlocks, long cycles);
+
+	protected static long[] getInputValues(InternalSimulation simulation, int inputIndex) {
+		return simulation.inputs.get(inputIndex).values;
+	}
+
+	// called when a combinational loop keeps changing, see ProgramBuilder#setLoopIterationLimit(int)
+	protected static void reportUnsettledLoop(String message) {
+		throw new IllegalStateException(message);
+	}
+
+	// vectors are unsigned, and shifting by the vector size or more must yield zero, unlike Java's shift operators
+	protected static long shiftLeft(long value, long amount) {
+		return (amount < 0 || amount >= 64) ? 0 : (value << amount);
+	}
+
+	protected static long shiftRight(long value, long amount) {
+		return (amount < 0 || amount >= 64) ? 0 : (value >>> amount);
+	}
+
+	// division by zero has no meaningful result in hardware, but must not abort the simulation
+	protected static long divide(long dividend, long divisor) {
+		return divisor == 0 ? 0 : Long.divideUnsigned(dividend, divisor);
+	}
+
+	protected static long remainder(long dividend, long divisor) {
+		return divisor == 0 ? 0 : Long.remainderUnsigned(dividend, divisor);
+	}
+
+	// the high word of the unsigned 128-bit product; Math.multiplyHigh() is signed and needs Java 9
+	protected static long multiplyHighUnsigned(long x, long y) {
+		long x0 = x & 0xffffffffL;
+		long x1 = x >>> 32;
+		long y0 = y & 0xffffffffL;
+		long y1 = y >>> 32;
+		long p01 = x0 * y1;
+		long p10 = x1 * y0;
+		long middle = ((x0 * y0) >>> 32) + (p01 & 0xffffffffL) + (p10 & 0xffffffffL);
+		return x1 * y1 + (p01 >>> 32) + (p10 >>> 32) + (middle >>> 32);
+	}
+
+	// division of vectors wider than 64 bits, least significant word first. This is rare enough to use plain
+	// shift-and-subtract long division on arrays.
+	protected static long[] divide(long[] dividend, long[] divisor) {
+		return divideWords(dividend, divisor, false);
+	}
+
+	protected static long[] remainder(long[] dividend, long[] divisor) {
+		return divideWords(dividend, divisor, true);
+	}
+
+	private static long[] divideWords(long[] dividend, long[] divisor, boolean returnRemainder) {
+		int wordCount = dividend.length;
+		long[] quotient = new long[wordCount];
+		long[] remainder = new long[wordCount];
+		boolean divisorZero = true;
+		for (long word : divisor) {
+			divisorZero &= (word == 0);
+		}
+		if (divisorZero) {
+			return quotient;
+		}
+		for (int bitIndex = (wordCount << 6) - 1; bitIndex >= 0; bitIndex--) {
+
+			// remainder = (remainder << 1) | dividend[bitIndex], remembering the bit shifted out
+			long overflow = remainder[wordCount - 1] >>> 63;
+			for (int i = wordCount - 1; i > 0; i--) {
+				remainder[i] = (remainder[i] << 1) | (remainder[i - 1] >>> 63);
+			}
+			remainder[0] = (remainder[0] << 1) | ((dividend[bitIndex >>> 6] >>> bitIndex) & 1);
+
+			// subtract the divisor if it fits
+			if (overflow != 0 || compareWords(remainder, divisor) >= 0) {
+				long borrow = 0;
+				for (int i = 0; i < wordCount; i++) {
+					long difference = remainder[i] - divisor[i] - borrow;
+					borrow = ((~remainder[i] & divisor[i]) | (~(remainder[i] ^ divisor[i]) & difference)) >>> 63;
+					remainder[i] = difference;
+				}
+				quotient[bitIndex >>> 6] |= 1L << bitIndex;
+			}
+
+		}
+		return returnRemainder ? remainder : quotient;
+	}
+
+	private static int compareWords(long[] x, long[] y) {
+		for (int i = x.length - 1; i >= 0; i--) {
+			int result = Long.compareUnsigned(x[i], y[i]);
+			if (result != 0) {
+				return result;
+			}
+		}
+		return 0;
+	}
 
 }
@@ -4,24 +4,878 @@
  */
 package name.martingeisse.mahdl.simulator.core;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.intellij.psi.PsiElement;
+import name.martingeisse.mahdl.plugin.processor.definition.*;
+import name.martingeisse.mahdl.plugin.processor.expression.ConstantValue;
+import name.martingeisse.mahdl.plugin.processor.expression.ProcessedExpression;
+import name.martingeisse.mahdl.plugin.processor.expression.SignalLikeReference;
+import name.martingeisse.mahdl.plugin.processor.statement.ProcessedDoBlock;
+import name.martingeisse.mahdl.plugin.processor.statement.ProcessedStatement;
+import name.martingeisse.mahdl.plugin.processor.type.ProcessedDataType;
+import org.jetbrains.annotations.NotNull;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.GeneratorAdapter;
+import org.objectweb.asm.commons.Method;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
- *
+ * Compiles the do-blocks of a {@link ModuleDefinition} to JVM bytecode, producing a {@link Program} subclass that
+ * simulates the module without walking the processed tree at runtime.
+ * <p>
+ * The module must not contain module instances. Vectors and matrix rows can have any size; those wider than 64 bits
+ * are computed word by word. Values are stored in packed long[] arrays as planned by the {@link ValueLayout}; use the
+ * {@link ValueField}s returned by {@link #getValueFields()} and {@link #getInputValueFields()} to access them. All
+ * clocked do-blocks are assumed to be triggered by the clock of the domain that runs the program. Continuous do-blocks
+ * and signal initializers get evaluated once per update, each after those that assign the signals it reads (see
+ * {@link LevelizedOrder}). Blocks that form a combinational loop get evaluated repeatedly until their values settle,
+ * up to the loop iteration limit; use {@link #getCombinationalLoops()} to find them.
+ * <p>
+ * Module input ports are read from the {@link InternalInput} with the input index passed to the constructor, i.e.
+ * the input that was created as the (inputIndex)th input of the simulation.
+ * <p>
+ * By default, programs are built for {@link BufferingMode#COPY}. In {@link BufferingMode#FLIP}, the program starts
+ * by carrying over each value that doesn't get assigned as a whole on every path through the do-blocks, then mirrors
+ * matrix row writes to the old values.
+ * <p>
+ * With activity tracking enabled, each do-block and signal initializer only gets executed if any of the values it
+ * reads have changed since it was last executed, as recorded in the dirty bitmap of the domain. This costs a
+ * comparison for each assignment, but pays off for designs where large parts are idle most of the time.
+ * <p>
+ * A builder created by {@link #createBitSliced(ModuleDefinition, int)} produces a program that simulates 64
+ * independent lanes of the module at once, e.g. to run the same design with 64 different sets of stimuli. See
+ * {@link BitSlicedMethodCompiler} for how this works. Such programs only support {@link BufferingMode#COPY} without
+ * activity tracking, since the lanes would rarely agree on which blocks are idle.
+ * <p>
+ * Methods that would exceed the method size limit get split into helper methods by the {@link MethodSplitter}, so
+ * large designs stay within the limits of the JVM and get JIT-compiled.
+ * <p>
+ * With a {@link ProgramCache}, the generated class is stored on disk and loaded from there the next time a program
+ * gets built for the same module and settings.
  */
 public final class ProgramBuilder {
 
+	private static final AtomicInteger classCounter = new AtomicInteger();
+
+	private static final Type PROGRAM_TYPE = Type.getType(Program.class);
+	private static final Type LONG_ARRAY_TYPE = Type.getType(long[].class);
+	private static final Method CONSTRUCTOR = Method.getMethod("void <init>(" + BufferingMode.class.getName() + ", int, int, long[][])");
+	private static final Method INITIALIZE_METHOD = Method.getMethod("void initialize(" + InternalSimulation.class.getName() + ", long[], long[])");
+	private static final Method EXECUTE_METHOD = Method.getMethod("void execute(" + InternalSimulation.class.getName() + ", long[], long[], long[])");
+	private static final Method RUN_CYCLES_METHOD = Method.getMethod("long[] runCycles(" + InternalSimulation.class.getName() + ", long[], long[], long[], long)");
+	private static final Method EVALUATE_CONTINUOUS_METHOD = Method.getMethod("void evaluateContinuous(" + InternalSimulation.class.getName() + ", long[], long[], long[])");
+	private static final Method GET_INPUT_VALUES_METHOD = Method.getMethod("long[] getInputValues(" + InternalSimulation.class.getName() + ", int)");
+	private static final Method REPORT_UNSETTLED_LOOP_METHOD = Method.getMethod("void reportUnsettledLoop(String)");
+	private static final Method ARRAYCOPY_METHOD = Method.getMethod("void arraycopy(Object, int, Object, int, int)");
+	private static final int CARRY_OVER_WORDS_PER_BLOCK = 256;
+
+	/**
+	 * The default for {@link #setLoopIterationLimit(int)}.
+	 */
+	public static final int DEFAULT_LOOP_ITERATION_LIMIT = 100;
+
+	private final ModuleDefinition moduleDefinition;
+	private final int inputIndex;
+	private final ValueLayout layout;
+	private BufferingMode bufferingMode = BufferingMode.COPY;
+	private boolean activityTracking = false;
+	private ProgramCache cache;
+	private int methodSizeLimit = MethodSplitter.DEFAULT_SIZE_LIMIT;
+	private int loopIterationLimit = DEFAULT_LOOP_ITERATION_LIMIT;
+
+	public ProgramBuilder(@NotNull ModuleDefinition moduleDefinition, int inputIndex) {
+		this(moduleDefinition, inputIndex, true);
+	}
+
+	/**
+	 * The packedLayout flag selects between the packed and unpacked layouts described in {@link ValueLayout}. It
+	 * must be known in advance because the layout determines the value fields and word counts.
+	 */
+	public ProgramBuilder(@NotNull ModuleDefinition moduleDefinition, int inputIndex, boolean packedLayout) {
+		this(moduleDefinition, inputIndex, new ValueLayout(moduleDefinition, packedLayout));
+	}
+
+	private ProgramBuilder(@NotNull ModuleDefinition moduleDefinition, int inputIndex, @NotNull ValueLayout layout) {
+		this.moduleDefinition = moduleDefinition;
+		this.inputIndex = inputIndex;
+		this.layout = layout;
+	}
+
+	/**
+	 * Creates a builder for a bit-sliced program that simulates 64 lanes at once. Its value fields are bit-sliced and
+	 * must be accessed using the lane accessors of {@link InternalInput} and {@link InternalDomain}.
+	 */
+	@NotNull
+	public static ProgramBuilder createBitSliced(@NotNull ModuleDefinition moduleDefinition, int inputIndex) {
+		return new ProgramBuilder(moduleDefinition, inputIndex, new ValueLayout(moduleDefinition, false, true));
+	}
+
+	public int getWordCount() {
+		return layout.getWordCount();
+	}
+
+	public int getInputWordCount() {
+		return layout.getInputWordCount();
+	}
+
+	@NotNull
+	public ImmutableMap<String, ValueField> getValueFields() {
+		return layout.getFields();
+	}
+
+	@NotNull
+	public ImmutableMap<String, ValueField> getInputValueFields() {
+		return layout.getInputFields();
+	}
+
+	@NotNull
+	public BufferingMode getBufferingMode() {
+		return bufferingMode;
+	}
+
+	public void setBufferingMode(@NotNull BufferingMode bufferingMode) {
+		this.bufferingMode = bufferingMode;
+	}
+
+	public boolean isActivityTracking() {
+		return activityTracking;
+	}
+
+	public void setActivityTracking(boolean activityTracking) {
+		this.activityTracking = activityTracking;
+	}
+
+	public boolean isBitSliced() {
+		return layout.isBitSliced();
+	}
+
+	public ProgramCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Sets the cache to load generated classes from and store them to, or null to always generate them.
+	 */
+	public void setCache(ProgramCache cache) {
+		this.cache = cache;
+	}
+
+	public int getMethodSizeLimit() {
+		return methodSizeLimit;
+	}
+
+	/**
+	 * Sets the bytecode size in bytes above which the code of a generated method gets split into helper methods, see
+	 * {@link MethodSplitter}. The default is HotSpot's HugeMethodLimit, above which methods don't get JIT-compiled.
+	 */
+	public void setMethodSizeLimit(int methodSizeLimit) {
+		this.methodSizeLimit = methodSizeLimit;
+	}
+
+	public int getLoopIterationLimit() {
+		return loopIterationLimit;
+	}
+
+	/**
+	 * Sets how often the blocks of a combinational loop may get evaluated again because their values changed. If a
+	 * loop still hasn't settled then, e.g. because it oscillates, the program throws an IllegalStateException. With a
+	 * limit of 0, {@link #build()} rejects modules with combinational loops.
+	 */
+	public void setLoopIterationLimit(int loopIterationLimit) {
+		this.loopIterationLimit = loopIterationLimit;
+	}
+
+	/**
+	 * Returns the combinational loops formed by the continuous do-blocks and signal initializers of the module.
+	 */
+	@NotNull
+	public List<CombinationalLoop> getCombinationalLoops() {
+		List<Signal> initializedSignals = getInitializedSignals();
+		List<ProcessedStatement> continuousBodies = getBodies(false);
+		LevelizedOrder levelizedOrder = createLevelizedOrder(initializedSignals, continuousBodies);
+		List<CombinationalLoop> result = new ArrayList<>();
+		for (int[] loop : levelizedOrder.getLoops()) {
+			List<PsiElement> errorSources = new ArrayList<>();
+			for (int block : loop) {
+				if (block < initializedSignals.size()) {
+					errorSources.add(initializedSignals.get(block).getNameElement());
+				} else {
+					errorSources.add(continuousBodies.get(block - initializedSignals.size()).getErrorSource());
+				}
+			}
+			Set<SignalLike> loopSignals = levelizedOrder.getLoopSignals(loop);
+			List<SignalLike> signals = new ArrayList<>();
+			for (Named definition : moduleDefinition.getDefinitions().values()) {
+				if (loopSignals.contains(definition)) {
+					signals.add((SignalLike) definition);
+				}
+			}
+			result.add(new CombinationalLoop(ImmutableList.copyOf(signals), ImmutableList.copyOf(errorSources)));
+		}
+		return result;
+	}
 
 	public Program build() {
+		if (layout.isBitSliced() && (bufferingMode != BufferingMode.COPY || activityTracking)) {
+			throw new IllegalStateException("bit-sliced programs only support COPY buffering without activity tracking");
+		}
+		if (loopIterationLimit == 0) {
+			List<CombinationalLoop> loops = getCombinationalLoops();
+			if (!loops.isEmpty()) {
+				throw new ProgramBuilderException(loops.get(0).getErrorSources().get(0), "combinational loop: " + loops.get(0));
+			}
+		}
 
-		// TODO
-		String className = null;
-		byte[] classDefinition = null;
+		// generate the class, unless it is cached
+		String designKey = null;
+		ProgramCache.Entry entry = null;
+		if (cache != null) {
+			designKey = DesignHash.compute(moduleDefinition, "inputIndex=" + inputIndex + ", bufferingMode=" + bufferingMode +
+				", activityTracking=" + activityTracking + ", methodSizeLimit=" + methodSizeLimit +
+				", loopIterationLimit=" + loopIterationLimit + ", fields=" + layout.getFields() +
+				", inputFields=" + layout.getInputFields());
+			entry = cache.load(designKey);
+		}
+		if (entry == null) {
+			entry = generate();
+			if (cache != null) {
+				cache.store(designKey, entry);
+			}
+		}
 
 		// for now, let's assume that using a new class loader for each program isn't too heavyweight
 		DynamicClassLoader classLoader = new DynamicClassLoader();
-		Class<?> theClass = classLoader.defineClass(className, classDefinition);
+		Class<?> theClass = classLoader.defineClass(entry.className, entry.classDefinition);
+		ConstantArrays.initializeFields(theClass, entry.constantArrays);
+		Program program;
+		try {
+			program = (Program) theClass.getConstructor(BufferingMode.class, int.class, int.class, long[][].class)
+				.newInstance(bufferingMode, entry.blockCount, inputIndex, entry.inputReaders);
+		} catch (ReflectiveOperationException e) {
+			throw new RuntimeException("could not instantiate generated program", e);
+		}
+		program.setLayoutDescription(layout.getDescription());
+		if (entry.inputReaders != null) {
+			program.setInputWordReaders(ActivityTracker.getInputWordReaders(layout, entry.inputReaders));
+		}
+		return program;
+
+	}
+
+	@NotNull
+	private ProgramCache.Entry generate() {
+		String className = Program.class.getName() + "_" + moduleDefinition.getName().replaceAll("[^a-zA-Z0-9_]", "_") +
+			"_" + classCounter.incrementAndGet();
+		Type classType = Type.getObjectType(className.replace('.', '/'));
+		ConstantArrays constantArrays = new ConstantArrays(classType);
+		ActivityTracker activityTracker = activityTracking ? createActivityTracker() : null;
+		// in FLIP mode, the dirty bitmap ends with a scratch word for each matrix row write, see MethodCompiler
+		int mirrorWordIndex = ActivityTracker.getWordCount(activityTracker == null ? 0 : activityTracker.getBlockCount());
+		int mirrorWordCount = 0;
+		if (bufferingMode == BufferingMode.FLIP) {
+			mirrorWordCount = Math.max(getMatrixRowDestinationCount(getBodies(true)), getMatrixRowDestinationCount(getBodies(false)));
+		}
+		// then scratch words for a copy of the values assigned by a combinational loop, shared by all loops
+		LevelizedOrder levelizedOrder = createLevelizedOrder(getInitializedSignals(), getBodies(false));
+		int loopWordIndex = mirrorWordIndex + mirrorWordCount;
+		int loopWordCount = 0;
+		for (int[] loop : levelizedOrder.getLoops()) {
+			loopWordCount = Math.max(loopWordCount, getLoopValueWords(levelizedOrder, loop).length);
+		}
+		byte[] classDefinition = generateClass(classType, constantArrays, activityTracker, levelizedOrder, mirrorWordIndex, loopWordIndex);
+		int blockCount = (loopWordIndex + loopWordCount) << 6;
+		long[][] inputReaders = (activityTracker == null ? null : activityTracker.getInputReaders(layout));
+		return new ProgramCache.Entry(className, classDefinition, constantArrays.getArrays(), blockCount, inputReaders);
+	}
+
+	/**
+	 * Adds the blocks in the order of their indices: clocked do-blocks, signal initializers, continuous do-blocks. The
+	 * dirty bits of the clocked do-blocks get taken at the start of each update.
+	 */
+	@NotNull
+	private ActivityTracker createActivityTracker() {
+		ActivityTracker activityTracker = new ActivityTracker();
+		for (ProcessedStatement body : getBodies(true)) {
+			activityTracker.addBlock(body);
+		}
+		for (Signal signal : getInitializedSignals()) {
+			activityTracker.addBlock(signal.getProcessedInitializer());
+		}
+		for (ProcessedStatement body : getBodies(false)) {
+			activityTracker.addBlock(body);
+		}
+		activityTracker.reserveTakenDirtyBits(getBodies(true).size());
+		return activityTracker;
+	}
+
+	private byte[] generateClass(@NotNull Type classType, @NotNull ConstantArrays constantArrays, ActivityTracker activityTracker,
+								 @NotNull LevelizedOrder levelizedOrder, int mirrorWordIndex, int loopWordIndex) {
+		ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+			@Override
+			protected String getCommonSuperClass(String type1, String type2) {
+				// we never merge frames with different reference types, and must not load the generated class here
+				return "java/lang/Object";
+			}
+		};
+		classWriter.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER,
+			classType.getInternalName(), null, PROGRAM_TYPE.getInternalName(), null);
+		List<ProcessedStatement> clockedBodies = getBodies(true);
+		List<Signal> initializedSignals = getInitializedSignals();
+		List<ProcessedStatement> continuousBodies = getBodies(false);
+		Set<SignalLike> definitelyAssigned = getDefinitelyAssigned(initializedSignals);
+		MethodSplitter splitter = new MethodSplitter(classWriter, classType, layout, constantArrays, activityTracker, methodSizeLimit);
+
+		// constructor
+		GeneratorAdapter constructor = new GeneratorAdapter(Opcodes.ACC_PUBLIC, CONSTRUCTOR, null, null, classWriter);
+		constructor.visitCode();
+		constructor.loadThis();
+		constructor.loadArgs();
+		constructor.invokeConstructor(PROGRAM_TYPE, CONSTRUCTOR);
+		constructor.returnValue();
+		constructor.endMethod();
+
+		// initialize(): set registers to their initial values, then let continuous logic settle
+		{
+			GeneratorAdapter generator = new GeneratorAdapter(Opcodes.ACC_PUBLIC, INITIALIZE_METHOD, null, null, classWriter);
+			generator.visitCode();
+			long[] initialValues = getInitialValues();
+			if (initialValues != null) {
+				constantArrays.compileLoad(generator, initialValues);
+				generator.push(0);
+				generator.loadArg(1);
+				generator.push(0);
+				generator.push(initialValues.length);
+				generator.invokeStatic(Type.getType(System.class), ARRAYCOPY_METHOD);
+			}
+			generator.loadThis();
+			generator.loadArg(0);
+			generator.loadArg(1);
+			generator.loadArg(1);
+			generator.loadArg(2);
+			invokePrivate(generator, classType, EVALUATE_CONTINUOUS_METHOD);
+			generator.returnValue();
+			generator.endMethod();
+		}
+
+		// execute(): clocked do-blocks, then continuous logic
+		{
+			GeneratorAdapter generator = new GeneratorAdapter(Opcodes.ACC_PUBLIC, EXECUTE_METHOD, null, null, classWriter);
+			generator.visitCode();
+			int oldValuesLocal = storeArgument(generator, 1, LONG_ARRAY_TYPE);
+			int newValuesLocal = storeArgument(generator, 2, LONG_ARRAY_TYPE);
+			int dirtyBlocksLocal = storeArgument(generator, 3, LONG_ARRAY_TYPE);
+			int inputValuesLocal = storeInputValues(generator);
+			MethodCompiler compiler = new MethodCompiler(generator, layout, constantArrays, oldValuesLocal, newValuesLocal, inputValuesLocal);
+			List<MethodSplitter.Block> blocks = new ArrayList<>();
+			if (bufferingMode == BufferingMode.FLIP) {
+				blocks.addAll(createCarryOverBlocks(definitelyAssigned));
+				compiler.prepareMirroredRowWrites(clockedBodies, oldValuesLocal, dirtyBlocksLocal, mirrorWordIndex);
+			}
+			if (activityTracker != null) {
+				// clocked do-blocks read the old values, so they must not see dirty bits set by other clocked do-blocks
+				compiler.enableActivityTracking(activityTracker, oldValuesLocal, dirtyBlocksLocal);
+				activityTracker.compileTakeDirtyBits(generator, dirtyBlocksLocal);
+			}
+			for (int i = 0; i < clockedBodies.size(); i++) {
+				ProcessedStatement body = clockedBodies.get(i);
+				int blockIndex = i;
+				blocks.add(new MethodSplitter.Block((frame, bodyCompiler) -> {
+					if (activityTracker == null) {
+						bodyCompiler.compile(frame, body);
+						return;
+					}
+					Label skipLabel = frame.generator.newLabel();
+					Label endLabel = frame.generator.newLabel();
+					activityTracker.compileJumpIfTakenClean(frame.generator, frame.dirtyBlocksLocal, blockIndex, skipLabel);
+					bodyCompiler.compile(frame, body);
+					frame.generator.goTo(endLabel);
+					frame.generator.mark(skipLabel);
+					compileKeepAssigned(frame.generator, body, definitelyAssigned, frame.referenceValuesLocal, frame.destinationValuesLocal);
+					frame.generator.mark(endLabel);
+				}));
+			}
+			blocks.addAll(createMirroredRowWriteBlocks(compiler));
+			splitter.compileBlocks(createFrame(generator, compiler, oldValuesLocal, newValuesLocal, oldValuesLocal, inputValuesLocal, dirtyBlocksLocal), blocks);
+			generator.loadThis();
+			generator.loadArg(0);
+			generator.loadArg(2);
+			generator.loadArg(1);
+			generator.loadArg(3);
+			invokePrivate(generator, classType, EVALUATE_CONTINUOUS_METHOD);
+			generator.returnValue();
+			generator.endMethod();
+		}
+
+		// runCycles(): call execute() in a loop, updating the current values after each call
+		{
+			GeneratorAdapter generator = new GeneratorAdapter(Opcodes.ACC_PUBLIC, RUN_CYCLES_METHOD, null, null, classWriter);
+			generator.visitCode();
+			int currentValuesLocal = storeArgument(generator, 1, LONG_ARRAY_TYPE);
+			int newValuesLocal = storeArgument(generator, 2, LONG_ARRAY_TYPE);
+			int cyclesLocal = storeArgument(generator, 4, Type.LONG_TYPE);
+			Label loopLabel = generator.newLabel();
+			Label endLabel = generator.newLabel();
+			generator.mark(loopLabel);
+			generator.loadLocal(cyclesLocal);
+			generator.push(0L);
+			generator.ifCmp(Type.LONG_TYPE, GeneratorAdapter.LE, endLabel);
+			generator.loadThis();
+			generator.loadArg(0);
+			generator.loadLocal(currentValuesLocal);
+			generator.loadLocal(newValuesLocal);
+			generator.loadArg(3);
+			generator.invokeVirtual(classType, EXECUTE_METHOD);
+			if (bufferingMode == BufferingMode.FLIP) {
+				generator.loadLocal(currentValuesLocal);
+				generator.loadLocal(newValuesLocal);
+				generator.storeLocal(currentValuesLocal);
+				generator.storeLocal(newValuesLocal);
+			} else {
+				generator.loadLocal(newValuesLocal);
+				generator.push(0);
+				generator.loadLocal(currentValuesLocal);
+				generator.push(0);
+				generator.push(layout.getWordCount());
+				generator.invokeStatic(Type.getType(System.class), ARRAYCOPY_METHOD);
+			}
+			generator.loadLocal(cyclesLocal);
+			generator.push(1L);
+			generator.math(GeneratorAdapter.SUB, Type.LONG_TYPE);
+			generator.storeLocal(cyclesLocal);
+			generator.goTo(loopLabel);
+			generator.mark(endLabel);
+			generator.loadLocal(currentValuesLocal);
+			generator.returnValue();
+			generator.endMethod();
+		}
+
+		// evaluateContinuous(): signal initializers and continuous do-blocks
+		{
+			GeneratorAdapter generator = new GeneratorAdapter(Opcodes.ACC_PRIVATE, EVALUATE_CONTINUOUS_METHOD, null, null, classWriter);
+			generator.visitCode();
+			int valuesLocal = storeArgument(generator, 1, LONG_ARRAY_TYPE);
+			int referenceValuesLocal = storeArgument(generator, 2, LONG_ARRAY_TYPE);
+			int dirtyBlocksLocal = storeArgument(generator, 3, LONG_ARRAY_TYPE);
+			int inputValuesLocal = storeInputValues(generator);
+			MethodCompiler compiler = new MethodCompiler(generator, layout, constantArrays, valuesLocal, valuesLocal, inputValuesLocal);
+			if (bufferingMode == BufferingMode.FLIP) {
+				compiler.prepareMirroredRowWrites(continuousBodies, referenceValuesLocal, dirtyBlocksLocal, mirrorWordIndex);
+			}
+			if (activityTracker != null) {
+				compiler.enableActivityTracking(activityTracker, referenceValuesLocal, dirtyBlocksLocal);
+			}
+			List<MethodSplitter.Block> blocks = new ArrayList<>();
+			int blockIndex = clockedBodies.size();
+			for (Signal signal : initializedSignals) {
+				int signalBlockIndex = blockIndex;
+				blocks.add(new MethodSplitter.Block((frame, bodyCompiler) -> {
+					Label skipLabel = frame.generator.newLabel();
+					Label endLabel = frame.generator.newLabel();
+					if (activityTracker != null) {
+						activityTracker.compileJumpIfCleanOrClear(frame.generator, frame.dirtyBlocksLocal, signalBlockIndex, skipLabel);
+					}
+					frame.compileAssignment(new SignalLikeReference(signal.getNameElement(), signal), signal.getProcessedInitializer());
+					if (activityTracker != null) {
+						frame.generator.goTo(endLabel);
+						frame.generator.mark(skipLabel);
+						if (bufferingMode == BufferingMode.FLIP) {
+							compileCopyValues(frame.generator, Collections.singletonList(signal), frame.referenceValuesLocal, frame.destinationValuesLocal);
+						}
+						frame.generator.mark(endLabel);
+					}
+				}));
+				blockIndex++;
+			}
+			for (ProcessedStatement body : continuousBodies) {
+				int bodyBlockIndex = blockIndex;
+				blocks.add(new MethodSplitter.Block((frame, bodyCompiler) -> {
+					if (activityTracker == null) {
+						bodyCompiler.compile(frame, body);
+						return;
+					}
+					Label skipLabel = frame.generator.newLabel();
+					Label endLabel = frame.generator.newLabel();
+					activityTracker.compileJumpIfCleanOrClear(frame.generator, frame.dirtyBlocksLocal, bodyBlockIndex, skipLabel);
+					bodyCompiler.compile(frame, body);
+					frame.generator.goTo(endLabel);
+					frame.generator.mark(skipLabel);
+					compileKeepAssigned(frame.generator, body, definitelyAssigned, frame.referenceValuesLocal, frame.destinationValuesLocal);
+					frame.generator.mark(endLabel);
+				}));
+				blockIndex++;
+			}
+			List<MethodSplitter.Block> orderedBlocks = new ArrayList<>();
+			for (int[] group : levelizedOrder.getSchedule()) {
+				if (!levelizedOrder.isLoop(group)) {
+					orderedBlocks.add(blocks.get(group[0]));
+				} else {
+					orderedBlocks.add(createLoopBlock(levelizedOrder, group, blocks, activityTracker, clockedBodies.size(), loopWordIndex));
+				}
+			}
+			orderedBlocks.addAll(createMirroredRowWriteBlocks(compiler));
+			splitter.compileBlocks(createFrame(generator, compiler, valuesLocal, valuesLocal, referenceValuesLocal, inputValuesLocal, dirtyBlocksLocal), orderedBlocks);
+			generator.returnValue();
+			generator.endMethod();
+		}
+
+		constantArrays.generateFields(classWriter);
+		classWriter.visitEnd();
+		return classWriter.toByteArray();
+	}
+
+	/**
+	 * Adds the blocks in the same order as they get added to the activity tracker, so the indices are those used there
+	 * minus the number of clocked do-blocks.
+	 */
+	@NotNull
+	private static LevelizedOrder createLevelizedOrder(@NotNull List<Signal> initializedSignals, @NotNull List<ProcessedStatement> continuousBodies) {
+		LevelizedOrder order = new LevelizedOrder();
+		for (Signal signal : initializedSignals) {
+			order.addBlock(signal);
+		}
+		for (ProcessedStatement body : continuousBodies) {
+			order.addBlock(body);
+		}
+		return order;
+	}
+
+	@NotNull
+	private List<ProcessedStatement> getBodies(boolean clocked) {
+		List<ProcessedStatement> result = new ArrayList<>();
+		for (ProcessedDoBlock doBlock : moduleDefinition.getDoBlocks()) {
+			if (doBlock == null) {
+				throw new IllegalArgumentException("module definition contains an invalid do-block");
+			}
+			if ((doBlock.getClock() != null) == clocked) {
+				result.add(doBlock.getBody());
+			}
+		}
+		return result;
+	}
+
+	private static int getMatrixRowDestinationCount(@NotNull List<ProcessedStatement> bodies) {
+		List<ProcessedExpression> destinations = new ArrayList<>();
+		for (ProcessedStatement body : bodies) {
+			StatementAnalysis.collectMatrixRowDestinations(body, destinations);
+		}
+		return destinations.size();
+	}
+
+	@NotNull
+	private List<Signal> getInitializedSignals() {
+		List<Signal> result = new ArrayList<>();
+		for (Named definition : moduleDefinition.getDefinitions().values()) {
+			if (definition instanceof Signal && ((Signal) definition).getProcessedInitializer() != null) {
+				result.add((Signal) definition);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the signal-likes that get assigned as a whole in every update, so FLIP mode need not carry them over.
+	 */
+	@NotNull
+	private Set<SignalLike> getDefinitelyAssigned(@NotNull List<Signal> initializedSignals) {
+		Set<SignalLike> result = new HashSet<>(initializedSignals);
+		for (ProcessedDoBlock doBlock : moduleDefinition.getDoBlocks()) {
+			result.addAll(StatementAnalysis.getDefinitelyAssigned(doBlock.getBody()));
+		}
+		return result;
+	}
 
+	/**
+	 * Returns the packed initial values of all registers, or null if all of them are zero.
+	 */
+	private long[] getInitialValues() {
+		long[] words = new long[layout.getWordCount()];
+		boolean nonZero = false;
+		for (Named definition : moduleDefinition.getDefinitions().values()) {
+			if (definition instanceof Register) {
+				Register register = (Register) definition;
+				ConstantValue initializerValue = register.getInitializerValue();
+				if (initializerValue == null) {
+					continue;
+				}
+				ValueField field = layout.getField(register);
+				if (initializerValue instanceof ConstantValue.Matrix) {
+					ConstantValue.Matrix matrix = (ConstantValue.Matrix) initializerValue;
+					BitSet bits = matrix.getBits();
+					for (int bitIndex = bits.nextSetBit(0); bitIndex >= 0; bitIndex = bits.nextSetBit(bitIndex + 1)) {
+						field.getRow(bitIndex / matrix.getSecondSize()).setBit(words, bitIndex % matrix.getSecondSize());
+						nonZero = true;
+					}
+				} else if (initializerValue instanceof ConstantValue.Vector) {
+					BitSet bits = ((ConstantValue.Vector) initializerValue).getBits();
+					for (int bitIndex = bits.nextSetBit(0); bitIndex >= 0; bitIndex = bits.nextSetBit(bitIndex + 1)) {
+						field.setBit(words, bitIndex);
+						nonZero = true;
+					}
+				} else if (initializerValue instanceof ConstantValue.Bit) {
+					if (((ConstantValue.Bit) initializerValue).isSet()) {
+						field.setBit(words, 0);
+						nonZero = true;
+					}
+				} else {
+					throw new ProgramBuilderException(register.getNameElement(), "cannot compile register initializer: " +
+						initializerValue.convertToString());
+				}
+			}
+		}
+		return nonZero ? words : null;
+	}
+
+	/**
+	 * Returns blocks that copy all values from the old to the new values that won't be assigned as a whole in every
+	 * update. Matrices are excluded since their row writes are mirrored instead. There is one block per
+	 * {@link #CARRY_OVER_WORDS_PER_BLOCK} words, so the {@link MethodSplitter} can split the copying.
+	 */
+	@NotNull
+	private List<MethodSplitter.Block> createCarryOverBlocks(@NotNull Set<SignalLike> definitelyAssigned) {
+		List<SignalLike> carriedOver = new ArrayList<>();
+		for (Named definition : moduleDefinition.getDefinitions().values()) {
+			if (definition instanceof Constant || !(definition instanceof SignalLike)) {
+				continue;
+			}
+			SignalLike signalLike = (SignalLike) definition;
+			if (!ValueLayout.isInput(signalLike) && !definitelyAssigned.contains(signalLike) &&
+				!(signalLike.getProcessedDataType() instanceof ProcessedDataType.Matrix)) {
+				carriedOver.add(signalLike);
+			}
+		}
+		List<Map.Entry<Integer, Long>> wordMasks = new ArrayList<>(getWordMasks(carriedOver).entrySet());
+		List<MethodSplitter.Block> blocks = new ArrayList<>();
+		for (int i = 0; i < wordMasks.size(); i += CARRY_OVER_WORDS_PER_BLOCK) {
+			List<Map.Entry<Integer, Long>> blockWordMasks = wordMasks.subList(i, Math.min(i + CARRY_OVER_WORDS_PER_BLOCK, wordMasks.size()));
+			blocks.add(new MethodSplitter.Block((frame, bodyCompiler) ->
+				compileCopyWords(frame.generator, blockWordMasks, frame.referenceValuesLocal, frame.destinationValuesLocal)));
+		}
+		return blocks;
+	}
+
+	/**
+	 * Returns a block that evaluates the blocks of a combinational loop until the values they assign don't change
+	 * anymore. Each iteration first copies those values to scratch words of the dirty bitmap, then compares them after
+	 * evaluating the blocks. In FLIP mode, the loop starts from the current values, which latch-like feedback
+	 * depends on, so they get carried over first. With activity tracking, the blocks get marked dirty before each further iteration, since
+	 * changes are only detected relative to the reference values, so a value that changes back to its reference value
+	 * would not mark its readers dirty.
+	 */
+	@NotNull
+	private MethodSplitter.Block createLoopBlock(@NotNull LevelizedOrder levelizedOrder, @NotNull int[] loop, @NotNull List<MethodSplitter.Block> blocks,
+												 ActivityTracker activityTracker, int firstBlockIndex, int loopWordIndex) {
+		List<MethodSplitter.Block> loopBlocks = new ArrayList<>();
+		int[] blockIndices = new int[loop.length];
+		for (int i = 0; i < loop.length; i++) {
+			loopBlocks.add(blocks.get(loop[i]));
+			blockIndices[i] = firstBlockIndex + loop[i];
+		}
+		int[] valueWords = getLoopValueWords(levelizedOrder, loop);
+		List<SignalLike> carriedOver = new ArrayList<>();
+		for (int block : loop) {
+			for (SignalLike signalLike : levelizedOrder.getAssignedSignals(block)) {
+				if (!(signalLike.getProcessedDataType() instanceof ProcessedDataType.Matrix)) {
+					carriedOver.add(signalLike);
+				}
+			}
+		}
+		StringBuilder message = new StringBuilder("combinational loop did not settle within ").append(loopIterationLimit).append(" iterations:");
+		for (Named definition : moduleDefinition.getDefinitions().values()) {
+			if (levelizedOrder.getLoopSignals(loop).contains(definition)) {
+				message.append(' ').append(definition.getName());
+			}
+		}
+		return new MethodSplitter.Block((frame, bodyCompiler) -> {
+			GeneratorAdapter generator = frame.generator;
+			if (bufferingMode == BufferingMode.FLIP) {
+				compileCopyValues(generator, carriedOver, frame.referenceValuesLocal, frame.destinationValuesLocal);
+			}
+			int iterationsLocal = generator.newLocal(Type.INT_TYPE);
+			generator.push(0);
+			generator.storeLocal(iterationsLocal);
+			Label startLabel = generator.mark();
+			for (int i = 0; i < valueWords.length; i++) {
+				generator.loadLocal(frame.dirtyBlocksLocal);
+				generator.push(loopWordIndex + i);
+				generator.loadLocal(frame.destinationValuesLocal);
+				generator.push(valueWords[i]);
+				generator.arrayLoad(Type.LONG_TYPE);
+				generator.arrayStore(Type.LONG_TYPE);
+			}
+			for (MethodSplitter.Block block : loopBlocks) {
+				block.compiler.compile(frame, bodyCompiler);
+			}
+			Label changedLabel = generator.newLabel();
+			Label unsettledLabel = generator.newLabel();
+			Label endLabel = generator.newLabel();
+			for (int i = 0; i < valueWords.length; i++) {
+				generator.loadLocal(frame.destinationValuesLocal);
+				generator.push(valueWords[i]);
+				generator.arrayLoad(Type.LONG_TYPE);
+				generator.loadLocal(frame.dirtyBlocksLocal);
+				generator.push(loopWordIndex + i);
+				generator.arrayLoad(Type.LONG_TYPE);
+				generator.ifCmp(Type.LONG_TYPE, GeneratorAdapter.NE, changedLabel);
+			}
+			generator.goTo(endLabel);
+			generator.mark(changedLabel);
+			generator.iinc(iterationsLocal, 1);
+			generator.loadLocal(iterationsLocal);
+			generator.push(loopIterationLimit);
+			generator.ifICmp(GeneratorAdapter.GT, unsettledLabel);
+			if (activityTracker != null) {
+				activityTracker.compileMarkDirty(generator, frame.dirtyBlocksLocal, blockIndices);
+			}
+			generator.goTo(startLabel);
+			generator.mark(unsettledLabel);
+			generator.push(message.toString());
+			generator.invokeStatic(PROGRAM_TYPE, REPORT_UNSETTLED_LOOP_METHOD);
+			generator.mark(endLabel);
+		});
+	}
+
+	/**
+	 * Returns the indices of the value words that contain the signals assigned by the blocks of a combinational loop.
+	 */
+	@NotNull
+	private int[] getLoopValueWords(@NotNull LevelizedOrder levelizedOrder, @NotNull int[] loop) {
+		SortedSet<Integer> words = new TreeSet<>();
+		for (int block : loop) {
+			for (SignalLike signalLike : levelizedOrder.getAssignedSignals(block)) {
+				ValueField field = layout.getField(signalLike);
+				for (int i = 0; i < field.getWordCount(); i++) {
+					words.add(field.getWordIndex() + i);
+				}
+			}
+		}
+		return words.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	/**
+	 * Returns a block for each matrix row write prepared in the compiler that mirrors the write (see
+	 * {@link MethodCompiler#prepareMirroredRowWrites(List, int, int, int)}). These must come after all other blocks.
+	 */
+	@NotNull
+	private static List<MethodSplitter.Block> createMirroredRowWriteBlocks(@NotNull MethodCompiler compiler) {
+		List<MethodSplitter.Block> blocks = new ArrayList<>();
+		for (ProcessedExpression destination : compiler.getMirroredRowDestinations()) {
+			blocks.add(new MethodSplitter.Block((frame, bodyCompiler) -> frame.compiler.compileMirroredRowWrite(destination)));
+		}
+		return blocks;
+	}
+
+	/**
+	 * In FLIP mode, a skipped block must still carry over the values it would have assigned, unless that has been
+	 * done by the blocks from {@link #createCarryOverBlocks(Set)} already.
+	 */
+	private void compileKeepAssigned(@NotNull GeneratorAdapter generator, @NotNull ProcessedStatement body, @NotNull Set<SignalLike> definitelyAssigned,
+									 int oldValuesLocal, int newValuesLocal) {
+		if (bufferingMode != BufferingMode.FLIP) {
+			return;
+		}
+		Set<SignalLike> assigned = new HashSet<>();
+		StatementAnalysis.collectAssignedSignals(body, assigned);
+		List<SignalLike> kept = new ArrayList<>();
+		for (SignalLike signalLike : assigned) {
+			if (definitelyAssigned.contains(signalLike) && !(signalLike.getProcessedDataType() instanceof ProcessedDataType.Matrix)) {
+				kept.add(signalLike);
+			}
+		}
+		compileCopyValues(generator, kept, oldValuesLocal, newValuesLocal);
+	}
+
+	/**
+	 * Copies the fields of the specified (non-matrix) signal-likes. Fields that share a word are copied together.
+	 */
+	private void compileCopyValues(@NotNull GeneratorAdapter generator, @NotNull Collection<SignalLike> signalLikes, int fromValuesLocal, int toValuesLocal) {
+		compileCopyWords(generator, getWordMasks(signalLikes).entrySet(), fromValuesLocal, toValuesLocal);
+	}
+
+	/**
+	 * Returns the mask of the bits of each word that belong to the specified (non-matrix) signal-likes.
+	 */
+	@NotNull
+	private SortedMap<Integer, Long> getWordMasks(@NotNull Collection<SignalLike> signalLikes) {
+		SortedMap<Integer, Long> wordMasks = new TreeMap<>();
+		for (SignalLike signalLike : signalLikes) {
+			ValueField field = layout.getField(signalLike);
+			if (field.isWide()) {
+				for (int i = 0; i < field.getWordCount(); i++) {
+					wordMasks.put(field.getWordIndex() + i, -1L);
+				}
+			} else {
+				wordMasks.merge(field.getWordIndex(), field.getMask() << field.getShift(), (a, b) -> a | b);
+			}
+		}
+		return wordMasks;
+	}
+
+	private static void compileCopyWords(@NotNull GeneratorAdapter generator, @NotNull Collection<Map.Entry<Integer, Long>> wordMasks,
+										 int fromValuesLocal, int toValuesLocal) {
+		for (Map.Entry<Integer, Long> entry : wordMasks) {
+			long mask = entry.getValue();
+			generator.loadLocal(toValuesLocal);
+			generator.push(entry.getKey());
+			if (mask != -1L) {
+				// to[i] = (to[i] & ~mask) | (from[i] & mask)
+				generator.dup2();
+				generator.arrayLoad(Type.LONG_TYPE);
+				generator.push(~mask);
+				generator.math(GeneratorAdapter.AND, Type.LONG_TYPE);
+			}
+			generator.loadLocal(fromValuesLocal);
+			generator.push(entry.getKey());
+			generator.arrayLoad(Type.LONG_TYPE);
+			if (mask != -1L) {
+				generator.push(mask);
+				generator.math(GeneratorAdapter.AND, Type.LONG_TYPE);
+				generator.math(GeneratorAdapter.OR, Type.LONG_TYPE);
+			}
+			generator.arrayStore(Type.LONG_TYPE);
+		}
+	}
+
+	@NotNull
+	private MethodSplitter.Frame createFrame(@NotNull GeneratorAdapter generator, @NotNull MethodCompiler compiler, int sourceValuesLocal,
+											 int destinationValuesLocal, int referenceValuesLocal, int inputValuesLocal, int dirtyBlocksLocal) {
+		BitSlicedMethodCompiler bitSlicedCompiler = null;
+		if (layout.isBitSliced()) {
+			bitSlicedCompiler = new BitSlicedMethodCompiler(generator, layout, sourceValuesLocal, destinationValuesLocal, inputValuesLocal);
+		}
+		return new MethodSplitter.Frame(generator, compiler, bitSlicedCompiler, sourceValuesLocal, destinationValuesLocal,
+			referenceValuesLocal, inputValuesLocal, dirtyBlocksLocal, BitSlicedMethodCompiler.ONES);
+	}
+
+	private static void invokePrivate(@NotNull GeneratorAdapter generator, @NotNull Type owner, @NotNull Method method) {
+		generator.visitMethodInsn(Opcodes.INVOKESPECIAL, owner.getInternalName(), method.getName(), method.getDescriptor(), false);
+	}
+
+	private static int storeArgument(@NotNull GeneratorAdapter generator, int argumentIndex, @NotNull Type type) {
+		int local = generator.newLocal(type);
+		generator.loadArg(argumentIndex);
+		generator.storeLocal(local);
+		return local;
+	}
 
-		class
+	// the simulation is always argument 0
+	private int storeInputValues(@NotNull GeneratorAdapter generator) {
+		int local = generator.newLocal(LONG_ARRAY_TYPE);
+		if (layout.getInputWordCount() == 0) {
+			generator.push((String) null);
+			generator.checkCast(LONG_ARRAY_TYPE);
+		} else {
+			generator.loadArg(0);
+			generator.push(inputIndex);
+			generator.invokeStatic(PROGRAM_TYPE, GET_INPUT_VALUES_METHOD);
+		}
+		generator.storeLocal(local);
+		return local;
 	}
 
 }
@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import com.intellij.psi.PsiElement;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Thrown by the {@link ProgramBuilder} if a module cannot be compiled to a program, either because it contains errors
+ * or because it uses a feature that the simulator does not support.
+ */
+public class ProgramBuilderException extends RuntimeException {
+
+	@NotNull
+	private final PsiElement errorSource;
+
+	public ProgramBuilderException(@NotNull PsiElement errorSource, @NotNull String message) {
+		super(message);
+		this.errorSource = errorSource;
+	}
+
+	@NotNull
+	public PsiElement getErrorSource() {
+		return errorSource;
+	}
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * An on-disk cache for generated programs, so that building the program for an unchanged module only needs to load
+ * the class instead of running the generator. Set it using {@link ProgramBuilder#setCache(ProgramCache)}.
+ * <p>
+ * Entries are stored in a directory, one file per entry, named by the key computed by {@link DesignHash}. Besides the
+ * class file, each entry contains the data that is passed to the generated class when it is loaded: the constant
+ * arrays and the input readers for activity tracking.
+ * <p>
+ * Entries are written to a temporary file first and then moved into place, so concurrent builds may use the same
+ * directory. Each entry ends with a CRC-32 checksum of its contents. Entries that cannot be read or whose checksum
+ * doesn't match are treated like missing entries, and failures to write an entry are ignored, since they only cost
+ * performance.
+ */
+public final class ProgramCache {
+
+	private static final int MAGIC = 0x4d614845;
+
+	private final Path directory;
+
+	public ProgramCache(@NotNull Path directory) {
+		this.directory = directory;
+	}
+
+	@NotNull
+	public Path getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Returns the entry for the specified key, or null if there is no (readable) entry.
+	 */
+	Entry load(@NotNull String key) {
+		Path file = directory.resolve(key + ".program");
+		if (!Files.isRegularFile(file)) {
+			return null;
+		}
+		CRC32 checksum = new CRC32();
+		try (DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(Files.newInputStream(file)), checksum))) {
+			// lengths are checked against the file size before allocating, since a damaged entry may contain any value
+			long fileSize = Files.size(file);
+			if (in.readInt() != MAGIC) {
+				return null;
+			}
+			String className = in.readUTF();
+			byte[] classDefinition = new byte[readLength(in, fileSize)];
+			in.readFully(classDefinition);
+			int constantArrayCount = readLength(in, fileSize);
+			List<long[]> constantArrays = new ArrayList<>();
+			for (int i = 0; i < constantArrayCount; i++) {
+				constantArrays.add(readLongArray(in, fileSize));
+			}
+			int blockCount = in.readInt();
+			int inputReaderCount = in.readInt();
+			long[][] inputReaders = null;
+			if (inputReaderCount >= 0) {
+				inputReaders = new long[readLength(inputReaderCount, fileSize)][];
+				for (int i = 0; i < inputReaderCount; i++) {
+					inputReaders[i] = readLongArray(in, fileSize);
+				}
+			}
+			long expectedChecksum = checksum.getValue();
+			if (in.readLong() != expectedChecksum || in.read() >= 0) {
+				return null;
+			}
+			return new Entry(className, classDefinition, constantArrays, blockCount, inputReaders);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	void store(@NotNull String key, @NotNull Entry entry) {
+		try {
+			Files.createDirectories(directory);
+			Path temporaryFile = Files.createTempFile(directory, key, ".tmp");
+			try {
+				CRC32 checksum = new CRC32();
+				try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)), checksum))) {
+					out.writeInt(MAGIC);
+					out.writeUTF(entry.className);
+					out.writeInt(entry.classDefinition.length);
+					out.write(entry.classDefinition);
+					out.writeInt(entry.constantArrays.size());
+					for (long[] array : entry.constantArrays) {
+						writeLongArray(out, array);
+					}
+					out.writeInt(entry.blockCount);
+					if (entry.inputReaders == null) {
+						out.writeInt(-1);
+					} else {
+						out.writeInt(entry.inputReaders.length);
+						for (long[] readers : entry.inputReaders) {
+							writeLongArray(out, readers);
+						}
+					}
+					out.writeLong(checksum.getValue());
+				}
+				Files.move(temporaryFile, directory.resolve(key + ".program"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(temporaryFile);
+			}
+		} catch (IOException e) {
+			// ignore, see class comment
+		}
+	}
+
+	private static int readLength(DataInputStream in, long fileSize) throws IOException {
+		return readLength(in.readInt(), fileSize);
+	}
+
+	private static int readLength(int length, long fileSize) throws IOException {
+		if (length < 0 || length > fileSize) {
+			throw new IOException("invalid length: " + length);
+		}
+		return length;
+	}
+
+	private static long[] readLongArray(DataInputStream in, long fileSize) throws IOException {
+		long[] array = new long[readLength(in.readInt(), fileSize >> 3)];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = in.readLong();
+		}
+		return array;
+	}
+
+	private static void writeLongArray(DataOutputStream out, long[] array) throws IOException {
+		out.writeInt(array.length);
+		for (long value : array) {
+			out.writeLong(value);
+		}
+	}
+
+	/**
+	 * Everything needed to load a generated program.
+	 */
+	static final class Entry {
+
+		final String className;
+		final byte[] classDefinition;
+		final List<long[]> constantArrays;
+		final int blockCount;
+		final long[][] inputReaders;
+
+		Entry(String className, byte[] classDefinition, List<long[]> constantArrays, int blockCount, long[][] inputReaders) {
+			this.className = className;
+			this.classDefinition = classDefinition;
+			this.constantArrays = constantArrays;
+			this.blockCount = blockCount;
+			this.inputReaders = inputReaders;
+		}
+
+	}
+
+}
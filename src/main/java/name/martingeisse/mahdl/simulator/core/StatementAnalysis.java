@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import name.martingeisse.mahdl.plugin.processor.definition.Constant;
+import name.martingeisse.mahdl.plugin.processor.definition.SignalLike;
+import name.martingeisse.mahdl.plugin.processor.expression.*;
+import name.martingeisse.mahdl.plugin.processor.statement.*;
+import name.martingeisse.mahdl.plugin.processor.type.ProcessedDataType;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Static helpers to collect information about processed statements that the code generator needs in advance.
+ */
+final class StatementAnalysis {
+
+	// prevent instantiation
+	private StatementAnalysis() {
+	}
+
+	/**
+	 * Returns the signal-likes that get assigned a new value as a whole on every path through the specified
+	 * statement. Assignments to a bit, range or matrix row do not count since they keep the remaining bits or rows.
+	 */
+	@NotNull
+	public static Set<SignalLike> getDefinitelyAssigned(@NotNull ProcessedStatement statement) {
+		Set<SignalLike> result = new HashSet<>();
+		if (statement instanceof ProcessedBlock) {
+			for (ProcessedStatement subStatement : ((ProcessedBlock) statement).getStatements()) {
+				result.addAll(getDefinitelyAssigned(subStatement));
+			}
+		} else if (statement instanceof ProcessedAssignment) {
+			addWholeAssignmentTargets(((ProcessedAssignment) statement).getLeftHandSide(), result);
+		} else if (statement instanceof ProcessedIf) {
+			ProcessedIf ifStatement = (ProcessedIf) statement;
+			result.addAll(getDefinitelyAssigned(ifStatement.getThenBranch()));
+			result.retainAll(getDefinitelyAssigned(ifStatement.getElseBranch()));
+		} else if (statement instanceof ProcessedSwitchStatement) {
+			ProcessedSwitchStatement switchStatement = (ProcessedSwitchStatement) statement;
+			if (switchStatement.getDefaultBranch() != null) {
+				result.addAll(getDefinitelyAssigned(switchStatement.getDefaultBranch()));
+				for (ProcessedSwitchStatement.Case aCase : switchStatement.getCases()) {
+					result.retainAll(getDefinitelyAssigned(aCase.getBranch()));
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Collects the signal-likes (except constants) that the specified statement reads on some path before assigning
+	 * them a new value as a whole, i.e. those whose value from before the statement can influence its effect. The
+	 * assigned set contains the signal-likes assigned as a whole on every path before the statement; returns the same
+	 * for the end of the statement.
+	 */
+	@NotNull
+	public static Set<SignalLike> collectExposedReadSignals(@NotNull ProcessedStatement statement, @NotNull Set<SignalLike> assigned,
+															@NotNull Set<SignalLike> result) {
+		if (statement instanceof ProcessedBlock) {
+			for (ProcessedStatement subStatement : ((ProcessedBlock) statement).getStatements()) {
+				assigned = collectExposedReadSignals(subStatement, assigned, result);
+			}
+			return assigned;
+		} else if (statement instanceof ProcessedAssignment) {
+			ProcessedAssignment assignment = (ProcessedAssignment) statement;
+			Set<SignalLike> read = new HashSet<>();
+			collectDestinationReadSignals(assignment.getLeftHandSide(), read);
+			collectReadSignals(assignment.getRightHandSide(), read);
+			read.removeAll(assigned);
+			result.addAll(read);
+			Set<SignalLike> assignedAfter = new HashSet<>(assigned);
+			addWholeAssignmentTargets(assignment.getLeftHandSide(), assignedAfter);
+			return assignedAfter;
+		} else if (statement instanceof ProcessedIf) {
+			ProcessedIf ifStatement = (ProcessedIf) statement;
+			collectExposedReadSignals(ifStatement.getCondition(), assigned, result);
+			Set<SignalLike> assignedAfter = new HashSet<>(collectExposedReadSignals(ifStatement.getThenBranch(), assigned, result));
+			assignedAfter.retainAll(collectExposedReadSignals(ifStatement.getElseBranch(), assigned, result));
+			return assignedAfter;
+		} else if (statement instanceof ProcessedSwitchStatement) {
+			ProcessedSwitchStatement switchStatement = (ProcessedSwitchStatement) statement;
+			collectExposedReadSignals(switchStatement.getSelector(), assigned, result);
+			Set<SignalLike> assignedAfter = null;
+			for (ProcessedSwitchStatement.Case aCase : switchStatement.getCases()) {
+				Set<SignalLike> assignedAfterCase = collectExposedReadSignals(aCase.getBranch(), assigned, result);
+				if (assignedAfter == null) {
+					assignedAfter = new HashSet<>(assignedAfterCase);
+				} else {
+					assignedAfter.retainAll(assignedAfterCase);
+				}
+			}
+			// without a default branch, there is a path that doesn't assign anything
+			Set<SignalLike> assignedAfterDefault = (switchStatement.getDefaultBranch() == null ? assigned :
+				collectExposedReadSignals(switchStatement.getDefaultBranch(), assigned, result));
+			if (assignedAfter == null) {
+				return assignedAfterDefault;
+			}
+			assignedAfter.retainAll(assignedAfterDefault);
+			return assignedAfter;
+		} else {
+			return assigned;
+		}
+	}
+
+	private static void collectExposedReadSignals(@NotNull ProcessedExpression expression, @NotNull Set<SignalLike> assigned,
+												  @NotNull Set<SignalLike> result) {
+		Set<SignalLike> read = new HashSet<>();
+		collectReadSignals(expression, read);
+		read.removeAll(assigned);
+		result.addAll(read);
+	}
+
+	private static void addWholeAssignmentTargets(@NotNull ProcessedExpression destination, @NotNull Set<SignalLike> result) {
+		if (destination instanceof SignalLikeReference) {
+			if (!(destination.getDataType() instanceof ProcessedDataType.Matrix)) {
+				result.add(((SignalLikeReference) destination).getDefinition());
+			}
+		} else if (destination instanceof ProcessedBinaryOperation) {
+			ProcessedBinaryOperation operation = (ProcessedBinaryOperation) destination;
+			if (operation.getOperator() == ProcessedBinaryOperator.VECTOR_CONCAT) {
+				addWholeAssignmentTargets(operation.getLeftOperand(), result);
+				addWholeAssignmentTargets(operation.getRightOperand(), result);
+			}
+		}
+	}
+
+	/**
+	 * Collects all assignment destinations that select a matrix row from the specified statement.
+	 */
+	public static void collectMatrixRowDestinations(@NotNull ProcessedStatement statement, @NotNull List<ProcessedExpression> result) {
+		if (statement instanceof ProcessedBlock) {
+			for (ProcessedStatement subStatement : ((ProcessedBlock) statement).getStatements()) {
+				collectMatrixRowDestinations(subStatement, result);
+			}
+		} else if (statement instanceof ProcessedAssignment) {
+			collectMatrixRowDestinations(((ProcessedAssignment) statement).getLeftHandSide(), result);
+		} else if (statement instanceof ProcessedIf) {
+			ProcessedIf ifStatement = (ProcessedIf) statement;
+			collectMatrixRowDestinations(ifStatement.getThenBranch(), result);
+			collectMatrixRowDestinations(ifStatement.getElseBranch(), result);
+		} else if (statement instanceof ProcessedSwitchStatement) {
+			ProcessedSwitchStatement switchStatement = (ProcessedSwitchStatement) statement;
+			for (ProcessedSwitchStatement.Case aCase : switchStatement.getCases()) {
+				collectMatrixRowDestinations(aCase.getBranch(), result);
+			}
+			if (switchStatement.getDefaultBranch() != null) {
+				collectMatrixRowDestinations(switchStatement.getDefaultBranch(), result);
+			}
+		}
+	}
+
+	private static void collectMatrixRowDestinations(@NotNull ProcessedExpression destination, @NotNull List<ProcessedExpression> result) {
+		if (destination instanceof ProcessedIndexSelection.VectorFromMatrix) {
+			result.add(destination);
+		} else if (destination instanceof ProcessedBinaryOperation) {
+			ProcessedBinaryOperation operation = (ProcessedBinaryOperation) destination;
+			if (operation.getOperator() == ProcessedBinaryOperator.VECTOR_CONCAT) {
+				collectMatrixRowDestinations(operation.getLeftOperand(), result);
+				collectMatrixRowDestinations(operation.getRightOperand(), result);
+			}
+		}
+	}
+
+	/**
+	 * Collects all signal-likes (except constants) whose value is read by the specified statement, including those
+	 * used to select the part of a destination that gets assigned to.
+	 */
+	public static void collectReadSignals(@NotNull ProcessedStatement statement, @NotNull Set<SignalLike> result) {
+		if (statement instanceof ProcessedBlock) {
+			for (ProcessedStatement subStatement : ((ProcessedBlock) statement).getStatements()) {
+				collectReadSignals(subStatement, result);
+			}
+		} else if (statement instanceof ProcessedAssignment) {
+			ProcessedAssignment assignment = (ProcessedAssignment) statement;
+			collectDestinationReadSignals(assignment.getLeftHandSide(), result);
+			collectReadSignals(assignment.getRightHandSide(), result);
+		} else if (statement instanceof ProcessedIf) {
+			ProcessedIf ifStatement = (ProcessedIf) statement;
+			collectReadSignals(ifStatement.getCondition(), result);
+			collectReadSignals(ifStatement.getThenBranch(), result);
+			collectReadSignals(ifStatement.getElseBranch(), result);
+		} else if (statement instanceof ProcessedSwitchStatement) {
+			ProcessedSwitchStatement switchStatement = (ProcessedSwitchStatement) statement;
+			collectReadSignals(switchStatement.getSelector(), result);
+			for (ProcessedSwitchStatement.Case aCase : switchStatement.getCases()) {
+				collectReadSignals(aCase.getBranch(), result);
+			}
+			if (switchStatement.getDefaultBranch() != null) {
+				collectReadSignals(switchStatement.getDefaultBranch(), result);
+			}
+		}
+	}
+
+	private static void collectDestinationReadSignals(@NotNull ProcessedExpression destination, @NotNull Set<SignalLike> result) {
+		if (destination instanceof ProcessedIndexSelection) {
+			collectReadSignals(((ProcessedIndexSelection) destination).getIndex(), result);
+		} else if (destination instanceof ProcessedBinaryOperation) {
+			ProcessedBinaryOperation operation = (ProcessedBinaryOperation) destination;
+			collectDestinationReadSignals(operation.getLeftOperand(), result);
+			collectDestinationReadSignals(operation.getRightOperand(), result);
+		}
+	}
+
+	/**
+	 * Collects all signal-likes (except constants) whose value is read by the specified expression.
+	 */
+	public static void collectReadSignals(@NotNull ProcessedExpression expression, @NotNull Set<SignalLike> result) {
+		if (expression instanceof SignalLikeReference) {
+			SignalLike definition = ((SignalLikeReference) expression).getDefinition();
+			if (!(definition instanceof Constant)) {
+				result.add(definition);
+			}
+		} else if (expression instanceof ProcessedUnaryOperation) {
+			collectReadSignals(((ProcessedUnaryOperation) expression).getOperand(), result);
+		} else if (expression instanceof ProcessedBinaryOperation) {
+			ProcessedBinaryOperation operation = (ProcessedBinaryOperation) expression;
+			collectReadSignals(operation.getLeftOperand(), result);
+			collectReadSignals(operation.getRightOperand(), result);
+		} else if (expression instanceof ProcessedConditional) {
+			ProcessedConditional conditional = (ProcessedConditional) expression;
+			collectReadSignals(conditional.getCondition(), result);
+			collectReadSignals(conditional.getThenBranch(), result);
+			collectReadSignals(conditional.getElseBranch(), result);
+		} else if (expression instanceof ProcessedSwitchExpression) {
+			ProcessedSwitchExpression switchExpression = (ProcessedSwitchExpression) expression;
+			collectReadSignals(switchExpression.getSelector(), result);
+			for (ProcessedSwitchExpression.Case aCase : switchExpression.getCases()) {
+				collectReadSignals(aCase.getResultValue(), result);
+			}
+			if (switchExpression.getDefaultBranch() != null) {
+				collectReadSignals(switchExpression.getDefaultBranch(), result);
+			}
+		} else if (expression instanceof ProcessedIndexSelection) {
+			ProcessedIndexSelection selection = (ProcessedIndexSelection) expression;
+			collectReadSignals(selection.getContainer(), result);
+			collectReadSignals(selection.getIndex(), result);
+		} else if (expression instanceof ProcessedRangeSelection) {
+			collectReadSignals(((ProcessedRangeSelection) expression).getContainer(), result);
+		} else if (expression instanceof TypeConversion) {
+			collectReadSignals(((TypeConversion) expression).getOperand(), result);
+		} else if (expression instanceof ProcessedFunctionCall) {
+			for (ProcessedExpression argument : ((ProcessedFunctionCall) expression).getArguments()) {
+				collectReadSignals(argument, result);
+			}
+		}
+	}
+
+	/**
+	 * Collects all signal-likes that get assigned to, as a whole or in part, anywhere in the specified statement.
+	 */
+	public static void collectAssignedSignals(@NotNull ProcessedStatement statement, @NotNull Set<SignalLike> result) {
+		if (statement instanceof ProcessedBlock) {
+			for (ProcessedStatement subStatement : ((ProcessedBlock) statement).getStatements()) {
+				collectAssignedSignals(subStatement, result);
+			}
+		} else if (statement instanceof ProcessedAssignment) {
+			collectAssignedSignals(((ProcessedAssignment) statement).getLeftHandSide(), result);
+		} else if (statement instanceof ProcessedIf) {
+			ProcessedIf ifStatement = (ProcessedIf) statement;
+			collectAssignedSignals(ifStatement.getThenBranch(), result);
+			collectAssignedSignals(ifStatement.getElseBranch(), result);
+		} else if (statement instanceof ProcessedSwitchStatement) {
+			ProcessedSwitchStatement switchStatement = (ProcessedSwitchStatement) statement;
+			for (ProcessedSwitchStatement.Case aCase : switchStatement.getCases()) {
+				collectAssignedSignals(aCase.getBranch(), result);
+			}
+			if (switchStatement.getDefaultBranch() != null) {
+				collectAssignedSignals(switchStatement.getDefaultBranch(), result);
+			}
+		}
+	}
+
+	private static void collectAssignedSignals(@NotNull ProcessedExpression destination, @NotNull Set<SignalLike> result) {
+		if (destination instanceof SignalLikeReference) {
+			result.add(((SignalLikeReference) destination).getDefinition());
+		} else if (destination instanceof ProcessedIndexSelection) {
+			collectAssignedSignals(((ProcessedIndexSelection) destination).getContainer(), result);
+		} else if (destination instanceof ProcessedRangeSelection) {
+			collectAssignedSignals(((ProcessedRangeSelection) destination).getContainer(), result);
+		} else if (destination instanceof ProcessedBinaryOperation) {
+			ProcessedBinaryOperation operation = (ProcessedBinaryOperation) destination;
+			collectAssignedSignals(operation.getLeftOperand(), result);
+			collectAssignedSignals(operation.getRightOperand(), result);
+		}
+	}
+
+}
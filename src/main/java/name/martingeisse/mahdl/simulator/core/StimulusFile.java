@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Replays recorded input values from a file into an {@link InternalInput}, one row per cycle. A row is the whole
+ * value array of the input, as little-endian longs, and the file is just the rows of all cycles without a header, so
+ * its size must be a multiple of the row size.
+ * <p>
+ * The file is accessed through memory mappings, so applying a row is a single bulk copy from the page cache into
+ * the input's values, without parsing. Files larger than 1 GB are mapped in parts, each holding whole rows.
+ */
+public final class StimulusFile implements Closeable {
+
+	// a single mapping cannot exceed 2 GB
+	private static final long MAX_MAPPING_SIZE = 1 << 30;
+
+	private final Path path;
+	private final InternalInput input;
+	private final FileChannel channel;
+	private final int rowSize;
+	private final long rowCount;
+	private final long rowsPerMapping;
+	private LongBuffer mapping;
+	private long mappingFirstRow = -1;
+	private long nextRow = 0;
+
+	public StimulusFile(@NotNull Path path, @NotNull InternalInput input) throws IOException {
+		this.path = path;
+		this.input = input;
+		this.rowSize = input.values.length;
+		if (rowSize == 0) {
+			throw new IllegalArgumentException("input has no values");
+		}
+		this.channel = FileChannel.open(path, StandardOpenOption.READ);
+		long rowBytes = (long) rowSize << 3;
+		long size = channel.size();
+		if (size % rowBytes != 0) {
+			channel.close();
+			throw new IOException("size of stimulus file " + path + " (" + size + ") is not a multiple of the row size (" + rowBytes + ")");
+		}
+		this.rowCount = size / rowBytes;
+		this.rowsPerMapping = Math.max(1, MAX_MAPPING_SIZE / rowBytes);
+	}
+
+	/**
+	 * Returns the number of rows, i.e. cycles, in the file.
+	 */
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * Returns the index of the row that {@link #applyNext()} will apply.
+	 */
+	public long getNextRow() {
+		return nextRow;
+	}
+
+	public boolean hasNext() {
+		return nextRow < rowCount;
+	}
+
+	/**
+	 * Sets the index of the row that {@link #applyNext()} will apply.
+	 */
+	public void seek(long row) {
+		if (row < 0 || row > rowCount) {
+			throw new IndexOutOfBoundsException("row " + row + " in a stimulus file with " + rowCount + " rows");
+		}
+		nextRow = row;
+	}
+
+	/**
+	 * Copies the next row into the values of the input.
+	 */
+	public void applyNext() throws IOException {
+		if (nextRow >= rowCount) {
+			throw new IllegalStateException("no more rows in stimulus file " + path);
+		}
+		long mappingIndex = nextRow / rowsPerMapping;
+		if (mappingFirstRow != mappingIndex * rowsPerMapping) {
+			mappingFirstRow = mappingIndex * rowsPerMapping;
+			long rows = Math.min(rowsPerMapping, rowCount - mappingFirstRow);
+			long rowBytes = (long) rowSize << 3;
+			mapping = channel.map(FileChannel.MapMode.READ_ONLY, mappingFirstRow * rowBytes, rows * rowBytes)
+				.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+		}
+		mapping.position((int) (nextRow - mappingFirstRow) * rowSize);
+		input.setWords(mapping);
+		nextRow++;
+	}
+
+	/**
+	 * Simulates the specified number of cycles, applying the next row before each of them.
+	 */
+	public void run(@NotNull InternalSimulation simulation, long cycles) throws IOException {
+		for (long i = 0; i < cycles; i++) {
+			applyNext();
+			simulation.step();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		mapping = null;
+		channel.close();
+	}
+
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generates the values of an {@link InternalInput} for each cycle in a separate thread, so that expensive stimulus
+ * generation (e.g. random or constrained) overlaps with simulation instead of adding to it.
+ * <p>
+ * The generator thread writes one row of input words per cycle into a preallocated single-producer, single-consumer
+ * ring buffer, and the simulation thread copies the rows into the input at cycle boundaries using
+ * {@link #applyNext()}. When the ring is full, the generator waits for the simulation, and vice versa. Nothing is
+ * allocated per cycle.
+ */
+public final class StimulusPipeline implements AutoCloseable {
+
+	/**
+	 * Generates the input values for one cycle at a time. Called by the generator thread only.
+	 */
+	public interface Generator {
+
+		/**
+		 * Writes the input values for the specified cycle (counting from 0) to the row, which initially contains the
+		 * values of the previous cycle (zeroes for cycle 0). Returns false instead if there are no more cycles.
+		 */
+		boolean generate(long cycle, @NotNull long[] row);
+
+	}
+
+	// wait loops yield this many times before they start sleeping, so short waits don't pay for a wake-up
+	private static final int YIELD_COUNT = 100;
+	private static final long PARK_NANOS = 10_000;
+
+	private final InternalInput input;
+	private final Generator generator;
+	private final int rowSize;
+	private final int capacity;
+	private final long[] ring;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	private final Thread thread;
+	private volatile boolean finished = false;
+	private volatile boolean closed = false;
+	private volatile Throwable failure;
+
+	/**
+	 * Creates the pipeline and starts the generator thread, which runs ahead of the simulation by at most
+	 * (capacity) rows.
+	 */
+	public StimulusPipeline(@NotNull InternalInput input, int capacity, @NotNull Generator generator) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("invalid capacity: " + capacity);
+		}
+		this.input = input;
+		this.generator = generator;
+		this.rowSize = input.values.length;
+		this.capacity = capacity;
+		this.ring = new long[Math.multiplyExact(capacity, rowSize)];
+		this.thread = new Thread(this::generate, "stimulus generator");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Copies the next row into the values of the input, waiting for the generator if necessary. Returns false instead
+	 * if the generator has no more rows.
+	 */
+	public boolean applyNext() {
+		long tail = this.tail.get();
+		for (int i = 0; head.get() == tail; i++) {
+			if (finished && head.get() == tail) {
+				Throwable failure = this.failure;
+				if (failure != null) {
+					throw new IllegalStateException("stimulus generator failed", failure);
+				}
+				return false;
+			}
+			if (closed) {
+				throw new IllegalStateException("pipeline is closed");
+			}
+			waitBriefly(i);
+		}
+		input.setWords(ring, (int) (tail % capacity) * rowSize);
+		this.tail.lazySet(tail + 1);
+		return true;
+	}
+
+	/**
+	 * Simulates up to the specified number of cycles, applying the next row before each of them, and returns the
+	 * number of cycles simulated, which is less if the generator runs out of rows.
+	 */
+	public long run(@NotNull InternalSimulation simulation, long cycles) {
+		for (long i = 0; i < cycles; i++) {
+			if (!applyNext()) {
+				return i;
+			}
+			simulation.step();
+		}
+		return cycles;
+	}
+
+	/**
+	 * Stops the generator thread and waits for it to finish.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		LockSupport.unpark(thread);
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void generate() {
+		try {
+			long[] row = new long[rowSize];
+			for (long cycle = 0; !closed; cycle++) {
+				if (!generator.generate(cycle, row)) {
+					break;
+				}
+				long head = this.head.get();
+				for (int i = 0; head - tail.get() >= capacity; i++) {
+					if (closed) {
+						return;
+					}
+					waitBriefly(i);
+				}
+				System.arraycopy(row, 0, ring, (int) (head % capacity) * rowSize, rowSize);
+				this.head.lazySet(head + 1);
+			}
+		} catch (Throwable e) {
+			failure = e;
+		} finally {
+			finished = true;
+		}
+	}
+
+	private static void waitBriefly(int iteration) {
+		if (iteration < YIELD_COUNT) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+	}
+
+}
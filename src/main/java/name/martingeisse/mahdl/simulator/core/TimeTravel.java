@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records a simulation so it can be moved back to any recent cycle, for time-travel debugging. The simulation must
+ * then be stepped through {@link #step()} and {@link #run(long)} of this object, which count the cycles, instead of
+ * its own methods. All inputs and domains must have been created before.
+ * <p>
+ * Every (snapshotInterval) cycles, a snapshot of all input and domain values is taken, and the last (snapshotCount)
+ * snapshots are kept in a ring. Between snapshots, all changes of input values are logged. {@link #seek(long)}
+ * restores the last snapshot at or before the target cycle, then simulates forward to it, replaying the logged input
+ * changes at the cycles where they happened. Since the simulation is deterministic, this reproduces the exact state
+ * of the target cycle at the cost of at most (snapshotInterval) cycles, while keeping (snapshotCount) copies of the
+ * state in memory.
+ * <p>
+ * After seeking back, stepping forward replays the recorded input changes too, and the simulation can still seek
+ * forward up to the last recorded cycle. Changing an input value instead starts a new history: everything recorded
+ * after the current cycle is discarded.
+ * <p>
+ * Recording continues until {@link #detach()} is called. Only then can the simulation be stepped through its own
+ * methods again or be recorded by another instance.
+ */
+public final class TimeTravel {
+
+	private final InternalSimulation simulation;
+	private final long snapshotInterval;
+	private final int snapshotCount;
+	private final List<Snapshot> snapshots = new ArrayList<>();
+	private long cycle = 0;
+	private long recordedCycle = 0;
+
+	// the next recorded change that has not been applied for the current cycle (snapshot index, change index)
+	private int cursorSnapshot = 0;
+	private int cursorChange = 0;
+
+	private boolean detached = false;
+
+	/**
+	 * Starts recording the simulation in its current state, which becomes cycle 0.
+	 */
+	public TimeTravel(InternalSimulation simulation, long snapshotInterval, int snapshotCount) {
+		if (snapshotInterval < 1) {
+			throw new IllegalArgumentException("invalid snapshot interval: " + snapshotInterval);
+		}
+		if (snapshotCount < 1) {
+			throw new IllegalArgumentException("invalid snapshot count: " + snapshotCount);
+		}
+		for (InternalInput input : simulation.inputs) {
+			if (input.timeTravel != null) {
+				throw new IllegalStateException("simulation is already being recorded");
+			}
+		}
+		this.simulation = simulation;
+		this.snapshotInterval = snapshotInterval;
+		this.snapshotCount = snapshotCount;
+		for (InternalInput input : simulation.inputs) {
+			input.timeTravel = this;
+		}
+		snapshots.add(new Snapshot());
+	}
+
+	/**
+	 * Returns the number of cycles simulated since recording started, i.e. the current position in the history.
+	 */
+	public long getCycle() {
+		return cycle;
+	}
+
+	/**
+	 * Returns the first cycle that {@link #seek(long)} can move to, i.e. the cycle of the oldest snapshot.
+	 */
+	public long getFirstRecordedCycle() {
+		checkAttached();
+		return snapshots.get(0).cycle;
+	}
+
+	/**
+	 * Returns the last cycle that {@link #seek(long)} can move to.
+	 */
+	public long getLastRecordedCycle() {
+		checkAttached();
+		return recordedCycle;
+	}
+
+	/**
+	 * Simulates a single clock edge for all domains, like {@link InternalSimulation#step()}.
+	 */
+	public void step() {
+		run(1);
+	}
+
+	/**
+	 * Simulates the specified number of clock edges for all domains, like {@link InternalSimulation#run(long)}.
+	 */
+	public void run(long cycles) {
+		checkAttached();
+		if (cycles < 0) {
+			throw new IllegalArgumentException("invalid number of cycles: " + cycles);
+		}
+		advance(cycle + cycles);
+	}
+
+	/**
+	 * Moves the simulation to the specified cycle, which must be between {@link #getFirstRecordedCycle()} and
+	 * {@link #getLastRecordedCycle()}, restoring all input and domain values and the simulated time of that cycle.
+	 */
+	public void seek(long targetCycle) {
+		checkAttached();
+		if (targetCycle < getFirstRecordedCycle() || targetCycle > recordedCycle) {
+			throw new IllegalArgumentException("cycle " + targetCycle + " is outside the recorded cycles " +
+				getFirstRecordedCycle() + " to " + recordedCycle);
+		}
+		Snapshot snapshot = snapshots.get(findSnapshot(targetCycle));
+		// simulating forward from the current cycle is cheaper if no snapshot is closer
+		if (targetCycle < cycle || snapshot.cycle > cycle) {
+			snapshot.restore();
+			cycle = snapshot.cycle;
+			cursorSnapshot = snapshots.indexOf(snapshot);
+			cursorChange = 0;
+			replayChanges();
+		}
+		advance(targetCycle);
+	}
+
+	/**
+	 * Stops recording and drops the recorded history. The simulation keeps its current state. This object cannot be
+	 * used anymore afterwards, except for {@link #getCycle()}. Detaching twice has no effect.
+	 */
+	public void detach() {
+		if (detached) {
+			return;
+		}
+		detached = true;
+		for (InternalInput input : simulation.inputs) {
+			if (input.timeTravel == this) {
+				input.timeTravel = null;
+			}
+		}
+		snapshots.clear();
+	}
+
+	private void checkAttached() {
+		if (detached) {
+			throw new IllegalStateException("time travel has been detached");
+		}
+	}
+
+	/**
+	 * Called by an input when a word of its values has changed.
+	 */
+	void record(InternalInput input, ValueField field, int wordIndex, long value) {
+		if (cycle < recordedCycle) {
+			discardFuture();
+		}
+		List<InputChange> changes = snapshots.get(snapshots.size() - 1).changes;
+		changes.add(new InputChange(cycle, input, field, wordIndex, value));
+		cursorSnapshot = snapshots.size() - 1;
+		cursorChange = changes.size();
+	}
+
+	/**
+	 * Simulates up to the target cycle, stopping at each cycle that needs a snapshot or has recorded input changes.
+	 */
+	private void advance(long targetCycle) {
+		while (cycle < targetCycle) {
+			long stop = Math.min(targetCycle, (cycle / snapshotInterval + 1) * snapshotInterval);
+			if (cycle < recordedCycle) {
+				stop = Math.min(stop, findNextChangeCycle());
+			}
+			simulation.run(stop - cycle);
+			cycle = stop;
+			if (cycle > recordedCycle) {
+				recordedCycle = cycle;
+			}
+			replayChanges();
+			if (cycle % snapshotInterval == 0 && snapshots.get(snapshots.size() - 1).cycle < cycle) {
+				if (snapshots.size() == snapshotCount) {
+					Snapshot reused = snapshots.remove(0);
+					reused.take();
+					snapshots.add(reused);
+				} else {
+					snapshots.add(new Snapshot());
+				}
+				cursorSnapshot = snapshots.size() - 1;
+				cursorChange = 0;
+			}
+		}
+	}
+
+	/**
+	 * Applies the recorded input changes of the current cycle.
+	 */
+	private void replayChanges() {
+		while (true) {
+			List<InputChange> changes = snapshots.get(cursorSnapshot).changes;
+			if (cursorChange < changes.size()) {
+				InputChange change = changes.get(cursorChange);
+				if (change.cycle > cycle) {
+					return;
+				}
+				change.input.replayWord(change.field, change.wordIndex, change.value);
+				cursorChange++;
+			} else if (cursorSnapshot + 1 < snapshots.size() && snapshots.get(cursorSnapshot + 1).cycle <= cycle) {
+				cursorSnapshot++;
+				cursorChange = 0;
+			} else {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the first cycle after the current one that has recorded input changes, or Long.MAX_VALUE if none.
+	 */
+	private long findNextChangeCycle() {
+		int changeIndex = cursorChange;
+		for (int i = cursorSnapshot; i < snapshots.size(); i++) {
+			List<InputChange> changes = snapshots.get(i).changes;
+			if (changeIndex < changes.size()) {
+				return changes.get(changeIndex).cycle;
+			}
+			changeIndex = 0;
+		}
+		return Long.MAX_VALUE;
+	}
+
+	private void discardFuture() {
+		int last = findSnapshot(cycle);
+		snapshots.subList(last + 1, snapshots.size()).clear();
+		snapshots.get(last).changes.removeIf(change -> change.cycle > cycle);
+		recordedCycle = cycle;
+	}
+
+	/**
+	 * Returns the index of the last snapshot at or before the specified cycle.
+	 */
+	private int findSnapshot(long cycle) {
+		int low = 0;
+		int high = snapshots.size() - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (snapshots.get(middle).cycle <= cycle) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * The values of all inputs and domains at a cycle, and the input changes recorded from then until the next
+	 * snapshot. Changes of the snapshot's own cycle come after the snapshot was taken.
+	 */
+	private final class Snapshot {
+
+		private final long[][] inputValues;
+		private final long[][] domainValues;
+		private final List<InputChange> changes = new ArrayList<>();
+		private long cycle;
+		private long time;
+
+		Snapshot() {
+			inputValues = new long[simulation.inputs.size()][];
+			for (int i = 0; i < inputValues.length; i++) {
+				inputValues[i] = new long[simulation.inputs.get(i).values.length];
+			}
+			domainValues = new long[simulation.domains.size()][];
+			for (int i = 0; i < domainValues.length; i++) {
+				domainValues[i] = new long[simulation.domains.get(i).currentValues.length];
+			}
+			take();
+		}
+
+		void take() {
+			for (int i = 0; i < inputValues.length; i++) {
+				System.arraycopy(simulation.inputs.get(i).values, 0, inputValues[i], 0, inputValues[i].length);
+			}
+			for (int i = 0; i < domainValues.length; i++) {
+				System.arraycopy(simulation.domains.get(i).currentValues, 0, domainValues[i], 0, domainValues[i].length);
+			}
+			changes.clear();
+			cycle = TimeTravel.this.cycle;
+			time = simulation.getTime();
+		}
+
+		void restore() {
+			for (int i = 0; i < inputValues.length; i++) {
+				System.arraycopy(inputValues[i], 0, simulation.inputs.get(i).values, 0, inputValues[i].length);
+			}
+			for (int i = 0; i < domainValues.length; i++) {
+				System.arraycopy(domainValues[i], 0, simulation.domains.get(i).currentValues, 0, domainValues[i].length);
+			}
+			simulation.restoreTime(time);
+		}
+
+	}
+
+	private static final class InputChange {
+
+		private final long cycle;
+		private final InternalInput input;
+		private final ValueField field;
+		private final int wordIndex;
+		private final long value;
+
+		InputChange(long cycle, InternalInput input, ValueField field, int wordIndex, long value) {
+			this.cycle = cycle;
+			this.input = input;
+			this.field = field;
+			this.wordIndex = wordIndex;
+			this.value = value;
+		}
+
+	}
+
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import com.google.common.collect.ImmutableList;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a trace file written by {@link TraceWriter}. Only the index is read when opening the file; the changes of a
+ * signal are read on demand, decompressing only the blocks that overlap the requested time window.
+ */
+public final class TraceReader implements Closeable {
+
+	private static final int FOOTER_SIZE = 12;
+
+	private final Path path;
+	private final FileChannel channel;
+	private final Map<String, SignalIndex> signals = new LinkedHashMap<>();
+
+	public TraceReader(@NotNull Path path) throws IOException {
+		this.path = path;
+		this.channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			ByteBuffer header = (size < 8 + FOOTER_SIZE ? null : read(0, 8));
+			if (header == null || header.getInt() != TraceWriter.MAGIC) {
+				throw new IOException("not a trace file: " + path);
+			}
+			if (header.getInt() != TraceWriter.VERSION) {
+				throw new IOException("unsupported trace file version: " + path);
+			}
+			ByteBuffer footer = read(size - FOOTER_SIZE, FOOTER_SIZE);
+			long indexPosition = footer.getLong();
+			if (footer.getInt() != TraceWriter.MAGIC || indexPosition < 8 || indexPosition > size - FOOTER_SIZE) {
+				throw new IOException("trace file is incomplete: " + path);
+			}
+			ByteBuffer index = read(indexPosition, (int) (size - FOOTER_SIZE - indexPosition));
+			int signalCount = index.getInt();
+			for (int i = 0; i < signalCount; i++) {
+				byte[] name = new byte[index.getInt()];
+				index.get(name);
+				int width = index.getInt();
+				int blockCount = index.getInt();
+				SignalIndex signal = new SignalIndex(width, blockCount);
+				for (int j = 0; j < blockCount; j++) {
+					signal.firstTimes[j] = index.getLong();
+					signal.offsets[j] = index.getLong();
+					signal.compressedSizes[j] = index.getInt();
+					signal.uncompressedSizes[j] = index.getInt();
+					signal.changeCounts[j] = index.getInt();
+				}
+				signals.put(new String(name, StandardCharsets.UTF_8), signal);
+			}
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			if (e instanceof RuntimeException) {
+				throw new IOException("corrupt trace file: " + path, e);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the names of the recorded signals, in the order in which they were passed to the writer.
+	 */
+	@NotNull
+	public Set<String> getSignalNames() {
+		return Collections.unmodifiableSet(signals.keySet());
+	}
+
+	/**
+	 * Returns the width of the specified signal in bits.
+	 */
+	public int getWidth(@NotNull String signalName) {
+		return getSignal(signalName).width;
+	}
+
+	/**
+	 * Returns the changes of the specified signal from startTime to endTime (both inclusive). The first change is the
+	 * one that determines the value at startTime, which may be before startTime; it is missing only if the signal
+	 * wasn't recorded yet at startTime.
+	 */
+	@NotNull
+	public ImmutableList<Change> read(@NotNull String signalName, long startTime, long endTime) throws IOException {
+		SignalIndex signal = getSignal(signalName);
+		if (endTime < startTime) {
+			throw new IllegalArgumentException("end time " + endTime + " is before start time " + startTime);
+		}
+
+		// the last block that starts at or before startTime contains the value at startTime. Blocks of a signal
+		// cannot start at the same time, since each change has its own time.
+		int block = Arrays.binarySearch(signal.firstTimes, startTime);
+		if (block < 0) {
+			block = Math.max(0, -block - 2);
+		}
+
+		ImmutableList.Builder<Change> builder = ImmutableList.builder();
+		int wordCount = (signal.width + 63) >>> 6;
+		Change previous = null;
+		Inflater inflater = new Inflater();
+		try {
+			for (; block < signal.firstTimes.length && signal.firstTimes[block] <= endTime; block++) {
+				ByteBuffer data = readBlock(signal, block, inflater);
+				long time = signal.firstTimes[block];
+				for (int i = 0; i < signal.changeCounts[block]; i++) {
+					time += getVarint(data);
+					long[] words = new long[wordCount];
+					for (int j = 0; j < wordCount; j++) {
+						words[j] = getVarint(data);
+					}
+					if (time > endTime) {
+						break;
+					}
+					Change change = new Change(time, words);
+					if (time <= startTime) {
+						previous = change;
+					} else {
+						if (previous != null) {
+							builder.add(previous);
+							previous = null;
+						}
+						builder.add(change);
+					}
+				}
+			}
+		} catch (DataFormatException | RuntimeException e) {
+			throw new IOException("corrupt trace file: " + path, e);
+		} finally {
+			inflater.end();
+		}
+		if (previous != null) {
+			builder.add(previous);
+		}
+		return builder.build();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	@NotNull
+	private SignalIndex getSignal(@NotNull String signalName) {
+		SignalIndex signal = signals.get(signalName);
+		if (signal == null) {
+			throw new IllegalArgumentException("unknown signal: " + signalName);
+		}
+		return signal;
+	}
+
+	@NotNull
+	private ByteBuffer readBlock(@NotNull SignalIndex signal, int block, @NotNull Inflater inflater) throws IOException, DataFormatException {
+		ByteBuffer compressed = read(signal.offsets[block], signal.compressedSizes[block]);
+		byte[] uncompressed = new byte[signal.uncompressedSizes[block]];
+		inflater.reset();
+		inflater.setInput(compressed.array(), 0, compressed.limit());
+		int length = 0;
+		while (length < uncompressed.length) {
+			int n = inflater.inflate(uncompressed, length, uncompressed.length - length);
+			if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+				throw new DataFormatException("block is shorter than expected");
+			}
+			length += n;
+		}
+		return ByteBuffer.wrap(uncompressed);
+	}
+
+	@NotNull
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("unexpected end of trace file: " + path);
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static long getVarint(@NotNull ByteBuffer buffer) {
+		long value = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = buffer.get();
+			value |= (long) (b & 0x7f) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+	}
+
+	private static final class SignalIndex {
+
+		final int width;
+		final long[] firstTimes;
+		final long[] offsets;
+		final int[] compressedSizes;
+		final int[] uncompressedSizes;
+		final int[] changeCounts;
+
+		SignalIndex(int width, int blockCount) {
+			this.width = width;
+			this.firstTimes = new long[blockCount];
+			this.offsets = new long[blockCount];
+			this.compressedSizes = new int[blockCount];
+			this.uncompressedSizes = new int[blockCount];
+			this.changeCounts = new int[blockCount];
+		}
+
+	}
+
+	/**
+	 * A change of a signal's value. The value is stored in words of 64 bits, least significant word first.
+	 */
+	public static final class Change {
+
+		private final long time;
+		private final long[] words;
+
+		Change(long time, @NotNull long[] words) {
+			this.time = time;
+			this.words = words;
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * Returns the value for signals of at most 64 bits, or the lowest 64 bits of wider signals.
+		 */
+		public long getValue() {
+			return words[0];
+		}
+
+		@NotNull
+		public long[] getWords() {
+			return words.clone();
+		}
+
+		@Override
+		public String toString() {
+			return time + ":" + Arrays.toString(words);
+		}
+
+	}
+
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the values of a domain to a trace file, a compact binary alternative to {@link VcdWriter} that can be read
+ * back with {@link TraceReader}. Call {@link #sample(long)} after each update of the domain to record the values at
+ * that time, and {@link #close()} when done.
+ * <p>
+ * Each signal has its own stream of changes, which is cut into blocks that get compressed independently. A change
+ * is stored as the time since the previous change in the same block, followed by the value (one word per 64 bits),
+ * all as unsigned varints. At the end of the file, an index lists the blocks of each signal with the time of their
+ * first change, so a reader can find the block for any time by binary search and only has to decompress the blocks
+ * of the time window it wants.
+ * <p>
+ * File layout (all numbers little-endian):
+ * <ul>
+ * <li>header: magic number, version (int each)</li>
+ * <li>compressed blocks (deflate)</li>
+ * <li>index: signal count, then per signal: name (length-prefixed UTF-8), width, block count (int each), then per
+ * block: time of the first change, file offset (long each), compressed size, uncompressed size, change count
+ * (int each)</li>
+ * <li>footer: file offset of the index (long), magic number (int)</li>
+ * </ul>
+ * Matrices and bit-sliced fields are not recorded.
+ */
+public final class TraceWriter implements Closeable {
+
+	static final int MAGIC = 0x4d614854;
+	static final int VERSION = 1;
+
+	private static final int BLOCK_SIZE = 64 << 10;
+
+	// most signals change rarely, so their block buffers start small and grow up to the block size on demand
+	private static final int INITIAL_BLOCK_CAPACITY = 256;
+
+	// room for the time and the largest single-word value, each as a varint
+	private static final int MAX_NARROW_CHANGE_SIZE = 20;
+
+	private final InternalDomain domain;
+	private final List<SignalStream> streams = new ArrayList<>();
+	private final int[] words;
+	private final long[] sampledWords;
+	private final int[][] streamsByWord;
+	private final FileChannel channel;
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private ByteBuffer compressed = ByteBuffer.allocate(BLOCK_SIZE + (BLOCK_SIZE >> 3) + 64);
+	private long position;
+	private boolean sampled = false;
+	private long lastTime;
+	private boolean closed = false;
+
+	/**
+	 * Creates a writer for the specified fields of the domain, usually those returned by
+	 * {@link ProgramBuilder#getValueFields()}.
+	 */
+	public TraceWriter(@NotNull InternalDomain domain, @NotNull Map<String, ValueField> fields, @NotNull Path path) throws IOException {
+		this.domain = domain;
+		SortedMap<Integer, List<Integer>> streamListsByWord = new TreeMap<>();
+		for (Map.Entry<String, ValueField> entry : fields.entrySet()) {
+			ValueField field = entry.getValue();
+			if (field.isMatrix() || field.isBitSliced()) {
+				continue;
+			}
+			for (int i = 0; i < field.getWordCount(); i++) {
+				streamListsByWord.computeIfAbsent(field.getWordIndex() + i, w -> new ArrayList<>()).add(streams.size());
+			}
+			streams.add(new SignalStream(entry.getKey(), field));
+		}
+		this.words = new int[streamListsByWord.size()];
+		this.streamsByWord = new int[words.length][];
+		int i = 0;
+		for (Map.Entry<Integer, List<Integer>> entry : streamListsByWord.entrySet()) {
+			words[i] = entry.getKey();
+			streamsByWord[i] = entry.getValue().stream().mapToInt(Integer::intValue).toArray();
+			i++;
+		}
+		this.sampledWords = new long[words.length];
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).flip();
+			write(header);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Records the current values of the domain at the specified time, which must be greater than at the previous call.
+	 * Only the signals whose value has changed get recorded, except for the first call, which records all of them.
+	 */
+	public void sample(long time) throws IOException {
+		if (closed) {
+			throw new IllegalStateException("writer is closed");
+		}
+		if (sampled && time <= lastTime) {
+			throw new IllegalArgumentException("time " + time + " is not after the previous sample at " + lastTime);
+		}
+		long[] values = domain.currentValues;
+		for (int i = 0; i < words.length; i++) {
+			long value = values[words[i]];
+			long changedBits = value ^ sampledWords[i];
+			if (changedBits != 0 || !sampled) {
+				sampledWords[i] = value;
+				for (int streamIndex : streamsByWord[i]) {
+					SignalStream stream = streams.get(streamIndex);
+					if (stream.lastChangeTime != time || !stream.hasChanges) {
+						ValueField field = stream.field;
+						if (!sampled || field.isWide() || (changedBits & (field.getMask() << field.getShift())) != 0) {
+							stream.append(time, values);
+						}
+					}
+				}
+			}
+		}
+		sampled = true;
+		lastTime = time;
+	}
+
+	/**
+	 * Writes the remaining blocks and the index, then closes the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			for (SignalStream stream : streams) {
+				stream.writeBlock();
+			}
+			long indexPosition = position;
+			ByteBuffer index = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+			index.putInt(streams.size());
+			for (SignalStream stream : streams) {
+				byte[] name = stream.name.getBytes(StandardCharsets.UTF_8);
+				index = ensureCapacity(index, 12 + name.length + stream.blocks.size() * 28);
+				index.putInt(name.length).put(name).putInt(stream.field.getWidth()).putInt(stream.blocks.size());
+				for (BlockInfo block : stream.blocks) {
+					index.putLong(block.firstTime).putLong(block.offset).putInt(block.compressedSize)
+						.putInt(block.uncompressedSize).putInt(block.changeCount);
+				}
+			}
+			index = ensureCapacity(index, 12);
+			index.putLong(indexPosition).putInt(MAGIC).flip();
+			write(index);
+		} finally {
+			deflater.end();
+			channel.close();
+		}
+	}
+
+	@NotNull
+	private static ByteBuffer ensureCapacity(@NotNull ByteBuffer buffer, int additional) {
+		if (buffer.remaining() >= additional) {
+			return buffer;
+		}
+		ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + additional)).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.flip();
+		larger.put(buffer);
+		return larger;
+	}
+
+	private void write(@NotNull ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer);
+		}
+	}
+
+	private static final class BlockInfo {
+
+		final long firstTime;
+		final long offset;
+		final int compressedSize;
+		final int uncompressedSize;
+		final int changeCount;
+
+		BlockInfo(long firstTime, long offset, int compressedSize, int uncompressedSize, int changeCount) {
+			this.firstTime = firstTime;
+			this.offset = offset;
+			this.compressedSize = compressedSize;
+			this.uncompressedSize = uncompressedSize;
+			this.changeCount = changeCount;
+		}
+
+	}
+
+	/**
+	 * The changes of a single signal, collecting the uncompressed data of the current block.
+	 */
+	private final class SignalStream {
+
+		final String name;
+		final ValueField field;
+		final List<BlockInfo> blocks = new ArrayList<>();
+		final int blockLimit;
+		byte[] block;
+		int blockLength = 0;
+		int blockChangeCount = 0;
+		long blockFirstTime;
+		long lastChangeTime;
+		boolean hasChanges = false;
+
+		SignalStream(@NotNull String name, @NotNull ValueField field) {
+			this.name = name;
+			this.field = field;
+			// a block must have room for at least one change, even for very wide signals
+			this.blockLimit = Math.max(BLOCK_SIZE, MAX_NARROW_CHANGE_SIZE + 10 * field.getWordCount());
+			this.block = new byte[Math.min(INITIAL_BLOCK_CAPACITY, blockLimit)];
+		}
+
+		void append(long time, @NotNull long[] values) throws IOException {
+			int maxChangeSize = MAX_NARROW_CHANGE_SIZE + (field.isWide() ? 10 * field.getWordCount() : 0);
+			if (blockLength + maxChangeSize > blockLimit) {
+				writeBlock();
+			}
+			if (blockLength + maxChangeSize > block.length) {
+				block = Arrays.copyOf(block, Math.min(Math.max(block.length * 2, blockLength + maxChangeSize), blockLimit));
+			}
+			if (blockChangeCount == 0) {
+				blockFirstTime = time;
+				lastChangeTime = time;
+			}
+			putVarint(time - lastChangeTime);
+			if (field.isWide()) {
+				for (int i = 0; i < field.getWordCount(); i++) {
+					putVarint(values[field.getWordIndex() + i]);
+				}
+			} else {
+				putVarint((values[field.getWordIndex()] >>> field.getShift()) & field.getMask());
+			}
+			blockChangeCount++;
+			lastChangeTime = time;
+			hasChanges = true;
+		}
+
+		private void putVarint(long value) {
+			while ((value & ~0x7fL) != 0) {
+				block[blockLength++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			block[blockLength++] = (byte) value;
+		}
+
+		void writeBlock() throws IOException {
+			if (blockChangeCount == 0) {
+				return;
+			}
+			deflater.reset();
+			deflater.setInput(block, 0, blockLength);
+			deflater.finish();
+			compressed.clear();
+			while (!deflater.finished()) {
+				if (!compressed.hasRemaining()) {
+					ByteBuffer larger = ByteBuffer.allocate(compressed.capacity() * 2);
+					compressed.flip();
+					larger.put(compressed);
+					compressed = larger;
+				}
+				int length = deflater.deflate(compressed.array(), compressed.position(), compressed.remaining());
+				compressed.position(compressed.position() + length);
+			}
+			compressed.flip();
+			blocks.add(new BlockInfo(blockFirstTime, position, compressed.remaining(), blockLength, blockChangeCount));
+			write(compressed);
+			blockLength = 0;
+			blockChangeCount = 0;
+		}
+
+	}
+
+}
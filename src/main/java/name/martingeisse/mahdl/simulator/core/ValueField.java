@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+/**
+ * Describes where the value of a signal-like is stored in a packed long[] value array.
+ * <p>
+ * Bits and vectors of up to 64 bits occupy (width) bits of a single word, starting at bit (shift). Wider vectors
+ * occupy consecutive whole words, least significant word first. Matrices store each row like a vector of the row
+ * width. Rows of up to 64 bits are placed in slots whose width is the next power of two, so several rows can share a
+ * word and the word index and shift of a row can be computed with shifts and masks. Wider rows take whole words.
+ * <p>
+ * In a bit-sliced layout, each bit of a field takes a whole word that holds the values of that bit for 64
+ * independent lanes, least significant bit first, and a matrix stores its rows one after another. Use the lane
+ * accessors of {@link InternalInput} and {@link InternalDomain} for such fields.
+ * <p>
+ * The index is the position of the signal-like in the layout. It is shared by all rows of a matrix. A field is
+ * "exclusive" if no other field shares its words, so it can be written without preserving other bits.
+ */
+public final class ValueField {
+
+	private final int index;
+	private final int wordIndex;
+	private final int shift;
+	private final int width;
+	private final int rowCount;
+	private final boolean exclusive;
+	private final boolean bitSliced;
+
+	ValueField(int index, int wordIndex, int shift, int width, int rowCount, boolean exclusive) {
+		this(index, wordIndex, shift, width, rowCount, exclusive, false);
+	}
+
+	ValueField(int index, int wordIndex, int shift, int width, int rowCount, boolean exclusive, boolean bitSliced) {
+		this.index = index;
+		this.wordIndex = wordIndex;
+		this.shift = shift;
+		this.width = width;
+		this.rowCount = rowCount;
+		this.exclusive = exclusive;
+		this.bitSliced = bitSliced;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public int getWordIndex() {
+		return wordIndex;
+	}
+
+	public int getShift() {
+		return shift;
+	}
+
+	/**
+	 * Returns the number of bits of this field, or of each row for a matrix.
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Returns the mask for the bits of this field after shifting them down to bit 0. Only valid for fields of at most
+	 * 64 bits.
+	 */
+	public long getMask() {
+		return width >= 64 ? -1L : ((1L << width) - 1);
+	}
+
+	public boolean isWide() {
+		return width > 64;
+	}
+
+	public boolean isExclusive() {
+		return exclusive;
+	}
+
+	public boolean isBitSliced() {
+		return bitSliced;
+	}
+
+	public boolean isMatrix() {
+		return rowCount > 0;
+	}
+
+	/**
+	 * Returns the number of rows for a matrix, 0 otherwise.
+	 */
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * Returns the number of words taken by a single row (or the field itself if not a matrix), which is only
+	 * meaningful for wide or bit-sliced fields.
+	 */
+	public int getWordsPerRow() {
+		return bitSliced ? width : (width + 63) >>> 6;
+	}
+
+	/**
+	 * Returns log2 of the slot width used for the rows of a matrix with narrow rows.
+	 */
+	int getRowSlotWidthLog2() {
+		return 32 - Integer.numberOfLeadingZeros(width - 1);
+	}
+
+	/**
+	 * Returns log2 of the number of rows per word for a matrix with narrow rows.
+	 */
+	int getRowsPerWordLog2() {
+		return 6 - getRowSlotWidthLog2();
+	}
+
+	/**
+	 * Returns the total number of words that this field touches.
+	 */
+	public int getWordCount() {
+		if (rowCount == 0) {
+			return getWordsPerRow();
+		} else if (width > 64 || bitSliced) {
+			return rowCount * getWordsPerRow();
+		} else {
+			return ((rowCount - 1) >>> getRowsPerWordLog2()) + 1;
+		}
+	}
+
+	/**
+	 * Returns the field for the specified row of a matrix.
+	 */
+	public ValueField getRow(int row) {
+		if (rowCount == 0) {
+			throw new IllegalStateException("not a matrix");
+		}
+		if (row < 0 || row >= rowCount) {
+			throw new IndexOutOfBoundsException("row " + row + " in a matrix with " + rowCount + " rows");
+		}
+		if (width > 64 || bitSliced) {
+			return new ValueField(index, wordIndex + row * getWordsPerRow(), 0, width, 0, true, bitSliced);
+		} else {
+			int rowsPerWordLog2 = getRowsPerWordLog2();
+			int rowShift = (row & ((1 << rowsPerWordLog2) - 1)) << getRowSlotWidthLog2();
+			return new ValueField(index, wordIndex + (row >>> rowsPerWordLog2), rowShift, width, 0, rowsPerWordLog2 == 0);
+		}
+	}
+
+	/**
+	 * Extracts the value of this field from the specified words. Only valid for fields of at most 64 bits.
+	 */
+	long get(long[] words) {
+		return (words[wordIndex] >>> shift) & getMask();
+	}
+
+	/**
+	 * Replaces the value of this field in the specified words. Only valid for fields of at most 64 bits. Excess bits
+	 * of the value are ignored.
+	 */
+	void set(long[] words, long value) {
+		long mask = getMask() << shift;
+		words[wordIndex] = (words[wordIndex] & ~mask) | ((value << shift) & mask);
+	}
+
+	/**
+	 * Extracts the value of this field in the specified lane from bit-sliced words. Only valid for fields of at most
+	 * 64 bits.
+	 */
+	long getLane(long[] words, int lane) {
+		long value = 0;
+		for (int i = 0; i < width; i++) {
+			value |= ((words[wordIndex + i] >>> lane) & 1) << i;
+		}
+		return value;
+	}
+
+	/**
+	 * Replaces the value of this field in the specified lane of bit-sliced words. Only valid for fields of at most
+	 * 64 bits. Excess bits of the value are ignored.
+	 */
+	void setLane(long[] words, int lane, long value) {
+		for (int i = 0; i < width; i++) {
+			words[wordIndex + i] = (words[wordIndex + i] & ~(1L << lane)) | (((value >>> i) & 1) << lane);
+		}
+	}
+
+	/**
+	 * Sets the bit with the specified index within this field in the specified words. In a bit-sliced layout, the
+	 * bit gets set in all lanes.
+	 */
+	void setBit(long[] words, int bitIndex) {
+		if (bitSliced) {
+			words[wordIndex + bitIndex] = -1L;
+			return;
+		}
+		int absoluteBitIndex = (wordIndex << 6) + shift + bitIndex;
+		words[absoluteBitIndex >>> 6] |= (1L << (absoluteBitIndex & 63));
+	}
+
+	@Override
+	public String toString() {
+		return "ValueField{index=" + index + ", wordIndex=" + wordIndex + ", shift=" + shift + ", width=" + width +
+			", rowCount=" + rowCount + ", exclusive=" + exclusive + ", bitSliced=" + bitSliced + "}";
+	}
+
+}
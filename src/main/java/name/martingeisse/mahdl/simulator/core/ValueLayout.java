@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import com.google.common.collect.ImmutableMap;
+import name.martingeisse.mahdl.plugin.processor.definition.*;
+import name.martingeisse.mahdl.plugin.processor.type.ProcessedDataType;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assigns a {@link ValueField} in the domain's packed value array to each signal, register and output port of a
+ * module, and a field in the input's value array to each input port. Constants take no space at all since they get
+ * compiled into the program.
+ * <p>
+ * Matrices and vectors wider than 64 bits get whole words, in the order of their definition. Bits and vectors of up to
+ * 64 bits are then packed into the remaining words, widest first, putting each field into the first word that still
+ * has room for it. A field never crosses a word boundary, so it can be accessed by a single shift and mask.
+ * <p>
+ * Packing saves a lot of memory, but costs a few instructions for each access. For small designs whose state fits
+ * into the cache anyway, an unpacked layout that gives each bit and narrow vector a word of its own may be faster.
+ * <p>
+ * A bit-sliced layout gives each bit of each field (and each row of a matrix) a word of its own, in the order of
+ * definition, for programs that simulate 64 lanes at once (see {@link BitSlicedMethodCompiler}).
+ */
+final class ValueLayout {
+
+	private final ImmutableMap<String, ValueField> fields;
+	private final ImmutableMap<String, ValueField> inputFields;
+	private final int wordCount;
+	private final int inputWordCount;
+	private final boolean bitSliced;
+
+	ValueLayout(@NotNull ModuleDefinition moduleDefinition, boolean packed) {
+		this(moduleDefinition, packed, false);
+	}
+
+	ValueLayout(@NotNull ModuleDefinition moduleDefinition, boolean packed, boolean bitSliced) {
+		List<SignalLike> signalLikes = new ArrayList<>();
+		List<SignalLike> inputSignalLikes = new ArrayList<>();
+		for (Named definition : moduleDefinition.getDefinitions().values()) {
+			if (definition instanceof Constant) {
+				continue;
+			}
+			if (!(definition instanceof SignalLike)) {
+				throw new ProgramBuilderException(definition.getNameElement(), "module instances are not supported by the simulator");
+			}
+			SignalLike signalLike = (SignalLike) definition;
+			(isInput(signalLike) ? inputSignalLikes : signalLikes).add(signalLike);
+		}
+		Map<String, ValueField> fields = new LinkedHashMap<>();
+		Map<String, ValueField> inputFields = new LinkedHashMap<>();
+		if (bitSliced) {
+			this.wordCount = planBitSliced(signalLikes, fields);
+			this.inputWordCount = planBitSliced(inputSignalLikes, inputFields);
+		} else {
+			this.wordCount = plan(signalLikes, fields, packed);
+			this.inputWordCount = plan(inputSignalLikes, inputFields, packed);
+		}
+		this.bitSliced = bitSliced;
+		this.fields = ImmutableMap.copyOf(fields);
+		this.inputFields = ImmutableMap.copyOf(inputFields);
+	}
+
+	/**
+	 * Assigns fields to the specified signal-likes and returns the number of words used.
+	 */
+	private static int plan(@NotNull List<SignalLike> signalLikes, @NotNull Map<String, ValueField> result, boolean packed) {
+
+		// whole words for matrices and wide vectors
+		int wordCount = 0;
+		List<Integer> narrowIndices = new ArrayList<>();
+		ValueField[] fields = new ValueField[signalLikes.size()];
+		for (int i = 0; i < fields.length; i++) {
+			SignalLike signalLike = signalLikes.get(i);
+			ProcessedDataType dataType = signalLike.getProcessedDataType();
+			if (dataType instanceof ProcessedDataType.Matrix) {
+				ProcessedDataType.Matrix matrixType = (ProcessedDataType.Matrix) dataType;
+				fields[i] = new ValueField(i, wordCount, 0, matrixType.getSecondSize(), matrixType.getFirstSize(), false);
+				wordCount += fields[i].getWordCount();
+			} else if (getWidth(signalLike) > 64) {
+				fields[i] = new ValueField(i, wordCount, 0, getWidth(signalLike), 0, true);
+				wordCount += fields[i].getWordCount();
+			} else {
+				narrowIndices.add(i);
+			}
+		}
+
+		// first-fit decreasing for narrow fields
+		if (packed) {
+			narrowIndices.sort((a, b) -> Integer.compare(getWidth(signalLikes.get(b)), getWidth(signalLikes.get(a))));
+		}
+		int firstNarrowWord = wordCount;
+		List<Integer> usedBits = new ArrayList<>();
+		List<Integer> fieldCounts = new ArrayList<>();
+		int[] narrowWords = new int[fields.length];
+		for (int i : narrowIndices) {
+			int width = getWidth(signalLikes.get(i));
+			int word = 0;
+			if (packed) {
+				while (word < usedBits.size() && usedBits.get(word) + width > 64) {
+					word++;
+				}
+			} else {
+				word = usedBits.size();
+			}
+			if (word == usedBits.size()) {
+				usedBits.add(0);
+				fieldCounts.add(0);
+			}
+			narrowWords[i] = word;
+			fields[i] = new ValueField(i, firstNarrowWord + word, usedBits.get(word), width, 0, false);
+			usedBits.set(word, usedBits.get(word) + width);
+			fieldCounts.set(word, fieldCounts.get(word) + 1);
+		}
+		for (int i : narrowIndices) {
+			if (fieldCounts.get(narrowWords[i]) == 1) {
+				ValueField field = fields[i];
+				fields[i] = new ValueField(i, field.getWordIndex(), field.getShift(), field.getWidth(), 0, true);
+			}
+		}
+		wordCount += usedBits.size();
+
+		for (int i = 0; i < fields.length; i++) {
+			result.put(signalLikes.get(i).getName(), fields[i]);
+		}
+		return wordCount;
+	}
+
+	/**
+	 * Assigns bit-sliced fields to the specified signal-likes and returns the number of words used.
+	 */
+	private static int planBitSliced(@NotNull List<SignalLike> signalLikes, @NotNull Map<String, ValueField> result) {
+		int wordCount = 0;
+		for (int i = 0; i < signalLikes.size(); i++) {
+			SignalLike signalLike = signalLikes.get(i);
+			ProcessedDataType dataType = signalLike.getProcessedDataType();
+			ValueField field;
+			if (dataType instanceof ProcessedDataType.Matrix) {
+				ProcessedDataType.Matrix matrixType = (ProcessedDataType.Matrix) dataType;
+				field = new ValueField(i, wordCount, 0, matrixType.getSecondSize(), matrixType.getFirstSize(), true, true);
+			} else {
+				field = new ValueField(i, wordCount, 0, getWidth(signalLike), 0, true, true);
+			}
+			wordCount += field.getWordCount();
+			result.put(signalLike.getName(), field);
+		}
+		return wordCount;
+	}
+
+	private static int getWidth(@NotNull SignalLike signalLike) {
+		ProcessedDataType dataType = signalLike.getProcessedDataType();
+		if (dataType instanceof ProcessedDataType.Bit) {
+			return 1;
+		} else if (dataType instanceof ProcessedDataType.Vector) {
+			return ((ProcessedDataType.Vector) dataType).getSize();
+		} else {
+			throw new ProgramBuilderException(signalLike.getNameElement(), "data type not supported by the simulator: " + dataType);
+		}
+	}
+
+	static boolean isInput(@NotNull SignalLike signalLike) {
+		return (signalLike instanceof ModulePort) && ((ModulePort) signalLike).getDirection() == PortDirection.IN;
+	}
+
+	@NotNull
+	public ImmutableMap<String, ValueField> getFields() {
+		return fields;
+	}
+
+	@NotNull
+	public ImmutableMap<String, ValueField> getInputFields() {
+		return inputFields;
+	}
+
+	public int getWordCount() {
+		return wordCount;
+	}
+
+	public int getInputWordCount() {
+		return inputWordCount;
+	}
+
+	public boolean isBitSliced() {
+		return bitSliced;
+	}
+
+	/**
+	 * Returns a text that lists the name, position and size of each field, then each input field. Values stored for
+	 * one layout have the same meaning in another layout with the same description (see {@link Checkpoint}), even if
+	 * the programs were built with different settings.
+	 */
+	@NotNull
+	public String getDescription() {
+		StringBuilder builder = new StringBuilder();
+		builder.append(bitSliced ? "bit-sliced" : "word").append(' ').append(wordCount).append(' ').append(inputWordCount);
+		for (Map.Entry<String, ValueField> entry : fields.entrySet()) {
+			appendDescription(builder.append("\nfield "), entry.getKey(), entry.getValue());
+		}
+		for (Map.Entry<String, ValueField> entry : inputFields.entrySet()) {
+			appendDescription(builder.append("\ninput "), entry.getKey(), entry.getValue());
+		}
+		return builder.toString();
+	}
+
+	private static void appendDescription(@NotNull StringBuilder builder, @NotNull String name, @NotNull ValueField field) {
+		builder.append(name).append(' ').append(field.getWordIndex()).append(':').append(field.getShift()).append(' ')
+			.append(field.getWidth()).append('x').append(field.getRowCount());
+	}
+
+	/**
+	 * Returns the field for the specified signal-like, either in the domain's or in the input's value array,
+	 * depending on whether it is an input port.
+	 */
+	@NotNull
+	public ValueField getField(@NotNull SignalLike signalLike) {
+		ValueField field = (isInput(signalLike) ? inputFields : fields).get(signalLike.getName());
+		if (field == null) {
+			throw new ProgramBuilderException(signalLike.getNameElement(), "no value field for " + signalLike.getName());
+		}
+		return field;
+	}
+
+}
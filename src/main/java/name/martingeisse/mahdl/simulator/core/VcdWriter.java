@@ -0,0 +1,398 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes the values of a domain to a VCD (value change dump) file. Call {@link #sample(long)} after each update of
+ * the domain to record the values at that time, and {@link #close()} when done.
+ * <p>
+ * To keep the cost for the simulation thread low, sampling only compares the words that contain the recorded fields
+ * to their values at the previous sample, and puts the changed words into a single-producer, single-consumer ring
+ * buffer. A background thread takes them from there, finds the fields that changed, formats the text and writes it
+ * to the file through a large direct buffer. If the background thread falls behind, sampling waits for it.
+ * <p>
+ * Matrices and bit-sliced fields are not recorded.
+ */
+public final class VcdWriter implements Closeable {
+
+	private static final int MINIMUM_RING_CAPACITY = 1 << 20;
+	private static final int OUTPUT_BUFFER_SIZE = 4 << 20;
+	private static final int STAGING_SIZE = 64 << 10;
+
+	private final InternalDomain domain;
+	private final List<String> names = new ArrayList<>();
+	private final List<ValueField> fields = new ArrayList<>();
+	private final int[] words;
+	private final long[] sampledWords;
+	private final long[] ring;
+	private final int ringMask;
+	private final AtomicLong ringHead = new AtomicLong();
+	private final AtomicLong ringTail = new AtomicLong();
+	private final FileChannel channel;
+	private final Thread thread;
+	private volatile boolean closed = false;
+	private volatile Throwable failure;
+	private long cachedRingTail = 0;
+	private boolean sampled = false;
+
+	/**
+	 * Creates a writer for the specified fields of the domain, usually those returned by
+	 * {@link ProgramBuilder#getValueFields()}, and writes the VCD header. The timescale is written to the header as is,
+	 * e.g. "1 ps", and should describe the times passed to {@link #sample(long)}.
+	 */
+	public VcdWriter(@NotNull InternalDomain domain, @NotNull Map<String, ValueField> fields, @NotNull String scopeName,
+					 @NotNull String timescale, @NotNull Path path) throws IOException {
+		this.domain = domain;
+		SortedSet<Integer> wordSet = new TreeSet<>();
+		for (Map.Entry<String, ValueField> entry : fields.entrySet()) {
+			ValueField field = entry.getValue();
+			if (field.isMatrix() || field.isBitSliced()) {
+				continue;
+			}
+			names.add(entry.getKey());
+			this.fields.add(field);
+			for (int i = 0; i < field.getWordCount(); i++) {
+				wordSet.add(field.getWordIndex() + i);
+			}
+		}
+		this.words = wordSet.stream().mapToInt(Integer::intValue).toArray();
+		this.sampledWords = new long[words.length];
+		int ringCapacity = Integer.highestOneBit(Math.max(MINIMUM_RING_CAPACITY, 8 * (words.length + 1)) - 1) << 1;
+		this.ring = new long[ringCapacity];
+		this.ringMask = ringCapacity - 1;
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		Formatter formatter;
+		try {
+			formatter = new Formatter(scopeName, timescale);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+		this.thread = new Thread(formatter, "VCD writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Records the current values of the domain at the specified time, which must not be less than at the previous
+	 * call. Throws an UncheckedIOException if writing the file has failed.
+	 */
+	public void sample(long time) {
+		checkFailure();
+		if (closed) {
+			throw new IllegalStateException("writer is closed");
+		}
+
+		// make sure that all words fit, so we don't have to check for each word. The tail is only read when the
+		// space known from the last time isn't enough, to avoid touching the consumer's cache line on every sample.
+		long head = ringHead.get();
+		while (head + 2 + 2 * words.length - cachedRingTail > ring.length) {
+			checkFailure();
+			cachedRingTail = ringTail.get();
+			if (head + 2 + 2 * words.length - cachedRingTail > ring.length) {
+				Thread.yield();
+			}
+		}
+
+		// an entry consists of the time, the number of changed words and (position, value) of each changed word
+		long[] values = domain.currentValues;
+		long position = head + 2;
+		for (int i = 0; i < words.length; i++) {
+			long value = values[words[i]];
+			if (value != sampledWords[i] || !sampled) {
+				sampledWords[i] = value;
+				ring[(int) position & ringMask] = i;
+				ring[(int) (position + 1) & ringMask] = value;
+				position += 2;
+			}
+		}
+		if (position != head + 2 || !sampled) {
+			ring[(int) head & ringMask] = time;
+			ring[(int) (head + 1) & ringMask] = (position - head - 2) >> 1;
+			ringHead.lazySet(position);
+		}
+		sampled = true;
+	}
+
+	/**
+	 * Waits until all samples have been written, then closes the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		LockSupport.unpark(thread);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while waiting for the VCD writer thread", e);
+		}
+		Throwable failure = this.failure;
+		if (failure instanceof IOException) {
+			throw (IOException) failure;
+		} else if (failure != null) {
+			throw new IOException("VCD writer thread failed", failure);
+		}
+	}
+
+	private void checkFailure() {
+		Throwable failure = this.failure;
+		if (failure instanceof IOException) {
+			throw new UncheckedIOException((IOException) failure);
+		} else if (failure != null) {
+			throw new IllegalStateException("VCD writer thread failed", failure);
+		}
+	}
+
+	/**
+	 * Runs in the background thread. Keeps its own copy of the sampled words to find the fields that changed.
+	 */
+	private final class Formatter implements Runnable {
+
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(OUTPUT_BUFFER_SIZE);
+		private final byte[][] identifiers = new byte[fields.size()][];
+		private final int[][] fieldsByWord = new int[words.length][];
+		private final long[] wordValues = new long[words.length];
+		private final int[] changedInSample = new int[fields.size()];
+		private final int[] changedFields = new int[fields.size()];
+		private final byte[] staging = new byte[STAGING_SIZE];
+		private int stagingLength = 0;
+		private boolean dumped = false;
+
+		// only used to tell whether a field has already been marked as changed in the current sample, so wrapping around is fine
+		private int sampleCount = 0;
+
+		Formatter(@NotNull String scopeName, @NotNull String timescale) throws IOException {
+			List<List<Integer>> fieldLists = new ArrayList<>();
+			for (int i = 0; i < words.length; i++) {
+				fieldLists.add(new ArrayList<>());
+			}
+			for (int i = 0; i < fields.size(); i++) {
+				ValueField field = fields.get(i);
+				for (int j = 0; j < field.getWordCount(); j++) {
+					fieldLists.get(Arrays.binarySearch(words, field.getWordIndex() + j)).add(i);
+				}
+			}
+			for (int i = 0; i < words.length; i++) {
+				fieldsByWord[i] = fieldLists.get(i).stream().mapToInt(Integer::intValue).toArray();
+			}
+			StringBuilder header = new StringBuilder();
+			header.append("$timescale ").append(timescale).append(" $end\n");
+			header.append("$scope module ").append(scopeName).append(" $end\n");
+			for (int i = 0; i < fields.size(); i++) {
+				identifiers[i] = createIdentifier(i);
+				header.append("$var wire ").append(fields.get(i).getWidth()).append(' ')
+					.append(new String(identifiers[i], StandardCharsets.US_ASCII)).append(' ').append(names.get(i)).append(" $end\n");
+			}
+			header.append("$upscope $end\n$enddefinitions $end\n");
+			write(header.toString().getBytes(StandardCharsets.UTF_8));
+			flush();
+			Arrays.fill(changedInSample, -1);
+		}
+
+		// identifiers use the printable characters from '!' to '~'
+		private byte[] createIdentifier(int index) {
+			StringBuilder builder = new StringBuilder();
+			do {
+				builder.append((char) ('!' + index % 94));
+				index = index / 94;
+			} while (index > 0);
+			return builder.toString().getBytes(StandardCharsets.US_ASCII);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					long tail = ringTail.get();
+					long head = ringHead.get();
+					if (tail == head) {
+						if (closed && ringHead.get() == tail) {
+							break;
+						}
+						flush();
+						LockSupport.parkNanos(100_000);
+						continue;
+					}
+					while (tail != head) {
+						tail = formatSample(tail);
+					}
+					ringTail.lazySet(tail);
+				}
+				flush();
+			} catch (Throwable e) {
+				failure = e;
+			} finally {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					if (failure == null) {
+						failure = e;
+					}
+				}
+			}
+		}
+
+		// formats the entry at the specified ring position and returns the position after it
+		private long formatSample(long position) throws IOException {
+			long time = ring[(int) position & ringMask];
+			int wordCount = (int) ring[(int) (position + 1) & ringMask];
+			position += 2;
+			write('#');
+			writeDecimal(time);
+			write('\n');
+			boolean first = !dumped;
+			if (first) {
+				write("$dumpvars\n".getBytes(StandardCharsets.US_ASCII));
+			}
+			int changedFieldCount = 0;
+			for (int i = 0; i < wordCount; i++) {
+				int word = (int) ring[(int) position & ringMask];
+				long value = ring[(int) (position + 1) & ringMask];
+				position += 2;
+				long changedBits = (first ? -1L : value ^ wordValues[word]);
+				wordValues[word] = value;
+				for (int fieldIndex : fieldsByWord[word]) {
+					ValueField field = fields.get(fieldIndex);
+					if (changedInSample[fieldIndex] == sampleCount) {
+						continue;
+					}
+					if (field.isWide() || (changedBits & (field.getMask() << field.getShift())) != 0) {
+						changedInSample[fieldIndex] = sampleCount;
+						changedFields[changedFieldCount] = fieldIndex;
+						changedFieldCount++;
+					}
+				}
+			}
+			// wide fields may span several changed words, so only format them once all words are known
+			for (int i = 0; i < changedFieldCount; i++) {
+				formatValue(changedFields[i]);
+			}
+			if (first) {
+				write("$end\n".getBytes(StandardCharsets.US_ASCII));
+				dumped = true;
+			}
+			sampleCount++;
+			return position;
+		}
+
+		private void formatValue(int fieldIndex) throws IOException {
+			ValueField field = fields.get(fieldIndex);
+			int firstWord = Arrays.binarySearch(words, field.getWordIndex());
+			if (field.getWidth() == 1) {
+				write((wordValues[firstWord] >>> field.getShift() & 1) == 0 ? '0' : '1');
+			} else {
+				write('b');
+				if (field.isWide()) {
+					boolean started = false;
+					for (int i = field.getWordCount() - 1; i >= 0; i--) {
+						long word = wordValues[firstWord + i];
+						int bits = (i == field.getWordCount() - 1) ? field.getWidth() - (i << 6) : 64;
+						if (started) {
+							writeBinary(word, bits, bits);
+						} else if (word != 0 || i == 0) {
+							writeBinary(word, bits, 1);
+							started = true;
+						}
+					}
+				} else {
+					writeBinary((wordValues[firstWord] >>> field.getShift()) & field.getMask(), field.getWidth(), 1);
+				}
+				write(' ');
+			}
+			write(identifiers[fieldIndex]);
+			write('\n');
+		}
+
+		// writes the lowest (bits) bits of the value, omitting leading zeros but writing at least (minimumDigits)
+		private void writeBinary(long value, int bits, int minimumDigits) throws IOException {
+			int digitCount = Math.max(minimumDigits, Math.min(bits, 64 - Long.numberOfLeadingZeros(value)));
+			reserve(digitCount);
+			for (int i = digitCount - 1; i >= 0; i--) {
+				staging[stagingLength++] = (byte) ('0' + (value >>> i & 1));
+			}
+		}
+
+		private void writeDecimal(long value) throws IOException {
+			if (value < 0) {
+				write('-');
+				value = -value;
+			}
+			reserve(20);
+			int start = stagingLength;
+			do {
+				staging[stagingLength++] = (byte) ('0' + value % 10);
+				value /= 10;
+			} while (value != 0);
+			for (int i = start, j = stagingLength - 1; i < j; i++, j--) {
+				byte temp = staging[i];
+				staging[i] = staging[j];
+				staging[j] = temp;
+			}
+		}
+
+		private void write(char c) throws IOException {
+			reserve(1);
+			staging[stagingLength++] = (byte) c;
+		}
+
+		private void write(byte[] bytes) throws IOException {
+			for (int offset = 0; offset < bytes.length; offset += staging.length) {
+				int length = Math.min(bytes.length - offset, staging.length);
+				reserve(length);
+				System.arraycopy(bytes, offset, staging, stagingLength, length);
+				stagingLength += length;
+			}
+		}
+
+		// makes room for the specified number of bytes in the staging array, which must not exceed its size
+		private void reserve(int length) throws IOException {
+			if (stagingLength + length > staging.length) {
+				transfer();
+			}
+		}
+
+		// moves the staging array to the output buffer, writing the buffer to the file when full
+		private void transfer() throws IOException {
+			if (stagingLength > buffer.remaining()) {
+				writeBuffer();
+			}
+			buffer.put(staging, 0, stagingLength);
+			stagingLength = 0;
+		}
+
+		private void flush() throws IOException {
+			transfer();
+			writeBuffer();
+		}
+
+		private void writeBuffer() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+
+	}
+
+}
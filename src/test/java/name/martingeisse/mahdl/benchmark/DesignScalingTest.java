@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.benchmark;
+
+import name.martingeisse.mahdl.plugin.input.psi.Module;
+import name.martingeisse.mahdl.plugin.processor.ModuleProcessor;
+import name.martingeisse.mahdl.plugin.processor.definition.ModuleDefinition;
+import name.martingeisse.mahdl.simulator.core.*;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reports how processing time and memory grow with the size of a design from the {@link DesignGenerator}. For each
+ * size, this test measures how long parsing and processing all modules take, how much heap the PSI trees and the
+ * module definitions retain, and, for designs without hierarchy, how long building the program takes and how fast it
+ * simulates. Each measurement is taken once, so this shows trends across orders of magnitude rather than precise
+ * numbers; use the JMH benchmarks for the latter. The first size is run once more up front to warm up the JIT.
+ * <p>
+ * Timings depend on the machine and its load, so this test only checks that the designs get processed without errors,
+ * and is excluded from the normal test run. The "scaling" Gradle task runs it alone with sizes up to 1000000, or with
+ * arguments passed as -PscalingArgs="...". The system property "scaling.args" contains the sizes to measure
+ * (default: 1000 10000) and the options --seed=N, --depth=N, --instances=N, --switchCases=N and --cycles=N. Large
+ * sizes need a large heap (-Xmx).
+ */
+public class DesignScalingTest {
+
+	private static final String PACKAGE_NAME = "scaling";
+
+	/**
+	 * Parsing and processing recurse along the syntax tree, whose lists get very deep for huge modules, so the
+	 * measurements run in a thread with a large stack.
+	 */
+	private static final long STACK_SIZE = 1L << 30;
+
+	private DesignGenerator generator;
+	private int cycles = 1000;
+
+	@Test
+	public void testScaling() throws Exception {
+		long seed = 1;
+		int depth = 0;
+		int instances = 2;
+		int switchCases = 8;
+		List<Integer> sizes = new ArrayList<>();
+		for (String arg : System.getProperty("scaling.args", "1000 10000").trim().split("\\s+")) {
+			if (arg.startsWith("--seed=")) {
+				seed = Long.parseLong(getOptionValue(arg));
+			} else if (arg.startsWith("--depth=")) {
+				depth = Integer.parseInt(getOptionValue(arg));
+			} else if (arg.startsWith("--instances=")) {
+				instances = Integer.parseInt(getOptionValue(arg));
+			} else if (arg.startsWith("--switchCases=")) {
+				switchCases = Integer.parseInt(getOptionValue(arg));
+			} else if (arg.startsWith("--cycles=")) {
+				cycles = Integer.parseInt(getOptionValue(arg));
+			} else if (arg.startsWith("--")) {
+				throw new IllegalArgumentException("unknown option: " + arg);
+			} else if (!arg.isEmpty()) {
+				sizes.add(Integer.parseInt(arg));
+			}
+		}
+		assertFalse("no sizes to measure", sizes.isEmpty());
+
+		generator = new DesignGenerator(seed);
+		generator.setHierarchyDepth(depth);
+		generator.setInstancesPerModule(instances);
+		generator.setSwitchCases(switchCases);
+		System.out.println("seed " + seed + ", hierarchy depth " + depth + ", " + instances + " instances per module, " +
+			switchCases + " switch cases, " + cycles + " cycles");
+		List<Result> results = new ArrayList<>();
+		Throwable[] failure = new Throwable[1];
+		Thread thread = new Thread(null, () -> {
+			try {
+				measure(sizes.get(0));
+				for (int size : sizes) {
+					results.add(measure(size));
+				}
+			} catch (Throwable e) {
+				failure[0] = e;
+			}
+		}, "scaling", STACK_SIZE);
+		thread.start();
+		thread.join();
+		if (failure[0] instanceof Exception) {
+			throw (Exception) failure[0];
+		} else if (failure[0] != null) {
+			throw (Error) failure[0];
+		}
+
+		System.out.printf("%10s %8s %10s %12s %10s %10s %10s %10s %10s %14s%n", "size", "modules", "source", "parse",
+			"psi heap", "process", "def. heap", "build", "simulate", "cycles/s");
+		for (Result result : results) {
+			result.print();
+		}
+	}
+
+	private static String getOptionValue(String arg) {
+		return arg.substring(arg.indexOf('=') + 1);
+	}
+
+	private Result measure(int size) throws Exception {
+		Result result = new Result(size);
+		generator.setSize(size);
+		Map<String, String> sources = generator.generate(PACKAGE_NAME);
+		for (String source : sources.values()) {
+			result.sourceLength += source.length();
+		}
+		try (HeadlessProject project = new HeadlessProject()) {
+
+			// all modules must be loaded before any of them is processed, so module instances can be resolved
+			long heapBefore = getUsedHeapAfterGc();
+			long start = System.nanoTime();
+			List<Module> modules = new ArrayList<>();
+			for (Map.Entry<String, String> entry : sources.entrySet()) {
+				modules.add(project.loadModule(entry.getKey(), entry.getValue()));
+			}
+			result.parseNanos = System.nanoTime() - start;
+			long heapAfterParsing = getUsedHeapAfterGc();
+			result.psiHeap = heapAfterParsing - heapBefore;
+
+			start = System.nanoTime();
+			List<ModuleDefinition> moduleDefinitions = new ArrayList<>();
+			for (Module module : modules) {
+				moduleDefinitions.add(new ModuleProcessor(module, HeadlessProject.STRICT_ERROR_HANDLER).process());
+			}
+			result.processNanos = System.nanoTime() - start;
+			result.definitionHeap = getUsedHeapAfterGc() - heapAfterParsing;
+			result.moduleCount = moduleDefinitions.size();
+			assertEquals(sources.size(), result.moduleCount);
+
+			// the program builder only supports modules without instances
+			if (moduleDefinitions.size() == 1) {
+				start = System.nanoTime();
+				ProgramBuilder builder = new ProgramBuilder(moduleDefinitions.get(0), 0);
+				Program program = builder.build();
+				result.buildNanos = System.nanoTime() - start;
+
+				InternalSimulation simulation = new InternalSimulation();
+				InternalInput input = simulation.createInput(builder.getInputWordCount());
+				InternalDomain domain = simulation.createDomain(builder.getWordCount(), program);
+				input.setValue(builder.getInputValueFields().get("x"), 0x1234);
+				domain.runCycles(Math.max(cycles / 10, 1));
+				start = System.nanoTime();
+				domain.runCycles(cycles);
+				result.simulateNanos = System.nanoTime() - start;
+			}
+
+		}
+		return result;
+	}
+
+	private static long getUsedHeapAfterGc() {
+		MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return memoryBean.getHeapMemoryUsage().getUsed();
+	}
+
+	private final class Result {
+
+		private final int size;
+		private int moduleCount;
+		private long sourceLength;
+		private long parseNanos;
+		private long psiHeap;
+		private long processNanos;
+		private long definitionHeap;
+		private long buildNanos = -1;
+		private long simulateNanos = -1;
+
+		Result(int size) {
+			this.size = size;
+		}
+
+		void print() {
+			System.out.printf("%10d %8d %10s %12s %10s %10s %10s %10s %10s %14s%n", size, moduleCount,
+				formatBytes(sourceLength), formatMillis(parseNanos), formatBytes(psiHeap), formatMillis(processNanos), formatBytes(definitionHeap),
+				formatMillis(buildNanos), formatMillis(simulateNanos),
+				simulateNanos < 0 ? "-" : String.format("%.0f", cycles * 1e9 / simulateNanos));
+		}
+
+		private String formatMillis(long nanos) {
+			return nanos < 0 ? "-" : String.format("%.1f ms", nanos / 1e6);
+		}
+
+		private String formatBytes(long bytes) {
+			return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+		}
+
+	}
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import name.martingeisse.mahdl.benchmark.ProcessedTrees;
+import name.martingeisse.mahdl.plugin.processor.definition.ModuleDefinition;
+import name.martingeisse.mahdl.plugin.processor.definition.ModulePort;
+import name.martingeisse.mahdl.plugin.processor.definition.Register;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static name.martingeisse.mahdl.benchmark.ProcessedTrees.*;
+import static name.martingeisse.mahdl.plugin.processor.expression.ProcessedBinaryOperator.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that {@link BufferingMode#FLIP} computes the same values as {@link BufferingMode#COPY} for a design whose
+ * matrices get written at rows selected at runtime, which FLIP has to mirror to the old values, including two writes
+ * to the same row in one update and rows wider than a word. Also checks that evaluating a domain leaves its current
+ * values unchanged except for the mirrored matrix rows.
+ */
+public class BufferingModeTest {
+
+	private static final int CYCLES = 2000;
+
+	@Test
+	public void testFlipMatchesCopy() throws Exception {
+		for (boolean packedLayout : new boolean[] {false, true}) {
+			for (boolean activityTracking : new boolean[] {false, true}) {
+				String message = "packed " + packedLayout + ", tracking " + activityTracking;
+				Setup copy = new Setup(BufferingMode.COPY, activityTracking, packedLayout);
+				Setup flip = new Setup(BufferingMode.FLIP, activityTracking, packedLayout);
+				assertEquals(message, copy.builder.getWordCount(), flip.builder.getWordCount());
+				Random random = new Random(1);
+				for (int cycle = 0; cycle < CYCLES; cycle++) {
+					// keep some inputs for a few cycles, so activity tracking skips blocks
+					if (random.nextInt(3) == 0) {
+						for (String name : new String[] {"address", "data", "writeEnable", "mode"}) {
+							long value = random.nextLong();
+							copy.input.setValue(copy.builder.getInputValueFields().get(name), value);
+							flip.input.setValue(flip.builder.getInputValueFields().get(name), value);
+						}
+					}
+					copy.evaluateAndCheckCurrentValues(message);
+					flip.evaluateAndCheckCurrentValues(message);
+					copy.domain.commit();
+					flip.domain.commit();
+					assertArrayEquals(message + ", cycle " + cycle, copy.getWords(), flip.getWords());
+				}
+				assertTrue(message, flip.evaluationsChangingMatrixWords > 0);
+			}
+		}
+	}
+
+	private static final class Setup {
+
+		private final ProgramBuilder builder;
+		private final InternalSimulation simulation = new InternalSimulation();
+		private final InternalInput input;
+		private final InternalDomain domain;
+		private final boolean[] matrixWords;
+		private int evaluationsChangingMatrixWords = 0;
+
+		Setup(BufferingMode bufferingMode, boolean activityTracking, boolean packedLayout) throws Exception {
+			builder = new ProgramBuilder(createModule(), 0, packedLayout);
+			builder.setBufferingMode(bufferingMode);
+			builder.setActivityTracking(activityTracking);
+			input = simulation.createInput(builder.getInputWordCount());
+			domain = simulation.createDomain(builder.getWordCount(), builder.build());
+			matrixWords = new boolean[builder.getWordCount()];
+			for (ValueField field : builder.getValueFields().values()) {
+				if (field.isMatrix()) {
+					Arrays.fill(matrixWords, field.getWordIndex(), field.getWordIndex() + field.getWordCount(), true);
+				}
+			}
+		}
+
+		long[] getWords() {
+			long[] words = new long[builder.getWordCount()];
+			for (int i = 0; i < words.length; i++) {
+				words[i] = domain.getWord(i);
+			}
+			return words;
+		}
+
+		// evaluates the domain and checks that only matrix words of the current values changed, and only with FLIP
+		void evaluateAndCheckCurrentValues(String message) {
+			long[] before = getWords();
+			domain.evaluate();
+			long[] after = getWords();
+			boolean matrixWordsChanged = false;
+			for (int i = 0; i < before.length; i++) {
+				if (domain.program.getBufferingMode() == BufferingMode.COPY || !matrixWords[i]) {
+					assertEquals(message + ", word " + i, before[i], after[i]);
+				} else if (before[i] != after[i]) {
+					matrixWordsChanged = true;
+				}
+			}
+			if (matrixWordsChanged) {
+				evaluationsChangingMatrixWords++;
+			}
+		}
+
+	}
+
+	/**
+	 * A register file with up to two writes per cycle, possibly to the same row, a wide memory, and a register and
+	 * signal that read both at rows selected at runtime.
+	 */
+	private static ModuleDefinition createModule() throws Exception {
+		ProcessedTrees trees = new ProcessedTrees("test.buffering");
+		ModulePort clk = trees.input("clk", bit());
+		ModulePort address = trees.input("address", vector(3));
+		ModulePort data = trees.input("data", vector(8));
+		ModulePort writeEnable = trees.input("writeEnable", bit());
+		ModulePort mode = trees.input("mode", vector(2));
+		Register memory = trees.register("memory", matrix(8, 8));
+		Register wideMemory = trees.register("wideMemory", matrix(4, 100));
+		Register accumulator = trees.register("accumulator", vector(8));
+		trees.signal("mixed", vector(8), op(row(ref(memory), range(ref(accumulator), 2, 0)), XOR, ref(data)));
+		trees.doBlock(clk,
+			when(ref(writeEnable), assign(row(ref(memory), ref(address)), ref(data))),
+			when(op(ref(mode), EQUAL, constant(2, 1)), assign(row(ref(memory), op(ref(address), PLUS, constant(3, 1))), ref(accumulator)),
+				when(op(ref(mode), EQUAL, constant(2, 2)), assign(row(ref(memory), ref(address)), op(ref(accumulator), PLUS, ref(data))))),
+			when(op(ref(mode), NOT_EQUAL, constant(2, 0)), assign(row(ref(wideMemory), range(ref(address), 1, 0)),
+				op(op(row(ref(memory), ref(address)), VECTOR_CONCAT, constant(84, 12345)), VECTOR_CONCAT, ref(accumulator)))),
+			assign(ref(accumulator), op(ref(accumulator), PLUS, op(row(ref(memory), ref(address)), XOR,
+				range(row(ref(wideMemory), range(ref(address), 2, 1)), 99, 92)))));
+		return trees.build();
+	}
+
+}
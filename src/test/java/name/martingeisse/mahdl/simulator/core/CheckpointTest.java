@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import name.martingeisse.mahdl.benchmark.ProcessedTrees;
+import name.martingeisse.mahdl.plugin.processor.definition.ModuleDefinition;
+import name.martingeisse.mahdl.plugin.processor.definition.ModulePort;
+import name.martingeisse.mahdl.plugin.processor.definition.Register;
+import name.martingeisse.mahdl.simulator.ClockDomain;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static name.martingeisse.mahdl.benchmark.ProcessedTrees.*;
+import static name.martingeisse.mahdl.plugin.processor.expression.ProcessedBinaryOperator.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that a simulation restored from a checkpoint continues like the one that wrote it, also if its programs were
+ * built with other settings, and that checkpoints of simulations with another structure or value layout are rejected
+ * without changing anything.
+ */
+public class CheckpointTest {
+
+	private static final ClockDomain FIRST_CLOCK = new ClockDomain(3, 1);
+	private static final ClockDomain SECOND_CLOCK = new ClockDomain(5, 2);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRestoredSimulationContinuesLikeOriginal() throws Exception {
+		for (BufferingMode bufferingMode : BufferingMode.values()) {
+			for (boolean activityTracking : new boolean[] {false, true}) {
+				String message = bufferingMode + ", tracking " + activityTracking;
+				Path path = folder.newFile().toPath();
+				Setup original = new Setup(bufferingMode, activityTracking, FIRST_CLOCK, MethodSplitter.DEFAULT_SIZE_LIMIT, false);
+				original.setEnable(1);
+				original.simulation.runUntil(1000);
+				original.simulation.checkpoint(path);
+				List<Long> checkpointed = original.getState();
+				original.continueAfterCheckpoint();
+
+				Setup restored = new Setup(bufferingMode, activityTracking, FIRST_CLOCK, MethodSplitter.DEFAULT_SIZE_LIMIT, false);
+				restored.simulation.restore(path);
+				assertEquals(message, checkpointed, restored.getState());
+				restored.continueAfterCheckpoint();
+				assertEquals(message, original.getState(), restored.getState());
+			}
+		}
+	}
+
+	/**
+	 * The buffering mode, activity tracking and method size limit don't change the value layout.
+	 */
+	@Test
+	public void testOtherSettingsAreAccepted() throws Exception {
+		Path path = folder.newFile().toPath();
+		Setup original = new Setup(BufferingMode.COPY, false, FIRST_CLOCK, MethodSplitter.DEFAULT_SIZE_LIMIT, false);
+		original.setEnable(1);
+		original.simulation.runUntil(1000);
+		original.simulation.checkpoint(path);
+		List<Long> checkpointed = original.getState();
+		original.continueAfterCheckpoint();
+
+		Setup restored = new Setup(BufferingMode.FLIP, true, FIRST_CLOCK, 1234, false);
+		restored.simulation.restore(path);
+		assertEquals(checkpointed, restored.getState());
+		restored.continueAfterCheckpoint();
+		assertEquals(original.getState(), restored.getState());
+	}
+
+	@Test
+	public void testMismatchesAreRejected() throws Exception {
+		Path path = folder.newFile().toPath();
+		Setup original = new Setup(BufferingMode.COPY, false, FIRST_CLOCK, MethodSplitter.DEFAULT_SIZE_LIMIT, false);
+		original.setEnable(1);
+		original.simulation.runUntil(100);
+		original.simulation.checkpoint(path);
+
+		// different clock, different value layout
+		assertRejected(new Setup(BufferingMode.COPY, false, new ClockDomain(4, 1), MethodSplitter.DEFAULT_SIZE_LIMIT, false), path);
+		assertRejected(new Setup(BufferingMode.COPY, false, FIRST_CLOCK, MethodSplitter.DEFAULT_SIZE_LIMIT, true), path);
+
+		// truncated file, and not a checkpoint at all
+		byte[] data = Files.readAllBytes(path);
+		Files.write(path, Arrays.copyOf(data, data.length - 8));
+		assertRejected(new Setup(BufferingMode.COPY, false, FIRST_CLOCK, MethodSplitter.DEFAULT_SIZE_LIMIT, false), path);
+		Files.write(path, new byte[] {1, 2, 3});
+		assertRejected(new Setup(BufferingMode.COPY, false, FIRST_CLOCK, MethodSplitter.DEFAULT_SIZE_LIMIT, false), path);
+	}
+
+	private static void assertRejected(Setup setup, Path path) {
+		setup.setEnable(1);
+		setup.simulation.runUntil(50);
+		List<Long> before = setup.getState();
+		try {
+			setup.simulation.restore(path);
+			fail("checkpoint was restored into another simulation");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(before, setup.getState());
+	}
+
+	/**
+	 * A simulation with two domains that run the same design on different clocks. The design counts enabled cycles,
+	 * rotates a wide register and writes the count to a memory.
+	 */
+	private static final class Setup {
+
+		private final ProgramBuilder builder;
+		private final InternalSimulation simulation = new InternalSimulation();
+		private final InternalInput input;
+
+		Setup(BufferingMode bufferingMode, boolean activityTracking, ClockDomain firstClock, int methodSizeLimit, boolean packedLayout) throws Exception {
+			ProcessedTrees trees = new ProcessedTrees("test.checkpoint");
+			ModulePort clk = trees.input("clk", bit());
+			ModulePort enable = trees.input("enable", bit());
+			Register count = trees.register("count", vector(8));
+			Register wide = trees.register("wide", vector(100));
+			Register memory = trees.register("memory", matrix(16, 8));
+			trees.doBlock(clk, when(ref(enable), block(
+				assign(ref(count), op(ref(count), PLUS, constant(8, 1))),
+				assign(ref(wide), op(range(ref(wide), 98, 0), VECTOR_CONCAT, op(range(ref(wide), 99, 99), XOR, range(ref(count), 0, 0)))),
+				assign(row(ref(memory), range(ref(count), 3, 0)), op(ref(count), TIMES, constant(8, 3))))));
+			ModuleDefinition module = trees.build();
+			builder = new ProgramBuilder(module, 0, packedLayout);
+			builder.setBufferingMode(bufferingMode);
+			builder.setActivityTracking(activityTracking);
+			builder.setMethodSizeLimit(methodSizeLimit);
+			input = simulation.createInput(builder.getInputWordCount());
+			simulation.createDomain(builder.getWordCount(), builder.build(), firstClock);
+			simulation.createDomain(builder.getWordCount(), builder.build(), SECOND_CLOCK);
+		}
+
+		void setEnable(long enable) {
+			input.setValue(builder.getInputValueFields().get("enable"), enable);
+		}
+
+		// changes the input after the checkpoint, so the restored simulation must see the same input changes
+		void continueAfterCheckpoint() {
+			setEnable(0);
+			simulation.runUntil(1100);
+			setEnable(1);
+			simulation.runUntil(2000);
+		}
+
+		List<Long> getState() {
+			List<Long> state = new ArrayList<>();
+			state.add(simulation.getTime());
+			for (long value : input.values) {
+				state.add(value);
+			}
+			for (InternalDomain domain : simulation.domains) {
+				for (int i = 0; i < builder.getWordCount(); i++) {
+					state.add(domain.getWord(i));
+				}
+			}
+			return state;
+		}
+
+	}
+
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import name.martingeisse.mahdl.benchmark.ProcessedTrees;
+import name.martingeisse.mahdl.plugin.processor.definition.ModulePort;
+import name.martingeisse.mahdl.plugin.processor.definition.Register;
+import name.martingeisse.mahdl.plugin.processor.definition.Signal;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static name.martingeisse.mahdl.benchmark.ProcessedTrees.*;
+import static name.martingeisse.mahdl.plugin.processor.expression.ProcessedBinaryOperator.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests how the {@link ProgramBuilder} finds combinational loops, lets them settle and reports the ones that don't.
+ */
+public class CombinationalLoopTest {
+
+	/**
+	 * A latch-like loop between two do-blocks and a signal initializer: a follows x&y where y is set, and keeps its
+	 * value through b and c elsewhere.
+	 */
+	@Test
+	public void testLatchSettles() throws Exception {
+		for (BufferingMode bufferingMode : BufferingMode.values()) {
+			for (boolean activityTracking : new boolean[] {false, true}) {
+				ProcessedTrees trees = new ProcessedTrees("test.latch");
+				ModulePort clk = trees.input("clk", bit());
+				Register x = trees.register("x", vector(8));
+				Register y = trees.register("y", vector(8));
+				Signal a = trees.signal("a", vector(8));
+				Signal b = trees.signal("b", vector(8));
+				Signal c = trees.signal("c", vector(8), ref(a));
+				Signal o = trees.signal("o", vector(8));
+				trees.doBlock(null, assign(ref(o), op(ref(b), PLUS, constant(8, 1))));
+				trees.doBlock(null, assign(ref(a), op(op(ref(x), AND, ref(y)), OR, op(ref(b), AND, op(ref(y), XOR, constant(8, 255))))));
+				trees.doBlock(null, assign(ref(b), ref(c)));
+				trees.doBlock(clk,
+					assign(ref(x), op(op(ref(x), TIMES, constant(8, 5)), PLUS, constant(8, 1))),
+					assign(ref(y), op(op(ref(y), TIMES, constant(8, 13)), PLUS, constant(8, 7))));
+				ProgramBuilder builder = new ProgramBuilder(trees.build(), 0);
+				builder.setBufferingMode(bufferingMode);
+				builder.setActivityTracking(activityTracking);
+
+				List<CombinationalLoop> loops = builder.getCombinationalLoops();
+				assertEquals(1, loops.size());
+				assertEquals("signals a b c", loops.get(0).toString());
+				assertEquals(3, loops.get(0).getErrorSources().size());
+
+				InternalSimulation simulation = new InternalSimulation();
+				simulation.createInput(builder.getInputWordCount());
+				InternalDomain domain = simulation.createDomain(builder.getWordCount(), builder.build());
+				Map<String, ValueField> fields = builder.getValueFields();
+				long modelA = 0, modelX = 0, modelY = 0;
+				for (int i = 0; i < 1000; i++) {
+					modelA = (modelX & modelY) | (modelA & ~modelY & 255);
+					String message = bufferingMode + ", tracking " + activityTracking + ", cycle " + i;
+					assertEquals(message, modelX, domain.getValue(fields.get("x")));
+					assertEquals(message, modelY, domain.getValue(fields.get("y")));
+					assertEquals(message, modelA, domain.getValue(fields.get("a")));
+					assertEquals(message, modelA, domain.getValue(fields.get("b")));
+					assertEquals(message, modelA, domain.getValue(fields.get("c")));
+					assertEquals(message, (modelA + 1) & 255, domain.getValue(fields.get("o")));
+					domain.update();
+					modelX = (modelX * 5 + 1) & 255;
+					modelY = (modelY * 13 + 7) & 255;
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testOscillatingLoopIsReported() throws Exception {
+		ProcessedTrees trees = new ProcessedTrees("test.oscillator");
+		Signal a = trees.signal("a", vector(8));
+		Signal b = trees.signal("b", vector(8));
+		trees.doBlock(null, assign(ref(a), op(ref(b), XOR, constant(8, 1))));
+		trees.doBlock(null, assign(ref(b), ref(a)));
+		ProgramBuilder builder = new ProgramBuilder(trees.build(), 0);
+		assertEquals("signals a b", builder.getCombinationalLoops().get(0).toString());
+		try {
+			new InternalSimulation().createDomain(builder.getWordCount(), builder.build());
+			fail("oscillating loop did not fail");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("did not settle"));
+		}
+		builder.setLoopIterationLimit(0);
+		try {
+			builder.build();
+			fail("loop was not rejected");
+		} catch (ProgramBuilderException e) {
+			assertEquals("combinational loop: signals a b", e.getMessage());
+		}
+	}
+
+	/**
+	 * A single block that reads a signal before assigning it sees the old value on the first evaluation, so it is a
+	 * loop by itself.
+	 */
+	@Test
+	public void testReadBeforeAssignmentInSameBlock() throws Exception {
+		for (BufferingMode bufferingMode : BufferingMode.values()) {
+			ProcessedTrees trees = new ProcessedTrees("test.readBeforeAssignment");
+			ModulePort x = trees.input("x", vector(8));
+			Signal a = trees.signal("a", vector(8));
+			Signal b = trees.signal("b", vector(8));
+			trees.doBlock(null, assign(ref(b), ref(a)), assign(ref(a), ref(x)));
+			ProgramBuilder builder = new ProgramBuilder(trees.build(), 0);
+			builder.setBufferingMode(bufferingMode);
+			List<CombinationalLoop> loops = builder.getCombinationalLoops();
+			assertEquals(1, loops.size());
+			assertEquals("signals a", loops.get(0).toString());
+
+			InternalSimulation simulation = new InternalSimulation();
+			InternalInput input = simulation.createInput(builder.getInputWordCount());
+			InternalDomain domain = simulation.createDomain(builder.getWordCount(), builder.build());
+			for (int value = 1; value < 10; value++) {
+				input.setValue(builder.getInputValueFields().get("x"), value);
+				domain.update();
+				assertEquals(value, domain.getValue(builder.getValueFields().get("a")));
+				assertEquals(value, domain.getValue(builder.getValueFields().get("b")));
+			}
+
+			builder.setLoopIterationLimit(0);
+			try {
+				builder.build();
+				fail("loop was not rejected");
+			} catch (ProgramBuilderException e) {
+				assertEquals("combinational loop: signals a", e.getMessage());
+			}
+		}
+	}
+
+	@Test
+	public void testSelfReferencingInitializerIsLoop() throws Exception {
+		ProcessedTrees trees = new ProcessedTrees("test.selfReference");
+		Signal a = trees.signal("a", vector(8));
+		setInitializer(a, op(ref(a), XOR, constant(8, 1)));
+		ProgramBuilder builder = new ProgramBuilder(trees.build(), 0);
+		assertEquals("signals a", builder.getCombinationalLoops().get(0).toString());
+	}
+
+	/**
+	 * Reading a signal after assigning it, or assigning it on every path first, is not a loop.
+	 */
+	@Test
+	public void testReadAfterAssignmentIsNoLoop() throws Exception {
+		ProcessedTrees trees = new ProcessedTrees("test.readAfterAssignment");
+		ModulePort x = trees.input("x", vector(8));
+		ModulePort s = trees.input("s", bit());
+		Signal a = trees.signal("a", vector(8));
+		Signal b = trees.signal("b", vector(8));
+		Signal c = trees.signal("c", vector(8));
+		trees.doBlock(null, assign(ref(a), ref(x)), assign(ref(b), op(ref(a), PLUS, constant(8, 1))));
+		trees.doBlock(null,
+			when(ref(s), assign(ref(c), ref(x)), assign(ref(c), ref(b))),
+			assign(ref(c), op(ref(c), PLUS, constant(8, 1))));
+		ProgramBuilder builder = new ProgramBuilder(trees.build(), 0);
+		assertTrue(builder.getCombinationalLoops().isEmpty());
+		builder.setLoopIterationLimit(0);
+		builder.build();
+	}
+
+	/**
+	 * Assigning a signal on only some paths before reading it leaves a path where the old value gets read.
+	 */
+	@Test
+	public void testReadAfterConditionalAssignmentIsLoop() throws Exception {
+		ProcessedTrees trees = new ProcessedTrees("test.conditionalAssignment");
+		ModulePort x = trees.input("x", vector(8));
+		ModulePort s = trees.input("s", bit());
+		Signal c = trees.signal("c", vector(8));
+		Signal d = trees.signal("d", vector(8));
+		trees.doBlock(null,
+			when(ref(s), assign(ref(c), ref(x))),
+			assign(ref(d), ref(c)),
+			assign(ref(c), ref(x)));
+		ProgramBuilder builder = new ProgramBuilder(trees.build(), 0);
+		assertEquals("signals c", builder.getCombinationalLoops().get(0).toString());
+	}
+
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import name.martingeisse.mahdl.benchmark.HeadlessPsi;
+import name.martingeisse.mahdl.benchmark.ProcessedTrees;
+import name.martingeisse.mahdl.plugin.processor.ErrorHandler;
+import name.martingeisse.mahdl.plugin.processor.definition.ModulePort;
+import name.martingeisse.mahdl.plugin.processor.definition.ModuleDefinition;
+import name.martingeisse.mahdl.plugin.processor.expression.*;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.*;
+
+import static name.martingeisse.mahdl.benchmark.ProcessedTrees.*;
+import static name.martingeisse.mahdl.plugin.processor.expression.ProcessedBinaryOperator.*;
+import static org.junit.Assert.*;
+
+/**
+ * Compares the values computed by generated programs with those of the existing interpretation of the same
+ * expressions, i.e. {@link ProcessedExpression#evaluateFormallyConstant}. Each expression shape is compiled once with
+ * references to input ports, and evaluated for each sample with constants in place of those references.
+ */
+public class CompiledExpressionTest {
+
+	private static final int SAMPLE_COUNT = 200;
+
+	// leaf indices
+	private static final int A = 0;
+	private static final int B = 1;
+	private static final int S = 2;
+	private static final int K = 3;
+	private static final int EN = 4;
+
+	private static final int[] LEAF_WIDTHS_EXCEPT_A_B = {8, 2, 0};
+
+	@Test
+	public void testNarrowVectors() throws Exception {
+		for (int width : new int[] {1, 8, 13, 32, 63, 64}) {
+			for (boolean packedLayout : new boolean[] {true, false}) {
+				compareWithReference(width, packedLayout);
+			}
+		}
+	}
+
+	/**
+	 * Vectors wider than 64 bits are compiled to multi-word arithmetic by the {@link MethodCompiler}.
+	 */
+	@Test
+	public void testWideVectors() throws Exception {
+		for (int width : new int[] {65, 100, 128, 129, 200}) {
+			for (boolean packedLayout : new boolean[] {true, false}) {
+				compareWithReference(width, packedLayout);
+			}
+		}
+	}
+
+	/**
+	 * Bit-sliced programs simulate 64 lanes at once, so each lane gets its own sample.
+	 */
+	@Test
+	public void testBitSlicedLanes() throws Exception {
+		for (int width : new int[] {1, 8, 13, 16}) {
+			compareLanesWithReference(width);
+		}
+	}
+
+	/**
+	 * An expression that is built from the leaves a, b (vectors of the tested width), s (an 8-bit vector for shift
+	 * amounts and indices), k (a 2-bit switch selector) and en (a bit).
+	 */
+	private interface Shape {
+		ProcessedExpression build(ProcessedExpression[] leaves) throws TypeErrorException;
+	}
+
+	private static Map<String, Shape> createShapes(int width) {
+		Map<String, Shape> shapes = new LinkedHashMap<>();
+		for (ProcessedBinaryOperator operator : new ProcessedBinaryOperator[] {PLUS, MINUS, TIMES, DIVIDED_BY, REMAINDER,
+			AND, OR, XOR, EQUAL, NOT_EQUAL, LESS_THAN, LESS_THAN_OR_EQUAL, GREATER_THAN, GREATER_THAN_OR_EQUAL}) {
+			shapes.put(operator.name(), leaves -> op(leaves[A], operator, leaves[B]));
+		}
+		for (ProcessedUnaryOperator operator : ProcessedUnaryOperator.values()) {
+			shapes.put("unary " + operator.name(), leaves -> op(operator, leaves[A]));
+		}
+		shapes.put("SHIFT_LEFT", leaves -> op(leaves[A], SHIFT_LEFT, leaves[S]));
+		shapes.put("SHIFT_RIGHT", leaves -> op(leaves[A], SHIFT_RIGHT, leaves[S]));
+		// constant amounts wider than 64 bits, with and without bits set in the high word
+		shapes.put("SHIFT_LEFT by wide constant", leaves -> op(leaves[A], SHIFT_LEFT, constant(65, 3)));
+		shapes.put("SHIFT_RIGHT by wide constant", leaves -> op(leaves[A], SHIFT_RIGHT, constant(65, 3)));
+		shapes.put("SHIFT_LEFT by huge wide constant", leaves -> op(leaves[A], SHIFT_LEFT, constant(65, BigInteger.ONE.shiftLeft(64).add(BigInteger.ONE))));
+		shapes.put("conditional", leaves -> conditional(leaves[EN], leaves[A], leaves[B]));
+		shapes.put("switch", leaves -> switchExpression(leaves[K], Arrays.asList(constantValue(2, 0), constantValue(2, 1)),
+			Arrays.asList(leaves[A], leaves[B]), op(ProcessedUnaryOperator.NOT, leaves[A])));
+		shapes.put("nested", leaves -> op(op(leaves[A], PLUS, leaves[B]), XOR, op(leaves[A], SHIFT_RIGHT, leaves[S])));
+		shapes.put("bit of constant index", leaves -> bitAt(leaves[A], width - 1));
+		if (width > 1) {
+			// an index that cannot exceed the width, so the interpretation accepts every sample
+			int indexWidth = Math.min(8, 31 - Integer.numberOfLeadingZeros(width));
+			shapes.put("bit of variable index", leaves -> new ProcessedIndexSelection.BitFromVector(HeadlessPsi.element("[]"),
+				op(leaves[A], XOR, leaves[B]), range(leaves[S], indexWidth - 1, 0)));
+		}
+		if (width > 3) {
+			shapes.put("range", leaves -> range(leaves[A], width - 2, width / 3));
+			shapes.put("concatenation", leaves -> op(leaves[A], VECTOR_CONCAT, range(leaves[B], width - 1, 3)));
+		}
+		return shapes;
+	}
+
+	/**
+	 * Builds a module with one signal per shape, simulates it for random samples and compares each signal with the
+	 * interpretation of its shape.
+	 */
+	private static void compareWithReference(int width, boolean packedLayout) throws Exception {
+		Map<String, Shape> shapes = createShapes(width);
+		ProcessedTrees trees = new ProcessedTrees("test.expressions");
+		ProcessedExpression[] leafReferences = createLeafReferences(trees, width);
+		for (Map.Entry<String, Shape> entry : shapes.entrySet()) {
+			ProcessedExpression expression = entry.getValue().build(leafReferences);
+			trees.signal(getSignalName(entry.getKey()), expression.getDataType(), expression);
+		}
+		ModuleDefinition module = trees.build();
+		ProgramBuilder builder = new ProgramBuilder(module, 0, packedLayout);
+		InternalSimulation simulation = new InternalSimulation();
+		InternalInput input = simulation.createInput(builder.getInputWordCount());
+		InternalDomain domain = simulation.createDomain(builder.getWordCount(), builder.build());
+
+		Random random = new Random(width);
+		int comparisonCount = 0;
+		for (int sample = 0; sample < SAMPLE_COUNT; sample++) {
+			BigInteger[] leafValues = createLeafValues(random, width);
+			for (int i = 0; i < leafValues.length; i++) {
+				setValue(input, builder.getInputValueFields().get(getLeafName(i)), leafValues[i]);
+			}
+			domain.update();
+			for (Map.Entry<String, Shape> entry : shapes.entrySet()) {
+				BigInteger expected = interpret(entry.getValue(), width, leafValues);
+				if (expected != null) {
+					BigInteger actual = getValue(domain, builder.getValueFields().get(getSignalName(entry.getKey())));
+					assertEquals(entry.getKey() + ", width " + width + ", packed " + packedLayout + ", leaves " +
+						Arrays.toString(leafValues), expected, actual);
+					comparisonCount++;
+				}
+			}
+		}
+		// only division and remainder by zero may be skipped
+		assertTrue("only " + comparisonCount + " comparisons", comparisonCount > SAMPLE_COUNT * (shapes.size() - 2));
+	}
+
+	/**
+	 * Like {@link #compareWithReference(int, boolean)}, but with a bit-sliced program and a different sample in each
+	 * lane.
+	 */
+	private static void compareLanesWithReference(int width) throws Exception {
+		Map<String, Shape> shapes = createShapes(width);
+		ProcessedTrees trees = new ProcessedTrees("test.lanes");
+		ProcessedExpression[] leafReferences = createLeafReferences(trees, width);
+		for (Map.Entry<String, Shape> entry : shapes.entrySet()) {
+			ProcessedExpression expression = entry.getValue().build(leafReferences);
+			trees.signal(getSignalName(entry.getKey()), expression.getDataType(), expression);
+		}
+		ProgramBuilder builder = ProgramBuilder.createBitSliced(trees.build(), 0);
+		InternalSimulation simulation = new InternalSimulation();
+		InternalInput input = simulation.createInput(builder.getInputWordCount());
+		InternalDomain domain = simulation.createDomain(builder.getWordCount(), builder.build());
+
+		Random random = new Random(width);
+		int comparisonCount = 0;
+		for (int round = 0; round < SAMPLE_COUNT / 50; round++) {
+			BigInteger[][] laneLeafValues = new BigInteger[64][];
+			for (int lane = 0; lane < 64; lane++) {
+				laneLeafValues[lane] = createLeafValues(random, width);
+				for (int i = 0; i < laneLeafValues[lane].length; i++) {
+					input.setLaneValue(builder.getInputValueFields().get(getLeafName(i)), lane, laneLeafValues[lane][i].longValue());
+				}
+			}
+			domain.update();
+			for (Map.Entry<String, Shape> entry : shapes.entrySet()) {
+				ValueField field = builder.getValueFields().get(getSignalName(entry.getKey()));
+				for (int lane = 0; lane < 64; lane++) {
+					BigInteger expected = interpret(entry.getValue(), width, laneLeafValues[lane]);
+					if (expected != null) {
+						assertEquals(entry.getKey() + ", width " + width + ", lane " + lane + ", leaves " +
+							Arrays.toString(laneLeafValues[lane]), expected, toUnsigned(domain.getLaneValue(field, lane)));
+						comparisonCount++;
+					}
+				}
+			}
+		}
+		// only division and remainder by zero may be skipped
+		assertTrue("only " + comparisonCount + " comparisons", comparisonCount > SAMPLE_COUNT / 50 * 64 * (shapes.size() - 2));
+	}
+
+	private static ProcessedExpression[] createLeafReferences(ProcessedTrees trees, int width) {
+		ProcessedExpression[] leaves = new ProcessedExpression[5];
+		for (int i = 0; i < leaves.length; i++) {
+			int leafWidth = getLeafWidth(i, width);
+			ModulePort port = trees.input(getLeafName(i), leafWidth == 0 ? bit() : vector(leafWidth));
+			leaves[i] = ref(port);
+		}
+		return leaves;
+	}
+
+	/**
+	 * Returns random leaf values. Values of a and b are biased towards 0, 1 and all ones, which are the usual edge
+	 * cases of arithmetic.
+	 */
+	private static BigInteger[] createLeafValues(Random random, int width) {
+		BigInteger[] values = new BigInteger[5];
+		for (int i = 0; i < values.length; i++) {
+			int leafWidth = getLeafWidth(i, width);
+			BigInteger allOnes = BigInteger.ONE.shiftLeft(Math.max(leafWidth, 1)).subtract(BigInteger.ONE);
+			switch (i <= B ? random.nextInt(8) : 7) {
+				case 0:
+					values[i] = BigInteger.ZERO;
+					break;
+				case 1:
+					values[i] = BigInteger.ONE;
+					break;
+				case 2:
+					values[i] = allOnes;
+					break;
+				default:
+					values[i] = new BigInteger(Math.max(leafWidth, 1), random);
+					break;
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Evaluates a shape with constant leaves using the existing interpretation. Returns null if that interpretation
+	 * rejects the leaf values, e.g. for division by zero.
+	 */
+	private static BigInteger interpret(Shape shape, int width, BigInteger[] leafValues) throws TypeErrorException {
+		ProcessedExpression[] leaves = new ProcessedExpression[leafValues.length];
+		for (int i = 0; i < leaves.length; i++) {
+			int leafWidth = getLeafWidth(i, width);
+			if (leafWidth == 0) {
+				leaves[i] = new ProcessedConstantValue(HeadlessPsi.element(leafValues[i].toString()), new ConstantValue.Bit(leafValues[i].signum() != 0));
+			} else {
+				leaves[i] = constant(leafWidth, leafValues[i]);
+			}
+		}
+		boolean[] failed = new boolean[1];
+		ErrorHandler errorHandler = (errorSource, message) -> failed[0] = true;
+		ConstantValue value = shape.build(leaves).evaluateFormallyConstant(new ProcessedExpression.FormallyConstantEvaluationContext(errorHandler));
+		if (failed[0] || value instanceof ConstantValue.Unknown) {
+			return null;
+		} else if (value instanceof ConstantValue.Bit) {
+			return ((ConstantValue.Bit) value).isSet() ? BigInteger.ONE : BigInteger.ZERO;
+		} else {
+			return value.convertToInteger();
+		}
+	}
+
+	private static int getLeafWidth(int leaf, int width) {
+		return leaf <= B ? width : LEAF_WIDTHS_EXCEPT_A_B[leaf - S];
+	}
+
+	private static String getLeafName(int leaf) {
+		return "leaf" + leaf;
+	}
+
+	private static String getSignalName(String shapeName) {
+		return "s_" + shapeName.replace(' ', '_');
+	}
+
+	private static void setValue(InternalInput input, ValueField field, BigInteger value) {
+		if (field.isWide()) {
+			for (int i = 0; i < field.getWordCount(); i++) {
+				input.setWord(field, i, value.shiftRight(i * 64).longValue());
+			}
+		} else {
+			input.setValue(field, value.longValue());
+		}
+	}
+
+	private static BigInteger getValue(InternalDomain domain, ValueField field) {
+		if (field.isWide()) {
+			BigInteger value = BigInteger.ZERO;
+			for (int i = field.getWordCount() - 1; i >= 0; i--) {
+				value = value.shiftLeft(64).or(toUnsigned(domain.getWord(field.getWordIndex() + i)));
+			}
+			return value;
+		} else {
+			return toUnsigned(domain.getValue(field));
+		}
+	}
+
+	private static BigInteger toUnsigned(long value) {
+		BigInteger result = BigInteger.valueOf(value);
+		return value < 0 ? result.add(BigInteger.ONE.shiftLeft(64)) : result;
+	}
+
+}
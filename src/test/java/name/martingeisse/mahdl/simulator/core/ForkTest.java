@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import name.martingeisse.mahdl.benchmark.ProcessedTrees;
+import name.martingeisse.mahdl.plugin.processor.definition.ModulePort;
+import name.martingeisse.mahdl.plugin.processor.definition.Register;
+import name.martingeisse.mahdl.simulator.ClockDomain;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static name.martingeisse.mahdl.benchmark.ProcessedTrees.*;
+import static name.martingeisse.mahdl.plugin.processor.expression.ProcessedBinaryOperator.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that the copies made by {@link InternalSimulation#fork(int)} start in the state of the parent, and that the
+ * copies and the parent then run independently of each other, also when run by different threads.
+ */
+public class ForkTest {
+
+	private static final long WARMUP_SEED = 1;
+	private static final long PARENT_SEED = 2;
+
+	// each step of a stimulus runs for this many time units, which doesn't line up with the clocks
+	private static final long STEP_TIME = 7;
+
+	private static final int FORK_COUNT = 4;
+
+	@Test
+	public void testForksStartInParentState() throws Exception {
+		for (BufferingMode bufferingMode : BufferingMode.values()) {
+			for (boolean activityTracking : new boolean[] {false, true}) {
+				String message = bufferingMode + ", tracking " + activityTracking;
+				Setup setup = new Setup(bufferingMode, activityTracking);
+				setup.drive(setup.simulation, WARMUP_SEED, 50);
+				List<Long> parentState = setup.getState(setup.simulation);
+				List<InternalSimulation> forks = setup.simulation.fork(FORK_COUNT);
+				assertEquals(message, FORK_COUNT, forks.size());
+				for (InternalSimulation fork : forks) {
+					assertNotSame(message, setup.simulation, fork);
+					assertEquals(message, setup.simulation.getTime(), fork.getTime());
+					assertEquals(message, parentState, setup.getState(fork));
+					for (int i = 0; i < 2; i++) {
+						assertSame(message, setup.simulation.getDomain(i).getClock(), fork.getDomain(i).getClock());
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testForksAndParentRunIndependently() throws Exception {
+		for (BufferingMode bufferingMode : BufferingMode.values()) {
+			for (boolean activityTracking : new boolean[] {false, true}) {
+				String message = bufferingMode + ", tracking " + activityTracking;
+				Setup setup = new Setup(bufferingMode, activityTracking);
+				setup.drive(setup.simulation, WARMUP_SEED, 50);
+				List<Long> parentState = setup.getState(setup.simulation);
+				List<InternalSimulation> forks = setup.simulation.fork(FORK_COUNT);
+
+				// each fork gets its own stimulus in its own thread
+				ExecutorService executor = Executors.newFixedThreadPool(FORK_COUNT);
+				List<Future<List<Long>>> forkStates = new ArrayList<>();
+				try {
+					for (int i = 0; i < FORK_COUNT; i++) {
+						InternalSimulation fork = forks.get(i);
+						long seed = 100 + i;
+						forkStates.add(executor.submit(() -> {
+							setup.drive(fork, seed, 100);
+							return setup.getState(fork);
+						}));
+					}
+					for (int i = 0; i < FORK_COUNT; i++) {
+						assertEquals(message + ", fork " + i, simulateFresh(setup, 100 + i), forkStates.get(i).get());
+					}
+				} finally {
+					executor.shutdown();
+				}
+				assertNotEquals(message, forkStates.get(0).get(), forkStates.get(1).get());
+
+				// running the forks didn't change the parent, and running the parent doesn't change the forks
+				assertEquals(message, parentState, setup.getState(setup.simulation));
+				setup.drive(setup.simulation, PARENT_SEED, 100);
+				assertEquals(message, simulateFresh(setup, PARENT_SEED), setup.getState(setup.simulation));
+				for (int i = 0; i < FORK_COUNT; i++) {
+					assertEquals(message + ", fork " + i, forkStates.get(i).get(), setup.getState(forks.get(i)));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the state of a new simulation after the warmup stimulus followed by the specified one.
+	 */
+	private static List<Long> simulateFresh(Setup setup, long seed) {
+		InternalSimulation simulation = setup.createSimulation();
+		setup.drive(simulation, WARMUP_SEED, 50);
+		setup.drive(simulation, seed, 100);
+		return setup.getState(simulation);
+	}
+
+	/**
+	 * Two domains with different clocks that mix a data input into an accumulator while enabled.
+	 */
+	private static final class Setup {
+
+		private final ProgramBuilder builder;
+		private final Program program;
+		private final InternalSimulation simulation;
+
+		Setup(BufferingMode bufferingMode, boolean activityTracking) throws Exception {
+			ProcessedTrees trees = new ProcessedTrees("test.fork");
+			ModulePort clk = trees.input("clk", bit());
+			ModulePort enable = trees.input("enable", bit());
+			ModulePort data = trees.input("data", vector(16));
+			Register accumulator = trees.register("accumulator", vector(16));
+			Register count = trees.register("count", vector(8));
+			trees.doBlock(clk,
+				assign(ref(count), op(ref(count), PLUS, constant(8, 1))),
+				when(ref(enable), assign(ref(accumulator), op(op(ref(accumulator), TIMES, constant(16, 3)), XOR, ref(data)))));
+			builder = new ProgramBuilder(trees.build(), 0);
+			builder.setBufferingMode(bufferingMode);
+			builder.setActivityTracking(activityTracking);
+			program = builder.build();
+			simulation = createSimulation();
+		}
+
+		InternalSimulation createSimulation() {
+			InternalSimulation simulation = new InternalSimulation();
+			simulation.createInput(builder.getInputWordCount());
+			simulation.createDomain(builder.getWordCount(), program, new ClockDomain(4, 0));
+			simulation.createDomain(builder.getWordCount(), program, new ClockDomain(10, 2));
+			return simulation;
+		}
+
+		/**
+		 * Applies the stimulus for the specified seed, changing the inputs before each step.
+		 */
+		void drive(InternalSimulation simulation, long seed, int steps) {
+			Random random = new Random(seed);
+			InternalInput input = simulation.getInput(0);
+			for (int i = 0; i < steps; i++) {
+				input.setValue(builder.getInputValueFields().get("enable"), random.nextInt(4) == 0 ? 0 : 1);
+				input.setValue(builder.getInputValueFields().get("data"), random.nextInt(1 << 16));
+				simulation.runUntil(simulation.getTime() + STEP_TIME);
+			}
+		}
+
+		List<Long> getState(InternalSimulation simulation) {
+			List<Long> state = new ArrayList<>();
+			state.add(simulation.getTime());
+			for (long value : simulation.getInput(0).values) {
+				state.add(value);
+			}
+			for (int i = 0; i < 2; i++) {
+				InternalDomain domain = simulation.getDomain(i);
+				for (int j = 0; j < builder.getWordCount(); j++) {
+					state.add(domain.getWord(j));
+				}
+			}
+			return state;
+		}
+
+	}
+
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import name.martingeisse.mahdl.benchmark.ProcessedTrees;
+import name.martingeisse.mahdl.plugin.processor.definition.ModulePort;
+import name.martingeisse.mahdl.plugin.processor.definition.Register;
+import org.junit.Test;
+
+import java.nio.LongBuffer;
+import java.util.Random;
+
+import static name.martingeisse.mahdl.benchmark.ProcessedTrees.*;
+import static name.martingeisse.mahdl.plugin.processor.expression.ProcessedBinaryOperator.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests which blocks get marked dirty when input values change.
+ */
+public class InputActivityTest {
+
+	@Test
+	public void testSetWordsMarksOnlyReadersOfChangedWords() throws Exception {
+		for (boolean packedLayout : new boolean[] {false, true}) {
+			ProcessedTrees trees = new ProcessedTrees("test.inputActivity");
+			ModulePort a = trees.input("a", vector(8));
+			ModulePort b = trees.input("b", vector(8));
+			ModulePort c = trees.input("c", vector(100));
+			trees.signal("sa", vector(8), op(ref(a), PLUS, constant(8, 1)));
+			trees.signal("sb", vector(8), op(ref(b), PLUS, constant(8, 1)));
+			trees.signal("sc", vector(100), op(ref(c), XOR, constant(100, 5)));
+			ProgramBuilder builder = new ProgramBuilder(trees.build(), 0, packedLayout);
+			builder.setActivityTracking(true);
+			InternalSimulation simulation = new InternalSimulation();
+			InternalInput input = simulation.createInput(builder.getInputWordCount());
+			InternalDomain domain = simulation.createDomain(builder.getWordCount(), builder.build());
+			domain.update();
+			ValueField fieldA = builder.getInputValueFields().get("a");
+			ValueField fieldB = builder.getInputValueFields().get("b");
+			ValueField fieldC = builder.getInputValueFields().get("c");
+
+			// changing a only marks the readers of a, and those of b if it shares a's word
+			long[] row = new long[builder.getInputWordCount()];
+			fieldA.set(row, 7);
+			input.setWords(LongBuffer.wrap(row));
+			String message = "packed " + packedLayout;
+			assertMarked(message, domain, fieldA, true);
+			assertMarked(message, domain, fieldB, fieldB.getWordIndex() == fieldA.getWordIndex());
+			assertMarked(message, domain, fieldC, false);
+			domain.update();
+			assertEquals(8, domain.getValue(builder.getValueFields().get("sa")));
+			assertEquals(1, domain.getValue(builder.getValueFields().get("sb")));
+
+			// setting the same words again marks nothing
+			input.setWords(row, 0);
+			assertMarked(message, domain, fieldA, false);
+			assertMarked(message, domain, fieldB, false);
+			assertMarked(message, domain, fieldC, false);
+
+			// changing a single word of a wide field marks its readers
+			row[fieldC.getWordIndex() + 1] = 3;
+			input.setWords(row, 0);
+			assertMarked(message, domain, fieldA, false);
+			assertMarked(message, domain, fieldB, false);
+			assertMarked(message, domain, fieldC, true);
+			domain.update();
+			assertEquals(5, domain.getWord(builder.getValueFields().get("sc").getWordIndex()));
+			assertEquals(3, domain.getWord(builder.getValueFields().get("sc").getWordIndex() + 1));
+		}
+	}
+
+	/**
+	 * Blocks whose inputs didn't change get skipped, so their values must stay those of their last evaluation. Compares
+	 * a tracking program with a non-tracking one over many cycles in which each input changes only now and then, and
+	 * some setters are called with the value the input already has.
+	 */
+	@Test
+	public void testSkippedBlocksKeepTheirValues() throws Exception {
+		for (boolean packedLayout : new boolean[] {false, true}) {
+			String message = "packed " + packedLayout;
+			ActivitySetup tracking = new ActivitySetup(true, packedLayout);
+			ActivitySetup reference = new ActivitySetup(false, packedLayout);
+			Random random = new Random(1);
+			long[] row = new long[tracking.builder.getInputWordCount()];
+			for (int cycle = 0; cycle < 1000; cycle++) {
+				switch (random.nextInt(6)) {
+
+					case 0:
+						long a = random.nextInt(4);
+						tracking.setValue("a", a);
+						reference.setValue("a", a);
+						break;
+
+					case 1:
+						tracking.setValue("enable", cycle & 1);
+						reference.setValue("enable", cycle & 1);
+						break;
+
+					case 2: {
+						long word = random.nextInt(3);
+						tracking.input.setWord(tracking.builder.getInputValueFields().get("c"), 1, word);
+						reference.input.setWord(reference.builder.getInputValueFields().get("c"), 1, word);
+						break;
+					}
+
+					case 3:
+						tracking.builder.getInputValueFields().get("b").set(row, random.nextInt(4));
+						tracking.input.setWords(row, 0);
+						reference.input.setWords(row, 0);
+						break;
+
+					default:
+						// no change
+						break;
+
+				}
+				tracking.simulation.step();
+				reference.simulation.step();
+				assertArrayEquals(message + ", cycle " + cycle, reference.getWords(), tracking.getWords());
+			}
+		}
+	}
+
+	/**
+	 * Setting a lane to the value it already has must not count as a change. Here, that shows as the recorded future
+	 * of a {@link TimeTravel} being kept.
+	 */
+	@Test
+	public void testUnchangedLaneValueIsNoChange() throws Exception {
+		ProcessedTrees trees = new ProcessedTrees("test.laneActivity");
+		ModulePort clk = trees.input("clk", bit());
+		ModulePort a = trees.input("a", vector(4));
+		Register sum = trees.register("sum", vector(4));
+		trees.doBlock(clk, assign(ref(sum), op(ref(sum), PLUS, ref(a))));
+		ProgramBuilder builder = ProgramBuilder.createBitSliced(trees.build(), 0);
+		InternalSimulation simulation = new InternalSimulation();
+		InternalInput input = simulation.createInput(builder.getInputWordCount());
+		InternalDomain domain = simulation.createDomain(builder.getWordCount(), builder.build());
+		ValueField fieldA = builder.getInputValueFields().get("a");
+		TimeTravel timeTravel = new TimeTravel(simulation, 4, 10);
+		input.setLaneValue(fieldA, 5, 3);
+		timeTravel.run(20);
+		timeTravel.seek(10);
+		input.setLaneValue(fieldA, 5, 3);
+		assertEquals(20, timeTravel.getLastRecordedCycle());
+		timeTravel.seek(20);
+		assertEquals(20 * 3 & 15, domain.getLaneValue(builder.getValueFields().get("sum"), 5));
+		timeTravel.seek(10);
+		input.setLaneValue(fieldA, 5, 2);
+		assertEquals(10, timeTravel.getLastRecordedCycle());
+	}
+
+	/**
+	 * Counters and accumulators that read different inputs, so that each input change makes only some blocks dirty.
+	 */
+	private static final class ActivitySetup {
+
+		private final ProgramBuilder builder;
+		private final InternalSimulation simulation = new InternalSimulation();
+		private final InternalInput input;
+		private final InternalDomain domain;
+
+		ActivitySetup(boolean activityTracking, boolean packedLayout) throws Exception {
+			ProcessedTrees trees = new ProcessedTrees("test.skippedBlocks");
+			ModulePort clk = trees.input("clk", bit());
+			ModulePort enable = trees.input("enable", bit());
+			ModulePort a = trees.input("a", vector(8));
+			ModulePort b = trees.input("b", vector(8));
+			ModulePort c = trees.input("c", vector(100));
+			Register count = trees.register("count", vector(8));
+			Register sumA = trees.register("sumA", vector(8));
+			Register sumB = trees.register("sumB", vector(16));
+			Register wide = trees.register("wide", vector(100));
+			trees.signal("plusA", vector(8), op(ref(a), PLUS, ref(sumA)));
+			trees.signal("mixedC", vector(100), op(ref(c), XOR, constant(100, 77)));
+			trees.signal("mixed", vector(8), op(ref(count), XOR, ref(b)));
+			trees.doBlock(clk, assign(ref(count), op(ref(count), PLUS, constant(8, 1))));
+			trees.doBlock(clk, when(ref(enable), assign(ref(sumA), op(ref(sumA), PLUS, ref(a)))));
+			trees.doBlock(clk, assign(ref(sumB), op(ref(sumB), PLUS, op(constant(8, 0), VECTOR_CONCAT, ref(b)))));
+			trees.doBlock(clk, assign(ref(wide), op(ref(wide), PLUS, ref(c))));
+			builder = new ProgramBuilder(trees.build(), 0, packedLayout);
+			builder.setActivityTracking(activityTracking);
+			input = simulation.createInput(builder.getInputWordCount());
+			domain = simulation.createDomain(builder.getWordCount(), builder.build());
+		}
+
+		void setValue(String name, long value) {
+			input.setValue(builder.getInputValueFields().get(name), value);
+		}
+
+		long[] getWords() {
+			long[] words = new long[builder.getWordCount()];
+			for (int i = 0; i < words.length; i++) {
+				words[i] = domain.getWord(i);
+			}
+			return words;
+		}
+
+	}
+
+	/**
+	 * Checks whether all blocks that read the specified input field are dirty, or none of them.
+	 */
+	private static void assertMarked(String message, InternalDomain domain, ValueField inputField, boolean marked) {
+		long[] readers = domain.program.getInputReaders(inputField.getIndex());
+		for (int i = 0; i < readers.length; i++) {
+			assertEquals(message + ", readers of " + inputField, marked ? readers[i] : 0, domain.dirtyBlocks[i] & readers[i]);
+		}
+	}
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import name.martingeisse.mahdl.benchmark.ProcessedTrees;
+import name.martingeisse.mahdl.plugin.processor.definition.ModulePort;
+import name.martingeisse.mahdl.plugin.processor.definition.Register;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static name.martingeisse.mahdl.benchmark.ProcessedTrees.*;
+import static name.martingeisse.mahdl.plugin.processor.expression.ProcessedBinaryOperator.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that simulations reused by an {@link InstancePool} behave like new ones.
+ */
+public class InstancePoolTest {
+
+	@Test
+	public void testReusedSimulationsMatchNewOnes() throws Exception {
+		for (int inputIndex : new int[] {0, 2}) {
+			for (BufferingMode bufferingMode : BufferingMode.values()) {
+				for (boolean activityTracking : new boolean[] {false, true}) {
+					ProgramBuilder builder = createBuilder(inputIndex);
+					builder.setBufferingMode(bufferingMode);
+					builder.setActivityTracking(activityTracking);
+					InstancePool pool = new InstancePool(builder);
+					List<Long> expected = null;
+					for (int round = 0; round < 3; round++) {
+						InternalSimulation simulation = pool.create();
+						List<Long> counts = runCounter(builder, simulation, inputIndex);
+						if (expected == null) {
+							expected = counts;
+						} else {
+							assertEquals(bufferingMode + ", tracking " + activityTracking + ", round " + round, expected, counts);
+						}
+						pool.release(simulation);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Probes and time travel of a released simulation must not survive into its next use.
+	 */
+	@Test
+	public void testReleaseRemovesProbesAndTimeTravel() throws Exception {
+		ProgramBuilder builder = createBuilder(0);
+		ValueField count = builder.getValueFields().get("count");
+		InstancePool pool = new InstancePool(builder);
+		InternalSimulation simulation = pool.create();
+		Probe probe = simulation.getDomain(0).createProbe(1, 100, count);
+		TimeTravel timeTravel = new TimeTravel(simulation, 4, 4);
+		simulation.getInput(0).setValue(builder.getInputValueFields().get("enable"), 1);
+		timeTravel.run(10);
+		long[] samples = new long[100 * probe.getSampleSize()];
+		assertEquals(10, probe.drain(samples));
+		pool.release(simulation);
+		try {
+			timeTravel.step();
+			fail("detached time travel was usable");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		InternalSimulation reused = pool.create();
+		assertSame(simulation, reused);
+		assertEquals(0, reused.getDomain(0).getValue(count));
+		TimeTravel newTimeTravel = new TimeTravel(reused, 4, 4);
+		reused.getInput(0).setValue(builder.getInputValueFields().get("enable"), 1);
+		newTimeTravel.run(10);
+		assertEquals(0, probe.drain(samples));
+		assertEquals(10, reused.getDomain(0).getValue(count));
+		newTimeTravel.seek(3);
+		assertEquals(3, reused.getDomain(0).getValue(count));
+	}
+
+	@Test
+	public void testDetachedTimeTravelStopsRecording() throws Exception {
+		ProgramBuilder builder = createBuilder(0);
+		ValueField enable = builder.getInputValueFields().get("enable");
+		InternalSimulation simulation = new InstancePool(builder).create();
+		TimeTravel timeTravel = new TimeTravel(simulation, 4, 4);
+		timeTravel.run(5);
+		timeTravel.detach();
+		timeTravel.detach();
+		assertNull(simulation.getInput(0).timeTravel);
+		simulation.getInput(0).setValue(enable, 1);
+		simulation.run(3);
+		assertEquals(3, simulation.getDomain(0).getValue(builder.getValueFields().get("count")));
+		assertEquals(5, timeTravel.getCycle());
+		try {
+			timeTravel.seek(0);
+			fail("detached time travel was usable");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	private static ProgramBuilder createBuilder(int inputIndex) throws Exception {
+		ProcessedTrees trees = new ProcessedTrees("test.pool");
+		ModulePort clk = trees.input("clk", bit());
+		ModulePort enable = trees.input("enable", bit());
+		Register count = trees.register("count", vector(8));
+		trees.doBlock(clk, when(ref(enable), assign(ref(count), op(ref(count), PLUS, constant(8, 1)))));
+		return new ProgramBuilder(trees.build(), inputIndex);
+	}
+
+	private static List<Long> runCounter(ProgramBuilder builder, InternalSimulation simulation, int inputIndex) {
+		ValueField enable = builder.getInputValueFields().get("enable");
+		ValueField count = builder.getValueFields().get("count");
+		InternalInput input = simulation.getInput(inputIndex);
+		List<Long> counts = new ArrayList<>();
+		counts.add(simulation.getDomain(0).getValue(count));
+		for (int i = 0; i < 40; i++) {
+			input.setValue(enable, (i % 7) < 4 ? 1 : 0);
+			simulation.step();
+			counts.add(simulation.getDomain(0).getValue(count));
+		}
+		return counts;
+	}
+
+}
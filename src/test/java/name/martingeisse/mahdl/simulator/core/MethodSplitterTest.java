@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import name.martingeisse.mahdl.benchmark.ProcessedTrees;
+import name.martingeisse.mahdl.plugin.processor.definition.ModuleDefinition;
+import name.martingeisse.mahdl.plugin.processor.definition.ModulePort;
+import name.martingeisse.mahdl.plugin.processor.definition.Register;
+import name.martingeisse.mahdl.plugin.processor.definition.Signal;
+import name.martingeisse.mahdl.plugin.processor.expression.ProcessedExpression;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Random;
+
+import static name.martingeisse.mahdl.benchmark.ProcessedTrees.*;
+import static name.martingeisse.mahdl.plugin.processor.expression.ProcessedBinaryOperator.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that programs whose methods get split by the {@link MethodSplitter} compute the same values as unsplit ones.
+ * A small size limit splits the design at every level: do-blocks get packed into helper methods, and do-blocks that
+ * are too large on their own get expanded.
+ */
+public class MethodSplitterTest {
+
+	private static final int REGISTER_COUNT = 8;
+
+	/**
+	 * Bit-sliced code is much larger, so the unsplit program only stays within the limit of the JVM for a smaller design.
+	 */
+	private static final int BIT_SLICED_REGISTER_COUNT = 2;
+	private static final int SMALL_SIZE_LIMIT = 150;
+	private static final int CYCLES = 200;
+
+	@Test
+	public void testSplitMatchesUnsplit() throws Exception {
+		for (boolean packedLayout : new boolean[] {false, true}) {
+			for (BufferingMode bufferingMode : BufferingMode.values()) {
+				for (boolean activityTracking : new boolean[] {false, true}) {
+					ProgramBuilder unsplit = new ProgramBuilder(createModule(REGISTER_COUNT), 0, packedLayout);
+					ProgramBuilder split = new ProgramBuilder(createModule(REGISTER_COUNT), 0, packedLayout);
+					for (ProgramBuilder builder : new ProgramBuilder[] {unsplit, split}) {
+						builder.setBufferingMode(bufferingMode);
+						builder.setActivityTracking(activityTracking);
+					}
+					unsplit.setMethodSizeLimit(Integer.MAX_VALUE);
+					split.setMethodSizeLimit(SMALL_SIZE_LIMIT);
+					compare("packed " + packedLayout + ", " + bufferingMode + ", tracking " + activityTracking, unsplit, split);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testBitSlicedSplitMatchesUnsplit() throws Exception {
+		ProgramBuilder unsplit = ProgramBuilder.createBitSliced(createModule(BIT_SLICED_REGISTER_COUNT), 0);
+		ProgramBuilder split = ProgramBuilder.createBitSliced(createModule(BIT_SLICED_REGISTER_COUNT), 0);
+		unsplit.setMethodSizeLimit(Integer.MAX_VALUE);
+		split.setMethodSizeLimit(SMALL_SIZE_LIMIT);
+		compare("bit-sliced", unsplit, split);
+	}
+
+	/**
+	 * Simulates both programs with the same random inputs and compares all words after each cycle.
+	 */
+	private static void compare(String message, ProgramBuilder unsplitBuilder, ProgramBuilder splitBuilder) throws Exception {
+		Program unsplitProgram = unsplitBuilder.build();
+		Program splitProgram = splitBuilder.build();
+		assertEquals(message, 0, countHelperMethods(unsplitProgram));
+		assertTrue(message, countHelperMethods(splitProgram) > 0);
+
+		InternalSimulation unsplitSimulation = new InternalSimulation();
+		InternalInput unsplitInput = unsplitSimulation.createInput(unsplitBuilder.getInputWordCount());
+		InternalDomain unsplitDomain = unsplitSimulation.createDomain(unsplitBuilder.getWordCount(), unsplitProgram);
+		InternalSimulation splitSimulation = new InternalSimulation();
+		InternalInput splitInput = splitSimulation.createInput(splitBuilder.getInputWordCount());
+		InternalDomain splitDomain = splitSimulation.createDomain(splitBuilder.getWordCount(), splitProgram);
+		assertEquals(message, unsplitBuilder.getWordCount(), splitBuilder.getWordCount());
+
+		Random random = new Random(1);
+		for (int cycle = 0; cycle < CYCLES; cycle++) {
+			if (cycle % 3 == 0) {
+				for (String name : new String[] {"seed", "mode"}) {
+					ValueField field = unsplitBuilder.getInputValueFields().get(name);
+					if (unsplitBuilder.isBitSliced()) {
+						for (int bit = 0; bit < field.getWidth(); bit++) {
+							long lanes = random.nextLong();
+							unsplitInput.setLanes(field, bit, lanes);
+							splitInput.setLanes(splitBuilder.getInputValueFields().get(name), bit, lanes);
+						}
+					} else {
+						long value = random.nextLong();
+						unsplitInput.setValue(field, value);
+						splitInput.setValue(splitBuilder.getInputValueFields().get(name), value);
+					}
+				}
+			}
+			unsplitSimulation.step();
+			splitSimulation.step();
+			long[] expected = new long[unsplitBuilder.getWordCount()];
+			long[] actual = new long[splitBuilder.getWordCount()];
+			for (int i = 0; i < expected.length; i++) {
+				expected[i] = unsplitDomain.getWord(i);
+				actual[i] = splitDomain.getWord(i);
+			}
+			assertArrayEquals(message + ", cycle " + cycle + ": " + Arrays.toString(expected) + " vs " + Arrays.toString(actual), expected, actual);
+		}
+	}
+
+	private static int countHelperMethods(Program program) {
+		int count = 0;
+		for (Method method : program.getClass().getDeclaredMethods()) {
+			if (method.getName().startsWith("part")) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * A chain of registers, each updated by a clocked do-block with a switch whose branches contain if-statements, a
+	 * matrix written at a computed row, signals that mix the registers, and a continuous do-block.
+	 */
+	private static ModuleDefinition createModule(int registerCount) throws Exception {
+		ProcessedTrees trees = new ProcessedTrees("test.splitter");
+		ModulePort clk = trees.input("clk", bit());
+		ModulePort seed = trees.input("seed", vector(16));
+		ModulePort mode = trees.input("mode", vector(2));
+		Register memory = trees.register("memory", matrix(8, 16));
+		Register[] registers = new Register[registerCount];
+		for (int i = 0; i < registerCount; i++) {
+			registers[i] = trees.register("r" + i, vector(16));
+		}
+		Signal[] mixed = new Signal[registerCount];
+		for (int i = 0; i < registerCount; i++) {
+			ProcessedExpression previous = i == 0 ? ref(seed) : ref(mixed[i - 1]);
+			mixed[i] = trees.signal("m" + i, vector(16), op(op(ref(registers[i]), XOR, previous), PLUS, constant(16, i * 7 + 1)));
+		}
+		Signal selected = trees.signal("selected", vector(16));
+		trees.doBlock(null, switchStatement(ref(mode),
+			Arrays.asList(constantValue(2, 0), constantValue(2, 1)),
+			Arrays.asList(assign(ref(selected), ref(mixed[registerCount - 1])),
+				assign(ref(selected), row(ref(memory), range(ref(registers[0]), 2, 0)))),
+			assign(ref(selected), op(ref(mixed[0]), TIMES, ref(registers[1])))));
+		for (int i = 0; i < registerCount; i++) {
+			Register register = registers[i];
+			ProcessedExpression next = ref(registers[(i + 1) % registerCount]);
+			trees.doBlock(clk, switchStatement(ref(mode),
+				Arrays.asList(constantValue(2, 0), constantValue(2, 1), constantValue(2, 2)),
+				Arrays.asList(
+					when(bitAt(ref(mixed[i]), i), assign(ref(register), op(ref(mixed[i]), PLUS, next)),
+						assign(ref(register), op(ref(register), MINUS, ref(selected)))),
+					assign(ref(register), op(ref(register), SHIFT_LEFT, constant(8, 1))),
+					when(op(ref(register), LESS_THAN, next), assign(ref(register), op(next, TIMES, constant(16, 3))))),
+				assign(ref(register), op(ref(mixed[i]), XOR, ref(selected)))));
+		}
+		trees.doBlock(clk, assign(row(ref(memory), range(ref(registers[1]), 2, 0)), ref(mixed[0])));
+		return trees.build();
+	}
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import name.martingeisse.mahdl.benchmark.ProcessedTrees;
+import name.martingeisse.mahdl.plugin.processor.definition.ModulePort;
+import name.martingeisse.mahdl.plugin.processor.definition.Register;
+import name.martingeisse.mahdl.plugin.processor.definition.Signal;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static name.martingeisse.mahdl.benchmark.ProcessedTrees.*;
+import static name.martingeisse.mahdl.plugin.processor.expression.ProcessedBinaryOperator.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that simulating the domains of an {@link InternalSimulation} in parallel gives the same values as simulating
+ * them one after another.
+ */
+public class ParallelSimulationTest {
+
+	private static final int DOMAIN_COUNT = 6;
+
+	@Test
+	public void testParallelMatchesSequential() throws Exception {
+		long[] expected = simulate(1);
+		for (int parallelism : new int[] {2, 3, DOMAIN_COUNT, DOMAIN_COUNT + 2}) {
+			assertArrayEquals("parallelism " + parallelism, expected, simulate(parallelism));
+		}
+	}
+
+	/**
+	 * Domains added or parallelism changed after the first run must be included in the following runs.
+	 */
+	@Test
+	public void testChangesAfterFirstRun() throws Exception {
+		InternalSimulation simulation = new InternalSimulation();
+		simulation.setParallelism(2);
+		List<ProgramBuilder> builders = new ArrayList<>();
+		List<InternalDomain> domains = new ArrayList<>();
+		for (int i = 0; i < 2; i++) {
+			addDomain(simulation, i, builders, domains);
+		}
+		simulation.run(10);
+		addDomain(simulation, 2, builders, domains);
+		simulation.step();
+		assertEquals(11, getCount(builders.get(0), domains.get(0)));
+		assertEquals(1, getCount(builders.get(2), domains.get(2)));
+		simulation.setParallelism(3);
+		simulation.run(5);
+		simulation.setParallelism(1);
+		simulation.run(5);
+		assertEquals(21, getCount(builders.get(1), domains.get(1)));
+		assertEquals(11, getCount(builders.get(2), domains.get(2)));
+	}
+
+	private static long[] simulate(int parallelism) throws Exception {
+		InternalSimulation simulation = new InternalSimulation();
+		simulation.setParallelism(parallelism);
+		List<ProgramBuilder> builders = new ArrayList<>();
+		List<InternalDomain> domains = new ArrayList<>();
+		for (int i = 0; i < DOMAIN_COUNT; i++) {
+			addDomain(simulation, i, builders, domains);
+		}
+		simulation.run(1000);
+		for (int i = 0; i < 100; i++) {
+			simulation.step();
+		}
+		List<Long> values = new ArrayList<>();
+		for (int i = 0; i < DOMAIN_COUNT; i++) {
+			for (int word = 0; word < builders.get(i).getWordCount(); word++) {
+				values.add(domains.get(i).getWord(word));
+			}
+		}
+		return values.stream().mapToLong(Long::longValue).toArray();
+	}
+
+	/**
+	 * Each domain counts its cycles and mixes the count with its own input. Activity tracking and buffering mode vary
+	 * between the domains.
+	 */
+	private static void addDomain(InternalSimulation simulation, int index, List<ProgramBuilder> builders,
+								  List<InternalDomain> domains) throws Exception {
+		ProcessedTrees trees = new ProcessedTrees("test.parallel" + index);
+		ModulePort clk = trees.input("clk", bit());
+		ModulePort seed = trees.input("seed", vector(32));
+		Register count = trees.register("count", vector(32));
+		Register mix = trees.register("mix", vector(32));
+		Signal next = trees.signal("next", vector(32), op(op(ref(mix), TIMES, constant(32, 69069)), PLUS, ref(seed)));
+		trees.doBlock(clk,
+			assign(ref(count), op(ref(count), PLUS, constant(32, 1))),
+			assign(ref(mix), op(ref(next), XOR, ref(count))));
+		ProgramBuilder builder = new ProgramBuilder(trees.build(), simulation.inputs.size());
+		builder.setActivityTracking(index % 2 == 0);
+		if (index % 3 == 0) {
+			builder.setBufferingMode(BufferingMode.FLIP);
+		}
+		InternalInput input = simulation.createInput(builder.getInputWordCount());
+		input.setValue(builder.getInputValueFields().get("seed"), index * 12345 + 1);
+		builders.add(builder);
+		domains.add(simulation.createDomain(builder.getWordCount(), builder.build()));
+	}
+
+	private static long getCount(ProgramBuilder builder, InternalDomain domain) {
+		return domain.getValue(builder.getValueFields().get("count"));
+	}
+
+}
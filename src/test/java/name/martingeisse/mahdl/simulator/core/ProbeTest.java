@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import name.martingeisse.mahdl.benchmark.ProcessedTrees;
+import name.martingeisse.mahdl.plugin.processor.definition.ModulePort;
+import name.martingeisse.mahdl.plugin.processor.definition.Register;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static name.martingeisse.mahdl.benchmark.ProcessedTrees.*;
+import static name.martingeisse.mahdl.plugin.processor.expression.ProcessedBinaryOperator.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that a {@link Probe} samples the values of the domain after every (interval) updates, no matter whether the
+ * domain gets updated one cycle at a time or in loops of many cycles, and that samples get dropped and counted
+ * instead of blocking the simulation when the observer doesn't keep up.
+ */
+public class ProbeTest {
+
+	private static final int UPDATES = 20_000;
+
+	@Test
+	public void testSamplesMatchValuesAfterUpdates() throws Exception {
+		for (BufferingMode bufferingMode : BufferingMode.values()) {
+			for (boolean activityTracking : new boolean[] {false, true}) {
+				String message = bufferingMode + ", tracking " + activityTracking;
+				long[][] expected = simulateOneByOne(bufferingMode, activityTracking, UPDATES);
+				for (int interval : new int[] {1, 7, 1000}) {
+					Setup setup = new Setup(bufferingMode, activityTracking);
+					Probe probe = setup.createProbe(interval, UPDATES);
+					updateInRandomChunks(setup, new Random(interval), UPDATES);
+					long[] samples = new long[UPDATES * probe.getSampleSize()];
+					int count = probe.drain(samples);
+					assertEquals(message, UPDATES / interval, count);
+					assertEquals(message, 0, probe.getDroppedSampleCount());
+					for (int i = 0; i < count; i++) {
+						checkSample(message + ", interval " + interval, expected, samples, i, (i + 1L) * interval);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testFullRingDropsSamples() throws Exception {
+		Setup setup = new Setup(BufferingMode.COPY, false);
+		long[][] expected = simulateOneByOne(BufferingMode.COPY, false, 100);
+		Probe probe = setup.createProbe(3, 4);
+		setup.domain.runCycles(30);
+		long[] samples = new long[10 * probe.getSampleSize()];
+		assertEquals(4, probe.drain(samples));
+		assertEquals(6, probe.getDroppedSampleCount());
+		for (int i = 0; i < 4; i++) {
+			checkSample("before draining", expected, samples, i, (i + 1L) * 3);
+		}
+
+		// after draining, the update counts show the gap
+		for (int i = 0; i < 9; i++) {
+			setup.domain.update();
+		}
+		assertEquals(3, probe.drain(samples));
+		assertEquals(6, probe.getDroppedSampleCount());
+		for (int i = 0; i < 3; i++) {
+			checkSample("after draining", expected, samples, i, 33 + i * 3);
+		}
+	}
+
+	@Test
+	public void testObserverInOtherThread() throws Exception {
+		int updates = 500_000;
+		int interval = 3;
+		long[][] expected = simulateOneByOne(BufferingMode.COPY, false, updates);
+		Setup setup = new Setup(BufferingMode.COPY, false);
+		Probe probe = setup.createProbe(interval, 64);
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		long[] receivedCount = new long[1];
+		AtomicBoolean done = new AtomicBoolean();
+		Thread observer = new Thread(() -> {
+			try {
+				long[] samples = new long[16 * probe.getSampleSize()];
+				long lastUpdateCount = 0;
+				while (true) {
+					boolean finished = done.get();
+					int count = probe.drain(samples);
+					for (int i = 0; i < count; i++) {
+						long updateCount = samples[i * probe.getSampleSize()];
+						assertTrue("update count " + updateCount + " after " + lastUpdateCount, updateCount > lastUpdateCount);
+						checkSample("observer", expected, samples, i, updateCount);
+						lastUpdateCount = updateCount;
+					}
+					receivedCount[0] += count;
+					if (count == 0) {
+						if (finished) {
+							break;
+						}
+						Thread.yield();
+					}
+				}
+			} catch (Throwable e) {
+				failure.set(e);
+			}
+		});
+		observer.start();
+		updateInRandomChunks(setup, new Random(1), updates);
+		done.set(true);
+		observer.join();
+		if (failure.get() != null) {
+			throw new AssertionError("observer failed", failure.get());
+		}
+		assertTrue(receivedCount[0] > 0);
+		assertEquals(updates / interval, receivedCount[0] + probe.getDroppedSampleCount());
+	}
+
+	private static void checkSample(String message, long[][] expected, long[] samples, int index, long updateCount) {
+		int offset = index * 3;
+		assertEquals(message + ", sample " + index, updateCount, samples[offset]);
+		assertEquals(message + ", update " + updateCount, expected[(int) updateCount][0], samples[offset + 1]);
+		assertEquals(message + ", update " + updateCount, expected[(int) updateCount][1], samples[offset + 2]);
+	}
+
+	/**
+	 * Updates the domain one cycle at a time, in loops inside the program, and through the simulation.
+	 */
+	private static void updateInRandomChunks(Setup setup, Random random, int updates) {
+		int done = 0;
+		while (done < updates) {
+			int chunk = Math.min(updates - done, random.nextInt(3) == 0 ? 1 : random.nextInt(5000));
+			if (chunk == 1) {
+				setup.domain.update();
+			} else if (random.nextBoolean()) {
+				setup.domain.runCycles(chunk);
+			} else {
+				setup.simulation.run(chunk);
+			}
+			done += chunk;
+		}
+	}
+
+	/**
+	 * Returns the values of the probed fields after each number of updates.
+	 */
+	private static long[][] simulateOneByOne(BufferingMode bufferingMode, boolean activityTracking, int updates) throws Exception {
+		Setup setup = new Setup(bufferingMode, activityTracking);
+		long[][] values = new long[updates + 1][];
+		for (int i = 1; i <= updates; i++) {
+			setup.domain.update();
+			values[i] = new long[] {setup.domain.getValue(setup.count), setup.domain.getValue(setup.mixed)};
+		}
+		return values;
+	}
+
+	/**
+	 * A counter and a register that mixes the count into its value.
+	 */
+	private static final class Setup {
+
+		private final InternalSimulation simulation = new InternalSimulation();
+		private final InternalDomain domain;
+		private final ValueField count;
+		private final ValueField mixed;
+
+		Setup(BufferingMode bufferingMode, boolean activityTracking) throws Exception {
+			ProcessedTrees trees = new ProcessedTrees("test.probe");
+			ModulePort clk = trees.input("clk", bit());
+			ModulePort enable = trees.input("enable", bit());
+			Register count = trees.register("count", vector(16));
+			Register mixed = trees.register("mixed", vector(32));
+			trees.doBlock(clk, when(ref(enable), block(
+				assign(ref(count), op(ref(count), PLUS, constant(16, 1))),
+				assign(ref(mixed), op(op(ref(mixed), TIMES, constant(32, 5)), XOR, op(constant(16, 0), VECTOR_CONCAT, ref(count)))))));
+			ProgramBuilder builder = new ProgramBuilder(trees.build(), 0);
+			builder.setBufferingMode(bufferingMode);
+			builder.setActivityTracking(activityTracking);
+			InternalInput input = simulation.createInput(builder.getInputWordCount());
+			input.setValue(builder.getInputValueFields().get("enable"), 1);
+			domain = simulation.createDomain(builder.getWordCount(), builder.build());
+			this.count = builder.getValueFields().get("count");
+			this.mixed = builder.getValueFields().get("mixed");
+		}
+
+		Probe createProbe(int interval, int capacity) {
+			return domain.createProbe(interval, capacity, count, mixed);
+		}
+
+	}
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import name.martingeisse.mahdl.benchmark.ProcessedTrees;
+import name.martingeisse.mahdl.plugin.processor.definition.ModulePort;
+import name.martingeisse.mahdl.plugin.processor.definition.Register;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static name.martingeisse.mahdl.benchmark.ProcessedTrees.*;
+import static name.martingeisse.mahdl.plugin.processor.expression.ProcessedBinaryOperator.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that a {@link ProgramCache} returns the stored program for an unchanged design and settings, generates a new
+ * one otherwise, treats damaged entries as missing, and can be used by concurrent builds. A program loaded from the
+ * cache has the class name of the program that was stored, while a generated one gets a new name.
+ */
+public class ProgramCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testHitsAndMisses() throws Exception {
+		ProgramCache cache = new ProgramCache(folder.newFolder().toPath());
+		String stored = build(cache, 3, BufferingMode.COPY);
+		assertEquals(1, getEntries(cache).size());
+		assertEquals(stored, build(cache, 3, BufferingMode.COPY));
+
+		// a different design or different settings miss, and get their own entries
+		String otherDesign = build(cache, 5, BufferingMode.COPY);
+		String otherSettings = build(cache, 3, BufferingMode.FLIP);
+		assertEquals(3, new HashSet<>(Arrays.asList(stored, otherDesign, otherSettings)).size());
+		assertEquals(3, getEntries(cache).size());
+		assertEquals(otherDesign, build(cache, 5, BufferingMode.COPY));
+		assertEquals(stored, build(cache, 3, BufferingMode.COPY));
+	}
+
+	@Test
+	public void testDamagedEntriesAreMisses() throws Exception {
+		ProgramCache cache = new ProgramCache(folder.newFolder().toPath());
+		String stored = build(cache, 3, BufferingMode.COPY);
+		Path entry = getEntries(cache).get(0);
+		byte[] data = Files.readAllBytes(entry);
+
+		// truncated, a flipped bit, a huge length after the header, empty, and an entry with data appended
+		List<byte[]> damagedEntries = new ArrayList<>();
+		damagedEntries.add(Arrays.copyOf(data, data.length / 2));
+		byte[] flipped = data.clone();
+		flipped[data.length / 2] ^= 4;
+		damagedEntries.add(flipped);
+		byte[] hugeLength = Arrays.copyOf(data, 12);
+		Arrays.fill(hugeLength, 4, 12, (byte) 0x7f);
+		damagedEntries.add(hugeLength);
+		damagedEntries.add(new byte[0]);
+		damagedEntries.add(Arrays.copyOf(data, data.length + 1));
+		for (int i = 0; i < damagedEntries.size(); i++) {
+			Files.write(entry, damagedEntries.get(i));
+			String regenerated = build(cache, 3, BufferingMode.COPY);
+			assertNotEquals("damage " + i, stored, regenerated);
+
+			// the damaged entry got replaced
+			assertEquals("damage " + i, regenerated, build(cache, 3, BufferingMode.COPY));
+			stored = regenerated;
+			data = Files.readAllBytes(entry);
+		}
+	}
+
+	@Test
+	public void testConcurrentBuilds() throws Exception {
+		ProgramCache cache = new ProgramCache(folder.newFolder().toPath());
+		int threadCount = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		try {
+			CyclicBarrier barrier = new CyclicBarrier(threadCount);
+			List<Future<String>> futures = new ArrayList<>();
+			for (int i = 0; i < threadCount; i++) {
+				futures.add(executor.submit(() -> {
+					barrier.await();
+					return build(cache, 3, BufferingMode.COPY);
+				}));
+			}
+			Set<String> classNames = new HashSet<>();
+			for (Future<String> future : futures) {
+				classNames.add(future.get());
+			}
+
+			// whichever build stored last, the remaining entry is complete
+			assertEquals(1, getEntries(cache).size());
+			try (Stream<Path> files = Files.list(cache.getDirectory())) {
+				assertEquals(1, files.count());
+			}
+			assertTrue(classNames.contains(build(cache, 3, BufferingMode.COPY)));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testNestedGeneratorClassesAreHashed() {
+		List<String> classFiles = DesignHash.getGeneratorClassFiles();
+		for (String name : new String[] {"MethodCompiler$MirroredRowWrite", "MethodCompiler$Location", "MethodSplitter$Frame",
+			"MethodSplitter$Block", "ProgramBuilder$1"}) {
+			assertTrue(name, classFiles.contains("/name/martingeisse/mahdl/simulator/core/" + name + ".class"));
+		}
+		assertTrue(classFiles.contains("/name/martingeisse/mahdl/plugin/processor/expression/ConstantValue$Vector.class"));
+	}
+
+	private static List<Path> getEntries(ProgramCache cache) throws Exception {
+		try (Stream<Path> files = Files.list(cache.getDirectory())) {
+			return files.filter(file -> file.getFileName().toString().endsWith(".program")).collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Builds the program for a counter that adds the specified increment, checks that it counts correctly, and
+	 * returns the name of its class.
+	 */
+	private static String build(ProgramCache cache, int increment, BufferingMode bufferingMode) throws Exception {
+		ProcessedTrees trees = new ProcessedTrees("test.cache");
+		ModulePort clk = trees.input("clk", bit());
+		Register count = trees.register("count", vector(16));
+		trees.doBlock(clk, assign(ref(count), op(ref(count), PLUS, constant(16, increment))));
+		ProgramBuilder builder = new ProgramBuilder(trees.build(), 0);
+		builder.setBufferingMode(bufferingMode);
+		builder.setCache(cache);
+		Program program = builder.build();
+		InternalSimulation simulation = new InternalSimulation();
+		simulation.createInput(builder.getInputWordCount());
+		InternalDomain domain = simulation.createDomain(builder.getWordCount(), program);
+		simulation.run(10);
+		assertEquals(10 * increment, domain.getValue(builder.getValueFields().get("count")));
+		return program.getClass().getName();
+	}
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import name.martingeisse.mahdl.benchmark.ProcessedTrees;
+import name.martingeisse.mahdl.plugin.processor.definition.ModulePort;
+import name.martingeisse.mahdl.plugin.processor.definition.Register;
+import name.martingeisse.mahdl.simulator.ClockDomain;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static name.martingeisse.mahdl.benchmark.ProcessedTrees.*;
+import static name.martingeisse.mahdl.plugin.processor.expression.ProcessedBinaryOperator.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that {@link InternalSimulation#runUntil(long)} simulates exactly the clock edges of each domain up to the end
+ * time, including edges of several domains at the same time, regardless of how the time is split into runs and of
+ * the parallelism.
+ */
+public class RunUntilTest {
+
+	// edges at 4, 8, 12, ... and at 2, 12, 22, ..., which coincide at 12, 32, 52, ...
+	private static final ClockDomain FAST_CLOCK = new ClockDomain(4, 0);
+	private static final ClockDomain SLOW_CLOCK = new ClockDomain(10, 2);
+
+	@Test
+	public void testEdgeCounts() throws Exception {
+		for (int parallelism : new int[] {1, 2, 3}) {
+			String message = "parallelism " + parallelism;
+			Setup setup = new Setup(parallelism);
+			Random random = new Random(parallelism);
+			long time = 0;
+			while (time < 10_000) {
+				time += random.nextInt(3) == 0 ? 1 : random.nextInt(50);
+				setup.simulation.runUntil(time);
+				assertEquals(message, time, setup.simulation.getTime());
+				setup.checkCounts(message + ", time " + time, time);
+			}
+		}
+	}
+
+	@Test
+	public void testCoincidingEdges() throws Exception {
+		for (int parallelism : new int[] {1, 2, 3}) {
+			String message = "parallelism " + parallelism;
+			Setup setup = new Setup(parallelism);
+			for (long edgeTime = 12; edgeTime < 1000; edgeTime += 20) {
+				setup.simulation.runUntil(edgeTime - 1);
+				setup.checkCounts(message + ", before " + edgeTime, edgeTime - 1);
+				setup.simulation.runUntil(edgeTime);
+				setup.checkCounts(message + ", at " + edgeTime, edgeTime);
+			}
+		}
+	}
+
+	@Test
+	public void testRunDoesNotChangeTime() throws Exception {
+		Setup setup = new Setup(1);
+		setup.simulation.runUntil(20);
+		setup.simulation.run(7);
+		assertEquals(20, setup.simulation.getTime());
+		setup.simulation.runUntil(40);
+		assertEquals(40 / 4 + 7, setup.getCount(0));
+		assertEquals(4 + 7, setup.getCount(1));
+		assertEquals(4 + 7, setup.getCount(2));
+	}
+
+	/**
+	 * Three counters, one with the fast clock and two with the slow clock, so the slow ones always have their edges
+	 * together.
+	 */
+	private static final class Setup {
+
+		private final InternalSimulation simulation = new InternalSimulation();
+		private final InternalDomain[] domains = new InternalDomain[3];
+		private final ValueField count;
+
+		Setup(int parallelism) throws Exception {
+			ProcessedTrees trees = new ProcessedTrees("test.runUntil");
+			ModulePort clk = trees.input("clk", bit());
+			Register count = trees.register("count", vector(32));
+			trees.doBlock(clk, assign(ref(count), op(ref(count), PLUS, constant(32, 1))));
+			ProgramBuilder builder = new ProgramBuilder(trees.build(), 0);
+			simulation.setParallelism(parallelism);
+			simulation.createInput(builder.getInputWordCount());
+			domains[0] = simulation.createDomain(builder.getWordCount(), builder.build(), FAST_CLOCK);
+			domains[1] = simulation.createDomain(builder.getWordCount(), builder.build(), SLOW_CLOCK);
+			domains[2] = simulation.createDomain(builder.getWordCount(), builder.build(), SLOW_CLOCK);
+			this.count = builder.getValueFields().get("count");
+		}
+
+		long getCount(int domainIndex) {
+			return domains[domainIndex].getValue(count);
+		}
+
+		void checkCounts(String message, long time) {
+			assertEquals(message, countEdges(FAST_CLOCK, time), getCount(0));
+			assertEquals(message, countEdges(SLOW_CLOCK, time), getCount(1));
+			assertEquals(message, countEdges(SLOW_CLOCK, time), getCount(2));
+		}
+
+		private static long countEdges(ClockDomain clock, long time) {
+			long count = 0;
+			for (long edge = clock.getNextEdge(0); edge <= time; edge += clock.getPeriod()) {
+				count++;
+			}
+			return count;
+		}
+
+	}
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import name.martingeisse.mahdl.benchmark.ProcessedTrees;
+import name.martingeisse.mahdl.plugin.processor.definition.ModulePort;
+import name.martingeisse.mahdl.plugin.processor.definition.Register;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static name.martingeisse.mahdl.benchmark.ProcessedTrees.*;
+import static name.martingeisse.mahdl.plugin.processor.expression.ProcessedBinaryOperator.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that a {@link StimulusPipeline} applies the rows generated by its generator thread in order, keeps the
+ * generator at most (capacity) rows ahead, and reports the end and failures of the generator to the simulation thread.
+ */
+public class StimulusPipelineTest {
+
+	private static final int CYCLES = 20_000;
+
+	@Test
+	public void testRowsAreAppliedInOrder() throws Exception {
+		for (int capacity : new int[] {1, 3, 64}) {
+			String message = "capacity " + capacity;
+			Setup setup = new Setup();
+			long expectedSum = 0;
+			try (StimulusPipeline pipeline = new StimulusPipeline(setup.input, capacity, setup::generate)) {
+				for (long cycle = 0; cycle < CYCLES; cycle++) {
+					assertTrue(message, pipeline.applyNext());
+					assertEquals(message + ", cycle " + cycle, getData(cycle), setup.data.get(setup.input.values));
+					setup.simulation.step();
+					expectedSum = (expectedSum + getData(cycle)) & 0xffff_ffffL;
+				}
+			}
+			assertEquals(message, expectedSum, setup.domain.getValue(setup.sum));
+		}
+	}
+
+	@Test
+	public void testGeneratorWaitsForSimulation() throws Exception {
+		for (int capacity : new int[] {1, 4}) {
+			String message = "capacity " + capacity;
+			Setup setup = new Setup();
+			AtomicLong applied = new AtomicLong();
+			AtomicLong maxLead = new AtomicLong();
+			StimulusPipeline.Generator generator = (cycle, row) -> {
+				// row (cycle - 1) was in the ring, so at least (cycle - capacity) rows were taken out, and the
+				// simulation thread may not have counted the last of them yet
+				maxLead.accumulateAndGet(cycle - applied.get(), Math::max);
+				return setup.generate(cycle, row);
+			};
+			try (StimulusPipeline pipeline = new StimulusPipeline(setup.input, capacity, generator)) {
+				for (long cycle = 0; cycle < 2000; cycle++) {
+					if (cycle % 100 == 0) {
+						// let the generator fill the ring and wait
+						Thread.sleep(1);
+					}
+					assertTrue(message, pipeline.applyNext());
+					assertEquals(message + ", cycle " + cycle, getData(cycle), setup.data.get(setup.input.values));
+					applied.incrementAndGet();
+				}
+			}
+			assertTrue(message + ", lead " + maxLead.get(), maxLead.get() <= capacity + 1);
+			assertTrue(message + ", lead " + maxLead.get(), maxLead.get() >= capacity);
+		}
+	}
+
+	@Test
+	public void testEndOfGenerator() throws Exception {
+		Setup setup = new Setup();
+		StimulusPipeline.Generator generator = (cycle, row) -> cycle < 100 && setup.generate(cycle, row);
+		try (StimulusPipeline pipeline = new StimulusPipeline(setup.input, 8, generator)) {
+			assertEquals(100, pipeline.run(setup.simulation, 1000));
+			assertEquals(getData(99), setup.data.get(setup.input.values));
+			assertFalse(pipeline.applyNext());
+			assertEquals(getData(99), setup.data.get(setup.input.values));
+		}
+	}
+
+	@Test
+	public void testGeneratorFailureIsRethrown() throws Exception {
+		Setup setup = new Setup();
+		RuntimeException generatorFailure = new RuntimeException("generator failure");
+		AtomicReference<Thread> generatorThread = new AtomicReference<>();
+		StimulusPipeline.Generator generator = (cycle, row) -> {
+			generatorThread.set(Thread.currentThread());
+			if (cycle == 5) {
+				throw generatorFailure;
+			}
+			return setup.generate(cycle, row);
+		};
+		try (StimulusPipeline pipeline = new StimulusPipeline(setup.input, 2, generator)) {
+			for (int i = 0; i < 5; i++) {
+				assertTrue(pipeline.applyNext());
+			}
+			try {
+				pipeline.applyNext();
+				fail("generator failure was not reported");
+			} catch (IllegalStateException e) {
+				assertSame(generatorFailure, e.getCause());
+			}
+		}
+		assertNotSame(Thread.currentThread(), generatorThread.get());
+		assertFalse(generatorThread.get().isAlive());
+	}
+
+	@Test
+	public void testCloseStopsWaitingGenerator() throws Exception {
+		Setup setup = new Setup();
+		AtomicReference<Thread> generatorThread = new AtomicReference<>();
+		StimulusPipeline.Generator generator = (cycle, row) -> {
+			generatorThread.set(Thread.currentThread());
+			return setup.generate(cycle, row);
+		};
+		try (StimulusPipeline pipeline = new StimulusPipeline(setup.input, 2, generator)) {
+			assertTrue(pipeline.applyNext());
+		}
+		assertFalse(generatorThread.get().isAlive());
+	}
+
+	private static long getData(long cycle) {
+		return (cycle * 0x9e37 + 11) & 0xffff;
+	}
+
+	/**
+	 * Sums a data input into a register.
+	 */
+	private static final class Setup {
+
+		private final InternalSimulation simulation = new InternalSimulation();
+		private final InternalInput input;
+		private final InternalDomain domain;
+		private final ValueField data;
+		private final ValueField sum;
+
+		Setup() throws Exception {
+			ProcessedTrees trees = new ProcessedTrees("test.pipeline");
+			ModulePort clk = trees.input("clk", bit());
+			ModulePort data = trees.input("data", vector(16));
+			Register sum = trees.register("sum", vector(32));
+			trees.doBlock(clk, assign(ref(sum), op(ref(sum), PLUS, op(constant(16, 0), VECTOR_CONCAT, ref(data)))));
+			ProgramBuilder builder = new ProgramBuilder(trees.build(), 0);
+			input = simulation.createInput(builder.getInputWordCount());
+			domain = simulation.createDomain(builder.getWordCount(), builder.build());
+			this.data = builder.getInputValueFields().get("data");
+			this.sum = builder.getValueFields().get("sum");
+		}
+
+		boolean generate(long cycle, long[] row) {
+			data.set(row, getData(cycle));
+			return true;
+		}
+
+	}
+
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import name.martingeisse.mahdl.benchmark.ProcessedTrees;
+import name.martingeisse.mahdl.plugin.processor.definition.ModulePort;
+import name.martingeisse.mahdl.plugin.processor.definition.Register;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static name.martingeisse.mahdl.benchmark.ProcessedTrees.*;
+import static name.martingeisse.mahdl.plugin.processor.expression.ProcessedBinaryOperator.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that {@link TimeTravel} reproduces the state that a fresh simulation reaches at each cycle under the same
+ * input changes, after seeking back and forth, stepping on after a seek, and changing inputs after seeking back.
+ */
+public class TimeTravelTest {
+
+	private static final long SNAPSHOT_INTERVAL = 8;
+
+	// keeps 40 cycles, so older snapshots get evicted from the ring
+	private static final int SNAPSHOT_COUNT = 5;
+
+	private static final int CYCLES = 200;
+
+	@Test
+	public void testSeekMatchesFreshSimulation() throws Exception {
+		for (boolean activityTracking : new boolean[] {false, true}) {
+			String message = "tracking " + activityTracking;
+			long[][] schedule = createSchedule(new Random(1), CYCLES + 1);
+			List<List<Long>> expected = simulateFresh(activityTracking, schedule, CYCLES);
+			Setup setup = new Setup(activityTracking);
+			TimeTravel timeTravel = new TimeTravel(setup.simulation, SNAPSHOT_INTERVAL, SNAPSHOT_COUNT);
+			for (int cycle = 0; cycle < CYCLES; cycle++) {
+				setup.apply(schedule[cycle]);
+				timeTravel.step();
+			}
+			setup.apply(schedule[CYCLES]);
+			assertEquals(message, expected.get(CYCLES), setup.getState());
+			assertEquals(message, CYCLES, timeTravel.getLastRecordedCycle());
+			long first = timeTravel.getFirstRecordedCycle();
+			assertEquals(message, CYCLES - (SNAPSHOT_COUNT - 1) * SNAPSHOT_INTERVAL, first);
+			try {
+				timeTravel.seek(first - 1);
+				fail("seeking to an evicted cycle was possible");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+
+			// seek back and forth in random order, which restores snapshots or simulates forward from the current cycle
+			Random random = new Random(2);
+			for (int i = 0; i < 100; i++) {
+				long target = first + random.nextInt((int) (CYCLES - first + 1));
+				timeTravel.seek(target);
+				assertEquals(message + ", seek to " + target, target, timeTravel.getCycle());
+				assertEquals(message + ", seek to " + target, expected.get((int) target), setup.getState());
+			}
+
+			// stepping on from a seek replays the recorded changes, across snapshot boundaries
+			timeTravel.seek(first + 3);
+			for (long cycle = first + 4; cycle <= CYCLES; cycle++) {
+				timeTravel.step();
+				assertEquals(message + ", step to " + cycle, expected.get((int) cycle), setup.getState());
+			}
+			assertEquals(message, CYCLES, timeTravel.getLastRecordedCycle());
+		}
+	}
+
+	@Test
+	public void testChangingInputsAfterSeekStartsNewHistory() throws Exception {
+		long[][] schedule = createSchedule(new Random(3), CYCLES + 1);
+		Setup setup = new Setup(false);
+		TimeTravel timeTravel = new TimeTravel(setup.simulation, SNAPSHOT_INTERVAL, SNAPSHOT_COUNT);
+		for (int cycle = 0; cycle < CYCLES; cycle++) {
+			setup.apply(schedule[cycle]);
+			timeTravel.step();
+		}
+
+		// go back to a cycle between snapshots and take another path from there
+		int branchCycle = CYCLES - 13;
+		timeTravel.seek(branchCycle);
+		long[][] newSchedule = schedule.clone();
+		Random random = new Random(4);
+		newSchedule[branchCycle] = new long[] {1, 0xabcd};
+		for (int cycle = branchCycle + 1; cycle <= CYCLES + 20; cycle++) {
+			newSchedule = growIfNeeded(newSchedule, cycle);
+			newSchedule[cycle] = random.nextInt(3) == 0 ? new long[] {random.nextInt(2), random.nextInt(1 << 16)} : null;
+		}
+		List<List<Long>> expected = simulateFresh(false, newSchedule, CYCLES + 20);
+		setup.apply(newSchedule[branchCycle]);
+		assertEquals(branchCycle, timeTravel.getLastRecordedCycle());
+		for (int cycle = branchCycle; cycle < CYCLES + 20; cycle++) {
+			if (cycle > branchCycle) {
+				setup.apply(newSchedule[cycle]);
+			}
+			assertEquals("cycle " + cycle, expected.get(cycle), setup.getState());
+			timeTravel.step();
+		}
+
+		// the new history replays, including the change made right after seeking
+		for (long target = timeTravel.getFirstRecordedCycle(); target <= timeTravel.getLastRecordedCycle(); target++) {
+			timeTravel.seek(target);
+			assertEquals("seek to " + target, expected.get((int) target), setup.getState());
+		}
+	}
+
+	/**
+	 * Returns the input values to set at each cycle before simulating it, or null for no change.
+	 */
+	private static long[][] createSchedule(Random random, int length) {
+		long[][] schedule = new long[length][];
+		for (int cycle = 0; cycle < length; cycle++) {
+			if (cycle == 0 || random.nextInt(3) == 0) {
+				schedule[cycle] = new long[] {random.nextInt(4) == 0 ? 0 : 1, random.nextInt(1 << 16)};
+			}
+		}
+		return schedule;
+	}
+
+	private static long[][] growIfNeeded(long[][] schedule, int cycle) {
+		if (cycle < schedule.length) {
+			return schedule;
+		}
+		long[][] grown = new long[cycle + 1][];
+		System.arraycopy(schedule, 0, grown, 0, schedule.length);
+		return grown;
+	}
+
+	/**
+	 * Returns the state at each cycle up to (cycles), after applying the input changes of that cycle.
+	 */
+	private static List<List<Long>> simulateFresh(boolean activityTracking, long[][] schedule, int cycles) throws Exception {
+		Setup setup = new Setup(activityTracking);
+		List<List<Long>> states = new ArrayList<>();
+		for (int cycle = 0; cycle <= cycles; cycle++) {
+			if (cycle > 0) {
+				setup.simulation.step();
+			}
+			setup.apply(cycle < schedule.length ? schedule[cycle] : null);
+			states.add(setup.getState());
+		}
+		return states;
+	}
+
+	/**
+	 * A simulation of an accumulator that mixes a data input into its value while enabled, so the state depends on
+	 * the whole history of input changes.
+	 */
+	private static final class Setup {
+
+		private final ProgramBuilder builder;
+		private final InternalSimulation simulation = new InternalSimulation();
+		private final InternalInput input;
+		private final InternalDomain domain;
+
+		Setup(boolean activityTracking) throws Exception {
+			ProcessedTrees trees = new ProcessedTrees("test.timeTravel");
+			ModulePort clk = trees.input("clk", bit());
+			ModulePort enable = trees.input("enable", bit());
+			ModulePort data = trees.input("data", vector(16));
+			Register accumulator = trees.register("accumulator", vector(16));
+			Register count = trees.register("count", vector(8));
+			trees.doBlock(clk,
+				assign(ref(count), op(ref(count), PLUS, constant(8, 1))),
+				when(ref(enable), assign(ref(accumulator), op(op(ref(accumulator), TIMES, constant(16, 3)), XOR, ref(data)))));
+			builder = new ProgramBuilder(trees.build(), 0);
+			builder.setActivityTracking(activityTracking);
+			input = simulation.createInput(builder.getInputWordCount());
+			domain = simulation.createDomain(builder.getWordCount(), builder.build());
+		}
+
+		void apply(long[] values) {
+			if (values != null) {
+				input.setValue(builder.getInputValueFields().get("enable"), values[0]);
+				input.setValue(builder.getInputValueFields().get("data"), values[1]);
+			}
+		}
+
+		List<Long> getState() {
+			List<Long> state = new ArrayList<>();
+			for (long value : input.values) {
+				state.add(value);
+			}
+			for (int i = 0; i < builder.getWordCount(); i++) {
+				state.add(domain.getWord(i));
+			}
+			return state;
+		}
+
+	}
+
+}
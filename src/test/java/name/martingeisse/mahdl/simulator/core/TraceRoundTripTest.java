@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import name.martingeisse.mahdl.benchmark.ProcessedTrees;
+import name.martingeisse.mahdl.plugin.processor.definition.ModulePort;
+import name.martingeisse.mahdl.plugin.processor.definition.Register;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.*;
+
+import static name.martingeisse.mahdl.benchmark.ProcessedTrees.*;
+import static name.martingeisse.mahdl.plugin.processor.expression.ProcessedBinaryOperator.*;
+import static org.junit.Assert.*;
+
+/**
+ * Writes traces with the {@link TraceWriter} and checks that the {@link TraceReader} returns the same changes.
+ */
+public class TraceRoundTripTest {
+
+	private static final int CYCLES = 50000;
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		ProcessedTrees trees = new ProcessedTrees("test.trace");
+		ModulePort clk = trees.input("clk", bit());
+		ModulePort enable = trees.input("enable", bit());
+		Register count = trees.register("count", vector(16));
+		Register wide = trees.register("wide", vector(130));
+		trees.signal("high", vector(8), range(ref(count), 15, 8));
+		trees.signal("low", bit(), bitAt(ref(count), 0));
+		trees.doBlock(clk,
+			when(ref(enable), assign(ref(count), op(ref(count), PLUS, constant(16, 1)))),
+			assign(ref(wide), op(ref(wide), PLUS, constant(130, 0x123456789L))));
+		ProgramBuilder builder = new ProgramBuilder(trees.build(), 0);
+		ValueField enableField = builder.getInputValueFields().get("enable");
+		Map<String, ValueField> fields = builder.getValueFields();
+		InternalSimulation simulation = new InternalSimulation();
+		InternalInput input = simulation.createInput(builder.getInputWordCount());
+		input.setValue(enableField, 1);
+		InternalDomain domain = simulation.createDomain(builder.getWordCount(), builder.build());
+
+		// the expected changes of each signal, as time and value words
+		Map<String, List<long[]>> expected = new TreeMap<>();
+		for (String name : fields.keySet()) {
+			expected.put(name, new ArrayList<>());
+		}
+		Path path = temporaryFolder.newFile("test.trace").toPath();
+		try (TraceWriter writer = new TraceWriter(domain, fields, path)) {
+			for (int i = 0; i < CYCLES; i++) {
+				if (i % 1000 == 500) {
+					input.setValue(enableField, 0);
+				}
+				if (i % 1000 == 700) {
+					input.setValue(enableField, 1);
+				}
+				domain.update();
+				long time = 3L * i + 10;
+				writer.sample(time);
+				for (Map.Entry<String, List<long[]>> entry : expected.entrySet()) {
+					ValueField field = fields.get(entry.getKey());
+					long[] change = new long[field.getWordCount() + 1];
+					change[0] = time;
+					if (field.isWide()) {
+						for (int j = 0; j < field.getWordCount(); j++) {
+							change[j + 1] = domain.getWord(field.getWordIndex() + j);
+						}
+					} else {
+						change[1] = domain.getValue(field);
+					}
+					List<long[]> changes = entry.getValue();
+					if (changes.isEmpty() || !Arrays.equals(Arrays.copyOfRange(changes.get(changes.size() - 1), 1, change.length),
+						Arrays.copyOfRange(change, 1, change.length))) {
+						changes.add(change);
+					}
+				}
+			}
+		}
+
+		try (TraceReader reader = new TraceReader(path)) {
+			assertEquals(expected.keySet(), reader.getSignalNames());
+			assertEquals(130, reader.getWidth("wide"));
+			long endOfTrace = 3L * CYCLES + 10;
+			Random random = new Random(1);
+			for (String name : expected.keySet()) {
+				checkWindow(reader, name, expected.get(name), -100, endOfTrace);
+				checkWindow(reader, name, expected.get(name), 0, 5);
+				for (int i = 0; i < 50; i++) {
+					long start = random.nextInt((int) endOfTrace);
+					checkWindow(reader, name, expected.get(name), start, start + random.nextInt(i < 5 ? 50000 : 3000));
+				}
+			}
+		}
+	}
+
+	private static void checkWindow(TraceReader reader, String name, List<long[]> changes, long startTime, long endTime) throws Exception {
+		List<String> expected = new ArrayList<>();
+		String previous = null;
+		for (long[] change : changes) {
+			if (change[0] <= startTime) {
+				previous = format(change[0], Arrays.copyOfRange(change, 1, change.length));
+			} else if (change[0] <= endTime) {
+				expected.add(format(change[0], Arrays.copyOfRange(change, 1, change.length)));
+			}
+		}
+		if (previous != null) {
+			expected.add(0, previous);
+		}
+		List<String> actual = new ArrayList<>();
+		for (TraceReader.Change change : reader.read(name, startTime, endTime)) {
+			actual.add(format(change.getTime(), change.getWords()));
+		}
+		assertEquals(name + " from " + startTime + " to " + endTime, expected, actual);
+	}
+
+	private static String format(long time, long[] words) {
+		return time + ":" + Arrays.toString(words);
+	}
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.simulator.core;
+
+import name.martingeisse.mahdl.benchmark.ProcessedTrees;
+import name.martingeisse.mahdl.plugin.processor.definition.ModulePort;
+import name.martingeisse.mahdl.plugin.processor.definition.Register;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static name.martingeisse.mahdl.benchmark.ProcessedTrees.*;
+import static name.martingeisse.mahdl.plugin.processor.expression.ProcessedBinaryOperator.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests that the values in a VCD file written by a {@link VcdWriter} are those of the domain at each sample.
+ */
+public class VcdWriterTest {
+
+	private static final int SAMPLE_COUNT = 3000;
+	private static final long TIME_STEP = 10;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testFileMatchesSampledValues() throws Exception {
+		for (boolean packedLayout : new boolean[] {false, true}) {
+			String message = "packed " + packedLayout;
+			ProgramBuilder builder = createBuilder(packedLayout);
+			InternalSimulation simulation = new InternalSimulation();
+			InternalInput input = simulation.createInput(builder.getInputWordCount());
+			InternalDomain domain = simulation.createDomain(builder.getWordCount(), builder.build());
+			ValueField enable = builder.getInputValueFields().get("enable");
+			Map<String, ValueField> fields = builder.getValueFields();
+			Path path = folder.newFile().toPath();
+			List<Map<String, BigInteger>> expected = new ArrayList<>();
+			try (VcdWriter writer = new VcdWriter(domain, fields, "top", "1 ns", path)) {
+				for (int i = 0; i < SAMPLE_COUNT; i++) {
+					// pauses leave samples without changes, which the writer skips
+					input.setValue(enable, (i % 100) < 70 ? 1 : 0);
+					simulation.step();
+					writer.sample(i * TIME_STEP);
+					expected.add(getValues(domain, fields));
+				}
+			}
+
+			List<String> lines = Files.readAllLines(path, StandardCharsets.US_ASCII);
+			assertTrue(message, lines.contains("$timescale 1 ns $end"));
+			Map<String, String> namesByIdentifier = new HashMap<>();
+			Map<String, Integer> widths = new HashMap<>();
+			Map<String, BigInteger> current = new TreeMap<>();
+			int sample = -1;
+			for (String line : lines) {
+				if (line.startsWith("$var")) {
+					String[] parts = line.split(" ");
+					namesByIdentifier.put(parts[3], parts[4]);
+					widths.put(parts[4], Integer.parseInt(parts[2]));
+				} else if (line.startsWith("#")) {
+					long time = Long.parseLong(line.substring(1));
+					assertEquals(message, 0, time % TIME_STEP);
+					int nextSample = (int) (time / TIME_STEP);
+					assertTrue(message + ", time " + time, nextSample > sample);
+					checkSamples(message, expected, current, sample, nextSample);
+					sample = nextSample;
+				} else if (line.startsWith("b")) {
+					String[] parts = line.substring(1).split(" ");
+					current.put(namesByIdentifier.get(parts[1]), new BigInteger(parts[0], 2));
+				} else if (line.startsWith("0") || line.startsWith("1")) {
+					current.put(namesByIdentifier.get(line.substring(1)), BigInteger.valueOf(line.charAt(0) - '0'));
+				} else {
+					assertTrue(message + ", line " + line, line.startsWith("$"));
+				}
+			}
+			checkSamples(message, expected, current, sample, SAMPLE_COUNT);
+
+			// the matrix is not recorded, and the widths are declared as in the design
+			assertFalse(message, widths.containsKey("memory"));
+			assertEquals(message, Integer.valueOf(1), widths.get("flag"));
+			assertEquals(message, Integer.valueOf(8), widths.get("count"));
+			assertEquals(message, Integer.valueOf(100), widths.get("wide"));
+		}
+	}
+
+	// checks that the values from the file so far are those of the samples from (from) to (to), exclusive
+	private static void checkSamples(String message, List<Map<String, BigInteger>> expected, Map<String, BigInteger> current, int from, int to) {
+		for (int i = Math.max(from, 0); i < to; i++) {
+			assertEquals(message + ", sample " + i, expected.get(i), current);
+		}
+	}
+
+	private static Map<String, BigInteger> getValues(InternalDomain domain, Map<String, ValueField> fields) {
+		Map<String, BigInteger> values = new TreeMap<>();
+		for (Map.Entry<String, ValueField> entry : fields.entrySet()) {
+			ValueField field = entry.getValue();
+			if (field.isMatrix()) {
+				continue;
+			}
+			BigInteger value = BigInteger.ZERO;
+			if (field.isWide()) {
+				for (int i = field.getWordCount() - 1; i >= 0; i--) {
+					value = value.shiftLeft(64).or(new BigInteger(Long.toUnsignedString(domain.getWord(field.getWordIndex() + i))));
+				}
+			} else {
+				value = new BigInteger(Long.toUnsignedString(domain.getValue(field)));
+			}
+			values.put(entry.getKey(), value);
+		}
+		return values;
+	}
+
+	/**
+	 * A counter with a 1-bit flag, narrow signals, a rotating 100-bit register and a memory.
+	 */
+	private static ProgramBuilder createBuilder(boolean packedLayout) throws Exception {
+		ProcessedTrees trees = new ProcessedTrees("test.vcd");
+		ModulePort clk = trees.input("clk", bit());
+		ModulePort enable = trees.input("enable", bit());
+		Register count = trees.register("count", vector(8));
+		Register flag = trees.register("flag", bit());
+		Register wide = trees.register("wide", vector(100));
+		Register memory = trees.register("memory", matrix(4, 8));
+		trees.signal("sum", vector(8), op(ref(count), PLUS, constant(8, 5)));
+		trees.signal("high", vector(3), range(ref(count), 7, 5));
+		trees.doBlock(clk, when(ref(enable), block(
+			assign(ref(count), op(ref(count), PLUS, constant(8, 1))),
+			assign(ref(flag), bitAt(ref(count), 2)),
+			assign(ref(wide), op(range(ref(wide), 98, 0), VECTOR_CONCAT, op(range(ref(wide), 99, 99), XOR, range(ref(count), 0, 0)))),
+			assign(row(ref(memory), range(ref(count), 1, 0)), ref(count)))));
+		return new ProgramBuilder(trees.build(), 0, packedLayout);
+	}
+
+}
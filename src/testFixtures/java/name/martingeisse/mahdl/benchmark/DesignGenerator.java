@@ -0,0 +1,428 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.benchmark;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates the source code of synthetic designs whose size can be dialed in, for benchmarks and stress tests of the
+ * front-end and the simulator. Unlike the sources of the front-end benchmarks, a generated design mixes all kinds of definitions and
+ * statements: constants, registers, signals with and without initializers, switch expressions, clocked and continuous
+ * do-blocks with if- and switch-statements, and module instances. The output is a pure function of the seed and the
+ * knobs, and it is free of errors and combinational loops.
+ * <p>
+ * A design consists of one module per hierarchy level, named "level0" (the toplevel module) to "levelN" in the
+ * package passed to {@link #generate(String)}. All modules have the same interface (clk, a vector input x and a
+ * vector output y), and each module except the last instantiates the module of the next level a few times. The size
+ * is the total number of signals and registers in the source code, spread evenly across the modules, so it also
+ * measures the amount of work for the front-end. Instances are not counted, so the elaborated design is larger
+ * than the size when there is more than one level. A hierarchy depth of 0 produces a single module that the
+ * {@link name.martingeisse.mahdl.simulator.core.ProgramBuilder} can simulate.
+ */
+public final class DesignGenerator {
+
+	private static final int WIDTH = 16;
+	private static final String[] OPERATORS = {"+", "-", "^", "&", "|"};
+
+	private final long seed;
+	private int size = 1000;
+	private int hierarchyDepth = 0;
+	private int instancesPerModule = 2;
+	private int expressionDepth = 3;
+	private int switchCases = 8;
+	private int statementsPerBlock = 64;
+
+	private Random random;
+	private StringBuilder builder;
+	private int signalCount;
+	private int registerCount;
+	private int constantCount;
+	private int instanceCount;
+
+	public DesignGenerator(long seed) {
+		this.seed = seed;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Sets the total number of signals and registers.
+	 */
+	public void setSize(int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("size must be positive: " + size);
+		}
+		this.size = size;
+	}
+
+	public int getHierarchyDepth() {
+		return hierarchyDepth;
+	}
+
+	/**
+	 * Sets the number of hierarchy levels below the toplevel module.
+	 */
+	public void setHierarchyDepth(int hierarchyDepth) {
+		if (hierarchyDepth < 0) {
+			throw new IllegalArgumentException("hierarchy depth cannot be negative: " + hierarchyDepth);
+		}
+		this.hierarchyDepth = hierarchyDepth;
+	}
+
+	public int getInstancesPerModule() {
+		return instancesPerModule;
+	}
+
+	/**
+	 * Sets how many times each module instantiates the module of the next level.
+	 */
+	public void setInstancesPerModule(int instancesPerModule) {
+		if (instancesPerModule < 1) {
+			throw new IllegalArgumentException("instances per module must be positive: " + instancesPerModule);
+		}
+		this.instancesPerModule = instancesPerModule;
+	}
+
+	public int getExpressionDepth() {
+		return expressionDepth;
+	}
+
+	/**
+	 * Sets the maximum nesting depth of operators in the expressions that compute signals and registers.
+	 */
+	public void setExpressionDepth(int expressionDepth) {
+		if (expressionDepth < 1) {
+			throw new IllegalArgumentException("expression depth must be positive: " + expressionDepth);
+		}
+		this.expressionDepth = expressionDepth;
+	}
+
+	public int getSwitchCases() {
+		return switchCases;
+	}
+
+	/**
+	 * Sets the number of cases of switch expressions. A default case is added unless the cases cover all selector
+	 * values.
+	 */
+	public void setSwitchCases(int switchCases) {
+		if (switchCases < 1 || switchCases > (1 << WIDTH)) {
+			throw new IllegalArgumentException("switch cases must be between 1 and " + (1 << WIDTH) + ": " + switchCases);
+		}
+		this.switchCases = switchCases;
+	}
+
+	public int getStatementsPerBlock() {
+		return statementsPerBlock;
+	}
+
+	/**
+	 * Sets the number of statements after which a do-block is closed and a new one is started, so large designs are
+	 * made of many do-blocks of moderate size, like hand-written ones.
+	 */
+	public void setStatementsPerBlock(int statementsPerBlock) {
+		if (statementsPerBlock < 1) {
+			throw new IllegalArgumentException("statements per block must be positive: " + statementsPerBlock);
+		}
+		this.statementsPerBlock = statementsPerBlock;
+	}
+
+	/**
+	 * Returns the name of the toplevel module of the design generated for the specified package.
+	 */
+	@NotNull
+	public static String getToplevelModuleName(@NotNull String packageName) {
+		return packageName + ".level0";
+	}
+
+	/**
+	 * Generates the design. The result maps module names to source code, starting with the toplevel module.
+	 */
+	@NotNull
+	public Map<String, String> generate(@NotNull String packageName) {
+		random = new Random(seed);
+		Map<String, String> result = new LinkedHashMap<>();
+		int moduleCount = hierarchyDepth + 1;
+		for (int level = 0; level < moduleCount; level++) {
+			int moduleSize = size / moduleCount + (level < size % moduleCount ? 1 : 0);
+			String childModuleName = (level < hierarchyDepth ? packageName + ".level" + (level + 1) : null);
+			builder = new StringBuilder();
+			generateModule(packageName + ".level" + level, Math.max(moduleSize, 1), childModuleName);
+			result.put(packageName + ".level" + level, builder.toString());
+		}
+		builder = null;
+		return result;
+	}
+
+	private void generateModule(String moduleName, int moduleSize, String childModuleName) {
+		registerCount = Math.max(moduleSize / 4, 1);
+		signalCount = Math.max(moduleSize - registerCount, 1);
+		constantCount = Math.max(moduleSize / 16, 1);
+		instanceCount = (childModuleName == null ? 0 : instancesPerModule);
+
+		builder.append("module ").append(moduleName).append(";\n\n");
+		builder.append("interface {\n\tin bit clk;\n\tin vector[").append(WIDTH).append("] x;\n\tout vector[")
+			.append(WIDTH).append("] y;\n}\n\n");
+
+		// constants, each computed from the previous ones
+		for (int i = 0; i < constantCount; i++) {
+			builder.append("constant vector[").append(WIDTH).append("] K").append(i).append(" = ");
+			if (i == 0) {
+				appendLiteral();
+			} else {
+				builder.append('K').append(random.nextInt(i)).append(' ').append(randomOperator()).append(' ');
+				appendLiteral();
+			}
+			builder.append(";\n");
+		}
+		builder.append('\n');
+
+		// registers, some of them initialized
+		for (int i = 0; i < registerCount; i++) {
+			builder.append("register vector[").append(WIDTH).append("] r").append(i);
+			if (random.nextInt(4) == 0) {
+				builder.append(" = ");
+				appendLiteral();
+			}
+			builder.append(";\n");
+		}
+		builder.append('\n');
+
+		// signals: every eighth one is computed by a switch expression, half of the others by their initializer,
+		// and the remaining ones in continuous do-blocks (see below)
+		boolean[] assignedInDoBlock = new boolean[signalCount];
+		for (int i = 0; i < signalCount; i++) {
+			builder.append("signal vector[").append(WIDTH).append("] s").append(i);
+			if (i % 8 == 7) {
+				builder.append(" = ");
+				appendSwitchExpression(i);
+			} else if (random.nextBoolean()) {
+				builder.append(" = ");
+				appendExpression(i, expressionDepth);
+			} else {
+				assignedInDoBlock[i] = true;
+			}
+			builder.append(";\n");
+		}
+		builder.append('\n');
+
+		// instances
+		if (instanceCount > 0) {
+			builder.append(childModuleName);
+			for (int i = 0; i < instanceCount; i++) {
+				builder.append(i == 0 ? " u" : ", u").append(i);
+			}
+			builder.append(";\n\n");
+		}
+
+		// clocked do-blocks
+		int statementCount = 0;
+		for (int i = 0; i < registerCount; i++) {
+			if (statementCount % statementsPerBlock == 0) {
+				builder.append(statementCount == 0 ? "do (clk) {\n" : "}\n\ndo (clk) {\n");
+			}
+			int kind = random.nextInt(4);
+			if (kind == 0) {
+				builder.append("\tif (");
+				appendCondition(signalCount);
+				builder.append(") {\n\t\t");
+				appendAssignment("r" + i, signalCount);
+				builder.append("\t} else {\n\t\t");
+				appendAssignment("r" + i, signalCount);
+				builder.append("\t}\n");
+			} else if (kind == 1) {
+				builder.append("\tswitch (x[1:0]) {\n");
+				for (int value = 0; value < 2; value++) {
+					builder.append("\tcase 2d").append(value).append(":\n\t\t");
+					appendAssignment("r" + i, signalCount);
+				}
+				builder.append("\tdefault:\n\t\t");
+				appendAssignment("r" + i, signalCount);
+				builder.append("\t}\n");
+			} else {
+				builder.append('\t');
+				appendAssignment("r" + i, signalCount);
+			}
+			statementCount++;
+		}
+		builder.append("}\n\n");
+
+		// continuous do-blocks. Instance inputs only depend on registers and x, so the instance outputs that signals
+		// read cannot form a combinational loop.
+		statementCount = 0;
+		for (int i = 0; i < instanceCount; i++) {
+			statementCount = beginContinuousStatement(statementCount);
+			builder.append("\tu").append(i).append(".clk = clk;\n");
+			statementCount = beginContinuousStatement(statementCount);
+			builder.append("\tu").append(i).append(".x = r").append(random.nextInt(registerCount)).append(" ^ x;\n");
+		}
+		for (int i = 0; i < signalCount; i++) {
+			if (!assignedInDoBlock[i]) {
+				continue;
+			}
+			statementCount = beginContinuousStatement(statementCount);
+			if (random.nextBoolean()) {
+				builder.append('\t');
+				appendAssignment("s" + i, i);
+			} else {
+				builder.append("\tif (");
+				appendCondition(i);
+				builder.append(") {\n\t\t");
+				appendAssignment("s" + i, i);
+				builder.append("\t} else {\n\t\t");
+				appendAssignment("s" + i, i);
+				builder.append("\t}\n");
+			}
+		}
+		statementCount = beginContinuousStatement(statementCount);
+		builder.append("\ty = s").append(signalCount - 1).append(" ^ r").append(registerCount - 1).append(";\n");
+		builder.append("}\n");
+	}
+
+	private int beginContinuousStatement(int statementCount) {
+		if (statementCount % statementsPerBlock == 0) {
+			builder.append(statementCount == 0 ? "do (*) {\n" : "}\n\ndo (*) {\n");
+		}
+		return statementCount + 1;
+	}
+
+	/**
+	 * Appends an assignment whose right-hand side may use the signals below (signalLimit).
+	 */
+	private void appendAssignment(String destination, int signalLimit) {
+		builder.append(destination).append(" = ");
+		appendExpression(signalLimit, expressionDepth);
+		builder.append(";\n");
+	}
+
+	/**
+	 * Appends a switch expression whose selector and case values may use the signals below (signalLimit).
+	 */
+	private void appendSwitchExpression(int signalLimit) {
+		int selectorSize = Math.max(1, 32 - Integer.numberOfLeadingZeros(switchCases - 1));
+		builder.append("switch (");
+		appendName(signalLimit);
+		builder.append('[').append(selectorSize - 1).append(":0]) {\n");
+		for (int i = 0; i < switchCases; i++) {
+			builder.append("\tcase ").append(selectorSize).append('d').append(i).append(": ");
+			appendExpression(signalLimit, 1);
+			builder.append('\n');
+		}
+		if (switchCases < (1 << selectorSize)) {
+			builder.append("\tdefault: ");
+			appendExpression(signalLimit, 1);
+			builder.append('\n');
+		}
+		builder.append('}');
+	}
+
+	/**
+	 * Appends a vector expression that may use the signals below (signalLimit), so signals only depend on signals
+	 * defined before them and the design is free of combinational loops.
+	 */
+	private void appendExpression(int signalLimit, int depth) {
+		if (depth == 0) {
+			appendOperand(signalLimit);
+			return;
+		}
+		switch (random.nextInt(6)) {
+
+			case 0:
+				builder.append('(');
+				appendCondition(signalLimit);
+				builder.append(" ? ");
+				appendExpression(signalLimit, depth - 1);
+				builder.append(" : ");
+				appendExpression(signalLimit, depth - 1);
+				builder.append(')');
+				break;
+
+			case 1:
+				builder.append('(');
+				appendName(signalLimit);
+				builder.append('[').append(WIDTH / 2 - 1).append(":0] _ ");
+				appendName(signalLimit);
+				builder.append('[').append(WIDTH - 1).append(':').append(WIDTH / 2).append("])");
+				break;
+
+			case 2:
+				appendOperand(signalLimit);
+				break;
+
+			default:
+				builder.append('(');
+				appendExpression(signalLimit, depth - 1);
+				builder.append(' ').append(randomOperator()).append(' ');
+				appendExpression(signalLimit, depth - 1);
+				builder.append(')');
+				break;
+
+		}
+	}
+
+	/**
+	 * Appends a bit expression that may use the signals below (signalLimit).
+	 */
+	private void appendCondition(int signalLimit) {
+		if (random.nextBoolean()) {
+			appendName(signalLimit);
+			builder.append('[').append(random.nextInt(WIDTH)).append(']');
+		} else {
+			appendOperand(signalLimit);
+			builder.append(random.nextBoolean() ? " == " : " < ");
+			appendOperand(signalLimit);
+		}
+	}
+
+	/**
+	 * Appends a vector-typed name or, sometimes, a literal.
+	 */
+	private void appendOperand(int signalLimit) {
+		if (random.nextInt(10) == 0) {
+			appendLiteral();
+		} else {
+			appendName(signalLimit);
+		}
+	}
+
+	/**
+	 * Appends the name of a vector-typed signal, register, constant, port or instance port. Signals are taken mostly
+	 * from the ones just below (signalLimit), which gives the design long chains of dependent signals, like a
+	 * datapath.
+	 */
+	private void appendName(int signalLimit) {
+		int kind = random.nextInt(9);
+		if (kind < 4 && signalLimit > 0) {
+			builder.append('s').append(Math.max(0, signalLimit - 1 - random.nextInt(16)));
+		} else if (kind < 6) {
+			builder.append('r').append(random.nextInt(registerCount));
+		} else if (kind < 7) {
+			builder.append('K').append(random.nextInt(constantCount));
+		} else if (kind < 8 && instanceCount > 0) {
+			builder.append('u').append(random.nextInt(instanceCount)).append(".y");
+		} else {
+			builder.append('x');
+		}
+	}
+
+	private void appendLiteral() {
+		builder.append(WIDTH).append('d').append(random.nextInt(1 << WIDTH));
+	}
+
+	private String randomOperator() {
+		return OPERATORS[random.nextInt(OPERATORS.length)];
+	}
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.benchmark;
+
+import com.intellij.core.CoreApplicationEnvironment;
+import com.intellij.core.CoreProjectEnvironment;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import name.martingeisse.mahdl.plugin.MahdlFileType;
+import name.martingeisse.mahdl.plugin.MahdlSourceFile;
+import name.martingeisse.mahdl.plugin.input.MahdlParserDefinition;
+import name.martingeisse.mahdl.plugin.input.psi.Module;
+import name.martingeisse.mahdl.plugin.processor.ErrorHandler;
+import name.martingeisse.mahdl.plugin.processor.ModuleProcessor;
+import name.martingeisse.mahdl.plugin.processor.definition.ModuleDefinition;
+import org.apache.commons.io.FileUtils;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Parses MaHDL source files without running the IDE, using the IntelliJ core environment, so benchmarks and tests can
+ * feed the front-end the same PSI trees that the editor would. The files live in a temporary folder that acts as the only
+ * source root, and they are deleted when the project is closed.
+ */
+public final class HeadlessProject implements Closeable {
+
+	/**
+	 * Throws an IllegalStateException for each error, since generated inputs are supposed to be valid.
+	 */
+	public static final ErrorHandler STRICT_ERROR_HANDLER = (errorSource, message) -> {
+		throw new IllegalStateException(message + " at: " + errorSource.getText());
+	};
+
+	private final Disposable disposable = Disposer.newDisposable();
+	private final Path sourceRootPath;
+	private final CoreApplicationEnvironment applicationEnvironment;
+	private final CoreProjectEnvironment projectEnvironment;
+	private final VirtualFile sourceRoot;
+
+	public HeadlessProject() throws IOException {
+		this.sourceRootPath = Files.createTempDirectory("mahdl-benchmark");
+		this.applicationEnvironment = new CoreApplicationEnvironment(disposable);
+		applicationEnvironment.registerFileType(MahdlFileType.INSTANCE, MahdlFileType.DEFAULT_EXTENSION);
+		applicationEnvironment.registerParserDefinition(new MahdlParserDefinition());
+		this.projectEnvironment = new CoreProjectEnvironment(disposable, applicationEnvironment);
+		this.sourceRoot = applicationEnvironment.getLocalFileSystem().findFileByIoFile(sourceRootPath.toFile());
+		if (sourceRoot == null) {
+			throw new IOException("could not find source root: " + sourceRootPath);
+		}
+		projectEnvironment.getProject().registerService(ProjectRootManager.class, StandIns.instantiate(RootManager.class, sourceRoot));
+	}
+
+	@NotNull
+	public Path getSourceRootPath() {
+		return sourceRootPath;
+	}
+
+	/**
+	 * Writes a file, relative to the source root, creating folders as needed.
+	 */
+	@NotNull
+	public File writeFile(@NotNull String relativePath, @NotNull String content) throws IOException {
+		File file = sourceRootPath.resolve(relativePath).toFile();
+		FileUtils.writeStringToFile(file, content, StandardCharsets.UTF_8);
+		return file;
+	}
+
+	/**
+	 * Writes the source code of a module to the file that belongs to its name, then parses it.
+	 */
+	@NotNull
+	public Module loadModule(@NotNull String moduleName, @NotNull String source) throws IOException {
+		File file = writeFile(moduleName.replace('.', '/') + '.' + MahdlFileType.DEFAULT_EXTENSION, source);
+		VirtualFile virtualFile = applicationEnvironment.getLocalFileSystem().findFileByIoFile(file);
+		if (virtualFile == null) {
+			throw new IOException("could not find file: " + file);
+		}
+		PsiFile psiFile = PsiManager.getInstance(projectEnvironment.getProject()).findFile(virtualFile);
+		if (!(psiFile instanceof MahdlSourceFile)) {
+			throw new IOException("not a MaHDL source file: " + file);
+		}
+		Module module = ((MahdlSourceFile) psiFile).getModule();
+		if (module == null) {
+			throw new IOException("file does not contain a module: " + file);
+		}
+		return module;
+	}
+
+	/**
+	 * Loads and processes a module, failing on errors.
+	 */
+	@NotNull
+	public ModuleDefinition processModule(@NotNull String moduleName, @NotNull String source) throws IOException {
+		return new ModuleProcessor(loadModule(moduleName, source), STRICT_ERROR_HANDLER).process();
+	}
+
+	@Override
+	public void close() throws IOException {
+		Disposer.dispose(disposable);
+		FileUtils.deleteDirectory(sourceRootPath.toFile());
+	}
+
+	/**
+	 * Resolves module names against the source root. All other methods are left to {@link StandIns}.
+	 */
+	public static abstract class RootManager extends ProjectRootManager {
+
+		private final ProjectFileIndex fileIndex;
+
+		public RootManager(@NotNull VirtualFile sourceRoot) {
+			this.fileIndex = (ProjectFileIndex) Proxy.newProxyInstance(ProjectFileIndex.class.getClassLoader(), new Class<?>[] {ProjectFileIndex.class}, (proxy, method, arguments) -> {
+				switch (method.getName()) {
+
+					case "getSourceRootForFile":
+						return VfsUtilCore.isAncestor(sourceRoot, (VirtualFile) arguments[0], false) ? sourceRoot : null;
+
+					case "hashCode":
+						return System.identityHashCode(proxy);
+
+					case "equals":
+						return proxy == arguments[0];
+
+					case "toString":
+						return "file index for " + sourceRoot;
+
+					default:
+						throw new UnsupportedOperationException("not supported by the headless file index: " + method.getName());
+
+				}
+			});
+		}
+
+		@NotNull
+		@Override
+		public ProjectFileIndex getFileIndex() {
+			return fileIndex;
+		}
+
+	}
+
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.benchmark;
+
+import com.intellij.openapi.util.TextRange;
+import com.intellij.psi.PsiElement;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.reflect.Proxy;
+
+/**
+ * Creates stand-ins for PSI elements, so benchmarks and tests can build processed modules without running IntelliJ. The
+ * processor and simulator only use PSI elements as names and error sources, so the stand-ins only support their
+ * text; any other method throws an UnsupportedOperationException.
+ */
+public final class HeadlessPsi {
+
+	// prevent instantiation
+	private HeadlessPsi() {
+	}
+
+	@NotNull
+	public static PsiElement element(@NotNull String text) {
+		return (PsiElement) Proxy.newProxyInstance(PsiElement.class.getClassLoader(), new Class<?>[] {PsiElement.class}, (proxy, method, arguments) -> {
+			switch (method.getName()) {
+
+				case "getText":
+				case "toString":
+					return text;
+
+				case "getTextRange":
+					return new TextRange(0, text.length());
+
+				case "getTextLength":
+					return text.length();
+
+				case "hashCode":
+					return System.identityHashCode(proxy);
+
+				case "equals":
+					return proxy == arguments[0];
+
+				default:
+					throw new UnsupportedOperationException("not supported by headless PSI elements: " + method.getName());
+
+			}
+		});
+	}
+
+}
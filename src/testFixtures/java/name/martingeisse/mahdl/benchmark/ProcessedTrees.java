@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.benchmark;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import name.martingeisse.mahdl.plugin.input.psi.PortDirection_In;
+import name.martingeisse.mahdl.plugin.input.psi.PortDirection_Out;
+import name.martingeisse.mahdl.plugin.processor.definition.*;
+import name.martingeisse.mahdl.plugin.processor.expression.*;
+import name.martingeisse.mahdl.plugin.processor.statement.*;
+import name.martingeisse.mahdl.plugin.processor.type.ProcessedDataType;
+import org.jetbrains.annotations.NotNull;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Helpers to build processed modules in code, the way the front-end would produce them from source, using
+ * {@link HeadlessPsi} elements for names and error sources.
+ */
+public final class ProcessedTrees {
+
+	private final String moduleName;
+	private final Map<String, Named> definitions = new LinkedHashMap<>();
+	private final List<ProcessedDoBlock> doBlocks = new ArrayList<>();
+
+	public ProcessedTrees(@NotNull String moduleName) {
+		this.moduleName = moduleName;
+	}
+
+	@NotNull
+	public ModuleDefinition build() {
+		return new ModuleDefinition(false, moduleName, ImmutableMap.copyOf(definitions), ImmutableList.copyOf(doBlocks));
+	}
+
+	// ----------------------------------------------------------------------------------------------------------------
+	// definitions and do-blocks
+	// ----------------------------------------------------------------------------------------------------------------
+
+	@NotNull
+	public ModulePort input(@NotNull String name, @NotNull ProcessedDataType type) {
+		return define(new ModulePort(HeadlessPsi.element(name), new PortDirection_In(null), null, type));
+	}
+
+	@NotNull
+	public ModulePort output(@NotNull String name, @NotNull ProcessedDataType type) {
+		return define(new ModulePort(HeadlessPsi.element(name), new PortDirection_Out(null), null, type));
+	}
+
+	@NotNull
+	public Signal signal(@NotNull String name, @NotNull ProcessedDataType type) {
+		return define(new Signal(HeadlessPsi.element(name), null, type, null));
+	}
+
+	/**
+	 * Defines a signal with an initializer (see {@link #setInitializer(Signal, ProcessedExpression)}).
+	 */
+	@NotNull
+	public Signal signal(@NotNull String name, @NotNull ProcessedDataType type, @NotNull ProcessedExpression initializer) {
+		Signal signal = signal(name, type);
+		setInitializer(signal, initializer);
+		return signal;
+	}
+
+	/**
+	 * Sets the initializer of a signal. The front-end stores the processed initializer while processing the
+	 * initializer's PSI, which processed trees don't have, so it gets stored directly. This also allows initializers
+	 * that refer to the signal itself.
+	 */
+	public static void setInitializer(@NotNull Signal signal, @NotNull ProcessedExpression initializer) {
+		signal.setProcessedInitializer(initializer);
+	}
+
+	@NotNull
+	public Register register(@NotNull String name, @NotNull ProcessedDataType type) {
+		return define(new Register(HeadlessPsi.element(name), null, type, null));
+	}
+
+	@NotNull
+	private <T extends Named> T define(@NotNull T definition) {
+		if (definitions.put(definition.getName(), definition) != null) {
+			throw new IllegalArgumentException("duplicate definition: " + definition.getName());
+		}
+		return definition;
+	}
+
+	/**
+	 * Adds a do-block that is triggered by the specified clock, or a continuous one if the clock is null.
+	 */
+	public void doBlock(SignalLike clock, @NotNull ProcessedStatement... statements) {
+		doBlocks.add(new ProcessedDoBlock(clock == null ? null : ref(clock), block(statements)));
+	}
+
+	// ----------------------------------------------------------------------------------------------------------------
+	// types
+	// ----------------------------------------------------------------------------------------------------------------
+
+	@NotNull
+	public static ProcessedDataType bit() {
+		return ProcessedDataType.Bit.INSTANCE;
+	}
+
+	@NotNull
+	public static ProcessedDataType vector(int size) {
+		return new ProcessedDataType.Vector(size);
+	}
+
+	@NotNull
+	public static ProcessedDataType matrix(int rows, int columns) {
+		return new ProcessedDataType.Matrix(rows, columns);
+	}
+
+	// ----------------------------------------------------------------------------------------------------------------
+	// expressions
+	// ----------------------------------------------------------------------------------------------------------------
+
+	@NotNull
+	public static ProcessedExpression ref(@NotNull SignalLike signalLike) {
+		return new SignalLikeReference(HeadlessPsi.element(signalLike.getName()), signalLike);
+	}
+
+	@NotNull
+	public static ConstantValue.Vector constantValue(int size, long value) {
+		return new ConstantValue.Vector(size, BigInteger.valueOf(value).and(BigInteger.ONE.shiftLeft(size).subtract(BigInteger.ONE)), false);
+	}
+
+	@NotNull
+	public static ProcessedExpression constant(int size, long value) {
+		return new ProcessedConstantValue(HeadlessPsi.element(Long.toString(value)), constantValue(size, value));
+	}
+
+	@NotNull
+	public static ProcessedExpression constant(int size, @NotNull BigInteger value) {
+		return new ProcessedConstantValue(HeadlessPsi.element(value.toString()), new ConstantValue.Vector(size, value, false));
+	}
+
+	@NotNull
+	public static ProcessedExpression op(@NotNull ProcessedExpression left, @NotNull ProcessedBinaryOperator operator,
+										 @NotNull ProcessedExpression right) throws TypeErrorException {
+		return new ProcessedBinaryOperation(HeadlessPsi.element(operator.name()), left, right, operator);
+	}
+
+	@NotNull
+	public static ProcessedExpression op(@NotNull ProcessedUnaryOperator operator, @NotNull ProcessedExpression operand) throws TypeErrorException {
+		return new ProcessedUnaryOperation(HeadlessPsi.element(operator.name()), operand, operator);
+	}
+
+	@NotNull
+	public static ProcessedExpression conditional(@NotNull ProcessedExpression condition, @NotNull ProcessedExpression thenBranch,
+												  @NotNull ProcessedExpression elseBranch) throws TypeErrorException {
+		return new ProcessedConditional(HeadlessPsi.element("?"), condition, thenBranch, elseBranch);
+	}
+
+	/**
+	 * Selects a bit with a constant index. The index is given as a vector just wide enough for the container.
+	 */
+	@NotNull
+	public static ProcessedExpression bitAt(@NotNull ProcessedExpression container, int index) throws TypeErrorException {
+		int size = ((ProcessedDataType.Vector) container.getDataType()).getSize();
+		int indexSize = 31 - Integer.numberOfLeadingZeros(size);
+		return new ProcessedIndexSelection.BitFromVector(HeadlessPsi.element("[]"), container, constant(indexSize, index));
+	}
+
+	@NotNull
+	public static ProcessedExpression range(@NotNull ProcessedExpression container, int from, int to) throws TypeErrorException {
+		return new ProcessedRangeSelection(HeadlessPsi.element("[:]"), vector(from - to + 1), container, from, to);
+	}
+
+	@NotNull
+	public static ProcessedExpression row(@NotNull ProcessedExpression matrix, @NotNull ProcessedExpression index) throws TypeErrorException {
+		return new ProcessedIndexSelection.VectorFromMatrix(HeadlessPsi.element("[]"), matrix, index);
+	}
+
+	/**
+	 * Creates a switch expression. The cases are pairs of selector value and result expression.
+	 */
+	@NotNull
+	public static ProcessedExpression switchExpression(@NotNull ProcessedExpression selector, @NotNull List<ConstantValue.Vector> selectorValues,
+													   @NotNull List<ProcessedExpression> results, @NotNull ProcessedExpression defaultResult) throws TypeErrorException {
+		List<ProcessedSwitchExpression.Case> cases = new ArrayList<>();
+		for (int i = 0; i < selectorValues.size(); i++) {
+			cases.add(new ProcessedSwitchExpression.Case(ImmutableList.of(selectorValues.get(i)), results.get(i)));
+		}
+		return new ProcessedSwitchExpression(HeadlessPsi.element("switch"), defaultResult.getDataType(), selector, ImmutableList.copyOf(cases), defaultResult);
+	}
+
+	// ----------------------------------------------------------------------------------------------------------------
+	// statements
+	// ----------------------------------------------------------------------------------------------------------------
+
+	@NotNull
+	public static ProcessedStatement assign(@NotNull ProcessedExpression destination, @NotNull ProcessedExpression value) throws TypeErrorException {
+		return new ProcessedAssignment(HeadlessPsi.element("="), destination, value);
+	}
+
+	@NotNull
+	public static ProcessedStatement block(@NotNull ProcessedStatement... statements) {
+		return new ProcessedBlock(HeadlessPsi.element("{}"), ImmutableList.copyOf(statements));
+	}
+
+	@NotNull
+	public static ProcessedStatement when(@NotNull ProcessedExpression condition, @NotNull ProcessedStatement thenBranch) {
+		return new ProcessedIf(HeadlessPsi.element("if"), condition, thenBranch, new Nop(HeadlessPsi.element("")));
+	}
+
+	@NotNull
+	public static ProcessedStatement when(@NotNull ProcessedExpression condition, @NotNull ProcessedStatement thenBranch,
+										  @NotNull ProcessedStatement elseBranch) {
+		return new ProcessedIf(HeadlessPsi.element("if"), condition, thenBranch, elseBranch);
+	}
+
+	/**
+	 * Creates a switch statement. The cases are pairs of selector value and branch.
+	 */
+	@NotNull
+	public static ProcessedStatement switchStatement(@NotNull ProcessedExpression selector, @NotNull List<ConstantValue.Vector> selectorValues,
+													 @NotNull List<ProcessedStatement> branches, ProcessedStatement defaultBranch) throws TypeErrorException {
+		List<ProcessedSwitchStatement.Case> cases = new ArrayList<>();
+		for (int i = 0; i < selectorValues.size(); i++) {
+			cases.add(new ProcessedSwitchStatement.Case(ImmutableList.of(selectorValues.get(i)), branches.get(i)));
+		}
+		return new ProcessedSwitchStatement(HeadlessPsi.element("switch"), selector, ImmutableList.copyOf(cases), defaultBranch);
+	}
+
+}
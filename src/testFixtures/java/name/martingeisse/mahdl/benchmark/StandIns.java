@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2018 Martin Geisse
+ * This file is distributed under the terms of the MIT license.
+ */
+package name.martingeisse.mahdl.benchmark;
+
+import org.jetbrains.annotations.NotNull;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+/**
+ * Instantiates abstract classes by generating a subclass in which each abstract method throws an
+ * UnsupportedOperationException. This lets benchmarks and tests implement just the methods of a platform service that the
+ * code under test actually calls, without depending on the exact set of abstract methods in a particular SDK
+ * version.
+ */
+public final class StandIns {
+
+	// prevent instantiation
+	private StandIns() {
+	}
+
+	/**
+	 * Creates an instance using the only constructor of the abstract class.
+	 */
+	@NotNull
+	public static <T> T instantiate(@NotNull Class<T> abstractClass, Object... constructorArguments) {
+		Constructor<?>[] constructors = abstractClass.getDeclaredConstructors();
+		if (constructors.length != 1) {
+			throw new IllegalArgumentException(abstractClass + " must have exactly one constructor");
+		}
+		String subclassName = abstractClass.getName() + "$StandIn";
+		byte[] definition = generate(abstractClass, subclassName, constructors[0].getParameterTypes());
+		Class<?> subclass = new StandInClassLoader(abstractClass.getClassLoader()).define(subclassName, definition);
+		try {
+			return abstractClass.cast(subclass.getDeclaredConstructors()[0].newInstance(constructorArguments));
+		} catch (ReflectiveOperationException e) {
+			throw new RuntimeException("could not instantiate stand-in for " + abstractClass, e);
+		}
+	}
+
+	private static byte[] generate(Class<?> abstractClass, String subclassName, Class<?>[] constructorParameterTypes) {
+		String superclassName = Type.getInternalName(abstractClass);
+		ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		classWriter.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER,
+			subclassName.replace('.', '/'), null, superclassName, null);
+
+		// constructor that passes all arguments on
+		String constructorDescriptor = Type.getMethodDescriptor(Type.VOID_TYPE, Arrays.stream(constructorParameterTypes).map(Type::getType).toArray(Type[]::new));
+		MethodVisitor constructor = classWriter.visitMethod(Opcodes.ACC_PUBLIC, "<init>", constructorDescriptor, null, null);
+		constructor.visitCode();
+		constructor.visitVarInsn(Opcodes.ALOAD, 0);
+		int slot = 1;
+		for (Class<?> parameterType : constructorParameterTypes) {
+			Type type = Type.getType(parameterType);
+			constructor.visitVarInsn(type.getOpcode(Opcodes.ILOAD), slot);
+			slot += type.getSize();
+		}
+		constructor.visitMethodInsn(Opcodes.INVOKESPECIAL, superclassName, "<init>", constructorDescriptor, false);
+		constructor.visitInsn(Opcodes.RETURN);
+		constructor.visitMaxs(0, 0);
+		constructor.visitEnd();
+
+		// throwing implementations of the abstract methods
+		for (Method method : getAbstractMethods(abstractClass)) {
+			int access = (method.getModifiers() & (Opcodes.ACC_PUBLIC | Opcodes.ACC_PROTECTED)) | Opcodes.ACC_FINAL;
+			MethodVisitor methodVisitor = classWriter.visitMethod(access, method.getName(), Type.getMethodDescriptor(method), null, null);
+			methodVisitor.visitCode();
+			methodVisitor.visitTypeInsn(Opcodes.NEW, "java/lang/UnsupportedOperationException");
+			methodVisitor.visitInsn(Opcodes.DUP);
+			methodVisitor.visitLdcInsn("not supported by stand-in: " + method.getName());
+			methodVisitor.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/UnsupportedOperationException", "<init>", "(Ljava/lang/String;)V", false);
+			methodVisitor.visitInsn(Opcodes.ATHROW);
+			methodVisitor.visitMaxs(0, 0);
+			methodVisitor.visitEnd();
+		}
+
+		classWriter.visitEnd();
+		return classWriter.toByteArray();
+	}
+
+	/**
+	 * Finds the methods without an implementation. A method counts as implemented by the most specific class that
+	 * declares it, or else by a default method in an interface.
+	 */
+	private static List<Method> getAbstractMethods(Class<?> abstractClass) {
+		Set<String> seen = new HashSet<>();
+		List<Method> result = new ArrayList<>();
+		List<Class<?>> interfaces = new ArrayList<>();
+		for (Class<?> c = abstractClass; c != null; c = c.getSuperclass()) {
+			for (Method method : c.getDeclaredMethods()) {
+				if (Modifier.isStatic(method.getModifiers()) || Modifier.isPrivate(method.getModifiers())) {
+					continue;
+				}
+				if (seen.add(method.getName() + Type.getMethodDescriptor(method)) && Modifier.isAbstract(method.getModifiers())) {
+					result.add(method);
+				}
+			}
+			interfaces.addAll(Arrays.asList(c.getInterfaces()));
+		}
+		for (int i = 0; i < interfaces.size(); i++) {
+			Class<?> anInterface = interfaces.get(i);
+			for (Method method : anInterface.getDeclaredMethods()) {
+				if (Modifier.isStatic(method.getModifiers())) {
+					continue;
+				}
+				if (seen.add(method.getName() + Type.getMethodDescriptor(method)) && !method.isDefault()) {
+					result.add(method);
+				}
+			}
+			interfaces.addAll(Arrays.asList(anInterface.getInterfaces()));
+		}
+		return result;
+	}
+
+	private static final class StandInClassLoader extends ClassLoader {
+
+		StandInClassLoader(ClassLoader parent) {
+			super(parent);
+		}
+
+		Class<?> define(String name, byte[] definition) {
+			return defineClass(name, definition, 0, definition.length);
+		}
+
+	}
+
+}